@@ -21,30 +21,59 @@
 package com.docdoku.server.converters.all;
 
 
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionMetrics;
+import com.docdoku.server.converters.utils.ConversionRoutes;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConversionSupersession;
+import com.docdoku.server.converters.utils.ConversionTool;
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import com.docdoku.server.converters.utils.remote.RemoteConversions;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @AllFileConverter
 @Stateless
-public class AllFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, AsyncCADConverter.class})
+public class AllFileConverterImpl implements AsyncCADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/all/conf.properties";
     private static final Properties CONF = new Properties();
     private static final Logger LOGGER = Logger.getLogger(AllFileConverterImpl.class.getName());
+    // Bumped when the Java mesh readers change their output, so that cached conversions are not reused
+    private static final String JAVA_MESH_VERSION = "java-mesh-1";
+    private static final Map<String, JavaMeshConverter> JAVA_MESH_CONVERTERS = new HashMap<>();
+    private static final ExecutorService JAVA_MESH_EXECUTOR =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("java-mesh-converter"));
 
     static {
         try (InputStream inputStream = AllFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -52,27 +81,117 @@ public class AllFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        JAVA_MESH_CONVERTERS.put("stl", StlToObjConverter::convert);
+        JAVA_MESH_CONVERTERS.put("ply", PlyToObjConverter::convert);
+        JAVA_MESH_CONVERTERS.put("off", OffToObjConverter::convert);
+    }
+
+    private final ConversionTool meshconv = ConversionTool.forTool("meshconv", CONF.getProperty("meshconv_path"));
+    private final ConversionTool assimp = CONF.getProperty("assimp_path", "").trim().isEmpty() ? null
+            : ConversionTool.forTool("assimp", CONF.getProperty("assimp_path"));
+    private final ConversionTool javaMesh = ConversionTool.inProcess("java-mesh", JAVA_MESH_VERSION);
+    private final ConversionRoutes routes = routes();
+
+    /**
+     * STL, PLY and OFF files are converted by the Java readers, then by meshconv if they reject the file.
+     * Other files are converted by meshconv, then by assimp if meshconv fails or is unavailable.
+     */
+    private ConversionRoutes routes() {
+        ConversionRoutes conversionRoutes = new ConversionRoutes();
+        for (Map.Entry<String, JavaMeshConverter> entry : JAVA_MESH_CONVERTERS.entrySet()) {
+            JavaMeshConverter converter = entry.getValue();
+            conversionRoutes.add(javaMesh, (context, cadFile, tmpDir) -> doConvertJavaMesh(context, converter,
+                    cadFile, tmpDir), entry.getKey());
+        }
+        conversionRoutes.add(meshconv, this::doConvert, "stl", "off", "ply", "3ds", "wrl");
+        if (assimp != null) {
+            conversionRoutes.add(assimp, this::doConvertAssimp, "3ds", "wrl");
+        }
+        return conversionRoutes;
     }
 
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        Path tmpDir = Paths.get(tmpDirUri);
-        Path tmpCadFile = Paths.get(cadFileUri);
-
-        String meshConvBinary = CONF.getProperty("meshconv_path");
-        Path executable = Paths.get(meshConvBinary);
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+    }
 
-        // sanity checks
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary + "\" is not available");
+    @Override
+    public CompletableFuture<ConversionResult> convertAsync(final URI cadFileUri, final URI tmpDirUri) {
+        String extension = ConversionRoutes.extension(Paths.get(cadFileUri));
+        ConversionContext context = ConversionContext.of(cadFileUri, tmpDirUri);
+        RemoteConversions remote = RemoteConversions.forConverter(AllFileConverterImpl.class);
+        if (remote.isEnabled()) {
+            return ConversionSupersession.track(context, remote.convertAsync(context, cadFileUri, tmpDirUri));
         }
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        return ConversionSupersession.track(context, ConversionCache.forConverter(AllFileConverterImpl.class)
+                .convertAsync(cadFileUri, tmpDirUri, pipeline.version(routes.version(extension)),
+                        pipeline.wrap((cadFile, tmpDir) -> routes.convertAsync(extension, context, cadFile, tmpDir))));
+    }
+
+    private CompletableFuture<ConversionResult> doConvertJavaMesh(final ConversionContext context,
+                                                                  final JavaMeshConverter converter,
+                                                                  final URI cadFileUri, final URI tmpDirUri) {
+        ConversionScheduler scheduler =
+                ConversionScheduler.forTool("java-mesh", CONF.getProperty("java_mesh_max_concurrency"));
+        return scheduler.submit(context, () -> ConversionFutures.supplyAsync(
+                () -> runJavaMesh(converter, cadFileUri, tmpDirUri), JAVA_MESH_EXECUTOR));
+    }
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException("Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary
-                    + "\" has no execution rights");
+    private ConversionResult runJavaMesh(final JavaMeshConverter converter, final URI cadFileUri,
+                                         final URI tmpDirUri) throws ConversionException {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        long start = System.nanoTime();
+        long startCpuTime = currentThreadCpuTime();
+        try {
+            converter.convert(tmpCadFile, convertedFile);
+            record(tmpCadFile, convertedFile, 0, "", start, startCpuTime);
+        } catch (IOException | RuntimeException e) {
+            // Readers may also fail on malformed input with runtime errors, such as out of range indices
+            record(tmpCadFile, convertedFile, 1, String.valueOf(e), start, startCpuTime);
+            // Do not leave the partial file next to the one written by the fallback tool
+            try {
+                Files.deleteIfExists(convertedFile);
+            } catch (IOException deleteError) {
+                e.addSuppressed(deleteError);
+            }
+            throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath(), e);
         }
+        return new ConversionResult(convertedFile);
+    }
+
+    /**
+     * Record a run of a Java reader as a run of a tool. The reader runs on the calling thread, whose CPU time is
+     * the one of the conversion, its memory is not told apart from the rest of the server.
+     */
+    private static void record(Path cadFile, Path convertedFile, int exitCode, String errorOutput, long start,
+                               long startCpuTime) {
+        long cpuTime = startCpuTime < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(currentThreadCpuTime() - startCpuTime);
+        ProcessResult result = new ProcessResult(exitCode, false,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), "", errorOutput, cpuTime, -1);
+        ConversionMetrics.forConverter(AllFileConverterImpl.class).record(cadFile, convertedFile, result);
+    }
+
+    /**
+     * @return the CPU time of the calling thread in nanoseconds, or -1 if it is not measured
+     */
+    private static long currentThreadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private CompletableFuture<ConversionResult> doConvert(final ConversionContext context, final URI cadFileUri,
+                                                          final URI tmpDirUri) {
+        ConversionScheduler scheduler =
+                ConversionScheduler.forTool("meshconv", CONF.getProperty("meshconv_max_concurrency"));
+        return scheduler.submit(context, () -> runMeshconv(cadFileUri, tmpDirUri));
+    }
+
+    private CompletableFuture<ConversionResult> runMeshconv(final URI cadFileUri, final URI tmpDirUri) {
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path tmpCadFile = Paths.get(cadFileUri);
 
         UUID uuid = UUID.randomUUID();
         Path convertedFile = tmpDir.resolve(uuid.toString());
@@ -80,36 +199,81 @@ public class AllFileConverterImpl implements CADConverter {
 
         Path finalConvertedFile = tmpDir.resolve(uuid + ".obj");
 
-        String[] args = {meshConvBinary, tmpCadFile.toAbsolutePath().toString(), "-c", "obj", "-o",
-                convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
+        String[] args = {meshconv.getExecutable().toString(), tmpCadFile.toAbsolutePath().toString(), "-c", "obj",
+                "-o", convertedFile.toString()};
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("meshconv_timeout"));
 
+        CompletableFuture<ProcessResult> process;
         try {
-            Process proc = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(proc.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(proc.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            process = runner.start(new ProcessBuilder(args), Collections.singletonList(finalConvertedFile));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+            meshconv.recordFailure();
+            return ConversionFutures.failed(new ConversionException(e));
+        }
 
-            proc.waitFor();
+        return ConversionFutures.then(process, result -> {
+            LOGGER.info(result.getStdOutput());
+            meshconv.record(result);
+            ConversionMetrics.forConverter(AllFileConverterImpl.class).record(tmpCadFile, finalConvertedFile, result);
 
-            if (proc.exitValue() == 0) {
+            if (result.isSuccess()) {
                 return new ConversionResult(finalConvertedFile);
+            } else if (result.isTimedOut()) {
+                throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath()
+                        + ": timed out after " + runner.getTimeout() + "s");
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
-        } catch (IOException | InterruptedException e) {
+        });
+    }
+
+    private CompletableFuture<ConversionResult> doConvertAssimp(final ConversionContext context,
+                                                                final URI cadFileUri, final URI tmpDirUri) {
+        ConversionScheduler scheduler =
+                ConversionScheduler.forTool("assimp", CONF.getProperty("assimp_max_concurrency"));
+        return scheduler.submit(context, () -> runAssimp(cadFileUri, tmpDirUri));
+    }
+
+    private CompletableFuture<ConversionResult> runAssimp(final URI cadFileUri, final URI tmpDirUri) {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        Path convertedFile = Paths.get(tmpDirUri).resolve(UUID.randomUUID() + ".obj");
+        Path convertedMtlFile = convertedFile.resolveSibling(convertedFile.getFileName() + ".mtl");
+
+        String[] args = {assimp.getExecutable().toString(), "export", tmpCadFile.toAbsolutePath().toString(),
+                convertedFile.toString()};
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("assimp_timeout"));
+
+        CompletableFuture<ProcessResult> process;
+        try {
+            process = runner.start(new ProcessBuilder(args), Arrays.asList(convertedFile, convertedMtlFile));
+        } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
-            throw new ConversionException(e);
+            assimp.recordFailure();
+            return ConversionFutures.failed(new ConversionException(e));
         }
+
+        return ConversionFutures.then(process, result -> {
+            LOGGER.info(result.getStdOutput());
+            assimp.record(result);
+            ConversionMetrics.forConverter(AllFileConverterImpl.class).record(tmpCadFile, convertedFile, result);
+
+            if (result.isSuccess()) {
+                return new ConversionResult(convertedFile, Collections.singletonList(convertedMtlFile));
+            } else if (result.isTimedOut()) {
+                throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath()
+                        + ": timed out after " + runner.getTimeout() + "s");
+            } else {
+                throw new ConversionException(
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
+            }
+        });
     }
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stl", "off", "ply", "3ds", "wrl").contains(cadFileExtension);
+        return routes.canConvert(cadFileExtension);
     }
 
-}
\ No newline at end of file
+}
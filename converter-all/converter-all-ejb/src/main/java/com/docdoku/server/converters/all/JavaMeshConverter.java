@@ -0,0 +1,46 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+
+/**
+ * Mesh format converted to OBJ in the JVM, without an external tool.
+ */
+@FunctionalInterface
+interface JavaMeshConverter {
+
+    int INTERRUPT_CHECK_MASK = 0xffff;
+
+    void convert(Path meshFile, Path objFile) throws IOException;
+
+    /**
+     * Abort the conversion if the calling thread was interrupted, checking every 65536 elements.
+     */
+    static void checkInterrupted(long progress) throws InterruptedIOException {
+        if ((progress & INTERRUPT_CHECK_MASK) == 0 && Thread.interrupted()) {
+            throw new InterruptedIOException("Mesh conversion interrupted");
+        }
+    }
+
+}
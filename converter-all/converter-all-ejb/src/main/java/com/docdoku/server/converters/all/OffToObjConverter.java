@@ -0,0 +1,148 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import com.docdoku.server.converters.utils.mesh.MappedAsciiReader;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Converts ASCII OFF files to OBJ in a single streaming pass.
+ * <p>
+ * The {@code OFF}, {@code COFF}, {@code NOFF} and {@code CNOFF} variants are read, keeping positions and
+ * normals. Colors and other trailing values of vertex and face lines are skipped.
+ */
+public class OffToObjConverter {
+
+    // A digit and a separator
+    private static final int MINIMUM_VALUE_SIZE = 2;
+
+    private final MappedAsciiReader reader;
+    private final ObjWriter writer;
+    private int[] indices = new int[16];
+
+    private OffToObjConverter(MappedAsciiReader reader, ObjWriter writer) {
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    /**
+     * Convert the OFF file to an OBJ file.
+     */
+    public static void convert(Path offFile, Path objFile) throws IOException {
+        try (MappedAsciiReader reader = new MappedAsciiReader(offFile);
+             ObjWriter writer = new ObjWriter(objFile)) {
+            writer.comment("Converted from " + offFile.getFileName());
+            new OffToObjConverter(reader, writer).read();
+        }
+    }
+
+    private void read() throws IOException {
+        skipComments();
+        String keyword = reader.readWord();
+        if (keyword == null || !keyword.endsWith("OFF")) {
+            throw new IOException("Not an OFF file");
+        }
+        String variant = keyword.substring(0, keyword.length() - 3);
+        if (!variant.matches("C?N?|ST?C?N?")) {
+            throw new IOException("Unsupported OFF variant " + keyword);
+        }
+        if (reader.skipSpaces() == 'B') {
+            throw new IOException("Binary OFF files are not supported");
+        }
+        boolean hasNormals = variant.contains("N");
+
+        skipComments();
+        long vertexCount = reader.readLong();
+        long faceCount = reader.readLong();
+        // The edge count is ignored
+        reader.skipLine();
+        checkCounts(vertexCount, faceCount);
+
+        for (long i = 0; i < vertexCount; i++) {
+            skipComments();
+            writer.vertex(reader.readFloat(), reader.readFloat(), reader.readFloat());
+            if (hasNormals) {
+                writer.normal(reader.readFloat(), reader.readFloat(), reader.readFloat());
+            }
+            // Colors and texture coordinates
+            reader.skipLine();
+            JavaMeshConverter.checkInterrupted(i);
+        }
+
+        for (long i = 0; i < faceCount; i++) {
+            skipComments();
+            int count = reader.readInt();
+            if (count < 0 || count > remaining() / MINIMUM_VALUE_SIZE) {
+                throw new IOException("Invalid OFF face size " + count);
+            }
+            if (count > indices.length) {
+                indices = new int[Math.max(count, indices.length * 2)];
+            }
+            for (int j = 0; j < count; j++) {
+                long index = reader.readLong();
+                if (index < 0 || index >= vertexCount) {
+                    throw new IOException("OFF face references missing vertex " + index);
+                }
+                indices[j] = (int) index;
+            }
+            // Per face colors
+            reader.skipLine();
+            if (count >= 3) {
+                if (hasNormals) {
+                    writer.face(indices, indices, count);
+                } else {
+                    writer.face(indices, count);
+                }
+            }
+            JavaMeshConverter.checkInterrupted(i);
+        }
+    }
+
+    /**
+     * Fail if the counts of the header do not fit in the file, before trusting them.
+     */
+    private void checkCounts(long vertexCount, long faceCount) throws IOException {
+        long remaining = remaining() / MINIMUM_VALUE_SIZE;
+        // A vertex is at least 3 coordinates, a face at least its size
+        if (vertexCount < 0 || faceCount < 0 || vertexCount > remaining / 3
+                || faceCount > remaining - vertexCount * 3) {
+            throw new IOException("OFF header declares " + vertexCount + " vertices and " + faceCount
+                    + " faces, more than the file holds");
+        }
+    }
+
+    /**
+     * @return the bytes left to read, plus the separator the last value of the file may lack
+     */
+    private long remaining() {
+        return reader.getEnd() - reader.getPosition() + 1;
+    }
+
+    private void skipComments() throws IOException {
+        while (reader.skipWhitespace() && reader.peek() == '#') {
+            reader.skipLine();
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import com.docdoku.server.converters.utils.mesh.MappedAsciiReader;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts ASCII and binary PLY files to OBJ in a single streaming pass.
+ * <p>
+ * Vertices and faces are written as they are read, so memory does not grow with the size of the mesh.
+ * Vertex normals are kept, other properties and elements are skipped.
+ */
+public class PlyToObjConverter {
+
+    private enum Format {ASCII, BINARY_LITTLE_ENDIAN, BINARY_BIG_ENDIAN}
+
+    private enum Type {
+        INT8(1), UINT8(1), INT16(2), UINT16(2), INT32(4), UINT32(4), FLOAT32(4), FLOAT64(8);
+
+        private final int size;
+
+        Type(int size) {
+            this.size = size;
+        }
+
+        static Type parse(String name) throws IOException {
+            switch (name) {
+                case "char":
+                case "int8":
+                    return INT8;
+                case "uchar":
+                case "uint8":
+                    return UINT8;
+                case "short":
+                case "int16":
+                    return INT16;
+                case "ushort":
+                case "uint16":
+                    return UINT16;
+                case "int":
+                case "int32":
+                    return INT32;
+                case "uint":
+                case "uint32":
+                    return UINT32;
+                case "float":
+                case "float32":
+                    return FLOAT32;
+                case "double":
+                case "float64":
+                    return FLOAT64;
+                default:
+                    throw new IOException("Unknown PLY property type " + name);
+            }
+        }
+    }
+
+    private static class Property {
+        private final String name;
+        private final Type type;
+        // Type of the element count for list properties, null otherwise
+        private final Type countType;
+
+        Property(String name, Type type, Type countType) {
+            this.name = name;
+            this.type = type;
+            this.countType = countType;
+        }
+    }
+
+    private static class Element {
+        private final String name;
+        private final long count;
+        private final List<Property> properties = new ArrayList<>();
+
+        Element(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        int indexOf(String... names) {
+            for (int i = 0; i < properties.size(); i++) {
+                if (Arrays.asList(names).contains(properties.get(i).name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final MappedAsciiReader reader;
+    private final ObjWriter writer;
+    private final ByteBuffer scratch = ByteBuffer.allocate(8);
+    private Format format;
+    private long vertexCount = -1;
+    private boolean hasVertexNormals;
+    private int[] indices = new int[16];
+
+    private PlyToObjConverter(MappedAsciiReader reader, ObjWriter writer) {
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    /**
+     * Convert the PLY file to an OBJ file.
+     */
+    public static void convert(Path plyFile, Path objFile) throws IOException {
+        try (MappedAsciiReader reader = new MappedAsciiReader(plyFile);
+             ObjWriter writer = new ObjWriter(objFile)) {
+            writer.comment("Converted from " + plyFile.getFileName());
+            PlyToObjConverter converter = new PlyToObjConverter(reader, writer);
+            List<Element> elements = converter.readHeader();
+            converter.checkCounts(elements);
+            for (Element element : elements) {
+                converter.readElement(element);
+            }
+        }
+    }
+
+    private List<Element> readHeader() throws IOException {
+        if (!"ply".equals(trim(reader.readLine()))) {
+            throw new IOException("Not a PLY file");
+        }
+        List<Element> elements = new ArrayList<>();
+        String line;
+        while (!"end_header".equals(line = trim(reader.readLine()))) {
+            if (line == null) {
+                throw new IOException("Unexpected end of PLY header");
+            }
+            String[] tokens = line.split("\\s+");
+            switch (tokens[0]) {
+                case "format":
+                    format = parseFormat(tokens);
+                    break;
+                case "element":
+                    checkTokens(tokens, 3, line);
+                    elements.add(new Element(tokens[1], Long.parseLong(tokens[2])));
+                    break;
+                case "property":
+                    if (elements.isEmpty()) {
+                        throw new IOException("PLY property outside of an element: " + line);
+                    }
+                    elements.get(elements.size() - 1).properties.add(parseProperty(tokens, line));
+                    break;
+                default:
+                    // comment, obj_info
+                    break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("Missing PLY format");
+        }
+        if (format != Format.ASCII) {
+            scratch.order(format == Format.BINARY_LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        }
+        return elements;
+    }
+
+    /**
+     * Fail if the element counts of the header do not fit in the file, before trusting them.
+     */
+    private void checkCounts(List<Element> elements) throws IOException {
+        long remaining = remaining();
+        long required = 0;
+        for (Element element : elements) {
+            if (element.count < 0) {
+                throw new IOException("Invalid PLY " + element.name + " count " + element.count);
+            }
+            long rowSize = 0;
+            for (Property property : element.properties) {
+                rowSize += minimumSize(property.countType != null ? property.countType : property.type);
+            }
+            if (rowSize > 0 && element.count > (remaining - required) / rowSize) {
+                throw new IOException("PLY header declares " + element.count + " " + element.name
+                        + " elements, more than the file holds");
+            }
+            required += element.count * rowSize;
+        }
+    }
+
+    /**
+     * @return the fewest bytes a value of the type takes in the file, a digit and a separator in ASCII files
+     */
+    private int minimumSize(Type type) {
+        return format == Format.ASCII ? 2 : type.size;
+    }
+
+    private static Format parseFormat(String[] tokens) throws IOException {
+        checkTokens(tokens, 2, "format");
+        switch (tokens[1]) {
+            case "ascii":
+                return Format.ASCII;
+            case "binary_little_endian":
+                return Format.BINARY_LITTLE_ENDIAN;
+            case "binary_big_endian":
+                return Format.BINARY_BIG_ENDIAN;
+            default:
+                throw new IOException("Unknown PLY format " + tokens[1]);
+        }
+    }
+
+    private static Property parseProperty(String[] tokens, String line) throws IOException {
+        if ("list".equals(tokens[1])) {
+            checkTokens(tokens, 5, line);
+            return new Property(tokens[4], Type.parse(tokens[3]), Type.parse(tokens[2]));
+        }
+        checkTokens(tokens, 3, line);
+        return new Property(tokens[2], Type.parse(tokens[1]), null);
+    }
+
+    private void readElement(Element element) throws IOException {
+        if ("vertex".equals(element.name)) {
+            readVertices(element);
+        } else if ("face".equals(element.name)) {
+            readFaces(element);
+        } else {
+            for (long row = 0; row < element.count; row++) {
+                skipRow(element);
+            }
+        }
+    }
+
+    private void readVertices(Element element) throws IOException {
+        int x = element.indexOf("x");
+        int y = element.indexOf("y");
+        int z = element.indexOf("z");
+        if (x < 0 || y < 0 || z < 0) {
+            throw new IOException("PLY vertices have no position");
+        }
+        int nx = element.indexOf("nx");
+        int ny = element.indexOf("ny");
+        int nz = element.indexOf("nz");
+        boolean hasNormals = nx >= 0 && ny >= 0 && nz >= 0;
+        double[] values = new double[element.properties.size()];
+
+        for (long row = 0; row < element.count; row++) {
+            for (int i = 0; i < values.length; i++) {
+                Property property = element.properties.get(i);
+                if (property.countType != null) {
+                    skipList(property);
+                } else {
+                    values[i] = readValue(property.type);
+                }
+            }
+            writer.vertex((float) values[x], (float) values[y], (float) values[z]);
+            if (hasNormals) {
+                writer.normal((float) values[nx], (float) values[ny], (float) values[nz]);
+            }
+            JavaMeshConverter.checkInterrupted(row);
+        }
+        vertexCount = element.count;
+        hasVertexNormals = hasNormals;
+    }
+
+    private void readFaces(Element element) throws IOException {
+        int list = element.indexOf("vertex_indices", "vertex_index");
+        if (list < 0 || element.properties.get(list).countType == null) {
+            throw new IOException("PLY faces have no vertex indices");
+        }
+        if (vertexCount < 0) {
+            throw new IOException("PLY faces must follow the vertices");
+        }
+        for (long row = 0; row < element.count; row++) {
+            int count = 0;
+            for (int i = 0; i < element.properties.size(); i++) {
+                Property property = element.properties.get(i);
+                if (i == list) {
+                    count = readIndices(property);
+                } else if (property.countType != null) {
+                    skipList(property);
+                } else {
+                    readValue(property.type);
+                }
+            }
+            if (count >= 3) {
+                if (hasVertexNormals) {
+                    // Normals are written along with their vertex, they share its index
+                    writer.face(indices, indices, count);
+                } else {
+                    writer.face(indices, count);
+                }
+            }
+            JavaMeshConverter.checkInterrupted(row);
+        }
+    }
+
+    private int readIndices(Property property) throws IOException {
+        int count = (int) readValue(property.countType);
+        if (count < 0 || count > remaining() / minimumSize(property.type)) {
+            throw new IOException("Invalid PLY face size " + count);
+        }
+        if (count > indices.length) {
+            indices = new int[Math.max(count, indices.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            long index = (long) readValue(property.type);
+            if (index < 0 || index >= vertexCount) {
+                throw new IOException("PLY face references missing vertex " + index);
+            }
+            indices[i] = (int) index;
+        }
+        return count;
+    }
+
+    private void skipRow(Element element) throws IOException {
+        for (Property property : element.properties) {
+            if (property.countType != null) {
+                skipList(property);
+            } else {
+                readValue(property.type);
+            }
+        }
+    }
+
+    private void skipList(Property property) throws IOException {
+        long count = (long) readValue(property.countType);
+        for (long i = 0; i < count; i++) {
+            readValue(property.type);
+        }
+    }
+
+    private double readValue(Type type) throws IOException {
+        if (format == Format.ASCII) {
+            return reader.readDouble();
+        }
+        reader.readFully(scratch.array(), 0, type.size);
+        switch (type) {
+            case INT8:
+                return scratch.get(0);
+            case UINT8:
+                return scratch.get(0) & 0xff;
+            case INT16:
+                return scratch.getShort(0);
+            case UINT16:
+                return scratch.getShort(0) & 0xffff;
+            case INT32:
+                return scratch.getInt(0);
+            case UINT32:
+                return scratch.getInt(0) & 0xffffffffL;
+            case FLOAT32:
+                return scratch.getFloat(0);
+            default:
+                return scratch.getDouble(0);
+        }
+    }
+
+    private static void checkTokens(String[] tokens, int expected, String line) throws IOException {
+        if (tokens.length < expected) {
+            throw new IOException("Invalid PLY header line: " + line);
+        }
+    }
+
+    /**
+     * @return the bytes left to read, plus the separator the last value of the file may lack
+     */
+    private long remaining() {
+        return reader.getEnd() - reader.getPosition() + 1;
+    }
+
+    private static String trim(String line) {
+        return line == null ? null : line.trim();
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import com.docdoku.server.converters.utils.mesh.FloatList;
+import com.docdoku.server.converters.utils.mesh.IntList;
+import com.docdoku.server.converters.utils.mesh.MappedAsciiReader;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+import com.docdoku.server.converters.utils.mesh.VertexWelder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Converts binary and ASCII STL files to indexed OBJ without an external process.
+ * <p>
+ * The file is memory-mapped, and identical vertices of adjacent facets are welded so the OBJ output shares
+ * them instead of repeating three vertices per triangle.
+ */
+public class StlToObjConverter {
+
+    private static final int HEADER_SIZE = 80;
+    private static final int TRIANGLE_SIZE = 50;
+    private static final long WINDOW_TRIANGLES = (1L << 30) / TRIANGLE_SIZE;
+
+    private final VertexWelder welder;
+    private final IntList triangles;
+
+    private StlToObjConverter(int expectedTriangles) {
+        welder = new VertexWelder(expectedTriangles / 2 + 16);
+        triangles = new IntList(expectedTriangles * 3 + 16);
+    }
+
+    /**
+     * Convert the STL file to an OBJ file.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted during the conversion
+     */
+    public static void convert(Path stlFile, Path objFile) throws IOException {
+        StlToObjConverter converter;
+        try (FileChannel channel = FileChannel.open(stlFile, StandardOpenOption.READ)) {
+            long triangleCount = binaryTriangleCount(channel);
+            if (triangleCount >= 0) {
+                converter = new StlToObjConverter((int) Math.min(triangleCount, Integer.MAX_VALUE / 3 - 16));
+                converter.readBinary(channel, triangleCount);
+            } else if (isAscii(channel)) {
+                converter = new StlToObjConverter((int) Math.min(channel.size() / 256, Integer.MAX_VALUE / 3 - 16));
+                converter.readAscii(channel);
+            } else {
+                throw new IOException("Not a valid STL file: " + stlFile);
+            }
+        }
+        converter.write(objFile, stlFile.getFileName().toString());
+    }
+
+    /**
+     * @return the number of triangles declared by a binary STL file, -1 if its size does not match
+     */
+    static long binaryTriangleCount(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + 4) {
+            return -1;
+        }
+        ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (count.hasRemaining()) {
+            if (channel.read(count, HEADER_SIZE + count.position()) < 0) {
+                return -1;
+            }
+        }
+        long triangleCount = count.getInt(0) & 0xffffffffL;
+        return size == HEADER_SIZE + 4 + triangleCount * TRIANGLE_SIZE ? triangleCount : -1;
+    }
+
+    private static boolean isAscii(FileChannel channel) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(Math.min((int) channel.size(), 512));
+        channel.read(start, 0);
+        String text = new String(start.array(), 0, start.position(), StandardCharsets.US_ASCII).trim();
+        return text.startsWith("solid");
+    }
+
+    private void readBinary(FileChannel channel, long triangleCount) throws IOException {
+        long read = 0;
+        while (read < triangleCount) {
+            long windowTriangles = Math.min(WINDOW_TRIANGLES, triangleCount - read);
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + 4 + read * TRIANGLE_SIZE, windowTriangles * TRIANGLE_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < windowTriangles; i++) {
+                // Facet normals are skipped, viewers recompute smooth normals from the indexed mesh
+                int offset = i * TRIANGLE_SIZE + 12;
+                for (int v = 0; v < 3; v++, offset += 12) {
+                    triangles.add(welder.add(window.getFloat(offset), window.getFloat(offset + 4),
+                            window.getFloat(offset + 8)));
+                }
+                JavaMeshConverter.checkInterrupted(read + i);
+            }
+            read += windowTriangles;
+        }
+    }
+
+    private void readAscii(FileChannel channel) throws IOException {
+        MappedAsciiReader reader = new MappedAsciiReader(channel, 0, channel.size());
+        byte[] word = new byte[16];
+        long vertices = 0;
+        int length;
+        while ((length = reader.readWord(word)) > 0) {
+            if (length == 6 && matches(word, "vertex")) {
+                float x = reader.readFloat();
+                float y = reader.readFloat();
+                float z = reader.readFloat();
+                vertices++;
+                triangles.add(welder.add(x, y, z));
+                JavaMeshConverter.checkInterrupted(vertices);
+            } else if (length == 5 && matches(word, "solid") || length == 8 && matches(word, "endsolid")) {
+                // Solid names may contain spaces
+                reader.skipLine();
+            }
+            // facet normals, outer loop, endloop and endfacet carry nothing we need
+        }
+        if (vertices % 3 != 0) {
+            throw new IOException("Truncated STL file, " + vertices + " vertices is not a whole number of facets");
+        }
+    }
+
+    private void write(Path objFile, String name) throws IOException {
+        try (ObjWriter writer = new ObjWriter(objFile)) {
+            writer.comment("Converted from " + name);
+            writer.object(name);
+            FloatList positions = welder.getPositions();
+            for (int i = 0; i < positions.size(); i += 3) {
+                writer.vertex(positions.get(i), positions.get(i + 1), positions.get(i + 2));
+            }
+            for (int i = 0; i < triangles.size(); i += 3) {
+                writer.face(triangles.get(i), triangles.get(i + 1), triangles.get(i + 2));
+            }
+        }
+    }
+
+    private static boolean matches(byte[] word, String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if ((word[i] | 0x20) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.docdoku.server.converters.all;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class OffToObjConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void plainFile() throws IOException {
+        String off = "OFF\n# a tetrahedron\n4 4 6\n0 0 0\n1 0 0\n0 1 0\n0 0 1.5\n"
+                + "3 0 1 2\n3 0 1 3\n3 0 2 3\n3 1 2 3\n";
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 0 0 1.5\nf 1 2 3\nf 1 2 4\nf 1 3 4\nf 2 3 4\n",
+                convert(off));
+    }
+
+    @Test
+    public void colorsAndNormals() throws IOException {
+        String off = "CNOFF 3 1 0\n0 0 0 0 0 1 255 0 0 255\n1 0 0 0 0 1 0 255 0 255\n"
+                + "0 1 0 0 0 1 0 0 255 255\n3 0 1 2 0.5 0.5 0.5\n";
+        Assert.assertEquals("v 0 0 0\nvn 0 0 1\nv 1 0 0\nvn 0 0 1\nv 0 1 0\nvn 0 0 1\nf 1//1 2//2 3//3\n",
+                convert(off));
+    }
+
+    @Test(expected = IOException.class)
+    public void binaryFileIsRejected() throws IOException {
+        convert("OFF BINARY\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void countsLargerThanTheFileAreRejected() throws IOException {
+        convert("OFF\n3 2000000000 0\n0 0 0\n1 0 0\n0 1 0\n3 0 1 2\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void faceLargerThanTheFileIsRejected() throws IOException {
+        convert("OFF\n3 1 0\n0 0 0\n1 0 0\n0 1 0\n2000000000 0 1 2\n");
+    }
+
+    private String convert(String content) throws IOException {
+        Path off = folder.getRoot().toPath().resolve("mesh.off");
+        Path obj = folder.getRoot().toPath().resolve("mesh.obj");
+        Files.write(off, content.getBytes(StandardCharsets.US_ASCII));
+        OffToObjConverter.convert(off, obj);
+        List<String> lines = Files.readAllLines(obj, StandardCharsets.UTF_8);
+        return lines.stream().filter(line -> !line.startsWith("#"))
+                .map(line -> line + "\n").collect(Collectors.joining());
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.docdoku.server.converters.all;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class PlyToObjConverterTest {
+
+    private static final String EXPECTED = "v 0 0 0\nvn 0 0 1\nv 1 0 0\nvn 0 0 1\nv 1 1 0.5\nvn 0 0 1\n"
+            + "v 0 1 0\nvn 0 0 1\nf 1//1 2//2 3//3 4//4\nf 1//1 3//3 4//4\n";
+
+    private static final float[][] VERTICES = {{0, 0, 0}, {1, 0, 0}, {1, 1, 0.5f}, {0, 1, 0}};
+    private static final int[][] FACES = {{0, 1, 2, 3}, {0, 2, 3}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void asciiFile() throws IOException {
+        StringBuilder ply = new StringBuilder(header("ascii"));
+        for (float[] vertex : VERTICES) {
+            ply.append(vertex[0]).append(' ').append(vertex[1]).append(' ').append(vertex[2])
+                    .append(" 255 0.0 0 1 3 7 8 9\n");
+        }
+        for (int[] face : FACES) {
+            ply.append(face.length);
+            for (int index : face) {
+                ply.append(' ').append(index);
+            }
+            ply.append(" 42\n");
+        }
+        ply.append("0 1\n");
+        Assert.assertEquals(EXPECTED, convert(ply.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void binaryLittleEndianFile() throws IOException {
+        Assert.assertEquals(EXPECTED, convert(binary(ByteOrder.LITTLE_ENDIAN)));
+    }
+
+    @Test
+    public void binaryBigEndianFile() throws IOException {
+        Assert.assertEquals(EXPECTED, convert(binary(ByteOrder.BIG_ENDIAN)));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingVertexIsRejected() throws IOException {
+        convert(("ply\nformat ascii 1.0\nelement vertex 1\nproperty float x\nproperty float y\nproperty float z\n"
+                + "element face 1\nproperty list uchar int vertex_indices\nend_header\n0 0 0\n3 0 1 2\n")
+                .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test(expected = IOException.class)
+    public void countLargerThanTheFileIsRejected() throws IOException {
+        convert(("ply\nformat ascii 1.0\nelement vertex 2000000000\nproperty float x\nproperty float y\n"
+                + "property float z\nend_header\n0 0 0\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test(expected = IOException.class)
+    public void faceLargerThanTheFileIsRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("ply\nformat binary_little_endian 1.0\nelement vertex 3\nproperty float x\nproperty float y\n"
+                + "property float z\nelement face 1\nproperty list uint int vertex_indices\nend_header\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer body = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        body.position(36);
+        body.putInt(Integer.MAX_VALUE).putInt(0).putInt(1).putInt(2);
+        out.write(Arrays.copyOf(body.array(), body.position()));
+        convert(out.toByteArray());
+    }
+
+    private static String header(String format) {
+        return "ply\nformat " + format + " 1.0\ncomment exported by a scanner\n"
+                + "element vertex 4\nproperty float x\nproperty float y\nproperty float z\n"
+                + "property uchar red\nproperty float nx\nproperty float ny\nproperty float nz\n"
+                + "property list uchar short extra\n"
+                + "element face 2\nproperty list uchar int vertex_indices\nproperty ushort flags\n"
+                + "element edge 1\nproperty int vertex1\nproperty int vertex2\n"
+                + "end_header\n";
+    }
+
+    private static byte[] binary(ByteOrder order) throws IOException {
+        String format = order == ByteOrder.LITTLE_ENDIAN ? "binary_little_endian" : "binary_big_endian";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header(format).getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer body = ByteBuffer.allocate(1024).order(order);
+        for (float[] vertex : VERTICES) {
+            body.putFloat(vertex[0]).putFloat(vertex[1]).putFloat(vertex[2]).put((byte) 255);
+            body.putFloat(0).putFloat(0).putFloat(1);
+            body.put((byte) 3).putShort((short) 7).putShort((short) 8).putShort((short) 9);
+        }
+        for (int[] face : FACES) {
+            body.put((byte) face.length);
+            for (int index : face) {
+                body.putInt(index);
+            }
+            body.putShort((short) 42);
+        }
+        body.putInt(0).putInt(1);
+        out.write(Arrays.copyOf(body.array(), body.position()));
+        return out.toByteArray();
+    }
+
+    private String convert(byte[] content) throws IOException {
+        Path ply = folder.getRoot().toPath().resolve("scan.ply");
+        Path obj = folder.getRoot().toPath().resolve("scan.obj");
+        Files.write(ply, content);
+        PlyToObjConverter.convert(ply, obj);
+        List<String> lines = Files.readAllLines(obj, StandardCharsets.UTF_8);
+        return lines.stream().filter(line -> !line.startsWith("#"))
+                .map(line -> line + "\n").collect(Collectors.joining());
+    }
+
+}
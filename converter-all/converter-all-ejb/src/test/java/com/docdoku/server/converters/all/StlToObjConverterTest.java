@@ -0,0 +1,91 @@
+package com.docdoku.server.converters.all;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class StlToObjConverterTest {
+
+    // Two facets of a unit square sharing an edge
+    private static final float[][] SQUARE = {
+            {0, 0, 0}, {1, 0, 0}, {1, 1, 0},
+            {0, 0, 0}, {1, 1, 0}, {0, 1, 0}
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void binaryFacetsAreWelded() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(84 + 2 * 50).order(ByteOrder.LITTLE_ENDIAN);
+        // Binary files may start with "solid" too
+        buffer.put("solid binary".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(80);
+        buffer.putInt(2);
+        for (int facet = 0; facet < 2; facet++) {
+            buffer.putFloat(0).putFloat(0).putFloat(1);
+            for (int v = 0; v < 3; v++) {
+                float[] vertex = SQUARE[facet * 3 + v];
+                buffer.putFloat(vertex[0]).putFloat(vertex[1]).putFloat(vertex[2]);
+            }
+            buffer.putShort((short) 0);
+        }
+        Path stl = folder.getRoot().toPath().resolve("square.stl");
+        Files.write(stl, buffer.array());
+
+        assertSquare(convert(stl));
+    }
+
+    @Test
+    public void asciiFacetsAreWelded() throws IOException {
+        StringBuilder text = new StringBuilder("solid my square\n");
+        for (int facet = 0; facet < 2; facet++) {
+            text.append("  facet normal 0 0 1.0e+00\n    outer loop\n");
+            for (int v = 0; v < 3; v++) {
+                float[] vertex = SQUARE[facet * 3 + v];
+                text.append("      vertex ").append(vertex[0]).append(' ').append(vertex[1]).append(" ")
+                        .append(vertex[2]).append('\n');
+            }
+            text.append("    endloop\n  endfacet\n");
+        }
+        text.append("endsolid my square\n");
+        Path stl = folder.getRoot().toPath().resolve("square.stl");
+        Files.write(stl, text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        assertSquare(convert(stl));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileIsRejected() throws IOException {
+        Path stl = folder.getRoot().toPath().resolve("broken.stl");
+        Files.write(stl, new byte[100]);
+        convert(stl);
+    }
+
+    private List<String> convert(Path stl) throws IOException {
+        Path obj = folder.getRoot().toPath().resolve("square.obj");
+        StlToObjConverter.convert(stl, obj);
+        return Files.readAllLines(obj, StandardCharsets.UTF_8);
+    }
+
+    private void assertSquare(List<String> lines) {
+        List<String> vertices = lines.stream().filter(l -> l.startsWith("v ")).collect(Collectors.toList());
+        List<String> faces = lines.stream().filter(l -> l.startsWith("f ")).collect(Collectors.toList());
+        Assert.assertEquals(4, vertices.size());
+        Assert.assertEquals("v 1 1 0", vertices.get(2));
+        Assert.assertEquals(2, faces.size());
+        Assert.assertEquals("f 1 2 3", faces.get(0));
+        Assert.assertEquals("f 1 3 4", faces.get(1));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import com.docdoku.server.converters.all.AllFileConverterImpl;
+import com.docdoku.server.converters.dae.DaeFileConverterImpl;
+import com.docdoku.server.converters.ifc.IFCFileConverterImpl;
+import com.docdoku.server.converters.obj.ObjFileConverterImpl;
+import com.docdoku.server.converters.step.StepFileConverterImpl;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Conversion paths of the converters, each with the stub tool it runs and the corpus format it reads.
+ */
+public enum BenchmarkConverter {
+
+    /**
+     * COLLADA file converted by assimp.
+     */
+    DAE("dae", MeshCorpus.Format.OBJ) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            BenchmarkSupport.configure(DaeFileConverterImpl.class, "assimp", tools.getAssimp().toString());
+            return new DaeFileConverterImpl();
+        }
+    },
+    /**
+     * 3DS file converted by meshconv.
+     */
+    MESHCONV("3ds", MeshCorpus.Format.OBJ) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            BenchmarkSupport.configure(AllFileConverterImpl.class, "meshconv_path", tools.getMeshconv().toString());
+            return new AllFileConverterImpl();
+        }
+    },
+    /**
+     * Binary STL file converted in Java.
+     */
+    STL("stl", MeshCorpus.Format.STL) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            return new AllFileConverterImpl();
+        }
+    },
+    /**
+     * Binary PLY file converted in Java.
+     */
+    PLY("ply", MeshCorpus.Format.PLY) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            return new AllFileConverterImpl();
+        }
+    },
+    /**
+     * IFC file converted by IfcConvert.
+     */
+    IFC("ifc", MeshCorpus.Format.IFC) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            BenchmarkSupport.configure(IFCFileConverterImpl.class, "ifc_convert_path",
+                    tools.getIfcConvert().toString());
+            return new IFCFileConverterImpl();
+        }
+    },
+    /**
+     * STEP file converted as a whole by a FreeCAD interpreter started for it, the worker pool being an
+     * injected bean.
+     */
+    STEP("step", MeshCorpus.Format.STEP) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            BenchmarkSupport.configure(StepFileConverterImpl.class, "pythonInterpreter", tools.getPython().toString());
+            BenchmarkSupport.configure(StepFileConverterImpl.class, "freeCadLibPath",
+                    tools.getPython().getParent().toString());
+            BenchmarkSupport.configure(StepFileConverterImpl.class, "freeCadParallelProcesses", "0");
+            return new StepFileConverterImpl();
+        }
+    },
+    /**
+     * OBJ file passed through, only running the pipeline stages.
+     */
+    OBJ("obj", MeshCorpus.Format.OBJ) {
+        @Override
+        CADConverter configure(StubTools tools) {
+            return new ObjFileConverterImpl();
+        }
+    };
+
+    private final String extension;
+    private final MeshCorpus.Format format;
+
+    BenchmarkConverter(String extension, MeshCorpus.Format format) {
+        this.extension = extension;
+        this.format = format;
+    }
+
+    /**
+     * Point the converter at the stub tools.
+     */
+    abstract CADConverter configure(StubTools tools);
+
+    /**
+     * Write the file converted by this path, named after the extension it handles.
+     */
+    Path writeInput(MeshCorpus corpus, Path directory) throws IOException {
+        Path file = corpus.write(directory, "input-" + name().toLowerCase(), format);
+        Path input = directory.resolve("input-" + name().toLowerCase() + "." + extension);
+        return file.equals(input) ? input : Files.move(file, input, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+/**
+ * Configuration of the converters for the benchmarks, which run them outside of the application server.
+ * <p>
+ * The converters read their {@code conf.properties} once into a static {@code CONF} field; it is updated
+ * in place before their first use, each benchmark trial running in a fresh JVM.
+ */
+public class BenchmarkSupport {
+
+    /**
+     * Stages of the default pipeline except instancing, which would turn every conversion after the first
+     * into a reference to the first one.
+     */
+    public static final String FULL_PIPELINE = "analyze,optimize,glb,bvh,thumbnail,lod,tiles";
+
+    private BenchmarkSupport() {
+    }
+
+    public static void configure(Class<?> owner, String key, String value) {
+        try {
+            Field field = owner.getDeclaredField("CONF");
+            field.setAccessible(true);
+            ((Properties) field.get(null)).setProperty(key, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot configure " + owner.getName(), e);
+        }
+    }
+
+    /**
+     * Disable the conversion cache, so every invocation converts its file, and select the pipeline stages.
+     *
+     * @param pipeline {@code none}, {@code full} for {@link #FULL_PIPELINE}, or a single stage name
+     */
+    public static void configureUtils(String pipeline) {
+        configure(ConversionCache.class, "cache_max_size", "0");
+        String stages;
+        switch (pipeline) {
+            case "none":
+                stages = "";
+                break;
+            case "full":
+                stages = FULL_PIPELINE;
+                break;
+            default:
+                stages = pipeline;
+                break;
+        }
+        configure(ConversionPipeline.class, "pipeline_stages", stages);
+    }
+
+    public static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end conversion of a file by each converter, with the stub tools and the cache disabled.
+ * <p>
+ * With no latency, the score is the overhead of the converter around the tool: scheduling, admission, process
+ * handling and the pipeline stages. Run for example:
+ * {@code java -jar benchmarks.jar ConverterBenchmark -p converter=STL,PLY -p triangles=1000000 -p pipeline=none}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ConverterBenchmark {
+
+    @Param({"DAE", "MESHCONV", "STL", "PLY", "IFC", "STEP", "OBJ"})
+    public BenchmarkConverter converter;
+
+    @Param({"10000", "1000000"})
+    public int triangles;
+
+    /**
+     * Time spent by the stub tools, in milliseconds.
+     */
+    @Param({"0"})
+    public long latency;
+
+    /**
+     * Lines written by the stub tools on their standard output.
+     */
+    @Param({"100"})
+    public int outputLines;
+
+    /**
+     * {@code none}, {@code full} or the name of a single stage.
+     */
+    @Param({"none", "full"})
+    public String pipeline;
+
+    private Path directory;
+    private CADConverter cadConverter;
+    private URI input;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("converter-bench");
+        MeshCorpus corpus = new MeshCorpus(triangles);
+        Path objFile = corpus.write(directory, "output", MeshCorpus.Format.OBJ);
+        StubTools tools = StubTools.install(directory.resolve("tools"), objFile, directory.resolve("output.mtl"),
+                latency, outputLines);
+        BenchmarkSupport.configureUtils(pipeline);
+        cadConverter = converter.configure(tools);
+        input = converter.writeInput(corpus, directory).toUri();
+    }
+
+    @Benchmark
+    public ConversionResult convert() throws IOException, CADConverter.ConversionException {
+        Path tmpDir = Files.createDirectory(directory.resolve("run-" + run++));
+        return cadConverter.convert(input, tmpDir.toUri());
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRuns() throws IOException {
+        for (; run > 0; run--) {
+            BenchmarkSupport.delete(directory.resolve("run-" + (run - 1)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkSupport.delete(directory);
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Synthetic meshes of a given number of triangles, written in the formats read by the converters.
+ * <p>
+ * The mesh is a closed torus tessellated as a regular grid, split into two groups of different materials, so
+ * the welding, indexing and per-material stages see the same work as on a real part of that size.
+ */
+public class MeshCorpus {
+
+    public enum Format {
+        OBJ("obj"), STL("stl"), PLY("ply"), STEP("step"), IFC("ifc");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private static final double MAJOR_RADIUS = 100;
+    private static final double MINOR_RADIUS = 30;
+
+    private final int triangles;
+    private final int rings;
+    private final int sides;
+
+    public MeshCorpus(int triangles) {
+        if (triangles < 2) {
+            throw new IllegalArgumentException("At least 2 triangles are needed, got " + triangles);
+        }
+        this.triangles = triangles;
+        // A torus of rings x sides quads, the last quads being dropped to get the exact triangle count
+        this.rings = Math.max(3, (int) Math.ceil(Math.sqrt(triangles / 2.0)));
+        int quads = (triangles + 1) / 2;
+        this.sides = Math.max(3, (quads + rings - 1) / rings);
+    }
+
+    public int getTriangles() {
+        return triangles;
+    }
+
+    public int getVertices() {
+        return rings * sides;
+    }
+
+    /**
+     * Write the mesh as {@code <name>.<extension>} in the directory, along with {@code <name>.mtl} for OBJ files.
+     *
+     * @return the mesh file
+     */
+    public Path write(Path directory, String name, Format format) throws IOException {
+        Path file = directory.resolve(name + "." + format.getExtension());
+        switch (format) {
+            case OBJ:
+                writeObj(file, name + ".mtl");
+                writeMtl(directory.resolve(name + ".mtl"));
+                break;
+            case STL:
+                writeStl(file);
+                break;
+            case PLY:
+                writePly(file);
+                break;
+            case STEP:
+                writePart21(file, "CARTESIAN_POINT('',", "POLY_LOOP('',");
+                break;
+            case IFC:
+                writePart21(file, "IFCCARTESIANPOINT(", "IFCPOLYLOOP(");
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+        return file;
+    }
+
+    private void vertex(int index, double[] position) {
+        double u = 2 * Math.PI * (index / sides) / rings;
+        double v = 2 * Math.PI * (index % sides) / sides;
+        double radius = MAJOR_RADIUS + MINOR_RADIUS * Math.cos(v);
+        position[0] = radius * Math.cos(u);
+        position[1] = MINOR_RADIUS * Math.sin(v);
+        position[2] = radius * Math.sin(u);
+    }
+
+    /**
+     * Get the vertex indices of a triangle, the two triangles of each quad following each other.
+     */
+    private void triangle(int index, int[] vertices) {
+        int quad = index / 2;
+        int ring = quad / sides;
+        int side = quad % sides;
+        int nextRing = (ring + 1) % rings;
+        int nextSide = (side + 1) % sides;
+        int a = ring * sides + side;
+        int b = nextRing * sides + side;
+        int c = nextRing * sides + nextSide;
+        int d = ring * sides + nextSide;
+        if (index % 2 == 0) {
+            vertices[0] = a;
+            vertices[1] = b;
+            vertices[2] = c;
+        } else {
+            vertices[0] = a;
+            vertices[1] = c;
+            vertices[2] = d;
+        }
+    }
+
+    private void writeObj(Path file, String mtlFile) throws IOException {
+        double[] position = new double[3];
+        int[] vertices = new int[3];
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("mtllib " + mtlFile + "\n");
+            for (int i = 0; i < getVertices(); i++) {
+                vertex(i, position);
+                writer.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f\n", position[0], position[1], position[2]));
+            }
+            for (int i = 0; i < triangles; i++) {
+                if (i == 0) {
+                    writer.write("g inner\nusemtl steel\n");
+                } else if (i == triangles / 2) {
+                    writer.write("g outer\nusemtl paint\n");
+                }
+                triangle(i, vertices);
+                writer.write("f " + (vertices[0] + 1) + " " + (vertices[1] + 1) + " " + (vertices[2] + 1) + "\n");
+            }
+        }
+    }
+
+    private static void writeMtl(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("newmtl steel\nKd 0.6 0.6 0.65\n\nnewmtl paint\nKd 0.8 0.1 0.1\n");
+        }
+    }
+
+    private void writeStl(Path file) throws IOException {
+        double[] position = new double[3];
+        int[] vertices = new int[3];
+        try (OutputStream outputStream = Files.newOutputStream(file);
+             WritableByteChannel channel = Channels.newChannel(outputStream)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(new byte[80]).putInt(triangles);
+            for (int i = 0; i < triangles; i++) {
+                if (buffer.remaining() < 50) {
+                    flush(buffer, channel);
+                }
+                triangle(i, vertices);
+                // Normals are recomputed by the readers
+                buffer.putFloat(0).putFloat(0).putFloat(0);
+                for (int vertex : vertices) {
+                    vertex(vertex, position);
+                    buffer.putFloat((float) position[0]).putFloat((float) position[1]).putFloat((float) position[2]);
+                }
+                buffer.putShort((short) 0);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    private void writePly(Path file) throws IOException {
+        double[] position = new double[3];
+        int[] vertices = new int[3];
+        try (OutputStream outputStream = Files.newOutputStream(file);
+             WritableByteChannel channel = Channels.newChannel(outputStream)) {
+            String header = "ply\nformat binary_little_endian 1.0\ncomment DocDoku benchmark corpus\n"
+                    + "element vertex " + getVertices() + "\nproperty float x\nproperty float y\nproperty float z\n"
+                    + "element face " + triangles + "\nproperty list uchar int vertex_indices\nend_header\n";
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < getVertices(); i++) {
+                if (buffer.remaining() < 12) {
+                    flush(buffer, channel);
+                }
+                vertex(i, position);
+                buffer.putFloat((float) position[0]).putFloat((float) position[1]).putFloat((float) position[2]);
+            }
+            for (int i = 0; i < triangles; i++) {
+                if (buffer.remaining() < 13) {
+                    flush(buffer, channel);
+                }
+                triangle(i, vertices);
+                buffer.put((byte) 3).putInt(vertices[0]).putInt(vertices[1]).putInt(vertices[2]);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    /**
+     * Write the triangles as points and polygonal loops in an ISO-10303-21 file, for the cost estimation of
+     * the STEP and IFC files, the stub tools ignoring the content.
+     */
+    private void writePart21(Path file, String point, String loop) throws IOException {
+        double[] position = new double[3];
+        int[] vertices = new int[3];
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION(('DocDoku benchmark corpus'),'2;1');\n"
+                    + "FILE_NAME('" + file.getFileName() + "','',(''),(''),'','','');\n"
+                    + "FILE_SCHEMA(('CONFIG_CONTROL_DESIGN'));\nENDSEC;\nDATA;\n");
+            for (int i = 0; i < getVertices(); i++) {
+                vertex(i, position);
+                writer.write(String.format(Locale.ROOT, "#%d=%s(%.6f,%.6f,%.6f));\n", i + 1, point,
+                        position[0], position[1], position[2]));
+            }
+            for (int i = 0; i < triangles; i++) {
+                triangle(i, vertices);
+                writer.write("#" + (getVertices() + i + 1) + "=" + loop + "(#" + (vertices[0] + 1) + ",#"
+                        + (vertices[1] + 1) + ",#" + (vertices[2] + 1) + "));\n");
+            }
+            writer.write("ENDSEC;\nEND-ISO-10303-21;\n");
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write a corpus file: {@code MeshCorpus <obj|stl|ply|step|ifc> <triangles> <directory>}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: MeshCorpus <obj|stl|ply|step|ifc> <triangles> <directory>");
+            System.exit(1);
+        }
+        Format format = Format.valueOf(args[0].toUpperCase(Locale.ROOT));
+        int triangles = Integer.parseInt(args[1]);
+        Path directory = Files.createDirectories(Paths.get(args[2]));
+        Path file = new MeshCorpus(triangles).write(directory, "corpus-" + triangles, format);
+        System.out.println(file);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of running a tool through {@link ProcessRunner}, compared to a bare {@link ProcessBuilder} discarding
+ * the output of the same stub.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessRunnerBenchmark {
+
+    private static final File DISCARD = new File("/dev/null");
+
+    /**
+     * Lines written by the stub on its standard output.
+     */
+    @Param({"0", "100000"})
+    public int outputLines;
+
+    private Path directory;
+    private String stub;
+    private ProcessRunner runner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("process-bench");
+        Path objFile = Files.createFile(directory.resolve("empty.obj"));
+        stub = StubTools.install(directory, objFile, objFile, 0, outputLines).getNoop().toString();
+        runner = new ProcessRunner(60);
+    }
+
+    @Benchmark
+    public ProcessResult processRunner() throws IOException, InterruptedException {
+        return runner.run(stub);
+    }
+
+    @Benchmark
+    public int processBuilder() throws IOException, InterruptedException {
+        return new ProcessBuilder(stub).redirectOutput(DISCARD).redirectError(DISCARD).start().waitFor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkSupport.delete(directory);
+    }
+
+}
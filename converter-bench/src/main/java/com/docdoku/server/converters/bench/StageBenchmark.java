@@ -0,0 +1,101 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single pipeline stage run on a converted OBJ file.
+ * <p>
+ * Every run loads the mesh from the OBJ file, so the {@code analyze} score, mostly made of the loading, is the
+ * baseline the other stages compare to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StageBenchmark {
+
+    @Param({"analyze", "optimize", "batch", "glb", "bvh", "thumbnail", "lod", "tiles"})
+    public String stage;
+
+    @Param({"10000", "1000000"})
+    public int triangles;
+
+    private Path directory;
+    private Path objFile;
+    private Path mtlFile;
+    private ConversionPipeline pipeline;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("stage-bench");
+        objFile = new MeshCorpus(triangles).write(directory, "corpus", MeshCorpus.Format.OBJ);
+        mtlFile = directory.resolve("corpus.mtl");
+        BenchmarkSupport.configureUtils(stage);
+        pipeline = ConversionPipeline.getDefault();
+        if (pipeline.getStages().size() != 1) {
+            throw new IllegalStateException("Unknown conversion pipeline stage " + stage);
+        }
+    }
+
+    @Benchmark
+    public ConversionResult process() throws IOException {
+        Path tmpDir = Files.createDirectory(directory.resolve("run-" + run++));
+        return pipeline.process(new ConversionResult(objFile, Collections.singletonList(mtlFile)), tmpDir);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRuns() throws IOException {
+        for (; run > 0; run--) {
+            BenchmarkSupport.delete(directory.resolve("run-" + (run - 1)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkSupport.delete(directory);
+    }
+
+}
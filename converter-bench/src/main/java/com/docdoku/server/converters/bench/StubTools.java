@@ -0,0 +1,126 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Locale;
+
+/**
+ * Shell scripts standing in for assimp, meshconv, IfcConvert and the FreeCAD Python interpreter.
+ * <p>
+ * Each stub takes the arguments of the tool it replaces, waits for the configured latency, writes lines on its
+ * standard output as the tools log their progress, then copies a prepared OBJ file (and its MTL file when the
+ * tool writes one) where the converter expects the result. Benchmarks thus measure the process handling and
+ * the Java stages without depending on the tools.
+ */
+public class StubTools {
+
+    private final Path assimp;
+    private final Path meshconv;
+    private final Path ifcConvert;
+    private final Path python;
+    private final Path noop;
+
+    private StubTools(Path directory) {
+        assimp = directory.resolve("assimp");
+        meshconv = directory.resolve("meshconv");
+        ifcConvert = directory.resolve("IfcConvert");
+        python = directory.resolve("python");
+        noop = directory.resolve("noop");
+    }
+
+    /**
+     * Write the stubs in the directory.
+     *
+     * @param objFile     converted file copied by the stubs
+     * @param mtlFile     materials of the converted file
+     * @param latency     time spent by the stubs before writing their result, in milliseconds
+     * @param outputLines number of lines written by the stubs on their standard output
+     */
+    public static StubTools install(Path directory, Path objFile, Path mtlFile, long latency, int outputLines)
+            throws IOException {
+        Files.createDirectories(directory);
+        StubTools tools = new StubTools(directory);
+        String prelude = prelude(latency, outputLines);
+        String obj = quote(objFile);
+        String mtl = quote(mtlFile);
+        // assimp export <input> <output>, materials in <output>.mtl
+        script(tools.assimp, prelude + "cp " + obj + " \"$3\"\ncp " + mtl + " \"$3.mtl\"\n");
+        // meshconv <input> -c obj -o <output without extension>
+        script(tools.meshconv, prelude + "cp " + obj + " \"$5.obj\"\n");
+        // IfcConvert --sew-shells <input> <output>, materials next to the output
+        script(tools.ifcConvert, prelude + "cp " + obj + " \"$3\"\ncp " + mtl + " \"${3%.obj}.mtl\"\n");
+        // python <script> -l <FreeCAD lib> -i <input> -o <output>
+        script(tools.python, prelude + "while [ $# -gt 0 ]; do\n    if [ \"$1\" = -o ]; then output=\"$2\"; fi\n"
+                + "    shift\ndone\ncp " + obj + " \"$output\"\n");
+        script(tools.noop, prelude);
+        return tools;
+    }
+
+    private static String prelude(long latency, int outputLines) {
+        StringBuilder prelude = new StringBuilder("#!/bin/sh\n");
+        if (latency > 0) {
+            prelude.append(String.format(Locale.ROOT, "sleep %.3f\n", latency / 1000.0));
+        }
+        if (outputLines > 0) {
+            prelude.append("yes 'Info: processing entity, stub conversion tool output line' | head -n ")
+                    .append(outputLines).append('\n');
+        }
+        return prelude.toString();
+    }
+
+    private static String quote(Path path) {
+        return "'" + path.toAbsolutePath().toString().replace("'", "'\\''") + "'";
+    }
+
+    private static void script(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    public Path getAssimp() {
+        return assimp;
+    }
+
+    public Path getMeshconv() {
+        return meshconv;
+    }
+
+    public Path getIfcConvert() {
+        return ifcConvert;
+    }
+
+    public Path getPython() {
+        return python;
+    }
+
+    /**
+     * @return a stub with the latency and output of the others, producing no file
+     */
+    public Path getNoop() {
+        return noop;
+    }
+
+}
@@ -22,24 +22,38 @@ package com.docdoku.server.converters.dae;
 
 
 
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionMetrics;
+import com.docdoku.server.converters.utils.ConversionRoutes;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConversionSupersession;
+import com.docdoku.server.converters.utils.ConversionTool;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import com.docdoku.server.converters.utils.remote.RemoteConversions;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @DaeFileConverter
 @Stateless
-public class DaeFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, AsyncCADConverter.class})
+public class DaeFileConverterImpl implements AsyncCADConverter {
 
     static final String CONF_PROPERTIES = "/com/docdoku/server/converters/dae/conf.properties";
     static final Properties CONF = new Properties();
@@ -53,62 +67,80 @@ public class DaeFileConverterImpl implements CADConverter {
         }
     }
 
+    private final ConversionTool assimp = ConversionTool.forTool("assimp", CONF.getProperty("assimp"));
+    private final ConversionRoutes routes = new ConversionRoutes()
+            .add(assimp, this::doConvert, "dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d");
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+    }
 
-        Path tmpDir = Paths.get(tmpDirUri);
-        Path tmpCadFile = Paths.get(cadFileUri);
-
-        String assimp = CONF.getProperty("assimp");
-        Path executable = Paths.get(assimp);
+    @Override
+    public CompletableFuture<ConversionResult> convertAsync(final URI cadFileUri, final URI tmpDirUri) {
+        String extension = ConversionRoutes.extension(Paths.get(cadFileUri));
+        ConversionContext context = ConversionContext.of(cadFileUri, tmpDirUri);
+        RemoteConversions remote = RemoteConversions.forConverter(DaeFileConverterImpl.class);
+        if (remote.isEnabled()) {
+            return ConversionSupersession.track(context, remote.convertAsync(context, cadFileUri, tmpDirUri));
+        }
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        return ConversionSupersession.track(context, ConversionCache.forConverter(DaeFileConverterImpl.class)
+                .convertAsync(cadFileUri, tmpDirUri, pipeline.version(routes.version(extension)),
+                        pipeline.wrap((cadFile, tmpDir) -> routes.convertAsync(extension, context, cadFile, tmpDir))));
+    }
 
-        // Sanity checks
+    private CompletableFuture<ConversionResult> doConvert(final ConversionContext context, final URI cadFileUri,
+                                                          final URI tmpDirUri) {
+        ConversionScheduler scheduler =
+                ConversionScheduler.forTool("assimp", CONF.getProperty("assimp_max_concurrency"));
+        return scheduler.submit(context, () -> runAssimp(cadFileUri, tmpDirUri));
+    }
 
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" is not available");
-        }
+    private CompletableFuture<ConversionResult> runAssimp(final URI cadFileUri, final URI tmpDirUri) {
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" has no execution rights");
-        }
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path tmpCadFile = Paths.get(cadFileUri);
 
         UUID uuid = UUID.randomUUID();
         Path convertedFile = tmpDir.resolve(uuid + ".obj");
         Path convertedMtlFile = tmpDir.resolve(uuid + ".obj.mtl");
 
-        String[] args = {assimp, "export", tmpCadFile.toAbsolutePath().toString(), convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
+        String[] args = {assimp.getExecutable().toString(), "export", tmpCadFile.toAbsolutePath().toString(),
+                convertedFile.toString()};
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("assimp_timeout"));
+        CompletableFuture<ProcessResult> process;
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            process = runner.start(new ProcessBuilder(args), Arrays.asList(convertedFile, convertedMtlFile));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+            assimp.recordFailure();
+            return ConversionFutures.failed(new ConversionException(e));
+        }
 
-            process.waitFor();
+        return ConversionFutures.then(process, result -> {
+            LOGGER.info(result.getStdOutput());
+            assimp.record(result);
+            ConversionMetrics.forConverter(DaeFileConverterImpl.class).record(tmpCadFile, convertedFile, result);
 
-            if (process.exitValue() == 0) {
+            if (result.isSuccess()) {
                 List<Path> materials = new ArrayList<>();
                 materials.add(convertedMtlFile);
                 return new ConversionResult(convertedFile, materials);
+            } else if (result.isTimedOut()) {
+                throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath()
+                        + ": timed out after " + runner.getTimeout() + "s");
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
-        } catch (IOException | InterruptedException e) {
-            LOGGER.log(Level.SEVERE, null, e);
-            throw new ConversionException(e);
-        }
+        });
     }
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d").contains(cadFileExtension);
+        return routes.canConvert(cadFileExtension);
     }
 
 }
@@ -20,24 +20,39 @@
 
 package com.docdoku.server.converters.ifc;
 
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionMetrics;
+import com.docdoku.server.converters.utils.ConversionRoutes;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConversionSupersession;
+import com.docdoku.server.converters.utils.ConversionTool;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import com.docdoku.server.converters.utils.remote.RemoteConversions;
+import com.docdoku.server.converters.utils.step.Part21Admission;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @IFCFileConverter
 @Stateless
-public class IFCFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, AsyncCADConverter.class})
+public class IFCFileConverterImpl implements AsyncCADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/ifc/conf.properties";
     private static final Properties CONF = new Properties();
@@ -51,26 +66,43 @@ public class IFCFileConverterImpl implements CADConverter {
         }
     }
 
+    private final ConversionTool ifcConvert =
+            ConversionTool.forTool("IfcConvert", CONF.getProperty("ifc_convert_path"));
+    private final ConversionRoutes routes = new ConversionRoutes().add(ifcConvert, this::doConvert, "ifc");
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        Path tmpDir = Paths.get(tmpDirUri);
-        Path tmpCadFile = Paths.get(cadFileUri);
-
-        String ifcConverter = CONF.getProperty("ifc_convert_path");
-        Path executable = Paths.get(ifcConverter);
-
-        // Sanity checks
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+    }
 
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + ifcConverter + "\" is not available");
+    @Override
+    public CompletableFuture<ConversionResult> convertAsync(final URI cadFileUri, final URI tmpDirUri) {
+        String extension = ConversionRoutes.extension(Paths.get(cadFileUri));
+        ConversionContext context = ConversionContext.of(cadFileUri, tmpDirUri);
+        RemoteConversions remote = RemoteConversions.forConverter(IFCFileConverterImpl.class);
+        if (remote.isEnabled()) {
+            return ConversionSupersession.track(context, remote.convertAsync(context, cadFileUri, tmpDirUri));
         }
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        return ConversionSupersession.track(context, ConversionCache.forConverter(IFCFileConverterImpl.class)
+                .convertAsync(cadFileUri, tmpDirUri, pipeline.version(routes.version(extension)),
+                        pipeline.wrap((cadFile, tmpDir) -> routes.convertAsync(extension, context, cadFile, tmpDir))));
+    }
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException("Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + ifcConverter
-                    + "\" has no execution rights");
-        }
+    private CompletableFuture<ConversionResult> doConvert(final ConversionContext context, final URI cadFileUri,
+                                                          final URI tmpDirUri) {
+        ConversionScheduler scheduler =
+                ConversionScheduler.forTool("IfcConvert", CONF.getProperty("ifc_convert_max_concurrency"));
+        Part21Admission admission = Part21Admission.fromProperties(CONF.getProperty("ifc_convert_max_cost"),
+                CONF.getProperty("ifc_convert_bulk_cost"));
+        return admission.admitAsync(cadFileUri, context,
+                admitted -> scheduler.submit(admitted, () -> runIfcConvert(cadFileUri, tmpDirUri)));
+    }
+
+    private CompletableFuture<ConversionResult> runIfcConvert(final URI cadFileUri, final URI tmpDirUri) {
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path tmpCadFile = Paths.get(cadFileUri);
 
         UUID uuid = UUID.randomUUID();
         // String extension = FileIO.getExtension(cadFile.getName());
@@ -78,37 +110,41 @@ public class IFCFileConverterImpl implements CADConverter {
         Path convertedFile = tmpDir.resolve(uuid + ".obj");
         Path convertedMtl = tmpDir.resolve(uuid + ".mtl");
 
-        String[] args = {ifcConverter, "--sew-shells", tmpCadFile.toAbsolutePath().toString(),
-                convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
+        String[] args = {ifcConvert.getExecutable().toString(), "--sew-shells",
+                tmpCadFile.toAbsolutePath().toString(), convertedFile.toString()};
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("ifc_convert_timeout"));
 
+        CompletableFuture<ProcessResult> process;
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            process = runner.start(new ProcessBuilder(args), Arrays.asList(convertedFile, convertedMtl));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+            ifcConvert.recordFailure();
+            return ConversionFutures.failed(new ConversionException(e));
+        }
 
-            process.waitFor();
+        return ConversionFutures.then(process, result -> {
+            LOGGER.info(result.getStdOutput());
+            ifcConvert.record(result);
+            ConversionMetrics.forConverter(IFCFileConverterImpl.class).record(tmpCadFile, convertedFile, result);
 
-            if (process.exitValue() == 0) {
+            if (result.isSuccess()) {
                 List<Path> materials = new ArrayList<>();
                 materials.add(convertedMtl);
                 return new ConversionResult(convertedFile, materials);
+            } else if (result.isTimedOut()) {
+                throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath()
+                        + ": timed out after " + runner.getTimeout() + "s");
             } else {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
             }
-        } catch (IOException | InterruptedException e) {
-            throw new ConversionException(e);
-        }
+        });
     }
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return "ifc".equals(cadFileExtension);
+        return routes.canConvert(cadFileExtension);
     }
 
 }
\ No newline at end of file
@@ -21,23 +21,53 @@
 package com.docdoku.server.converters.obj;
 
 
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionSupersession;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import com.docdoku.server.converters.utils.remote.RemoteConversions;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
 import java.net.URI;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 @ObjFileConverter
 @Stateless
-public class ObjFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, AsyncCADConverter.class})
+public class ObjFileConverterImpl implements AsyncCADConverter {
+
+    private static final String PASS_THROUGH_VERSION = "obj-1";
 
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        Path tmpCadFile = Paths.get(cadFileUri);
-        return new ConversionResult(tmpCadFile);
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+    }
+
+    /**
+     * OBJ files are used as is, only the pipeline stages are run and cached.
+     */
+    @Override
+    public CompletableFuture<ConversionResult> convertAsync(final URI cadFileUri, final URI tmpDirUri) {
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        if (pipeline.isEmpty()) {
+            return CompletableFuture.completedFuture(new ConversionResult(Paths.get(cadFileUri)));
+        }
+        ConversionContext context = ConversionContext.of(cadFileUri, tmpDirUri);
+        RemoteConversions remote = RemoteConversions.forConverter(ObjFileConverterImpl.class);
+        if (remote.isEnabled()) {
+            return ConversionSupersession.track(context, remote.convertAsync(context, cadFileUri, tmpDirUri));
+        }
+        return ConversionSupersession.track(context, ConversionCache.forConverter(ObjFileConverterImpl.class)
+                .convertAsync(cadFileUri, tmpDirUri, pipeline.version(PASS_THROUGH_VERSION),
+                        pipeline.wrap((cadFile, tmpDir) ->
+                                CompletableFuture.completedFuture(new ConversionResult(Paths.get(cadFile))))));
     }
 
     @Override
@@ -0,0 +1,160 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import com.docdoku.server.converters.utils.OutputRingBuffer;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.ProcessTree;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived Python interpreter with FreeCAD loaded, converting STEP/IGES files sent on its standard input.
+ *
+ * @see FreeCadWorkerPool
+ */
+class FreeCadWorker {
+
+    private static final String READY = "READY";
+    private static final String OK = "OK";
+    private static final String ERROR = "ERROR ";
+
+    private final Process process;
+    private final long pid;
+    private final BufferedWriter jobs;
+    private final BufferedReader responses;
+    private final OutputRingBuffer errorOutput = new OutputRingBuffer(ProcessRunner.DEFAULT_BUFFER_SIZE);
+    private int jobCount;
+    private volatile boolean killed;
+
+    private FreeCadWorker(Process process) {
+        this.process = process;
+        this.pid = ProcessTree.pid(process);
+        this.jobs = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.responses = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        ProcessRunner.drain(process.getErrorStream(), errorOutput);
+    }
+
+    static FreeCadWorker start(String pythonInterpreter, Path script, String freeCadLibPath,
+                               ScheduledExecutorService scheduler, long startTimeout) throws IOException {
+        Process process = new ProcessBuilder(pythonInterpreter, script.toAbsolutePath().toString(),
+                "-l", freeCadLibPath).start();
+        FreeCadWorker worker = new FreeCadWorker(process);
+        String response = worker.readResponse(scheduler, startTimeout);
+        if (!READY.equals(response)) {
+            worker.kill();
+            throw new IOException("FreeCAD worker failed to start: " + worker.errorOutput);
+        }
+        return worker;
+    }
+
+    /**
+     * Convert a file, killing the worker if it does not answer within the timeout.
+     */
+    ProcessResult convert(Path input, Path output, ScheduledExecutorService scheduler, long timeout)
+            throws IOException {
+        String inputPath = input.toAbsolutePath().toString();
+        String outputPath = output.toAbsolutePath().toString();
+        if (inputPath.contains("\t") || inputPath.contains("\n") || outputPath.contains("\t")
+                || outputPath.contains("\n")) {
+            throw new IOException("Unsupported file name " + inputPath);
+        }
+
+        long start = System.currentTimeMillis();
+        long startCpuTime = ProcessTree.cpuTime(pid);
+        jobCount++;
+        jobs.write(inputPath + "\t" + outputPath + "\n");
+        jobs.flush();
+
+        String response = readResponse(scheduler, timeout);
+        long duration = System.currentTimeMillis() - start;
+        // The worker outlives its jobs: account the CPU time spent on this one and the memory it left resident
+        long cpuTime = startCpuTime < 0 ? -1 : ProcessTree.cpuTime(pid) - startCpuTime;
+        long memory = ProcessTree.residentMemory(pid);
+
+        if (OK.equals(response)) {
+            return new ProcessResult(0, false, duration, "", "", cpuTime, memory);
+        } else if (response != null && response.startsWith(ERROR)) {
+            return new ProcessResult(1, false, duration, "", response.substring(ERROR.length()), cpuTime, memory);
+        } else if (killed) {
+            return new ProcessResult(-1, true, duration, "", errorOutput.toString());
+        } else {
+            kill();
+            throw new IOException("FreeCAD worker died: " + errorOutput);
+        }
+    }
+
+    private String readResponse(ScheduledExecutorService scheduler, long timeout) throws IOException {
+        ScheduledFuture<?> watchdog = timeout > 0 ? scheduler.schedule(this::kill, timeout, TimeUnit.SECONDS) : null;
+        try {
+            return responses.readLine();
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    int getJobCount() {
+        return jobCount;
+    }
+
+    long getResidentMemory() {
+        return ProcessTree.residentMemory(pid);
+    }
+
+    boolean isAlive() {
+        return !killed && process.isAlive();
+    }
+
+    void kill() {
+        killed = true;
+        ProcessTree.kill(process);
+    }
+
+    /**
+     * Ask the worker to exit by closing its input, kill it if it does not comply.
+     */
+    void stop() {
+        try {
+            jobs.close();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                kill();
+            }
+        } catch (IOException e) {
+            kill();
+        } catch (InterruptedException e) {
+            kill();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
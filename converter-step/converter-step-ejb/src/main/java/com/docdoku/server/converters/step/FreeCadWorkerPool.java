@@ -0,0 +1,289 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import com.docdoku.server.converters.utils.ProcessResult;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of persistent FreeCAD workers, saving the interpreter and FreeCAD modules startup on each conversion.
+ * <p>
+ * Workers are started lazily, and recycled once they have handled {@code freeCadWorkerMaxJobs} conversions
+ * or when their resident memory exceeds {@code freeCadWorkerMaxMemory} megabytes.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class FreeCadWorkerPool {
+
+    private static final String PYTHON_WORKER_SCRIPT = "/com/docdoku/server/converters/step/freecad_worker.py";
+    private static final long START_TIMEOUT = 120;
+    private static final Logger LOGGER = Logger.getLogger(FreeCadWorkerPool.class.getName());
+
+    private final Deque<FreeCadWorker> idleWorkers = new ArrayDeque<>();
+    private final ScheduledExecutorService watchdogs = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("freecad-worker-watchdog"));
+
+    private final ExecutorService sessions = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("freecad-session"));
+
+    private ExecutorService executor;
+    private int size;
+    private int maxJobs;
+    private long maxMemory;
+    private long timeout;
+    private Path script;
+
+    public FreeCadWorkerPool() {
+        configure(StepFileConverterImpl.CONF);
+    }
+
+    private void configure(Properties conf) {
+        size = Integer.parseInt(conf.getProperty("freeCadWorkers", "0").trim());
+        maxJobs = Integer.parseInt(conf.getProperty("freeCadWorkerMaxJobs", "100").trim());
+        maxMemory = Long.parseLong(conf.getProperty("freeCadWorkerMaxMemory", "1024").trim()) * 1024 * 1024;
+        timeout = Long.parseLong(conf.getProperty("freeCadTimeout", "0").trim());
+        // One thread per worker, jobs wait in the executor queue
+        executor = Executors.newFixedThreadPool(Math.max(size, 1), new DaemonThreadFactory("freecad-worker"));
+    }
+
+    public boolean isEnabled() {
+        return size > 0;
+    }
+
+    /**
+     * Convert a STEP/IGES file to OBJ on the first available worker.
+     * <p>
+     * Jobs are queued while all the workers are busy. Cancelling the returned future kills the worker
+     * running the job and deletes its partial output.
+     */
+    public CompletableFuture<ProcessResult> convertAsync(Path cadFile, Path objFile) {
+        CompletableFuture<ProcessResult> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (future.isDone()) {
+                // Cancelled while queued
+                return;
+            }
+            FreeCadWorker worker = null;
+            try {
+                worker = borrow();
+                Job job = new Job(worker, objFile);
+                future.whenComplete((result, error) -> {
+                    if (future.isCancelled()) {
+                        job.cancelled();
+                    }
+                });
+                ProcessResult result = worker.convert(cadFile, objFile, watchdogs, timeout);
+                job.finished();
+                // Completed before the worker may take another job
+                future.complete(result);
+                release(worker);
+            } catch (IOException | RuntimeException e) {
+                if (worker != null) {
+                    worker.kill();
+                }
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Convert files one after the other in a FreeCAD session started for them, so the whole batch pays a
+     * single FreeCAD startup even when the pool is disabled.
+     * <p>
+     * Cancelling the future of a file kills the session and deletes the partial output if it is converting
+     * this file, a new session is started for the next ones.
+     */
+    public List<CompletableFuture<ProcessResult>> convertSessionAsync(List<Path> cadFiles, List<Path> objFiles) {
+        List<CompletableFuture<ProcessResult>> futures = new ArrayList<>();
+        for (int i = 0; i < cadFiles.size(); i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        sessions.execute(() -> {
+            FreeCadWorker worker = null;
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    CompletableFuture<ProcessResult> future = futures.get(i);
+                    if (future.isDone()) {
+                        continue;
+                    }
+                    if (worker == null || !worker.isAlive()) {
+                        try {
+                            worker = startWorker();
+                        } catch (IOException | RuntimeException e) {
+                            // The next files would fail the same way
+                            futures.subList(i, futures.size()).forEach(f -> f.completeExceptionally(e));
+                            return;
+                        }
+                    }
+                    Job job = new Job(worker, objFiles.get(i));
+                    future.whenComplete((result, error) -> {
+                        if (future.isCancelled()) {
+                            job.cancelled();
+                        }
+                    });
+                    try {
+                        ProcessResult result = worker.convert(cadFiles.get(i), objFiles.get(i), watchdogs, timeout);
+                        job.finished();
+                        future.complete(result);
+                    } catch (IOException | RuntimeException e) {
+                        worker.kill();
+                        future.completeExceptionally(e);
+                    }
+                }
+            } finally {
+                if (worker != null && worker.isAlive()) {
+                    worker.stop();
+                }
+            }
+        });
+        return futures;
+    }
+
+    private FreeCadWorker borrow() throws IOException {
+        synchronized (idleWorkers) {
+            FreeCadWorker worker;
+            while ((worker = idleWorkers.poll()) != null) {
+                if (worker.isAlive()) {
+                    return worker;
+                }
+            }
+        }
+        return startWorker();
+    }
+
+    private FreeCadWorker startWorker() throws IOException {
+        Properties conf = StepFileConverterImpl.CONF;
+        return FreeCadWorker.start(conf.getProperty("pythonInterpreter"), getScript(),
+                conf.getProperty("freeCadLibPath"), watchdogs, START_TIMEOUT);
+    }
+
+    private void release(FreeCadWorker worker) {
+        if (!worker.isAlive()) {
+            return;
+        }
+        if (worker.getJobCount() >= maxJobs) {
+            LOGGER.fine("Recycling FreeCAD worker after " + worker.getJobCount() + " jobs");
+            worker.stop();
+            return;
+        }
+        long memory = worker.getResidentMemory();
+        if (maxMemory > 0 && memory > maxMemory) {
+            LOGGER.info("Recycling FreeCAD worker using " + memory / (1024 * 1024) + "MB");
+            worker.stop();
+            return;
+        }
+        synchronized (idleWorkers) {
+            idleWorkers.push(worker);
+        }
+    }
+
+    private synchronized Path getScript() throws IOException {
+        if (script == null) {
+            Path directory = Files.createTempDirectory("freecad-worker");
+            Path file = directory.resolve("freecad_worker.py");
+            try (InputStream scriptStream = FreeCadWorkerPool.class.getResourceAsStream(PYTHON_WORKER_SCRIPT)) {
+                Files.copy(scriptStream, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            script = file;
+        }
+        return script;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + file, e);
+        }
+    }
+
+    /**
+     * A job run by a worker, whose cancellation kills the worker only while it still runs this job.
+     */
+    private static final class Job {
+
+        private final FreeCadWorker worker;
+        private final Path objFile;
+        private boolean owned = true;
+
+        Job(FreeCadWorker worker, Path objFile) {
+            this.worker = worker;
+            this.objFile = objFile;
+        }
+
+        synchronized void cancelled() {
+            if (owned) {
+                worker.kill();
+            }
+            deleteQuietly(objFile);
+        }
+
+        synchronized void finished() {
+            owned = false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (idleWorkers) {
+            FreeCadWorker worker;
+            while ((worker = idleWorkers.poll()) != null) {
+                worker.stop();
+            }
+        }
+        executor.shutdownNow();
+        sessions.shutdownNow();
+        watchdogs.shutdownNow();
+        synchronized (this) {
+            if (script != null) {
+                try {
+                    Files.deleteIfExists(script);
+                    Files.deleteIfExists(script.getParent());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, null, e);
+                }
+            }
+        }
+    }
+
+}
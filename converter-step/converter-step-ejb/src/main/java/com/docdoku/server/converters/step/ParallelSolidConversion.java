@@ -0,0 +1,342 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.mesh.ObjMerger;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts a STEP assembly by tessellating its top-level shapes in several FreeCAD processes.
+ * <p>
+ * A first process opens the file and writes each top-level shape to a BREP file. The shapes are then
+ * spread over parallel processes, biggest first, and the resulting meshes are merged into a single OBJ
+ * file with one group per shape.
+ */
+class ParallelSolidConversion {
+
+    private static final String SPLIT_SCRIPT = "/com/docdoku/server/converters/step/split_step_solids.py";
+    private static final String TESSELLATE_SCRIPT = "/com/docdoku/server/converters/step/tessellate_solids.py";
+    private static final String MANIFEST = "solids.txt";
+    private static final Logger LOGGER = Logger.getLogger(ParallelSolidConversion.class.getName());
+
+    private final ProcessRunner runner;
+    private final int processes;
+    private final String pythonInterpreter;
+    private final String freeCadLibPath;
+
+    private static final class Solid {
+        private final Path brepFile;
+        private final String label;
+        private final long size;
+
+        Solid(Path brepFile, String label) throws IOException {
+            this.brepFile = brepFile;
+            this.label = label;
+            this.size = Files.size(brepFile);
+        }
+
+        Path getObjFile() {
+            String name = brepFile.getFileName().toString();
+            return brepFile.resolveSibling(name.substring(0, name.lastIndexOf('.')) + ".obj");
+        }
+    }
+
+    /**
+     * Work directory of a conversion, removed once the conversion is done and all the processes started in it
+     * have exited or have been killed, so that no process writes to it again.
+     */
+    private static final class WorkDirectory {
+        private final Path path;
+        private int running;
+        private boolean done;
+
+        WorkDirectory(Path path) {
+            this.path = path;
+        }
+
+        synchronized CompletableFuture<ProcessResult> start(ProcessRunner runner, List<String> args,
+                                                            List<Path> outputs) throws IOException {
+            CompletableFuture<Void> termination = new CompletableFuture<>();
+            CompletableFuture<ProcessResult> process = runner.start(new ProcessBuilder(args), outputs, termination);
+            running++;
+            termination.thenRun(this::terminated);
+            return process;
+        }
+
+        private synchronized void terminated() {
+            running--;
+            deleteIfUnused();
+        }
+
+        synchronized void close() {
+            done = true;
+            deleteIfUnused();
+        }
+
+        private void deleteIfUnused() {
+            if (done && running == 0) {
+                delete(path);
+            }
+        }
+    }
+
+    /**
+     * Usage of the processes of a conversion, summed up as a single run of the tool. The memory is the highest of
+     * the split process and of the concurrent tessellation processes together.
+     */
+    private static final class Usage {
+        private final long start = System.nanoTime();
+        private int exitCode;
+        private boolean timedOut;
+        private long cpuTime = -1;
+        private long splitMemory = -1;
+        private long tessellationMemory = -1;
+
+        synchronized void split(ProcessResult result) {
+            add(result);
+            splitMemory = result.getPeakMemory();
+        }
+
+        synchronized void tessellation(ProcessResult result) {
+            add(result);
+            if (result.getPeakMemory() >= 0) {
+                tessellationMemory = Math.max(tessellationMemory, 0) + result.getPeakMemory();
+            }
+        }
+
+        private void add(ProcessResult result) {
+            // The first failing process tells whether the tool crashed or rejected the file
+            if (exitCode == 0 && !result.isSuccess()) {
+                exitCode = result.getExitCode();
+            }
+            timedOut |= result.isTimedOut();
+            if (result.getCpuTime() >= 0) {
+                cpuTime = Math.max(cpuTime, 0) + result.getCpuTime();
+            }
+        }
+
+        synchronized ProcessResult toResult(Throwable error) {
+            String errorOutput = error == null ? "" : String.valueOf(ConversionFutures.unwrap(error).getMessage());
+            return new ProcessResult(exitCode == 0 && error != null ? 1 : exitCode, timedOut,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), "", errorOutput, cpuTime,
+                    Math.max(splitMemory, tessellationMemory));
+        }
+    }
+
+    ParallelSolidConversion(ProcessRunner runner, int processes, String pythonInterpreter, String freeCadLibPath) {
+        this.runner = runner;
+        this.processes = Math.max(processes, 1);
+        this.pythonInterpreter = pythonInterpreter;
+        this.freeCadLibPath = freeCadLibPath;
+    }
+
+    /**
+     * Convert the CAD file to the OBJ file, using a work directory removed once done and all the processes are
+     * over.
+     *
+     * @param recorder given the usage of the processes once the conversion completes, unless it is cancelled
+     */
+    CompletableFuture<Path> convertAsync(Path cadFile, Path objFile, Path workDirectory,
+                                         Consumer<ProcessResult> recorder) {
+        Usage usage = new Usage();
+        WorkDirectory directory = new WorkDirectory(workDirectory);
+        CompletableFuture<Path> result;
+        try {
+            Files.createDirectories(workDirectory);
+            Path splitScript = copyScript(SPLIT_SCRIPT, workDirectory.resolve("split_step_solids.py"));
+            Path tessellateScript = copyScript(TESSELLATE_SCRIPT, workDirectory.resolve("tessellate_solids.py"));
+            CompletableFuture<ProcessResult> split = directory.start(runner, Arrays.asList(pythonInterpreter,
+                    splitScript.toString(), "-l", freeCadLibPath, "-i", cadFile.toAbsolutePath().toString(),
+                    "-o", workDirectory.toAbsolutePath().toString()),
+                    Collections.singletonList(workDirectory.resolve(MANIFEST)));
+            result = ConversionFutures.thenCompose(split, splitResult -> {
+                usage.split(splitResult);
+                check(splitResult, cadFile);
+                List<Solid> solids = readManifest(workDirectory);
+                List<List<Solid>> groups = spread(solids);
+                LOGGER.info("Tessellating " + solids.size() + " shapes of " + cadFile.getFileName() + " in "
+                        + groups.size() + " processes");
+                return ConversionFutures.then(tessellate(directory, tessellateScript, groups, cadFile, usage),
+                        ignored -> merge(solids, objFile));
+            });
+        } catch (IOException e) {
+            result = ConversionFutures.failed(new ConversionException(e));
+        }
+
+        CompletableFuture<Path> conversion = result;
+        conversion.whenComplete((path, error) -> {
+            if (!conversion.isCancelled()) {
+                recorder.accept(usage.toResult(error));
+            }
+            directory.close();
+        });
+        return conversion;
+    }
+
+    private List<Solid> readManifest(Path workDirectory) throws ConversionException {
+        List<Solid> solids = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(workDirectory.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    solids.add(new Solid(workDirectory.resolve(line.substring(0, tab)), line.substring(tab + 1)));
+                }
+            }
+        } catch (IOException e) {
+            throw new ConversionException("Cannot read the shapes list", e);
+        }
+        if (solids.isEmpty()) {
+            throw new ConversionException("No shape to tessellate");
+        }
+        return solids;
+    }
+
+    /**
+     * Spread the solids over the processes, each one going to the least loaded process, biggest first.
+     */
+    private List<List<Solid>> spread(List<Solid> solids) {
+        int groupCount = Math.min(processes, solids.size());
+        List<List<Solid>> groups = new ArrayList<>();
+        long[] loads = new long[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<>());
+        }
+        List<Solid> bySize = new ArrayList<>(solids);
+        bySize.sort(Comparator.comparingLong((Solid solid) -> solid.size).reversed());
+        for (Solid solid : bySize) {
+            int lightest = 0;
+            for (int i = 1; i < groupCount; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            groups.get(lightest).add(solid);
+            loads[lightest] += solid.size;
+        }
+        return groups;
+    }
+
+    private CompletableFuture<Void> tessellate(WorkDirectory directory, Path script, List<List<Solid>> groups,
+                                               Path cadFile, Usage usage) throws ConversionException {
+        List<CompletableFuture<Void>> tessellations = new ArrayList<>();
+        try {
+            for (List<Solid> group : groups) {
+                List<String> args = new ArrayList<>();
+                args.add(pythonInterpreter);
+                args.add(script.toString());
+                args.add("-l");
+                args.add(freeCadLibPath);
+                group.forEach(solid -> args.add(solid.brepFile.toAbsolutePath().toString()));
+                List<Path> outputs = group.stream().map(Solid::getObjFile).collect(Collectors.toList());
+                tessellations.add(ConversionFutures.then(directory.start(runner, args, outputs),
+                        result -> {
+                            usage.tessellation(result);
+                            check(result, cadFile);
+                            return null;
+                        }));
+            }
+        } catch (IOException e) {
+            tessellations.forEach(tessellation -> tessellation.cancel(true));
+            throw new ConversionException(e);
+        }
+
+        CompletableFuture<Void> all =
+                CompletableFuture.allOf(tessellations.toArray(new CompletableFuture<?>[tessellations.size()]));
+        // A failed process makes the others useless
+        tessellations.forEach(tessellation -> tessellation.whenComplete((value, error) -> {
+            if (error != null) {
+                tessellations.forEach(other -> other.cancel(true));
+            }
+        }));
+        all.whenComplete((value, error) -> {
+            if (all.isCancelled()) {
+                tessellations.forEach(tessellation -> tessellation.cancel(true));
+            }
+        });
+        return all;
+    }
+
+    private Path merge(List<Solid> solids, Path objFile) throws ConversionException {
+        try {
+            ObjMerger.merge(solids.stream().map(Solid::getObjFile).collect(Collectors.toList()),
+                    solids.stream().map(solid -> solid.label).collect(Collectors.toList()), objFile);
+            return objFile;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot merge the tessellated shapes", e);
+        }
+    }
+
+    private void check(ProcessResult result, Path cadFile) throws ConversionException {
+        LOGGER.fine(result.getStdOutput());
+        if (result.isTimedOut()) {
+            throw new ConversionException("Cannot convert to obj " + cadFile.toAbsolutePath()
+                    + ": timed out after " + runner.getTimeout() + "s");
+        } else if (!result.isSuccess()) {
+            throw new ConversionException(
+                    "Cannot convert to obj " + cadFile.toAbsolutePath() + ": " + result.getErrorOutput());
+        }
+    }
+
+    private static Path copyScript(String resource, Path target) throws IOException {
+        try (InputStream scriptStream = ParallelSolidConversion.class.getResourceAsStream(resource)) {
+            if (scriptStream == null) {
+                throw new IOException("Missing script " + resource);
+            }
+            Files.copy(scriptStream, target);
+        }
+        return target;
+    }
+
+    private static void delete(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + directory, e);
+        }
+    }
+
+}
@@ -21,31 +21,57 @@
 package com.docdoku.server.converters.step;
 
 
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionBatch;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionMetrics;
+import com.docdoku.server.converters.utils.ConversionRoutes;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConversionSupersession;
+import com.docdoku.server.converters.utils.ConversionTool;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.pipeline.ConversionPipeline;
+import com.docdoku.server.converters.utils.remote.RemoteConversions;
+import com.docdoku.server.converters.utils.step.Part21Admission;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 @StepFileConverter
 @Stateless
-public class StepFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, AsyncCADConverter.class})
+public class StepFileConverterImpl implements AsyncCADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/step/conf.properties";
-    private static final Properties CONF = new Properties();
+    static final Properties CONF = new Properties();
     private static final String PYTHON_SCRIPT_TO_OBJ = "/com/docdoku/server/converters/step/convert_step_obj.py";
     private static final Logger LOGGER = Logger.getLogger(StepFileConverterImpl.class.getName());
+    // Bumped when the Python scripts change their output, so that cached conversions are not reused
+    private static final String SCRIPTS_VERSION = "scripts-2";
+    private static final int BATCH_SIZE;
+    private static final int PARALLEL_PROCESSES;
+    private static final long PARALLEL_MIN_SIZE;
 
     static {
         try (InputStream inputStream = StepFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -53,20 +79,233 @@ public class StepFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        BATCH_SIZE = intProperty("freeCadBatchSize", 1);
+        PARALLEL_PROCESSES = intProperty("freeCadParallelProcesses", 0);
+        PARALLEL_MIN_SIZE = intProperty("freeCadParallelMinSize", 0) * 1024L * 1024L;
     }
 
+    @Inject
+    private FreeCadWorkerPool workerPool;
+
+    private final ConversionTool freeCad = ConversionTool.forTool("FreeCAD", CONF.getProperty("pythonInterpreter"));
+    private final ConversionRoutes routes = new ConversionRoutes()
+            .add(freeCad, this::doConvertAdmitted, "stp", "step", "igs", "iges");
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        String pythonInterpreter = CONF.getProperty("pythonInterpreter");
-        String freeCadLibPath = CONF.getProperty("freeCadLibPath");
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+    }
+
+    @Override
+    public CompletableFuture<ConversionResult> convertAsync(final URI cadFileUri, final URI tmpDirUri) {
+        String extension = ConversionRoutes.extension(Paths.get(cadFileUri));
+        ConversionContext context = ConversionContext.of(cadFileUri, tmpDirUri);
+        RemoteConversions remote = RemoteConversions.forConverter(StepFileConverterImpl.class);
+        if (remote.isEnabled()) {
+            return ConversionSupersession.track(context, remote.convertAsync(context, cadFileUri, tmpDirUri));
+        }
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        return ConversionSupersession.track(context, ConversionCache.forConverter(StepFileConverterImpl.class)
+                .convertAsync(cadFileUri, tmpDirUri, pipeline.version(toolVersion()),
+                        pipeline.wrap((cadFile, tmpDir) -> routes.convertAsync(extension, context, cadFile, tmpDir))));
+    }
+
+    private CompletableFuture<ConversionResult> doConvertAdmitted(final ConversionContext context,
+                                                                  final URI cadFileUri, final URI tmpDirUri) {
+        ConversionScheduler scheduler = scheduler();
+        return admission().admitAsync(cadFileUri, context,
+                admitted -> scheduler.submit(admitted, () -> doConvert(cadFileUri, tmpDirUri)));
+    }
+
+    /**
+     * Convert the files missing from the cache by groups of {@code freeCadBatchSize}, each group in a single
+     * FreeCAD session.
+     * <p>
+     * Persistent pool workers already convert many files per FreeCAD startup, so files are simply sent to
+     * the pool when it is enabled.
+     */
+    @Override
+    public List<CompletableFuture<ConversionResult>> convertBatch(final List<URI> cadFileUris, final URI tmpDirUri) {
+        // Unavailable FreeCAD installations fail each file at once, remote workers batch on their side
+        if (workerPool == null || workerPool.isEnabled() || !freeCad.isAvailable()
+                || RemoteConversions.forConverter(StepFileConverterImpl.class).isEnabled()) {
+            return AsyncCADConverter.super.convertBatch(cadFileUris, tmpDirUri);
+        }
+        ConversionPipeline pipeline = ConversionPipeline.getDefault();
+        String toolVersion = pipeline.version(toolVersion());
+        // Files of a batch share its temporary directory, hence the context of its first file
+        ConversionContext context = cadFileUris.isEmpty() ? ConversionContext.current()
+                : ConversionContext.of(cadFileUris.get(0), tmpDirUri);
+        ConversionScheduler scheduler = scheduler();
+        ConversionCache cache = ConversionCache.forConverter(StepFileConverterImpl.class);
+        ConversionBatch batch = new ConversionBatch();
+        ConversionCache.AsyncConversion batched = batch.defer(
+                (cadFile, tmpDir) -> scheduler.submit(context, () -> doConvert(cadFile, tmpDir)));
+        // Files of a batch keep the batch priority, only the maximum cost applies
+        Part21Admission admission = admission();
+        ConversionCache.AsyncConversion deferred = pipeline.wrap((cadFile, tmpDir) ->
+                admission.admitAsync(cadFile, context, admitted -> batched.convertAsync(cadFile, tmpDir)));
+
+        List<CompletableFuture<ConversionResult>> results = cadFileUris.stream()
+                .map(cadFileUri -> ConversionSupersession.track(ConversionContext.of(cadFileUri, tmpDirUri),
+                        cache.convertAsync(cadFileUri, tmpDirUri, toolVersion, deferred)))
+                .collect(Collectors.toList());
+        batch.flush(BATCH_SIZE, jobs -> scheduler.submit(context, () -> doConvertSession(jobs)));
+        return results;
+    }
+
+    /**
+     * @return the integer value of a property, the default value if it is missing or invalid
+     */
+    private static int intProperty(String name, int defaultValue) {
+        String value = CONF.getProperty(name, "").trim();
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + name + " \"" + value + "\", using " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
+    private String toolVersion() {
+        return freeCad.getVersion() + ConversionCache.fingerprint(Paths.get(CONF.getProperty("freeCadLibPath")))
+                + SCRIPTS_VERSION;
+    }
+
+    private static Part21Admission admission() {
+        return Part21Admission.fromProperties(CONF.getProperty("freeCadMaxCost"), CONF.getProperty("freeCadBulkCost"));
+    }
+
+    private static ConversionScheduler scheduler() {
+        return ConversionScheduler.forTool("FreeCAD", CONF.getProperty("freeCadMaxConcurrency"));
+    }
+
+    private CompletableFuture<ConversionResult> doConvert(final URI cadFileUri, final URI tmpDirUri) {
+        Path tmpCadFile = Paths.get(cadFileUri);
+        if (!isParallelCandidate(tmpCadFile)) {
+            return doConvertWhole(cadFileUri, tmpDirUri);
+        }
+        return ConversionFutures.recover(doConvertParallel(cadFileUri, tmpDirUri), error -> {
+            LOGGER.log(Level.WARNING, "Parallel conversion of " + tmpCadFile.getFileName()
+                    + " failed, converting the file as a whole", error);
+            return doConvertWhole(cadFileUri, tmpDirUri);
+        });
+    }
+
+    /**
+     * Big files are tessellated shape by shape in {@code freeCadParallelProcesses} processes.
+     */
+    private static boolean isParallelCandidate(Path cadFile) {
+        try {
+            return PARALLEL_PROCESSES > 1 && Files.size(cadFile) >= PARALLEL_MIN_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
+    private CompletableFuture<ConversionResult> doConvertParallel(final URI cadFileUri, final URI tmpDirUri) {
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path tmpCadFile = Paths.get(cadFileUri);
+        UUID uuid = UUID.randomUUID();
+        Path tmpOBJFile = tmpDir.resolve(uuid + ".obj");
+        ParallelSolidConversion conversion = new ParallelSolidConversion(
+                ProcessRunner.fromProperty(CONF.getProperty("freeCadTimeout")),
+                PARALLEL_PROCESSES,
+                CONF.getProperty("pythonInterpreter"), CONF.getProperty("freeCadLibPath"));
+        // The processes of the conversion are recorded as a single run of FreeCAD
+        return ConversionFutures.then(conversion.convertAsync(tmpCadFile, tmpOBJFile,
+                tmpDir.resolve("solids-" + uuid), result -> {
+                    freeCad.record(result);
+                    ConversionMetrics.forConverter(StepFileConverterImpl.class).record(tmpCadFile, tmpOBJFile, result);
+                }), ConversionResult::new);
+    }
+
+    private CompletableFuture<ConversionResult> doConvertWhole(final URI cadFileUri, final URI tmpDirUri) {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
         UUID uuid = UUID.randomUUID();
         Path tmpOBJFile = tmpDir.resolve(uuid + ".obj");
 
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("freeCadTimeout"));
+
+        CompletableFuture<ProcessResult> process;
+        try {
+            if (workerPool != null && workerPool.isEnabled()) {
+                process = workerPool.convertAsync(tmpCadFile, tmpOBJFile);
+            } else {
+                process = startScript(runner, tmpDir, uuid, tmpCadFile, tmpOBJFile);
+            }
+        } catch (ConversionException e) {
+            return ConversionFutures.failed(e);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+            freeCad.recordFailure();
+            return ConversionFutures.failed(new ConversionException(e));
+        }
+
+        return ConversionFutures.then(process, result -> toConversionResult(result, runner, tmpCadFile, tmpOBJFile));
+    }
+
+    private CompletableFuture<Void> doConvertSession(List<ConversionBatch.Job> jobs) {
+        ProcessRunner runner = ProcessRunner.fromProperty(CONF.getProperty("freeCadTimeout"));
+        List<Path> cadFiles = new ArrayList<>();
+        List<Path> objFiles = new ArrayList<>();
+        for (ConversionBatch.Job job : jobs) {
+            cadFiles.add(Paths.get(job.getCadFileUri()));
+            objFiles.add(Paths.get(job.getTmpDirUri()).resolve(UUID.randomUUID() + ".obj"));
+        }
+
+        List<CompletableFuture<ProcessResult>> processes = workerPool.convertSessionAsync(cadFiles, objFiles);
+        List<CompletableFuture<ConversionResult>> conversions = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Path tmpCadFile = cadFiles.get(i);
+            Path tmpOBJFile = objFiles.get(i);
+            CompletableFuture<ConversionResult> conversion = ConversionFutures.then(processes.get(i),
+                    result -> toConversionResult(result, runner, tmpCadFile, tmpOBJFile));
+            jobs.get(i).completeWith(conversion);
+            conversions.add(conversion);
+        }
+
+        // Failures are reported to each job, the session completes once every file is done
+        CompletableFuture<Void> session = CompletableFuture.allOf(conversions.stream()
+                .map(conversion -> conversion.handle((result, error) -> null))
+                .toArray(CompletableFuture<?>[]::new));
+        session.whenComplete((value, error) -> {
+            if (session.isCancelled()) {
+                conversions.forEach(conversion -> conversion.cancel(true));
+            }
+        });
+        return session;
+    }
+
+    private ConversionResult toConversionResult(ProcessResult result, ProcessRunner runner, Path tmpCadFile,
+                                                Path tmpOBJFile) throws ConversionException {
+        LOGGER.info(result.getStdOutput());
+        freeCad.record(result);
+        ConversionMetrics.forConverter(StepFileConverterImpl.class).record(tmpCadFile, tmpOBJFile, result);
+
+        if (result.isSuccess()) {
+            return new ConversionResult(tmpOBJFile);
+        } else if (result.isTimedOut()) {
+            throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath()
+                    + ": timed out after " + runner.getTimeout() + "s");
+        } else {
+            throw new ConversionException(
+                    "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + result.getErrorOutput());
+        }
+    }
+
+    private CompletableFuture<ProcessResult> startScript(ProcessRunner runner, Path tmpDir, UUID uuid,
+                                                         Path tmpCadFile, Path tmpOBJFile)
+            throws ConversionException, IOException {
+        String pythonInterpreter = CONF.getProperty("pythonInterpreter");
+        String freeCadLibPath = CONF.getProperty("freeCadLibPath");
+
         Path scriptToOBJ = tmpDir.resolve("python_script" + uuid + ".py");
         try (InputStream scriptStream = StepFileConverterImpl.class.getResourceAsStream(PYTHON_SCRIPT_TO_OBJ)) {
             Files.copy(scriptStream, scriptToOBJ);
@@ -76,34 +315,33 @@ public class StepFileConverterImpl implements CADConverter {
 
         String[] args = {pythonInterpreter, scriptToOBJ.toAbsolutePath().toString(), "-l", freeCadLibPath, "-i",
                 tmpCadFile.toAbsolutePath().toString(), "-o", tmpOBJFile.toAbsolutePath().toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-
+        CompletableFuture<ProcessResult> process;
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
-
-            process.waitFor();
-
-            if (process.exitValue() == 0) {
-                return new ConversionResult(tmpOBJFile);
-            } else {
-                throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+            // Cancelled conversions are cleaned up once FreeCAD is killed
+            process = runner.start(new ProcessBuilder(args), Arrays.asList(tmpOBJFile, scriptToOBJ));
+        } catch (IOException e) {
+            deleteQuietly(scriptToOBJ);
+            throw e;
+        }
+        process.whenComplete((result, error) -> {
+            if (!process.isCancelled()) {
+                deleteQuietly(scriptToOBJ);
             }
-        } catch (IOException | InterruptedException e) {
-            LOGGER.log(Level.SEVERE, null, e);
-            throw new ConversionException(e);
+        });
+        return process;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + file, e);
         }
     }
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stp", "step", "igs", "iges").contains(cadFileExtension);
+        return routes.canConvert(cadFileExtension);
     }
 
 }
@@ -0,0 +1,53 @@
+from optparse import OptionParser;
+import sys;
+import os;
+
+parser = OptionParser();
+
+parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
+
+(options, args) = parser.parse_args();
+
+freeCadLibPath = options.l;
+
+# Keep the original stdout for the protocol, FreeCAD messages are sent to stderr
+protocol = os.fdopen(os.dup(1), "w");
+os.dup2(2, 1);
+
+sys.path.append(freeCadLibPath);
+
+import FreeCAD;
+import Part, Mesh;
+
+def respond(message):
+	protocol.write(message.replace("\n", " ") + "\n");
+	protocol.flush();
+
+def convert(inputFile, outputFile):
+	documentsBefore = set(FreeCAD.listDocuments().keys());
+	try:
+		Part.open(inputFile);
+		Mesh.export(FreeCAD.ActiveDocument.Objects, outputFile);
+	finally:
+		for name in set(FreeCAD.listDocuments().keys()) - documentsBefore:
+			FreeCAD.closeDocument(name);
+
+# Each job is a line "<input file>\t<output file>", answered by "OK" or "ERROR <message>"
+def serve():
+	respond("READY");
+	while True:
+		line = sys.stdin.readline();
+		if not line:
+			break;
+		job = line.rstrip("\n").split("\t");
+		if len(job) != 2:
+			respond("ERROR invalid job " + line);
+			continue;
+		try:
+			convert(job[0], job[1]);
+			respond("OK");
+		except Exception as e:
+			respond("ERROR " + str(e));
+
+if __name__ == "__main__":
+	serve();
@@ -0,0 +1,40 @@
+from optparse import OptionParser;
+import sys;
+import os;
+
+parser = OptionParser();
+
+parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
+parser.add_option("-i", "--inputFile", dest="i", help ="");
+parser.add_option("-o", "--outputDirectory", dest="o", help ="");
+
+(options, args) = parser.parse_args();
+
+freeCadLibPath = options.l;
+inputFile = options.i;
+outputDirectory = options.o;
+
+sys.path.append(freeCadLibPath);
+
+import FreeCAD;
+import Part;
+
+# Write each top-level shape as a BREP file, listed in solids.txt as "<file>\t<label>"
+def splitSolids():
+	if not inputFile or not outputDirectory:
+		sys.exit(2);
+
+	Part.open(inputFile);
+	index = 0;
+	with open(os.path.join(outputDirectory, "solids.txt"), "w") as manifest:
+		for obj in FreeCAD.ActiveDocument.Objects:
+			if not hasattr(obj, "Shape") or obj.Shape.isNull() or not obj.Shape.Faces:
+				continue;
+			name = "solid%05d.brep" % index;
+			obj.Shape.exportBrep(os.path.join(outputDirectory, name));
+			label = obj.Label.replace("\t", " ").replace("\n", " ");
+			manifest.write(name + "\t" + label + "\n");
+			index += 1;
+
+if __name__ == "__main__":
+	splitSolids();
@@ -0,0 +1,33 @@
+from optparse import OptionParser;
+import sys;
+import os;
+
+parser = OptionParser();
+
+parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
+
+(options, args) = parser.parse_args();
+
+freeCadLibPath = options.l;
+
+sys.path.append(freeCadLibPath);
+
+import FreeCAD;
+import Part, Mesh;
+
+# Tessellate each BREP file given as argument to an OBJ file next to it
+# Solids are exported as convert_step_obj.py exports whole files, so meshes do not depend on the file size
+def tessellateSolids():
+	if not args:
+		sys.exit(2);
+
+	document = FreeCAD.newDocument();
+	for brepFile in args:
+		solid = document.addObject("Part::Feature", "Solid");
+		solid.Shape = Part.read(brepFile);
+		Mesh.export([solid], os.path.splitext(brepFile)[0] + ".obj");
+		document.removeObject(solid.Name);
+	FreeCAD.closeDocument(document.Name);
+
+if __name__ == "__main__":
+	tessellateSolids();
@@ -0,0 +1,54 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * {@link CADConverter} able to convert without holding the calling thread during the external conversion.
+ * <p>
+ * The returned future is the handle of the conversion: cancelling it drops the conversion if it is still
+ * queued, kills the external tool otherwise and deletes its partial outputs. Conversions run for an iteration
+ * of a subject set in the {@link ConversionContext} are cancelled the same way once a newer iteration of the
+ * subject is converted, see {@link ConversionSupersession}.
+ */
+public interface AsyncCADConverter extends CADConverter {
+
+    CompletableFuture<ConversionResult> convertAsync(URI cadFileUri, URI tmpDirUri);
+
+    /**
+     * Convert several files, sharing tool invocations between them when the converter supports it.
+     *
+     * @return the conversion of each file, in the order of the given files
+     */
+    default List<CompletableFuture<ConversionResult>> convertBatch(List<URI> cadFileUris, URI tmpDirUri) {
+        return cadFileUris.stream()
+                .map(cadFileUri -> convertAsync(cadFileUri, tmpDirUri))
+                .collect(Collectors.toList());
+    }
+
+}
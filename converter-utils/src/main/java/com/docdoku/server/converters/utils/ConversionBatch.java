@@ -0,0 +1,162 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the conversions missed by the cache while a batch is submitted, to run them in as few tool
+ * invocations as possible.
+ * <p>
+ * Conversions requested through {@link #defer} are held until {@link #flush}, which hands them to the batch
+ * conversion by groups of at most {@code batchSize} files. Conversions requested after the flush, when a
+ * conversion of the same file shared through the cache was cancelled, run on their own.
+ */
+public class ConversionBatch {
+
+    /**
+     * Converts a group of files in a single tool invocation, completing the result of each job.
+     *
+     * @return a future completed once the whole group is converted, cancelled when all the jobs are
+     */
+    @FunctionalInterface
+    public interface BatchConversion {
+        CompletableFuture<?> convertAll(List<Job> jobs);
+    }
+
+    /**
+     * A file waiting for its batch conversion.
+     */
+    public static class Job {
+        private final URI cadFileUri;
+        private final URI tmpDirUri;
+        private final CompletableFuture<ConversionResult> result = new CompletableFuture<>();
+
+        Job(URI cadFileUri, URI tmpDirUri) {
+            this.cadFileUri = cadFileUri;
+            this.tmpDirUri = tmpDirUri;
+        }
+
+        public URI getCadFileUri() {
+            return cadFileUri;
+        }
+
+        public URI getTmpDirUri() {
+            return tmpDirUri;
+        }
+
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        /**
+         * Complete the job with the outcome of its conversion, cancelling the conversion if the job is.
+         */
+        public void completeWith(CompletableFuture<ConversionResult> conversion) {
+            ConversionFutures.propagateCancellation(result, conversion);
+            conversion.whenComplete((value, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(ConversionFutures.isCancellation(error)
+                            ? error : ConversionFutures.unwrap(error));
+                } else {
+                    result.complete(value);
+                }
+            });
+        }
+    }
+
+    private final List<Job> pending = new ArrayList<>();
+    private boolean flushed;
+
+    /**
+     * @return a conversion queued in this batch until it is flushed, and falling back on the single file
+     * conversion afterwards
+     */
+    public ConversionCache.AsyncConversion defer(ConversionCache.AsyncConversion single) {
+        return (cadFileUri, tmpDirUri) -> {
+            synchronized (this) {
+                if (!flushed) {
+                    Job job = new Job(cadFileUri, tmpDirUri);
+                    pending.add(job);
+                    return job.result;
+                }
+            }
+            return single.convertAsync(cadFileUri, tmpDirUri);
+        };
+    }
+
+    /**
+     * Start the batch conversion of the deferred files.
+     */
+    public void flush(int batchSize, BatchConversion conversion) {
+        List<Job> jobs;
+        synchronized (this) {
+            flushed = true;
+            jobs = new ArrayList<>(pending);
+            pending.clear();
+        }
+        int size = Math.max(batchSize, 1);
+        for (int from = 0; from < jobs.size(); from += size) {
+            start(Collections.unmodifiableList(jobs.subList(from, Math.min(from + size, jobs.size()))), conversion);
+        }
+    }
+
+    private static void start(List<Job> group, BatchConversion conversion) {
+        CompletableFuture<?> groupFuture;
+        try {
+            groupFuture = conversion.convertAll(group);
+        } catch (RuntimeException e) {
+            groupFuture = ConversionFutures.failed(e);
+        }
+
+        CompletableFuture<?> running = groupFuture;
+        AtomicInteger remaining = new AtomicInteger(group.size());
+        for (Job job : group) {
+            job.result.whenComplete((value, error) -> {
+                if (remaining.decrementAndGet() == 0 && group.stream().allMatch(j -> j.result.isCancelled())) {
+                    running.cancel(true);
+                }
+            });
+        }
+
+        // Jobs the batch conversion did not complete, if it failed or was cancelled as a whole
+        running.whenComplete((value, error) -> {
+            for (Job job : group) {
+                if (error != null) {
+                    job.result.completeExceptionally(ConversionFutures.isCancellation(error)
+                            ? error : ConversionFutures.unwrap(error));
+                } else if (!job.isDone()) {
+                    job.result.completeExceptionally(new ConversionException("Batch conversion skipped "
+                            + job.cadFileUri));
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,521 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.pipeline.ProcessedConversionResult;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed cache of conversion results, stored on local disk.
+ * <p>
+ * Entries are keyed by the hash of the native CAD file content, the converter and the version of the tool it
+ * runs, so unchanged files re-uploaded as new iterations are not converted again. The least recently used
+ * entries are evicted once the cache exceeds its size, and concurrent requests for the same key share a
+ * single conversion.
+ * <p>
+ * Processes sharing the cache directory store their entries under a lock on its {@code .lock} file, and each
+ * store accounts for the entries found on disk, so the directory stays within its size whatever the number
+ * of processes. Staging directories left by stopped processes are deleted once older than an hour.
+ */
+public class ConversionCache {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ConversionCache.class.getName());
+    private static final Map<String, ConversionCache> CACHES = new HashMap<>();
+
+    private static final String ENTRY_PROPERTIES = "entry.properties";
+    private static final String STAGING = ".staging-";
+    private static final String LOCK = ".lock";
+    private static final long STAGING_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+    private static final String SEPARATOR = "/";
+    private static final String ARTIFACT = "artifact.";
+    private static final String METRIC = "metric.";
+
+    static {
+        try (InputStream inputStream = ConversionCache.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * Converts a native CAD file, as {@link org.polarsys.eplmp.server.converters.CADConverter#convert} does.
+     */
+    @FunctionalInterface
+    public interface Conversion {
+        ConversionResult convert(URI cadFileUri, URI tmpDirUri) throws ConversionException;
+    }
+
+    /**
+     * Converts a native CAD file, as {@link AsyncCADConverter#convertAsync} does.
+     */
+    @FunctionalInterface
+    public interface AsyncConversion {
+        CompletableFuture<ConversionResult> convertAsync(URI cadFileUri, URI tmpDirUri);
+    }
+
+    private final Path directory;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long size;
+
+    /**
+     * @param directory where entries are stored
+     * @param maxSize   maximum size of the entries in bytes, zero or negative to disable caching
+     */
+    public ConversionCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (maxSize > 0) {
+            load();
+        }
+    }
+
+    /**
+     * @return the cache configured in {@code conf.properties} for the given converter
+     */
+    public static ConversionCache forConverter(Class<?> converter) {
+        synchronized (CACHES) {
+            ConversionCache cache = CACHES.get(converter.getName());
+            if (cache == null) {
+                String directory = CONF.getProperty("cache_directory", "").trim();
+                Path root = directory.isEmpty()
+                        ? Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-cache")
+                        : Paths.get(directory);
+                long maxSize = Long.parseLong(CONF.getProperty("cache_max_size", "0").trim()) * 1024 * 1024;
+                cache = new ConversionCache(root.resolve(converter.getSimpleName()), maxSize);
+                CACHES.put(converter.getName(), cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Identify the version of a tool from its installed file, so upgrading it invalidates the cached entries.
+     */
+    public static String fingerprint(Path tool) {
+        try {
+            return Files.size(tool) + "-" + Files.getLastModifiedTime(tool).toMillis();
+        } catch (IOException e) {
+            return "unavailable";
+        }
+    }
+
+    /**
+     * Return the cached result of the conversion if any, run it and cache its result otherwise.
+     *
+     * @param toolVersion version of the tool used by the conversion
+     */
+    public ConversionResult convert(URI cadFileUri, URI tmpDirUri, String toolVersion, Conversion conversion)
+            throws ConversionException {
+        return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri, toolVersion,
+                (cadFile, tmpDir) -> ConversionFutures.supply(() -> conversion.convert(cadFile, tmpDir))));
+    }
+
+    /**
+     * Asynchronous variant of {@link #convert}, the content hash is computed on the calling thread.
+     */
+    public CompletableFuture<ConversionResult> convertAsync(URI cadFileUri, URI tmpDirUri, String toolVersion,
+                                                           AsyncConversion conversion) {
+        if (maxSize <= 0) {
+            return conversion.convertAsync(cadFileUri, tmpDirUri);
+        }
+
+        Path tmpDir = Paths.get(tmpDirUri);
+        String key;
+        try {
+            key = key(Paths.get(cadFileUri), toolVersion);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot hash " + cadFileUri + ", bypassing cache", e);
+            return conversion.convertAsync(cadFileUri, tmpDirUri);
+        }
+
+        ConversionResult cached = restore(key, tmpDir);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Boolean> flight = new CompletableFuture<>();
+        CompletableFuture<Boolean> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return follow(leader, key, cadFileUri, tmpDirUri, conversion);
+        }
+
+        // The entry may have been stored since the first lookup
+        cached = restore(key, tmpDir);
+        if (cached != null) {
+            inFlight.remove(key, flight);
+            flight.complete(true);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        misses.incrementAndGet();
+        CompletableFuture<ConversionResult> result = conversion.convertAsync(cadFileUri, tmpDirUri);
+        result.whenComplete((conversionResult, error) -> {
+            if (error != null) {
+                flight.completeExceptionally(error);
+            } else {
+                flight.complete(store(key, conversionResult));
+            }
+            inFlight.remove(key, flight);
+        });
+        return result;
+    }
+
+    private CompletableFuture<ConversionResult> follow(CompletableFuture<Boolean> leader, String key, URI cadFileUri,
+                                                       URI tmpDirUri, AsyncConversion conversion) {
+        return leader.handle((stored, error) -> {
+            if (error != null && !ConversionFutures.isCancellation(error)) {
+                return ConversionFutures.<ConversionResult>failed(ConversionFutures.unwrap(error));
+            }
+            if (error == null && stored) {
+                ConversionResult cached = restore(key, Paths.get(tmpDirUri));
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+            // Leader conversion was cancelled or its result could not be cached
+            misses.incrementAndGet();
+            return conversion.convertAsync(cadFileUri, tmpDirUri);
+        }).thenCompose(Function.identity());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the size of the cached entries in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private String key(Path cadFile, String toolVersion) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(cadFile, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        digest.update(("\n" + directory.getFileName() + "\n" + toolVersion).getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private ConversionResult restore(String key, Path tmpDir) {
+        synchronized (this) {
+            // Lookup moves the entry to the most recently used end, entries of other processes are on disk only
+            if (entries.get(key) == null && !Files.isDirectory(directory.resolve(key))) {
+                return null;
+            }
+        }
+        Path entry = directory.resolve(key);
+        try {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(entry.resolve(ENTRY_PROPERTIES))) {
+                properties.load(inputStream);
+            }
+            Path convertedFile = copy(entry, tmpDir, properties.getProperty("obj"));
+            List<Path> materials = new ArrayList<>();
+            String materialNames = properties.getProperty("materials", "");
+            if (!materialNames.isEmpty()) {
+                for (String material : materialNames.split(SEPARATOR)) {
+                    materials.add(copy(entry, tmpDir, material));
+                }
+            }
+            ProcessedConversionResult processed = null;
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(ARTIFACT) || name.startsWith(METRIC)) {
+                    if (processed == null) {
+                        processed = new ProcessedConversionResult(convertedFile, materials);
+                    }
+                    if (name.startsWith(ARTIFACT)) {
+                        processed.putArtifact(name.substring(ARTIFACT.length()),
+                                copy(entry, tmpDir, properties.getProperty(name)));
+                    } else {
+                        processed.putMetric(name.substring(METRIC.length()), properties.getProperty(name));
+                    }
+                }
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return processed != null ? processed : new ConversionResult(convertedFile, materials);
+        } catch (IOException e) {
+            // Evicted meanwhile
+            LOGGER.log(Level.FINE, "Cannot restore cache entry " + key, e);
+            return null;
+        }
+    }
+
+    private static Path copy(Path from, Path to, String name) throws IOException {
+        Path target = to.resolve(name);
+        Files.copy(from.resolve(name), target, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private boolean store(String key, ConversionResult result) {
+        Path convertedFile = result.getConvertedFile();
+        if (convertedFile == null || !Files.isRegularFile(convertedFile)) {
+            return false;
+        }
+        Path staging = directory.resolve(STAGING + UUID.randomUUID());
+        try {
+            Files.createDirectories(staging);
+            long entrySize = Files.size(Files.copy(convertedFile, staging.resolve(convertedFile.getFileName())));
+            StringBuilder materials = new StringBuilder();
+            for (Path material : result.getMaterials()) {
+                if (Files.isRegularFile(material)) {
+                    entrySize += Files.size(Files.copy(material, staging.resolve(material.getFileName())));
+                    materials.append(materials.length() == 0 ? "" : SEPARATOR).append(material.getFileName());
+                }
+            }
+            Properties properties = new Properties();
+            if (result instanceof ProcessedConversionResult) {
+                ProcessedConversionResult processed = (ProcessedConversionResult) result;
+                for (Map.Entry<String, Path> artifact : processed.getArtifacts().entrySet()) {
+                    Path file = artifact.getValue();
+                    if (Files.isRegularFile(file)) {
+                        entrySize += Files.size(Files.copy(file, staging.resolve(file.getFileName()),
+                                StandardCopyOption.REPLACE_EXISTING));
+                        properties.setProperty(ARTIFACT + artifact.getKey(), file.getFileName().toString());
+                    }
+                }
+                for (Map.Entry<String, String> metric : processed.getMetrics().entrySet()) {
+                    properties.setProperty(METRIC + metric.getKey(), metric.getValue());
+                }
+            }
+            if (entrySize > maxSize) {
+                delete(staging);
+                return false;
+            }
+            properties.setProperty("obj", convertedFile.getFileName().toString());
+            properties.setProperty("materials", materials.toString());
+            try (OutputStream outputStream = Files.newOutputStream(staging.resolve(ENTRY_PROPERTIES))) {
+                properties.store(outputStream, null);
+            }
+            synchronized (this) {
+                try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE); FileLock lock = lock(lockChannel)) {
+                    Path entry = directory.resolve(key);
+                    if (Files.exists(entry)) {
+                        delete(staging);
+                    } else {
+                        Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+                        entries.put(key, entrySize);
+                    }
+                    scan();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot cache conversion result " + convertedFile, e);
+            delete(staging);
+            return false;
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            delete(directory.resolve(eldest.getKey()));
+        }
+    }
+
+    private synchronized void load() {
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE); FileLock lock = lock(lockChannel)) {
+                scan();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read conversion cache " + directory, e);
+        }
+    }
+
+    /**
+     * Account for the entries on disk, stored by any process, and evict the least recently used ones.
+     * Must be called under the lock of the cache directory.
+     */
+    private synchronized void scan() throws IOException {
+        List<Path> found = new ArrayList<>();
+        Map<Path, Long> lastModified = new HashMap<>();
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (path.getFileName().toString().startsWith(STAGING)) {
+                    // Recent ones may still be filled by another process
+                    if (now - lastModified(path) > STAGING_GRACE_PERIOD) {
+                        delete(path);
+                    }
+                } else if (Files.isDirectory(path)) {
+                    found.add(path);
+                    lastModified.put(path, lastModified(path));
+                }
+            }
+        }
+        // Entries known to this process keep their order of use on equal modification times
+        Map<String, Integer> order = new HashMap<>();
+        for (String key : entries.keySet()) {
+            order.put(key, order.size());
+        }
+        found.sort(Comparator.<Path>comparingLong(lastModified::get)
+                .thenComparingInt(path -> order.getOrDefault(path.getFileName().toString(), -1)));
+        Map<String, Long> sizes = new HashMap<>(entries);
+        entries.clear();
+        size = 0;
+        for (Path path : found) {
+            String key = path.getFileName().toString();
+            Long entrySize = sizes.get(key);
+            if (entrySize == null) {
+                entrySize = sizeOf(path);
+            }
+            entries.put(key, entrySize);
+            size += entrySize;
+        }
+        evict();
+    }
+
+    private static FileLock lock(FileChannel channel) throws IOException {
+        while (true) {
+            try {
+                return channel.lock();
+            } catch (OverlappingFileLockException e) {
+                // Held by another cache of this process on the same directory
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long sizeOf(Path entry) {
+        long entrySize = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry)) {
+            for (Path file : stream) {
+                if (!ENTRY_PROPERTIES.equals(file.getFileName().toString())) {
+                    entrySize += Files.size(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        return entrySize;
+    }
+
+    private static void delete(Path path) {
+        try {
+            if (!Files.exists(path)) {
+                return;
+            }
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + path, e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
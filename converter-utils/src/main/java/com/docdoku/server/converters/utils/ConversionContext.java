@@ -0,0 +1,198 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Who a conversion is run for, used by the {@link ConversionScheduler}.
+ * <p>
+ * The {@code CADConverter} contract carries no such information, so {@link #of(URI, URI)} resolves it from what
+ * the converter is given, in this order:
+ * <ol>
+ * <li>the context set on the current thread, by the conversion workers or by callers sharing the class loader
+ * of this module;</li>
+ * <li>the {@value #PROPERTIES} file the caller may write in the temporary directory of the conversion, with
+ * the {@code workspace}, {@code priority}, {@code subject} and {@code iteration} keys;</li>
+ * <li>the vault layout of the CAD file path, {@code <workspace>/parts/<number>/<version>/<iteration>/...},
+ * when the file is converted where it is stored, the subject being the part version.</li>
+ * </ol>
+ * The platform currently copies the file alone into a fresh temporary directory and bundles its own copy of
+ * this module, so until it writes the {@value #PROPERTIES} file every conversion it requests runs as an
+ * interactive conversion of the {@value #DEFAULT_WORKSPACE} workspace without subject: priorities, workspace
+ * shares and the {@link ConversionSupersession} are then inert.
+ */
+public final class ConversionContext {
+
+    public static final String DEFAULT_WORKSPACE = "";
+    public static final String PROPERTIES = "conversion.properties";
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionContext.class.getName());
+
+    private static final ConversionContext DEFAULT =
+            new ConversionContext(DEFAULT_WORKSPACE, ConversionPriority.INTERACTIVE);
+    private static final ThreadLocal<ConversionContext> CURRENT = new ThreadLocal<>();
+
+    private final String workspaceId;
+    private final ConversionPriority priority;
+    private final String subject;
+    private final int iteration;
+
+    public ConversionContext(String workspaceId, ConversionPriority priority) {
+        this(workspaceId, priority, null, 0);
+    }
+
+    /**
+     * @param subject   what the converted file belongs to within the workspace, null if conversions of the
+     *                  file are never superseded
+     * @param iteration iteration of the subject the file belongs to
+     */
+    public ConversionContext(String workspaceId, ConversionPriority priority, String subject, int iteration) {
+        this.workspaceId = workspaceId == null ? DEFAULT_WORKSPACE : workspaceId;
+        this.priority = priority == null ? ConversionPriority.INTERACTIVE : priority;
+        this.subject = subject;
+        this.iteration = iteration;
+    }
+
+    /**
+     * @return the context set on the current thread, an interactive conversion otherwise
+     */
+    public static ConversionContext current() {
+        ConversionContext context = CURRENT.get();
+        return context == null ? DEFAULT : context;
+    }
+
+    /**
+     * @return the context of the conversion of the given file, see the resolution order above
+     */
+    public static ConversionContext of(URI cadFileUri, URI tmpDirUri) {
+        ConversionContext context = CURRENT.get();
+        if (context != null) {
+            return context;
+        }
+        context = fromProperties(Paths.get(tmpDirUri).resolve(PROPERTIES));
+        if (context != null) {
+            return context;
+        }
+        context = fromVaultPath(Paths.get(cadFileUri));
+        return context == null ? DEFAULT : context;
+    }
+
+    private static ConversionContext fromProperties(Path file) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the conversion context " + file, e);
+            return null;
+        }
+        String priority = properties.getProperty("priority", "").trim();
+        ConversionPriority parsed = ConversionPriority.INTERACTIVE;
+        if (!priority.isEmpty()) {
+            try {
+                parsed = ConversionPriority.valueOf(priority.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warning("Invalid conversion priority " + priority + " in " + file + ", using " + parsed);
+            }
+        }
+        String subject = properties.getProperty("subject", "").trim();
+        String iteration = properties.getProperty("iteration", "").trim();
+        int parsedIteration = 0;
+        if (!subject.isEmpty()) {
+            try {
+                parsedIteration = Integer.parseInt(iteration);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid iteration " + iteration + " of " + subject + " in " + file
+                        + ", its conversions are never superseded");
+                subject = "";
+            }
+        }
+        return new ConversionContext(properties.getProperty("workspace", DEFAULT_WORKSPACE).trim(), parsed,
+                subject.isEmpty() ? null : subject, parsedIteration);
+    }
+
+    /**
+     * @return the context of a file stored at {@code <workspace>/parts/<number>/<version>/<iteration>/nativecad/}
+     */
+    private static ConversionContext fromVaultPath(Path cadFile) {
+        int parts = -1;
+        for (int i = 1; i < cadFile.getNameCount() - 5; i++) {
+            if ("parts".equals(cadFile.getName(i).toString())
+                    && "nativecad".equals(cadFile.getName(i + 4).toString())) {
+                parts = i;
+            }
+        }
+        if (parts < 0) {
+            return null;
+        }
+        String workspaceId = cadFile.getName(parts - 1).toString();
+        try {
+            return new ConversionContext(workspaceId, ConversionPriority.INTERACTIVE,
+                    cadFile.subpath(parts + 1, parts + 3).toString().replace('\\', '/'),
+                    Integer.parseInt(cadFile.getName(parts + 3).toString()));
+        } catch (NumberFormatException e) {
+            return new ConversionContext(workspaceId, ConversionPriority.INTERACTIVE);
+        }
+    }
+
+    public static void set(ConversionContext context) {
+        CURRENT.set(context);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    public String getWorkspaceId() {
+        return workspaceId;
+    }
+
+    public ConversionPriority getPriority() {
+        return priority;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    @Override
+    public String toString() {
+        return subject == null ? workspaceId + "/" + priority
+                : workspaceId + "/" + subject + "-" + iteration + "/" + priority;
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Helpers to chain asynchronous conversions and come back to the blocking {@code CADConverter} contract.
+ */
+public final class ConversionFutures {
+
+    private ConversionFutures() {
+    }
+
+    /**
+     * Function allowed to fail with a {@link ConversionException}.
+     */
+    @FunctionalInterface
+    public interface ConversionStep<T, R> {
+        R apply(T value) throws ConversionException;
+    }
+
+    /**
+     * Supplier allowed to fail with a {@link ConversionException}.
+     */
+    @FunctionalInterface
+    public interface ConversionSupplier<R> {
+        R get() throws ConversionException;
+    }
+
+    public static <T> CompletableFuture<T> failed(Throwable throwable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * Run a blocking step on the calling thread and wrap its outcome in a completed future.
+     */
+    public static <T> CompletableFuture<T> supply(ConversionSupplier<T> supplier) {
+        try {
+            return CompletableFuture.completedFuture(supplier.get());
+        } catch (ConversionException | RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Run a blocking step on the executor, interrupting it if the returned future is cancelled.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(ConversionSupplier<T> supplier, ExecutorService executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                future.complete(supplier.get());
+            } catch (ConversionException | RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return propagateCancellation(future, task);
+    }
+
+    /**
+     * Apply a step once the source completes, cancelling the source if the returned future is cancelled.
+     */
+    public static <T, R> CompletableFuture<R> then(CompletableFuture<T> source, ConversionStep<T, R> step) {
+        CompletableFuture<R> result = source.thenApply(value -> {
+            try {
+                return step.apply(value);
+            } catch (ConversionException e) {
+                throw new CompletionException(e);
+            }
+        });
+        return propagateCancellation(result, source);
+    }
+
+    /**
+     * Start an asynchronous step once the source completes, cancelling the source or the step if the returned
+     * future is cancelled.
+     */
+    public static <T, R> CompletableFuture<R> thenCompose(CompletableFuture<T> source,
+                                                          ConversionStep<T, CompletableFuture<R>> step) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        source.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<R> next;
+            try {
+                next = step.apply(value);
+            } catch (ConversionException | RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            forward(next, result);
+        });
+        return propagateCancellation(result, source);
+    }
+
+    /**
+     * Start a fallback conversion if the source fails, unless it was cancelled.
+     */
+    public static <T> CompletableFuture<T> recover(CompletableFuture<T> source,
+                                                   Function<Throwable, CompletableFuture<T>> fallback) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        source.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else if (result.isDone() || isCancellation(error)) {
+                result.completeExceptionally(error);
+            } else {
+                CompletableFuture<T> next;
+                try {
+                    next = fallback.apply(cause(error));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                forward(next, result);
+            }
+        });
+        return propagateCancellation(result, source);
+    }
+
+    /**
+     * Cancel the source when the dependent future is cancelled, CompletableFuture does not do it by itself.
+     */
+    public static <T> CompletableFuture<T> propagateCancellation(CompletableFuture<T> dependent, Future<?> source) {
+        dependent.whenComplete((value, error) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * Wait for an asynchronous conversion, cancelling it if the calling thread is interrupted.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws ConversionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Conversion interrupted", e);
+        } catch (CancellationException e) {
+            throw new ConversionException("Conversion cancelled", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * @return the conversion failure wrapped by the futures
+     */
+    public static ConversionException unwrap(Throwable throwable) {
+        Throwable cause = cause(throwable);
+        if (cause instanceof ConversionException) {
+            return (ConversionException) cause;
+        }
+        return new ConversionException(cause);
+    }
+
+    public static boolean isCancellation(Throwable throwable) {
+        return cause(throwable) instanceof CancellationException;
+    }
+
+    private static <T> void forward(CompletableFuture<T> next, CompletableFuture<T> result) {
+        propagateCancellation(result, next);
+        next.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+    private static Throwable cause(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+}
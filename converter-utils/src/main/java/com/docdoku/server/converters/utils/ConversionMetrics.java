@@ -0,0 +1,175 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cost of the conversions run by a converter: counts, exit codes and histograms of the wall time, CPU time,
+ * peak memory and file sizes, published on the platform MBean server to size converter hosts and spot
+ * regressions when a conversion tool is upgraded.
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionMetrics.class.getName());
+    private static final Map<String, ConversionMetrics> METRICS = new HashMap<>();
+    private static final String DOMAIN = "com.docdoku.server.converters";
+
+    private final AtomicLong conversions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile int lastExitCode;
+    private final Histogram wallTime = new Histogram();
+    private final Histogram cpuTime = new Histogram();
+    private final Histogram peakMemory = new Histogram();
+    private final Histogram inputSize = new Histogram();
+    private final Histogram outputSize = new Histogram();
+
+    /**
+     * @return the metrics of the given converter, registered as an MBean on first use
+     */
+    public static ConversionMetrics forConverter(Class<?> converter) {
+        synchronized (METRICS) {
+            ConversionMetrics metrics = METRICS.get(converter.getName());
+            if (metrics == null) {
+                metrics = new ConversionMetrics();
+                register(metrics, converter.getSimpleName());
+                METRICS.put(converter.getName(), metrics);
+            }
+            return metrics;
+        }
+    }
+
+    private static void register(ConversionMetrics metrics, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=ConversionMetrics,name=" + ObjectName.quote(name));
+            // Replace the MBean left by a previous deployment of the converter
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Cannot register conversion metrics of " + name, e);
+        }
+    }
+
+    /**
+     * Record a run of the conversion tool.
+     *
+     * @param input  the native CAD file
+     * @param output the converted file, not measured if the run failed
+     */
+    public void record(Path input, Path output, ProcessResult result) {
+        conversions.incrementAndGet();
+        lastExitCode = result.getExitCode();
+        if (result.isTimedOut()) {
+            timeouts.incrementAndGet();
+        }
+        wallTime.record(result.getDuration());
+        cpuTime.record(result.getCpuTime());
+        peakMemory.record(result.getPeakMemory());
+        inputSize.record(sizeOf(input));
+        if (result.isSuccess()) {
+            outputSize.record(sizeOf(output));
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long getConversions() {
+        return conversions.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public int getLastExitCode() {
+        return lastExitCode;
+    }
+
+    @Override
+    public Histogram.Snapshot getWallTime() {
+        return wallTime.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getCpuTime() {
+        return cpuTime.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getPeakMemory() {
+        return peakMemory.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getInputSize() {
+        return inputSize.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getOutputSize() {
+        return outputSize.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        conversions.set(0);
+        failures.set(0);
+        timeouts.set(0);
+        lastExitCode = 0;
+        wallTime.reset();
+        cpuTime.reset();
+        peakMemory.reset();
+        inputSize.reset();
+        outputSize.reset();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+/**
+ * Management interface of {@link ConversionMetrics}. Durations are in milliseconds, sizes in bytes.
+ */
+public interface ConversionMetricsMXBean {
+
+    long getConversions();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    int getLastExitCode();
+
+    Histogram.Snapshot getWallTime();
+
+    /**
+     * @return the CPU time of the converter process and its children
+     */
+    Histogram.Snapshot getCpuTime();
+
+    /**
+     * @return the peak resident set size of the converter process
+     */
+    Histogram.Snapshot getPeakMemory();
+
+    Histogram.Snapshot getInputSize();
+
+    Histogram.Snapshot getOutputSize();
+
+    void reset();
+
+}
@@ -0,0 +1,183 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the tools converting each file extension, in order of preference.
+ * <p>
+ * A conversion runs the first available tool of its extension and falls back to the next ones if it fails,
+ * skipping the tools disabled by {@link ConversionTool}, so a missing or crashing tool costs neither a slow
+ * failure per file nor the files another tool can convert.
+ */
+public class ConversionRoutes {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionRoutes.class.getName());
+
+    /**
+     * Converts a native CAD file with a tool, as {@link AsyncCADConverter#convertAsync} does.
+     */
+    @FunctionalInterface
+    public interface ToolConversion {
+        CompletableFuture<ConversionResult> convertAsync(ConversionContext context, URI cadFileUri, URI tmpDirUri);
+    }
+
+    private final Map<String, List<Route>> routes = new LinkedHashMap<>();
+
+    /**
+     * Convert the extensions with the tool, after the tools already added for them.
+     */
+    public ConversionRoutes add(ConversionTool tool, ToolConversion conversion,
+                                String... extensions) {
+        for (String extension : extensions) {
+            routes.computeIfAbsent(extension, key -> new ArrayList<>()).add(new Route(tool, conversion));
+        }
+        return this;
+    }
+
+    public boolean canConvert(String extension) {
+        return routes.containsKey(extension);
+    }
+
+    public Set<String> getExtensions() {
+        return Collections.unmodifiableSet(routes.keySet());
+    }
+
+    /**
+     * @return the tools converting the extension, in order of preference
+     */
+    public List<ConversionTool> getTools(String extension) {
+        return routes.getOrDefault(extension, Collections.emptyList()).stream()
+                .map(route -> route.tool)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the versions of the tools converting the extension, to be used as the cache key of their results
+     */
+    public String version(String extension) {
+        return getTools(extension).stream()
+                .map(ConversionTool::getVersion)
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * @return the lower case extension of the file, the key of the routes
+     */
+    public static String extension(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Convert the file with the first available tool of its extension, then with the next ones if it fails.
+     */
+    public CompletableFuture<ConversionResult> convertAsync(String extension, ConversionContext context,
+                                                            URI cadFileUri, URI tmpDirUri) {
+        List<Route> chain = routes.getOrDefault(extension, Collections.emptyList());
+        if (chain.isEmpty()) {
+            return ConversionFutures.failed(new ConversionException("No conversion tool for \"" + extension
+                    + "\" files"));
+        }
+        return convertAsync(chain, 0, context, cadFileUri, tmpDirUri, null);
+    }
+
+    private CompletableFuture<ConversionResult> convertAsync(List<Route> chain, int start, ConversionContext context,
+                                                             URI cadFileUri, URI tmpDirUri,
+                                                             ConversionException previousError) {
+        ConversionException error = previousError;
+        for (int index = start; index < chain.size(); index++) {
+            Route route = chain.get(index);
+            String problem = route.tool.getProblem();
+            if (problem != null) {
+                error = chainError(error, new ConversionException("Cannot convert file \""
+                        + Paths.get(cadFileUri) + "\", " + problem));
+                continue;
+            }
+            int next = index + 1;
+            ConversionException failed = error;
+            CompletableFuture<ConversionResult> conversion;
+            try {
+                conversion = route.conversion.convertAsync(context, cadFileUri, tmpDirUri);
+            } catch (RuntimeException e) {
+                conversion = ConversionFutures.failed(e);
+            }
+            if (next == chain.size()) {
+                return withSuppressed(conversion, failed);
+            }
+            return ConversionFutures.recover(conversion, cause -> {
+                LOGGER.log(Level.WARNING, route.tool.getName() + " failed to convert " + Paths.get(cadFileUri)
+                        .getFileName() + ", falling back to " + chain.get(next).tool.getName(), cause);
+                return convertAsync(chain, next, context, cadFileUri, tmpDirUri,
+                        chainError(failed, ConversionFutures.unwrap(cause)));
+            });
+        }
+        return ConversionFutures.failed(error);
+    }
+
+    /**
+     * @return the last error, with the previous one as suppressed exception
+     */
+    private static ConversionException chainError(ConversionException previous, ConversionException error) {
+        if (previous != null && previous != error) {
+            error.addSuppressed(previous);
+        }
+        return error;
+    }
+
+    private static CompletableFuture<ConversionResult> withSuppressed(CompletableFuture<ConversionResult> conversion,
+                                                                      ConversionException previous) {
+        if (previous == null) {
+            return conversion;
+        }
+        return ConversionFutures.recover(conversion,
+                cause -> ConversionFutures.failed(chainError(previous, ConversionFutures.unwrap(cause))));
+    }
+
+    private static class Route {
+
+        private final ConversionTool tool;
+        private final ToolConversion conversion;
+
+        Route(ConversionTool tool, ToolConversion conversion) {
+            this.tool = tool;
+            this.conversion = conversion;
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues the conversions run by a tool (FreeCAD, assimp, meshconv, IfcConvert...) so it never runs more than
+ * its concurrency cap.
+ * <p>
+ * Interactive conversions are served before bulk ones, unless the oldest bulk conversion has waited more than
+ * {@code scheduler_bulk_max_wait} seconds. Within a priority, workspaces share the tool according to their
+ * {@code scheduler_weight.<workspace>} weight, so one workspace importing thousands of files does not starve
+ * the others.
+ */
+public class ConversionScheduler {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ConversionScheduler.class.getName());
+    private static final Map<String, ConversionScheduler> SCHEDULERS = new HashMap<>();
+
+    static {
+        try (InputStream inputStream = ConversionScheduler.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    private final String tool;
+    private final int maxConcurrency;
+    private final long bulkMaxWait;
+    private final Map<ConversionPriority, PriorityQueue> queues = new EnumMap<>(ConversionPriority.class);
+    private final Map<ConversionPriority, long[]> waitStatistics = new EnumMap<>(ConversionPriority.class);
+    private final ThreadLocal<Boolean> dispatching = ThreadLocal.withInitial(() -> false);
+    private int running;
+
+    /**
+     * @param maxConcurrency maximum number of conversions running at the same time
+     * @param bulkMaxWait    wait time in seconds after which a bulk conversion is served before interactive ones
+     */
+    public ConversionScheduler(String tool, int maxConcurrency, long bulkMaxWait) {
+        this.tool = tool;
+        this.maxConcurrency = Math.max(maxConcurrency, 1);
+        this.bulkMaxWait = TimeUnit.SECONDS.toNanos(bulkMaxWait);
+        for (ConversionPriority priority : ConversionPriority.values()) {
+            queues.put(priority, new PriorityQueue());
+            // Dispatched conversions, total and max wait time
+            waitStatistics.put(priority, new long[3]);
+        }
+    }
+
+    /**
+     * @return the scheduler shared by all the conversions run by the tool
+     */
+    public static ConversionScheduler forTool(String tool, String maxConcurrency) {
+        synchronized (SCHEDULERS) {
+            ConversionScheduler scheduler = SCHEDULERS.get(tool);
+            if (scheduler == null) {
+                int concurrency = Runtime.getRuntime().availableProcessors();
+                try {
+                    if (maxConcurrency != null && !maxConcurrency.trim().isEmpty()) {
+                        concurrency = Integer.parseInt(maxConcurrency.trim());
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Invalid concurrency \"" + maxConcurrency + "\" for " + tool, e);
+                }
+                long bulkMaxWait = Long.parseLong(CONF.getProperty("scheduler_bulk_max_wait", "600").trim());
+                scheduler = new ConversionScheduler(tool, concurrency, bulkMaxWait);
+                SCHEDULERS.put(tool, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Queue a conversion, started once the tool has a free slot and no conversion should be served first.
+     * <p>
+     * Cancelling the returned future removes a queued conversion, or cancels the running one.
+     */
+    public <T> CompletableFuture<T> submit(ConversionContext context, Supplier<CompletableFuture<T>> conversion) {
+        Job<T> job = new Job<>(context, conversion);
+        synchronized (this) {
+            queues.get(context.getPriority()).add(job);
+        }
+        job.result.whenComplete((value, error) -> {
+            if (job.result.isCancelled()) {
+                dequeue(job);
+            }
+        });
+        dispatch();
+        return job.result;
+    }
+
+    private synchronized void dequeue(Job<?> job) {
+        queues.get(job.context.getPriority()).remove(job);
+    }
+
+    private void dispatch() {
+        if (dispatching.get()) {
+            // Conversion completed synchronously, the enclosing loop fills the slot
+            return;
+        }
+        dispatching.set(true);
+        try {
+            Job<?> job;
+            while ((job = next()) != null) {
+                job.start();
+            }
+        } finally {
+            dispatching.remove();
+        }
+    }
+
+    private synchronized Job<?> next() {
+        while (running < maxConcurrency) {
+            PriorityQueue queue = pickQueue();
+            if (queue == null) {
+                return null;
+            }
+            Job<?> job = queue.poll();
+            if (job == null) {
+                continue;
+            }
+            long wait = System.nanoTime() - job.queuedAt;
+            long[] statistics = waitStatistics.get(job.context.getPriority());
+            statistics[0]++;
+            statistics[1] += wait;
+            statistics[2] = Math.max(statistics[2], wait);
+            running++;
+            return job;
+        }
+        return null;
+    }
+
+    private PriorityQueue pickQueue() {
+        PriorityQueue interactive = queues.get(ConversionPriority.INTERACTIVE);
+        PriorityQueue bulk = queues.get(ConversionPriority.BULK);
+        if (!bulk.isEmpty() && (interactive.isEmpty() || System.nanoTime() - bulk.oldest() > bulkMaxWait)) {
+            return bulk;
+        }
+        return interactive.isEmpty() ? null : interactive;
+    }
+
+    private synchronized void finished() {
+        running--;
+    }
+
+    public String getTool() {
+        return tool;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueueDepth(ConversionPriority priority) {
+        return queues.get(priority).size();
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (PriorityQueue queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public synchronized long getDispatched(ConversionPriority priority) {
+        return waitStatistics.get(priority)[0];
+    }
+
+    /**
+     * @return the average time spent in queue by dispatched conversions, in milliseconds
+     */
+    public synchronized long getAverageWaitTime(ConversionPriority priority) {
+        long[] statistics = waitStatistics.get(priority);
+        return statistics[0] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(statistics[1] / statistics[0]);
+    }
+
+    /**
+     * @return the longest time spent in queue by a dispatched conversion, in milliseconds
+     */
+    public synchronized long getMaxWaitTime(ConversionPriority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(waitStatistics.get(priority)[2]);
+    }
+
+    private static double weight(String workspaceId) {
+        try {
+            return Math.max(Double.parseDouble(CONF.getProperty("scheduler_weight." + workspaceId, "1")), 0.01);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Weighted fair queue of the conversions of a priority, one FIFO per workspace.
+     * <p>
+     * Each workspace advances a virtual clock by {@code 1 / weight} per dispatched conversion, the workspace
+     * with the earliest clock is served first. Workspaces joining the queue start at the current clock so
+     * they cannot claim the time they were idle.
+     */
+    private static class PriorityQueue {
+
+        private final Map<String, Deque<Job<?>>> workspaces = new LinkedHashMap<>();
+        private final Map<String, Double> clocks = new HashMap<>();
+        private double clock;
+        private int size;
+
+        void add(Job<?> job) {
+            String workspaceId = job.context.getWorkspaceId();
+            Deque<Job<?>> jobs = workspaces.get(workspaceId);
+            if (jobs == null) {
+                jobs = new ArrayDeque<>();
+                workspaces.put(workspaceId, jobs);
+                Double workspaceClock = clocks.get(workspaceId);
+                clocks.put(workspaceId, workspaceClock == null ? clock : Math.max(workspaceClock, clock));
+            }
+            jobs.add(job);
+            size++;
+        }
+
+        /**
+         * @return the next conversion to run, null if the queue only held conversions cancelled concurrently
+         */
+        Job<?> poll() {
+            String next = null;
+            double earliest = Double.MAX_VALUE;
+            for (String workspaceId : workspaces.keySet()) {
+                double workspaceClock = clocks.get(workspaceId);
+                if (workspaceClock < earliest) {
+                    earliest = workspaceClock;
+                    next = workspaceId;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            Deque<Job<?>> jobs = workspaces.get(next);
+            Job<?> job;
+            do {
+                // Cancelled conversions not removed yet are skipped without charging the workspace
+                job = jobs.poll();
+                size--;
+            } while (job.result.isDone() && !jobs.isEmpty());
+            if (jobs.isEmpty()) {
+                workspaces.remove(next);
+            }
+            if (job.result.isDone()) {
+                return null;
+            }
+            clock = earliest;
+            clocks.put(next, earliest + 1 / weight(next));
+            if (clocks.size() > 1024) {
+                // Forget the idle workspaces
+                clocks.keySet().retainAll(workspaces.keySet());
+            }
+            return job;
+        }
+
+        void remove(Job<?> job) {
+            Deque<Job<?>> jobs = workspaces.get(job.context.getWorkspaceId());
+            if (jobs != null && jobs.remove(job)) {
+                size--;
+                if (jobs.isEmpty()) {
+                    workspaces.remove(job.context.getWorkspaceId());
+                }
+            }
+        }
+
+        long oldest() {
+            long oldest = Long.MAX_VALUE;
+            for (Deque<Job<?>> jobs : workspaces.values()) {
+                oldest = Math.min(oldest, jobs.peek().queuedAt);
+            }
+            return oldest;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private final class Job<T> {
+
+        private final ConversionContext context;
+        private final Supplier<CompletableFuture<T>> conversion;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        Job(ConversionContext context, Supplier<CompletableFuture<T>> conversion) {
+            this.context = context;
+            this.conversion = conversion;
+        }
+
+        void start() {
+            CompletableFuture<T> running;
+            try {
+                running = conversion.get();
+            } catch (RuntimeException e) {
+                running = ConversionFutures.failed(e);
+            }
+            CompletableFuture<T> started = running;
+            started.whenComplete((value, error) -> {
+                finished();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+                dispatch();
+            });
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) {
+                    started.cancel(true);
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Drops the conversions of outdated iterations.
+ * <p>
+ * Conversions are tracked by the subject and iteration of their {@link ConversionContext}, as resolved from the
+ * files given to the converter by {@link ConversionContext#of}: conversions without subject are not tracked.
+ * Converting a newer iteration of a subject cancels the conversions of the older ones, queued or running, which
+ * kills their external tools and deletes their partial outputs. Conversions of an iteration older than one
+ * being converted are cancelled at once. Subjects are forgotten once none of their conversions is running, so an
+ * old iteration submitted after the newer one was converted is converted as usual.
+ */
+public final class ConversionSupersession {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionSupersession.class.getName());
+    private static final Map<String, Subject> SUBJECTS = new HashMap<>();
+
+    private ConversionSupersession() {
+    }
+
+    /**
+     * Track the conversion of a file, cancelling it once a newer iteration of its subject is converted.
+     *
+     * @return the given conversion
+     */
+    public static <T> CompletableFuture<T> track(ConversionContext context, CompletableFuture<T> conversion) {
+        if (context.getSubject() == null || conversion.isDone()) {
+            return conversion;
+        }
+        String key = context.getWorkspaceId() + "/" + context.getSubject();
+        int iteration = context.getIteration();
+        List<CompletableFuture<?>> superseded;
+        synchronized (SUBJECTS) {
+            Subject subject = SUBJECTS.get(key);
+            if (subject == null) {
+                subject = new Subject(iteration);
+                SUBJECTS.put(key, subject);
+            }
+            if (iteration < subject.iteration) {
+                superseded = Collections.singletonList(conversion);
+            } else {
+                if (iteration > subject.iteration) {
+                    superseded = new ArrayList<>(subject.conversions);
+                    subject.conversions.clear();
+                    subject.iteration = iteration;
+                } else {
+                    superseded = Collections.emptyList();
+                }
+                subject.conversions.add(conversion);
+            }
+        }
+
+        if (!superseded.isEmpty()) {
+            LOGGER.info("Iteration " + iteration + " of " + key + " supersedes " + superseded.size()
+                    + " conversion(s), cancelling them");
+            superseded.forEach(future -> future.cancel(true));
+        }
+        conversion.whenComplete((result, error) -> untrack(key, conversion));
+        return conversion;
+    }
+
+    /**
+     * @return the number of tracked conversions of the subject
+     */
+    static int tracked(ConversionContext context) {
+        synchronized (SUBJECTS) {
+            Subject subject = SUBJECTS.get(context.getWorkspaceId() + "/" + context.getSubject());
+            return subject == null ? 0 : subject.conversions.size();
+        }
+    }
+
+    private static void untrack(String key, CompletableFuture<?> conversion) {
+        synchronized (SUBJECTS) {
+            Subject subject = SUBJECTS.get(key);
+            if (subject != null && subject.conversions.remove(conversion) && subject.conversions.isEmpty()) {
+                SUBJECTS.remove(key);
+            }
+        }
+    }
+
+    private static final class Subject {
+
+        private final Set<CompletableFuture<?>> conversions = new HashSet<>();
+        private int iteration;
+
+        Subject(int iteration) {
+            this.iteration = iteration;
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * External conversion tool (assimp, meshconv, IfcConvert...), probed for its availability and version instead
+ * of checking its executable on every conversion, and disabled while it keeps failing.
+ * <p>
+ * The installation is probed again every {@code tool_probe_interval} seconds, so installing or upgrading the
+ * tool is noticed without redeploying the converter. After {@code tool_failure_threshold} consecutive crashes,
+ * timeouts or failures to start, the tool is disabled for {@code tool_disable_period} seconds, conversions
+ * failing at once or falling back to another tool meanwhile. The next conversion is then a trial: it enables
+ * the tool again if it succeeds, disables it for another period if it fails.
+ */
+public class ConversionTool {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ConversionTool.class.getName());
+    private static final Map<String, ConversionTool> TOOLS = new HashMap<>();
+
+    // Exit codes of processes killed by a signal, as reported by the shells
+    private static final int SIGNAL_EXIT_CODE = 128;
+
+    static {
+        try (InputStream inputStream = ConversionTool.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    private final String name;
+    // Null for the tools running in this JVM
+    private final Path executable;
+    private final String inProcessVersion;
+    private final int failureThreshold;
+    private final long probeInterval;
+    private final long disablePeriod;
+    private final LongSupplier clock;
+    private String version;
+    private String problem;
+    private long nextProbe;
+    private int failures;
+    private long disabledUntil;
+
+    /**
+     * @param failureThreshold consecutive failures after which the tool is disabled
+     * @param probeInterval    nanoseconds between two probes of the installation
+     * @param disablePeriod    nanoseconds during which a failing tool is disabled
+     * @param clock            source of {@link System#nanoTime()}
+     */
+    public ConversionTool(String name, Path executable, int failureThreshold, long probeInterval, long disablePeriod,
+                          LongSupplier clock) {
+        this(name, executable, null, failureThreshold, probeInterval, disablePeriod, clock);
+    }
+
+    private ConversionTool(String name, Path executable, String inProcessVersion, int failureThreshold,
+                           long probeInterval, long disablePeriod, LongSupplier clock) {
+        this.name = name;
+        this.executable = executable;
+        this.inProcessVersion = inProcessVersion;
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.probeInterval = probeInterval;
+        this.disablePeriod = disablePeriod;
+        this.clock = clock;
+        probe(clock.getAsLong());
+    }
+
+    /**
+     * @return the tool shared by the conversions running the executable
+     */
+    public static ConversionTool forTool(String name, String executable) {
+        synchronized (TOOLS) {
+            String key = name + "|" + executable;
+            ConversionTool tool = TOOLS.get(key);
+            if (tool == null) {
+                int failureThreshold = Integer.parseInt(CONF.getProperty("tool_failure_threshold", "3").trim());
+                long probeInterval = Long.parseLong(CONF.getProperty("tool_probe_interval", "60").trim());
+                long disablePeriod = Long.parseLong(CONF.getProperty("tool_disable_period", "300").trim());
+                tool = new ConversionTool(name, Paths.get(executable == null ? "" : executable.trim()),
+                        failureThreshold, TimeUnit.SECONDS.toNanos(probeInterval),
+                        TimeUnit.SECONDS.toNanos(disablePeriod), System::nanoTime);
+                TOOLS.put(key, tool);
+            }
+            return tool;
+        }
+    }
+
+    /**
+     * @param version version of the Java code, to be bumped when it changes its output
+     * @return a tool running in this JVM, such as a Java reader, always available once installed
+     */
+    public static ConversionTool inProcess(String name, String version) {
+        return new ConversionTool(name, null, version, 1, 0, 0, System::nanoTime);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the executable of the tool, null for a tool running in this JVM
+     */
+    public Path getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @return the version of the installed tool, see {@link ConversionCache#fingerprint}
+     */
+    public synchronized String getVersion() {
+        probeIfDue();
+        return version;
+    }
+
+    public boolean isAvailable() {
+        return getProblem() == null;
+    }
+
+    /**
+     * @return why the tool cannot be used, null if it is available
+     */
+    public synchronized String getProblem() {
+        probeIfDue();
+        if (problem != null) {
+            return problem;
+        }
+        if (clock.getAsLong() - disabledUntil < 0) {
+            return "\"" + name + "\" is disabled after " + failures + " consecutive failures";
+        }
+        return null;
+    }
+
+    /**
+     * Fail if the tool cannot be used to convert the file.
+     */
+    public void check(Path cadFile) throws ConversionException {
+        String toolProblem = getProblem();
+        if (toolProblem != null) {
+            throw new ConversionException("Cannot convert file \"" + cadFile + "\", " + toolProblem);
+        }
+    }
+
+    /**
+     * Update the health of the tool with the outcome of a run. Errors reported by the tool are blamed on the
+     * converted file, only crashes and timeouts count as failures of the tool.
+     */
+    public void record(ProcessResult result) {
+        if (result.isTimedOut() || result.getExitCode() >= SIGNAL_EXIT_CODE || result.getExitCode() < 0) {
+            recordFailure();
+        } else {
+            recordSuccess();
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+    }
+
+    /**
+     * Record a failure of the tool, such as a crash or a failure to start it.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        long now = clock.getAsLong();
+        if (failures >= failureThreshold && now - disabledUntil >= 0) {
+            disabledUntil = now + disablePeriod;
+            LOGGER.warning("Disabling " + name + " for " + TimeUnit.NANOSECONDS.toSeconds(disablePeriod)
+                    + "s after " + failures + " consecutive failures");
+        }
+    }
+
+    private void probeIfDue() {
+        long now = clock.getAsLong();
+        if (now - nextProbe >= 0) {
+            probe(now);
+        }
+    }
+
+    private synchronized void probe(long now) {
+        String previousProblem = problem;
+        if (executable == null) {
+            version = inProcessVersion;
+            return;
+        }
+        if (!Files.exists(executable)) {
+            problem = "\"" + executable + "\" is not available";
+        } else if (!Files.isExecutable(executable)) {
+            problem = "\"" + executable + "\" has no execution rights";
+        } else {
+            problem = null;
+        }
+        version = ConversionCache.fingerprint(executable);
+        nextProbe = now + probeInterval;
+        if (problem != null && !problem.equals(previousProblem)) {
+            LOGGER.warning("Conversion tool " + name + " is unavailable: " + problem);
+        }
+    }
+
+}
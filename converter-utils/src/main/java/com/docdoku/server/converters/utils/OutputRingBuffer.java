@@ -0,0 +1,89 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-size byte buffer keeping only the last bytes written to it.
+ * <p>
+ * Used to capture external tools output without holding megabytes of verbose logs on the heap.
+ */
+public class OutputRingBuffer {
+
+    private final byte[] buffer;
+    private int position;
+    private long written;
+
+    public OutputRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        buffer = new byte[capacity];
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        written += length;
+        if (length >= buffer.length) {
+            System.arraycopy(bytes, offset + length - buffer.length, buffer, 0, buffer.length);
+            position = 0;
+            return;
+        }
+        int head = Math.min(length, buffer.length - position);
+        System.arraycopy(bytes, offset, buffer, position, head);
+        System.arraycopy(bytes, offset + head, buffer, 0, length - head);
+        position = (position + length) % buffer.length;
+    }
+
+    /**
+     * @return the total number of bytes written, including the discarded ones
+     */
+    public synchronized long getWrittenBytes() {
+        return written;
+    }
+
+    /**
+     * @return the number of bytes that did not fit in the buffer
+     */
+    public synchronized long getDiscardedBytes() {
+        return Math.max(0, written - buffer.length);
+    }
+
+    public synchronized byte[] toByteArray() {
+        if (written < buffer.length) {
+            byte[] bytes = new byte[position];
+            System.arraycopy(buffer, 0, bytes, 0, position);
+            return bytes;
+        }
+        byte[] bytes = new byte[buffer.length];
+        System.arraycopy(buffer, position, bytes, 0, buffer.length - position);
+        System.arraycopy(buffer, 0, bytes, buffer.length - position, position);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long discarded = getDiscardedBytes();
+        String tail = new String(toByteArray(), StandardCharsets.UTF_8);
+        return discarded > 0 ? "[" + discarded + " bytes truncated]" + tail : tail;
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches all the running converter processes from a single thread.
+ * <p>
+ * The monitor drains the available output of every process without blocking, detects their exit and enforces
+ * their timeout, so hundreds of concurrent conversions do not need a waiting thread each. Futures are
+ * completed on a separate executor to keep post-processing off the monitor thread, and process trees are
+ * killed on another one since killing them forks and waits for {@code kill}. The monitor survives the failures
+ * of its loop, and is restarted if its thread dies while processes are still watched.
+ * <p>
+ * The outputs of a cancelled process are deleted once its tree is killed, so the process cannot write them
+ * again after their deletion. The termination future of a process completes once it has exited or has been
+ * killed, after the deletion of its outputs.
+ */
+final class ProcessMonitor implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessMonitor.class.getName());
+    private static final ProcessMonitor INSTANCE = new ProcessMonitor();
+
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long IDLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_CHUNKS_PER_POLL = 128;
+
+    private final Queue<RunningProcess> pending = new ConcurrentLinkedQueue<>();
+    private final List<RunningProcess> running = new ArrayList<>();
+    private final Executor completions = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("converter-process-completion"));
+    private final Executor kills = Executors.newCachedThreadPool(new DaemonThreadFactory("converter-process-kill"));
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private Thread thread;
+
+    private ProcessMonitor() {
+    }
+
+    static ProcessMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    CompletableFuture<ProcessResult> watch(Process process, String name, long timeout, int bufferSize,
+                                           List<Path> outputs, CompletableFuture<Void> termination) {
+        RunningProcess runningProcess = new RunningProcess(process, name, timeout, bufferSize, outputs,
+                termination);
+        pending.add(runningProcess);
+        wakeUp();
+        return runningProcess.future;
+    }
+
+    private synchronized void wakeUp() {
+        if (thread == null) {
+            thread = new Thread(this, "converter-process-monitor");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean progress;
+                try {
+                    progress = pollAll();
+                } catch (Throwable e) {
+                    LOGGER.log(Level.SEVERE, "Process monitor failure", e);
+                    progress = false;
+                }
+                // Keep draining as long as the processes produce output
+                if (!progress) {
+                    LockSupport.parkNanos(this, running.isEmpty() ? IDLE_INTERVAL : POLL_INTERVAL);
+                }
+            }
+        } finally {
+            stopped();
+        }
+    }
+
+    private boolean pollAll() {
+        RunningProcess added;
+        while ((added = pending.poll()) != null) {
+            running.add(added);
+        }
+
+        boolean progress = false;
+        long now = System.nanoTime();
+        Iterator<RunningProcess> iterator = running.iterator();
+        while (iterator.hasNext()) {
+            RunningProcess runningProcess = iterator.next();
+            try {
+                progress |= runningProcess.poll(now);
+            } catch (Throwable e) {
+                LOGGER.log(Level.SEVERE, "Cannot monitor " + runningProcess.name, e);
+                runningProcess.completing = true;
+                kills.execute(() -> {
+                    ProcessTree.kill(runningProcess.process);
+                    runningProcess.termination.complete(null);
+                });
+                runningProcess.future.completeExceptionally(e);
+            }
+            // Processes cancelled during their poll are killed on the next one
+            if (runningProcess.completing) {
+                iterator.remove();
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Restart the monitor if its thread dies while processes are still watched.
+     */
+    private synchronized void stopped() {
+        thread = null;
+        if (!running.isEmpty() || !pending.isEmpty()) {
+            LOGGER.warning("Process monitor stopped while watching " + (running.size() + pending.size())
+                    + " process(es), restarting it");
+            wakeUp();
+        }
+    }
+
+    private final class RunningProcess {
+
+        private final Process process;
+        private final long pid;
+        private final String name;
+        private final List<Path> outputs;
+        private final CompletableFuture<Void> termination;
+        private final long start = System.nanoTime();
+        private final long deadline;
+        private final InputStream stdOutputStream;
+        private final InputStream errorOutputStream;
+        private final OutputRingBuffer stdOutput;
+        private final OutputRingBuffer errorOutput;
+        private final CompletableFuture<ProcessResult> future = new CompletableFuture<>();
+        private boolean timedOut;
+        private boolean completing;
+        private long lastSample;
+        private long cpuTime = -1;
+        private long peakMemory = -1;
+
+        RunningProcess(Process process, String name, long timeout, int bufferSize, List<Path> outputs,
+                       CompletableFuture<Void> termination) {
+            this.process = process;
+            this.pid = ProcessTree.pid(process);
+            this.name = name;
+            this.outputs = outputs;
+            this.termination = termination;
+            this.deadline = timeout > 0 ? start + TimeUnit.SECONDS.toNanos(timeout) : Long.MAX_VALUE;
+            this.stdOutputStream = process.getInputStream();
+            this.errorOutputStream = process.getErrorStream();
+            this.stdOutput = new OutputRingBuffer(bufferSize);
+            this.errorOutput = new OutputRingBuffer(bufferSize);
+        }
+
+        /**
+         * @return true if some output was read
+         */
+        boolean poll(long now) {
+            if (future.isCancelled()) {
+                LOGGER.fine("Conversion cancelled, killing " + name);
+                completing = true;
+                kills.execute(() -> {
+                    ProcessTree.kill(process);
+                    outputs.forEach(ProcessMonitor::deleteQuietly);
+                    termination.complete(null);
+                });
+                return false;
+            }
+
+            boolean progress = drain(stdOutputStream, stdOutput) | drain(errorOutputStream, errorOutput);
+
+            if (now - lastSample >= SAMPLE_INTERVAL) {
+                // Exited processes are reaped at once, so their usage is known up to the last sample
+                sample();
+                lastSample = now;
+            }
+
+            if (!process.isAlive()) {
+                // Remaining output is buffered by the JDK once the process exited
+                while (drain(stdOutputStream, stdOutput) | drain(errorOutputStream, errorOutput)) {
+                    progress = true;
+                }
+                complete();
+            } else if (!timedOut && now - deadline > 0) {
+                LOGGER.log(Level.WARNING, "Process " + name + " timed out after "
+                        + TimeUnit.NANOSECONDS.toSeconds(now - start) + "s, killing it");
+                timedOut = true;
+                kills.execute(() -> ProcessTree.kill(process));
+            }
+            return progress;
+        }
+
+        private void sample() {
+            cpuTime = Math.max(cpuTime, ProcessTree.cpuTime(pid));
+            peakMemory = Math.max(peakMemory, ProcessTree.peakResidentMemory(pid));
+        }
+
+        private boolean drain(InputStream inputStream, OutputRingBuffer output) {
+            boolean read = false;
+            try {
+                for (int i = 0; i < MAX_CHUNKS_PER_POLL; i++) {
+                    int available = inputStream.available();
+                    if (available <= 0) {
+                        break;
+                    }
+                    int count = inputStream.read(chunk, 0, Math.min(available, chunk.length));
+                    if (count < 0) {
+                        break;
+                    }
+                    output.write(chunk, 0, count);
+                    read = true;
+                }
+            } catch (IOException e) {
+                // Stream closed on process kill
+                LOGGER.log(Level.FINEST, null, e);
+            }
+            return read;
+        }
+
+        private void complete() {
+            completing = true;
+            closeQuietly(stdOutputStream);
+            closeQuietly(errorOutputStream);
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            ProcessResult result = new ProcessResult(timedOut ? -1 : process.exitValue(), timedOut, duration,
+                    stdOutput.toString(), errorOutput.toString(), cpuTime, peakMemory);
+            completions.execute(() -> {
+                termination.complete(null);
+                future.complete(result);
+            });
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + file, e);
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINEST, null, e);
+        }
+    }
+
+}
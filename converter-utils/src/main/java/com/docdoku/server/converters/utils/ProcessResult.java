@@ -0,0 +1,98 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+/**
+ * Outcome of an external process run by {@link ProcessRunner}.
+ */
+public class ProcessResult {
+
+    private final int exitCode;
+    private final boolean timedOut;
+    private final long duration;
+    private final String stdOutput;
+    private final String errorOutput;
+    private final long cpuTime;
+    private final long peakMemory;
+
+    public ProcessResult(int exitCode, boolean timedOut, long duration, String stdOutput, String errorOutput) {
+        this(exitCode, timedOut, duration, stdOutput, errorOutput, -1, -1);
+    }
+
+    public ProcessResult(int exitCode, boolean timedOut, long duration, String stdOutput, String errorOutput,
+                         long cpuTime, long peakMemory) {
+        this.exitCode = exitCode;
+        this.timedOut = timedOut;
+        this.duration = duration;
+        this.stdOutput = stdOutput;
+        this.errorOutput = errorOutput;
+        this.cpuTime = cpuTime;
+        this.peakMemory = peakMemory;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the wall-clock duration of the run, in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the tail of the standard output
+     */
+    public String getStdOutput() {
+        return stdOutput;
+    }
+
+    /**
+     * @return the tail of the error output
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    /**
+     * @return the CPU time used by the process in milliseconds, as last sampled, or -1 if unknown
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return the highest resident set size of the process in bytes, as last sampled, or -1 if unknown
+     */
+    public long getPeakMemory() {
+        return peakMemory;
+    }
+
+    public boolean isSuccess() {
+        return !timedOut && exitCode == 0;
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs external conversion tools.
+ * <p>
+ * Standard and error outputs are drained concurrently into bounded {@link OutputRingBuffer}s so a verbose
+ * tool can never block on a full pipe. The whole process tree is killed if the tool exceeds its
+ * wall-clock timeout, if the calling thread is interrupted or if the conversion is cancelled.
+ * <p>
+ * Processes are watched by a single monitor thread, callers may wait for the result with {@link #run} or
+ * be notified with {@link #start}.
+ */
+public class ProcessRunner {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessRunner.class.getName());
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("converter-output-drainer"));
+
+    private final long timeout;
+    private final int bufferSize;
+
+    /**
+     * @param timeout wall-clock timeout in seconds, zero or negative for none
+     */
+    public ProcessRunner(long timeout) {
+        this(timeout, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ProcessRunner(long timeout, int bufferSize) {
+        this.timeout = timeout;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Build a runner from a timeout property, in seconds.
+     */
+    public static ProcessRunner fromProperty(String timeout) {
+        if (timeout == null || timeout.trim().isEmpty()) {
+            return new ProcessRunner(0);
+        }
+        try {
+            return new ProcessRunner(Long.parseLong(timeout.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid timeout \"" + timeout + "\", conversions will not time out", e);
+            return new ProcessRunner(0);
+        }
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public ProcessResult run(String... args) throws IOException, InterruptedException {
+        return run(Arrays.asList(args));
+    }
+
+    public ProcessResult run(List<String> args) throws IOException, InterruptedException {
+        return run(new ProcessBuilder(args));
+    }
+
+    public ProcessResult run(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        CompletableFuture<ProcessResult> future = start(processBuilder);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Kills the process tree
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public CompletableFuture<ProcessResult> start(String... args) throws IOException {
+        return start(new ProcessBuilder(args));
+    }
+
+    /**
+     * Start the process without waiting for it.
+     * <p>
+     * The returned future completes when the process exits or times out. Cancelling it kills the process tree.
+     */
+    public CompletableFuture<ProcessResult> start(ProcessBuilder processBuilder) throws IOException {
+        return start(processBuilder, Collections.emptyList());
+    }
+
+    /**
+     * Start the process without waiting for it, deleting the given files once the process tree is killed if
+     * the returned future is cancelled, so an abandoned conversion leaves no partial output behind.
+     */
+    public CompletableFuture<ProcessResult> start(ProcessBuilder processBuilder, List<Path> outputs)
+            throws IOException {
+        return start(processBuilder, outputs, new CompletableFuture<>());
+    }
+
+    /**
+     * Start the process as {@link #start(ProcessBuilder, List)}, completing the termination future once the
+     * process has exited or its tree has been killed. Unlike the returned future, which completes at once when
+     * cancelled, it tells when the files used by the process can be removed.
+     */
+    public CompletableFuture<ProcessResult> start(ProcessBuilder processBuilder, List<Path> outputs,
+                                                  CompletableFuture<Void> termination) throws IOException {
+        Process process = processBuilder.start();
+        // Tools must not wait for an input
+        process.getOutputStream().close();
+        return ProcessMonitor.getInstance().watch(process, processBuilder.command().get(0), timeout, bufferSize,
+                outputs, termination);
+    }
+
+    /**
+     * Copy the stream into the buffer from a background thread until it is exhausted or closed.
+     */
+    public static Future<?> drain(InputStream inputStream, OutputRingBuffer output) {
+        return DRAINERS.submit(new Drainer(inputStream, output));
+    }
+
+    private static class Drainer implements Runnable {
+
+        private final InputStream inputStream;
+        private final OutputRingBuffer output;
+
+        Drainer(InputStream inputStream, OutputRingBuffer output) {
+            this.inputStream = inputStream;
+            this.output = output;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[8192];
+            try (InputStream in = inputStream) {
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    output.write(chunk, 0, read);
+                }
+            } catch (IOException e) {
+                // Stream closed on process kill
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+}
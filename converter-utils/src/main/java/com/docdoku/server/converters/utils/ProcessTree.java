@@ -0,0 +1,203 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helpers to identify and kill the process tree spawned by an external converter.
+ * <p>
+ * Tools such as FreeCAD or IfcConvert may fork children which would survive a simple
+ * {@link Process#destroyForcibly()}. Descendants are resolved from {@code /proc} on Linux hosts.
+ */
+public final class ProcessTree {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessTree.class.getName());
+    private static final Path PROC = Paths.get("/proc");
+    // USER_HZ, 100 on all the supported Linux architectures
+    private static final long CLOCK_TICKS = 100;
+
+    private ProcessTree() {
+    }
+
+    /**
+     * @return the operating system identifier of the process, or -1 if it cannot be resolved
+     */
+    public static long pid(Process process) {
+        try {
+            // Java 9+
+            Method method = Process.class.getMethod("pid");
+            return (Long) method.invoke(process);
+        } catch (ReflectiveOperationException e) {
+            // Java 8 UNIXProcess
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getLong(process);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return the identifiers of all the descendants of the given process, children first
+     */
+    public static List<Long> descendants(long pid) {
+        List<Long> descendants = new ArrayList<>();
+        if (pid <= 0 || !Files.isDirectory(PROC)) {
+            return descendants;
+        }
+        List<long[]> parents = readParents();
+        List<Long> queue = new ArrayList<>();
+        queue.add(pid);
+        for (int i = 0; i < queue.size(); i++) {
+            long parent = queue.get(i);
+            for (long[] entry : parents) {
+                if (entry[1] == parent) {
+                    queue.add(entry[0]);
+                    descendants.add(entry[0]);
+                }
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Kill the process and all its descendants.
+     */
+    public static void kill(Process process) {
+        // Resolve descendants before killing the parent, orphans are re-parented to init
+        List<Long> descendants = descendants(pid(process));
+        process.destroyForcibly();
+        if (descendants.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>();
+        args.add("kill");
+        args.add("-KILL");
+        for (Long descendant : descendants) {
+            args.add(String.valueOf(descendant));
+        }
+        try {
+            new ProcessBuilder(args).redirectErrorStream(true).start().waitFor();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot kill processes " + descendants, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the resident set size of the process in bytes, or -1 if it cannot be read
+     */
+    public static long residentMemory(long pid) {
+        return statusMemory(pid, "VmRSS:");
+    }
+
+    /**
+     * @return the highest resident set size the process reached in bytes, or -1 if it cannot be read
+     */
+    public static long peakResidentMemory(long pid) {
+        return statusMemory(pid, "VmHWM:");
+    }
+
+    /**
+     * @return the user and system CPU time of the process and of its terminated children in milliseconds, or -1
+     * if it cannot be read
+     */
+    public static long cpuTime(long pid) {
+        if (pid <= 0) {
+            return -1;
+        }
+        try {
+            String content = new String(Files.readAllBytes(PROC.resolve(String.valueOf(pid)).resolve("stat")),
+                    StandardCharsets.UTF_8);
+            String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+            // utime, stime, cutime and cstime, in clock ticks
+            long ticks = 0;
+            for (int field = 11; field <= 14; field++) {
+                ticks += Long.parseLong(fields[field]);
+            }
+            return ticks * 1000 / CLOCK_TICKS;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, null, e);
+            return -1;
+        }
+    }
+
+    private static long statusMemory(long pid, String field) {
+        if (pid <= 0) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(PROC.resolve(String.valueOf(pid)).resolve("status"),
+                    StandardCharsets.UTF_8)) {
+                if (line.startsWith(field)) {
+                    // Reported in kB
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        return -1;
+    }
+
+    private static List<long[]> readParents() {
+        List<long[]> parents = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(PROC, "[0-9]*")) {
+            for (Path entry : entries) {
+                long ppid = readParent(entry.resolve("stat"));
+                if (ppid > 0) {
+                    parents.add(new long[]{Long.parseLong(entry.getFileName().toString()), ppid});
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        return parents;
+    }
+
+    private static long readParent(Path stat) {
+        try {
+            String content = new String(Files.readAllBytes(stat), StandardCharsets.UTF_8);
+            // The command name may contain spaces, fields are read after its closing parenthesis
+            String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            // Process vanished meanwhile
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,477 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh, flattened in the layout of its file.
+ * <p>
+ * The little-endian file starts with a 16 bytes header: the {@code BVH1} magic, the node count, the triangle
+ * count and the depth. Nodes follow, 32 bytes each: the minimum and maximum corners of their box as 6 floats,
+ * then two ints. For inner nodes, the first int is the index of the left child, the right child following it,
+ * and the second int is 0. For leaves, they are the position of the first triangle in the triangle list and
+ * the number of triangles. The triangle list comes last, one int per triangle: its index in the mesh index
+ * buffer divided by 3. The root is node 0.
+ * <p>
+ * Nodes are split with the surface area heuristic, evaluated on 16 bins along each axis.
+ */
+public class Bvh {
+
+    private static final int MAGIC = 0x31485642;
+    private static final int HEADER_SIZE = 16;
+    private static final int NODE_SIZE = 32;
+    private static final int BINS = 16;
+    private static final int MIN_LEAF_SIZE = 2;
+    private static final int MAX_LEAF_SIZE = 8;
+    private static final float TRAVERSAL_COST = 1;
+
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int triangleCount;
+    private final int depth;
+
+    private Bvh(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a BVH file");
+        }
+        nodeCount = buffer.getInt(4);
+        triangleCount = buffer.getInt(8);
+        depth = buffer.getInt(12);
+        if (nodeCount < 0 || triangleCount < 0
+                || buffer.capacity() != HEADER_SIZE + (long) nodeCount * NODE_SIZE + (long) triangleCount * 4) {
+            throw new IOException("Truncated BVH file");
+        }
+    }
+
+    /**
+     * Build the hierarchy of the triangles of a mesh.
+     */
+    public static Bvh build(Mesh mesh) {
+        return new Builder(mesh).build();
+    }
+
+    /**
+     * Map a BVH file in memory, without reading it.
+     *
+     * @throws IOException if the file cannot be read or is not a BVH file
+     */
+    public static Bvh map(Path bvhFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(bvhFile, StandardOpenOption.READ)) {
+            return new Bvh(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the size of the written file
+     */
+    public long write(Path bvhFile) throws IOException {
+        ByteBuffer content = buffer.duplicate();
+        content.clear();
+        try (FileChannel channel = FileChannel.open(bvhFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            return channel.size();
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return the number of levels, 1 for a single leaf
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the coordinate {@code k} of the box of a node, minimum x, y, z then maximum x, y, z
+     */
+    public float getBound(int node, int k) {
+        return buffer.getFloat(HEADER_SIZE + node * NODE_SIZE + k * 4);
+    }
+
+    public boolean isLeaf(int node) {
+        return getCount(node) > 0;
+    }
+
+    /**
+     * @return the left child of an inner node, or the position of the first triangle of a leaf
+     */
+    public int getFirst(int node) {
+        return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + 24);
+    }
+
+    /**
+     * @return the number of triangles of a leaf, 0 for an inner node
+     */
+    public int getCount(int node) {
+        return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + 28);
+    }
+
+    /**
+     * @return the triangle at a position of the triangle list
+     */
+    public int getTriangle(int position) {
+        return buffer.getInt(HEADER_SIZE + nodeCount * NODE_SIZE + position * 4);
+    }
+
+    /**
+     * Report the triangles of the leaves whose box intersects the given one.
+     *
+     * @param box minimum x, y, z then maximum x, y, z
+     */
+    public void query(float[] box, IntConsumer triangles) {
+        if (nodeCount == 0) {
+            return;
+        }
+        int[] stack = new int[Math.max(depth, 1) + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (getBound(node, 0) > box[3] || getBound(node, 1) > box[4] || getBound(node, 2) > box[5]
+                    || getBound(node, 3) < box[0] || getBound(node, 4) < box[1] || getBound(node, 5) < box[2]) {
+                continue;
+            }
+            int first = getFirst(node);
+            int count = getCount(node);
+            if (count > 0) {
+                for (int i = first; i < first + count; i++) {
+                    triangles.accept(getTriangle(i));
+                }
+            } else {
+                stack[top++] = first + 1;
+                stack[top++] = first;
+            }
+        }
+    }
+
+    /**
+     * Top-down construction on the triangle boxes and centroids, with an explicit stack of node ranges. Boxes and
+     * centroids are kept in the order of the triangle list and swapped with it, so that nodes scan them in sequence.
+     */
+    private static class Builder {
+        private final int count;
+        private final float[] boxes;
+        private final float[] centroids;
+        private final int[] order;
+        private final FloatList nodeBounds;
+        private final IntList nodeLinks;
+        private final int[] binCounts = new int[3 * BINS];
+        private final float[] binBoxes = new float[3 * BINS * 6];
+        private final float[] rightAreas = new float[BINS];
+        private final int[] rightCounts = new int[BINS];
+        private final float[] bounds = new float[6];
+        private final float[] centroidBounds = new float[6];
+        private final float[] sweep = new float[6];
+        private int maxDepth;
+
+        Builder(Mesh mesh) {
+            count = mesh.getTriangleCount();
+            boxes = new float[count * 6];
+            centroids = new float[count * 3];
+            order = new int[count];
+            nodeBounds = new FloatList(Math.max(count / 2, 1) * 6);
+            nodeLinks = new IntList(Math.max(count / 2, 1) * 2);
+            FloatList positions = mesh.getPositions();
+            IntList indices = mesh.getIndices();
+            for (int t = 0; t < count; t++) {
+                order[t] = t;
+                empty(boxes, t * 6);
+                for (int k = 0; k < 3; k++) {
+                    int v = indices.get(t * 3 + k) * 3;
+                    include(boxes, t * 6, positions.get(v), positions.get(v + 1), positions.get(v + 2));
+                }
+                for (int axis = 0; axis < 3; axis++) {
+                    centroids[t * 3 + axis] = (boxes[t * 6 + axis] + boxes[t * 6 + axis + 3]) / 2;
+                }
+            }
+        }
+
+        Bvh build() {
+            int[] stack = new int[64 * 4];
+            int top = 0;
+            addNode();
+            if (count > 0) {
+                stack = push(stack, top, 0, 0, count, 1);
+                top += 4;
+            } else {
+                setLeaf(0, 0, 0);
+            }
+            while (top > 0) {
+                top -= 4;
+                int node = stack[top];
+                int start = stack[top + 1];
+                int end = stack[top + 2];
+                int level = stack[top + 3];
+                maxDepth = Math.max(maxDepth, level);
+                int middle = split(node, start, end);
+                if (middle < 0) {
+                    setLeaf(node, start, end - start);
+                    continue;
+                }
+                int left = addNode();
+                addNode();
+                nodeLinks.set(node * 2, left);
+                nodeLinks.set(node * 2 + 1, 0);
+                stack = push(stack, top, left + 1, middle, end, level + 1);
+                top += 4;
+                stack = push(stack, top, left, start, middle, level + 1);
+                top += 4;
+            }
+            return pack();
+        }
+
+        /**
+         * Set the box of a node and partition its triangles.
+         *
+         * @return the end of the left half, -1 to make the node a leaf
+         */
+        private int split(int node, int start, int end) {
+            empty(bounds, 0);
+            empty(centroidBounds, 0);
+            for (int i = start; i < end; i++) {
+                include(bounds, 0, boxes[i * 6], boxes[i * 6 + 1], boxes[i * 6 + 2]);
+                include(bounds, 0, boxes[i * 6 + 3], boxes[i * 6 + 4], boxes[i * 6 + 5]);
+                include(centroidBounds, 0, centroids[i * 3], centroids[i * 3 + 1], centroids[i * 3 + 2]);
+            }
+            for (int k = 0; k < 6; k++) {
+                nodeBounds.set(node * 6 + k, bounds[k]);
+            }
+            int size = end - start;
+            if (size <= MIN_LEAF_SIZE) {
+                return -1;
+            }
+
+            fillBins(start, end);
+            float bestCost = Float.POSITIVE_INFINITY;
+            int bestAxis = -1;
+            int bestBin = -1;
+            for (int axis = 0; axis < 3; axis++) {
+                if (!(centroidBounds[axis + 3] > centroidBounds[axis])) {
+                    continue;
+                }
+                // Sweep from the right, then from the left evaluating each split plane
+                empty(sweep, 0);
+                int rightCount = 0;
+                for (int bin = BINS - 1; bin > 0; bin--) {
+                    rightCount += binCounts[axis * BINS + bin];
+                    merge(sweep, binBoxes, (axis * BINS + bin) * 6);
+                    rightCounts[bin] = rightCount;
+                    rightAreas[bin] = rightCount > 0 ? area(sweep) : 0;
+                }
+                empty(sweep, 0);
+                int leftCount = 0;
+                for (int bin = 0; bin < BINS - 1; bin++) {
+                    leftCount += binCounts[axis * BINS + bin];
+                    merge(sweep, binBoxes, (axis * BINS + bin) * 6);
+                    if (leftCount == 0 || rightCounts[bin + 1] == 0) {
+                        continue;
+                    }
+                    float cost = area(sweep) * leftCount + rightAreas[bin + 1] * rightCounts[bin + 1];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = bin;
+                    }
+                }
+            }
+
+            if (bestAxis < 0) {
+                // Centroids are all equal, split in the middle if the leaf would be too large
+                return size > MAX_LEAF_SIZE ? start + size / 2 : -1;
+            }
+            float leafCost = area(bounds) * size;
+            float splitCost = TRAVERSAL_COST * area(bounds) + bestCost;
+            if (splitCost >= leafCost && size <= MAX_LEAF_SIZE) {
+                return -1;
+            }
+            float min = centroidBounds[bestAxis];
+            float scale = BINS / (centroidBounds[bestAxis + 3] - min);
+            int i = start;
+            int j = end - 1;
+            while (i <= j) {
+                if (bin(centroids[i * 3 + bestAxis], min, scale) <= bestBin) {
+                    i++;
+                } else {
+                    swap(i, j--);
+                }
+            }
+            return i == start || i == end ? start + size / 2 : i;
+        }
+
+        /**
+         * Count and bound the triangles of each bin along the three axes in a single scan.
+         */
+        private void fillBins(int start, int end) {
+            Arrays.fill(binCounts, 0);
+            for (int bin = 0; bin < 3 * BINS; bin++) {
+                empty(binBoxes, bin * 6);
+            }
+            float[] min = new float[3];
+            float[] scale = new float[3];
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = centroidBounds[axis + 3] - centroidBounds[axis];
+                min[axis] = centroidBounds[axis];
+                scale[axis] = extent > 0 ? BINS / extent : 0;
+            }
+            for (int i = start; i < end; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    int bin = axis * BINS + bin(centroids[i * 3 + axis], min[axis], scale[axis]);
+                    binCounts[bin]++;
+                    include(binBoxes, bin * 6, boxes[i * 6], boxes[i * 6 + 1], boxes[i * 6 + 2]);
+                    include(binBoxes, bin * 6, boxes[i * 6 + 3], boxes[i * 6 + 4], boxes[i * 6 + 5]);
+                }
+            }
+        }
+
+        private static int bin(float value, float min, float scale) {
+            int bin = (int) ((value - min) * scale);
+            return Math.min(Math.max(bin, 0), BINS - 1);
+        }
+
+        private void swap(int i, int j) {
+            int triangle = order[i];
+            order[i] = order[j];
+            order[j] = triangle;
+            for (int k = 0; k < 6; k++) {
+                float value = boxes[i * 6 + k];
+                boxes[i * 6 + k] = boxes[j * 6 + k];
+                boxes[j * 6 + k] = value;
+            }
+            for (int k = 0; k < 3; k++) {
+                float value = centroids[i * 3 + k];
+                centroids[i * 3 + k] = centroids[j * 3 + k];
+                centroids[j * 3 + k] = value;
+            }
+        }
+
+        private int addNode() {
+            int node = nodeLinks.size() / 2;
+            for (int k = 0; k < 6; k++) {
+                nodeBounds.add(0);
+            }
+            nodeLinks.add(0);
+            nodeLinks.add(0);
+            return node;
+        }
+
+        private void setLeaf(int node, int first, int size) {
+            nodeLinks.set(node * 2, first);
+            nodeLinks.set(node * 2 + 1, size);
+        }
+
+        private static int[] push(int[] stack, int top, int node, int start, int end, int level) {
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top] = node;
+            stack[top + 1] = start;
+            stack[top + 2] = end;
+            stack[top + 3] = level;
+            return stack;
+        }
+
+        private Bvh pack() {
+            int nodes = nodeLinks.size() / 2;
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + nodes * NODE_SIZE + count * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(nodes).putInt(count).putInt(Math.max(maxDepth, 1));
+            for (int node = 0; node < nodes; node++) {
+                for (int k = 0; k < 6; k++) {
+                    buffer.putFloat(nodeBounds.get(node * 6 + k));
+                }
+                buffer.putInt(nodeLinks.get(node * 2)).putInt(nodeLinks.get(node * 2 + 1));
+            }
+            for (int t : order) {
+                buffer.putInt(t);
+            }
+            try {
+                return new Bvh(buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static void empty(float[] box, int offset) {
+        box[offset] = Float.POSITIVE_INFINITY;
+        box[offset + 1] = Float.POSITIVE_INFINITY;
+        box[offset + 2] = Float.POSITIVE_INFINITY;
+        box[offset + 3] = Float.NEGATIVE_INFINITY;
+        box[offset + 4] = Float.NEGATIVE_INFINITY;
+        box[offset + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private static void include(float[] box, int offset, float x, float y, float z) {
+        // Comparisons rather than Math.min and Math.max, much slower on floats for their handling of NaN and -0
+        if (x < box[offset]) {
+            box[offset] = x;
+        }
+        if (y < box[offset + 1]) {
+            box[offset + 1] = y;
+        }
+        if (z < box[offset + 2]) {
+            box[offset + 2] = z;
+        }
+        if (x > box[offset + 3]) {
+            box[offset + 3] = x;
+        }
+        if (y > box[offset + 4]) {
+            box[offset + 4] = y;
+        }
+        if (z > box[offset + 5]) {
+            box[offset + 5] = z;
+        }
+    }
+
+    private static void merge(float[] box, float[] other, int offset) {
+        if (other[offset] <= other[offset + 3]) {
+            include(box, 0, other[offset], other[offset + 1], other[offset + 2]);
+            include(box, 0, other[offset + 3], other[offset + 4], other[offset + 5]);
+        }
+    }
+
+    private static float area(float[] box) {
+        float dx = box[3] - box[0];
+        float dy = box[4] - box[1];
+        float dz = box[5] - box[2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+}
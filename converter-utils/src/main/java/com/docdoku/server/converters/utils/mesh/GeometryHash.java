@@ -0,0 +1,314 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hash of the shape of a mesh, independent of its position, orientation and handedness.
+ * <p>
+ * The mesh is moved to a canonical pose: its vertex centroid at the origin and its principal axes, by decreasing
+ * variance, along x, y and z. Each axis is oriented so that the third moment of the vertices along it is
+ * positive, both orientations being tried when it is close to zero, so that mirrored copies share the pose of
+ * the original. Vertices are then snapped to a grid and the hash covers the sorted set of triangles, whatever
+ * the order of the vertices and faces.
+ * <p>
+ * Equal hashes mean equal shapes within the grid size. Vertices near a grid boundary, or shapes with two equal
+ * principal moments such as revolved parts, may give different hashes to copies in another pose.
+ */
+public final class GeometryHash {
+
+    private static final int JACOBI_SWEEPS = 32;
+    private static final double AMBIGUOUS_MOMENT = 1e-6;
+
+    private final String value;
+    private final double[] matrix;
+
+    /**
+     * @param value  hash of the shape
+     * @param matrix column major 4x4 matrix moving the canonical pose to the mesh
+     */
+    public GeometryHash(String value, double[] matrix) {
+        if (matrix.length != 16) {
+            throw new IllegalArgumentException("A 4x4 matrix is expected");
+        }
+        this.value = value;
+        this.matrix = matrix.clone();
+    }
+
+    /**
+     * @param tolerance size of the grid vertices are snapped to, in mesh units
+     */
+    public static GeometryHash compute(Mesh mesh, double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Invalid tolerance " + tolerance);
+        }
+        FloatList positions = mesh.getPositions();
+        int vertexCount = mesh.getVertexCount();
+        double[] centroid = new double[3];
+        for (int v = 0; v < vertexCount; v++) {
+            for (int axis = 0; axis < 3; axis++) {
+                centroid[axis] += positions.get(v * 3 + axis);
+            }
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            centroid[axis] = vertexCount > 0 ? centroid[axis] / vertexCount : 0;
+        }
+        double[] covariance = new double[9];
+        double[] d = new double[3];
+        for (int v = 0; v < vertexCount; v++) {
+            delta(positions, v, centroid, d);
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    covariance[i * 3 + j] += d[i] * d[j];
+                }
+            }
+        }
+        double[] axes = principalAxes(covariance);
+
+        // Orient the axes by their third moment, keeping both orientations of the ambiguous ones
+        double[] moments = new double[3];
+        double[] magnitudes = new double[3];
+        for (int v = 0; v < vertexCount; v++) {
+            delta(positions, v, centroid, d);
+            for (int axis = 0; axis < 3; axis++) {
+                double projection = dot(axes, axis, d);
+                moments[axis] += projection * projection * projection;
+                magnitudes[axis] += Math.abs(projection * projection * projection);
+            }
+        }
+        int ambiguous = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            if (Math.abs(moments[axis]) <= AMBIGUOUS_MOMENT * magnitudes[axis]) {
+                ambiguous |= 1 << axis;
+            } else if (moments[axis] < 0) {
+                flip(axes, axis);
+            }
+        }
+
+        String bestValue = null;
+        double[] bestAxes = null;
+        for (int signs = 0; signs < 8; signs++) {
+            if ((signs & ~ambiguous) != 0) {
+                continue;
+            }
+            double[] candidate = axes.clone();
+            for (int axis = 0; axis < 3; axis++) {
+                if ((signs & 1 << axis) != 0) {
+                    flip(candidate, axis);
+                }
+            }
+            String candidateValue = digest(mesh, centroid, candidate, tolerance);
+            if (bestValue == null || candidateValue.compareTo(bestValue) < 0) {
+                bestValue = candidateValue;
+                bestAxes = candidate;
+            }
+        }
+
+        double[] matrix = new double[16];
+        for (int axis = 0; axis < 3; axis++) {
+            for (int k = 0; k < 3; k++) {
+                matrix[axis * 4 + k] = bestAxes[axis * 3 + k];
+            }
+            matrix[12 + axis] = centroid[axis];
+        }
+        matrix[15] = 1;
+        return new GeometryHash(bestValue, matrix);
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the column major 4x4 matrix moving the canonical pose to the mesh
+     */
+    public double[] getMatrix() {
+        return matrix.clone();
+    }
+
+    /**
+     * @return the column major 4x4 matrix moving the mesh of this hash onto the mesh of another one of same value
+     */
+    public double[] matrixTo(GeometryHash other) {
+        // Canonical pose from this mesh by the transposed rotation, then to the other mesh
+        double[] result = new double[16];
+        for (int column = 0; column < 3; column++) {
+            for (int row = 0; row < 3; row++) {
+                double sum = 0;
+                for (int k = 0; k < 3; k++) {
+                    sum += other.matrix[k * 4 + row] * matrix[k * 4 + column];
+                }
+                result[column * 4 + row] = sum;
+            }
+        }
+        for (int row = 0; row < 3; row++) {
+            double translation = other.matrix[12 + row];
+            for (int k = 0; k < 3; k++) {
+                translation -= result[k * 4 + row] * matrix[12 + k];
+            }
+            result[12 + row] = translation;
+        }
+        result[15] = 1;
+        return result;
+    }
+
+    private static String digest(Mesh mesh, double[] centroid, double[] axes, double tolerance) {
+        FloatList positions = mesh.getPositions();
+        IntList indices = mesh.getIndices();
+        long[] vertexKeys = new long[mesh.getVertexCount()];
+        double[] d = new double[3];
+        for (int v = 0; v < vertexKeys.length; v++) {
+            delta(positions, v, centroid, d);
+            long key = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                key = mix(key + Math.round(dot(axes, axis, d) / tolerance));
+            }
+            vertexKeys[v] = key;
+        }
+        long[] triangleKeys = new long[mesh.getTriangleCount()];
+        for (int t = 0; t < triangleKeys.length; t++) {
+            long a = vertexKeys[indices.get(t * 3)];
+            long b = vertexKeys[indices.get(t * 3 + 1)];
+            long c = vertexKeys[indices.get(t * 3 + 2)];
+            // Sorted corners, the winding of mirrored copies being reversed
+            long min = Math.min(a, Math.min(b, c));
+            long max = Math.max(a, Math.max(b, c));
+            triangleKeys[t] = mix(mix(mix(min) + (a ^ b ^ c ^ min ^ max)) + max);
+        }
+        Arrays.sort(triangleKeys);
+
+        MessageDigest digest = sha256();
+        digest.update(("geometry-1\n" + tolerance + "\n").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        for (long key : triangleKeys) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            buffer.putLong(key);
+        }
+        buffer.flip();
+        digest.update(buffer);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the unit eigenvectors of a symmetric 3x3 matrix by decreasing eigenvalue, as rows
+     */
+    private static double[] principalAxes(double[] symmetric) {
+        double[] a = symmetric.clone();
+        double[] vectors = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        for (int sweep = 0; sweep < JACOBI_SWEEPS; sweep++) {
+            double offDiagonal = Math.abs(a[1]) + Math.abs(a[2]) + Math.abs(a[5]);
+            if (offDiagonal == 0) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    rotate(a, vectors, p, q);
+                }
+            }
+        }
+        // Columns of vectors are the eigenvectors, sorted by their eigenvalue on the diagonal
+        Integer[] order = {0, 1, 2};
+        Arrays.sort(order, (i, j) -> Double.compare(a[j * 4], a[i * 4]));
+        double[] axes = new double[9];
+        for (int axis = 0; axis < 3; axis++) {
+            for (int k = 0; k < 3; k++) {
+                axes[axis * 3 + k] = vectors[k * 3 + order[axis]];
+            }
+        }
+        return axes;
+    }
+
+    private static void rotate(double[] a, double[] vectors, int p, int q) {
+        double apq = a[p * 3 + q];
+        if (apq == 0) {
+            return;
+        }
+        double theta = (a[q * 3 + q] - a[p * 3 + p]) / (2 * apq);
+        double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+        if (theta == 0) {
+            t = 1;
+        }
+        double c = 1 / Math.sqrt(t * t + 1);
+        double s = t * c;
+        for (int k = 0; k < 3; k++) {
+            double akp = a[k * 3 + p];
+            double akq = a[k * 3 + q];
+            a[k * 3 + p] = c * akp - s * akq;
+            a[k * 3 + q] = s * akp + c * akq;
+        }
+        for (int k = 0; k < 3; k++) {
+            double apk = a[p * 3 + k];
+            double aqk = a[q * 3 + k];
+            a[p * 3 + k] = c * apk - s * aqk;
+            a[q * 3 + k] = s * apk + c * aqk;
+        }
+        for (int k = 0; k < 3; k++) {
+            double vkp = vectors[k * 3 + p];
+            double vkq = vectors[k * 3 + q];
+            vectors[k * 3 + p] = c * vkp - s * vkq;
+            vectors[k * 3 + q] = s * vkp + c * vkq;
+        }
+    }
+
+    private static void delta(FloatList positions, int vertex, double[] centroid, double[] d) {
+        for (int axis = 0; axis < 3; axis++) {
+            d[axis] = positions.get(vertex * 3 + axis) - centroid[axis];
+        }
+    }
+
+    private static double dot(double[] axes, int axis, double[] d) {
+        return axes[axis * 3] * d[0] + axes[axis * 3 + 1] * d[1] + axes[axis * 3 + 2] * d[2];
+    }
+
+    private static void flip(double[] axes, int axis) {
+        for (int k = 0; k < 3; k++) {
+            axes[axis * 3 + k] = -axes[axis * 3 + k];
+        }
+    }
+
+    private static long mix(long key) {
+        key = (key ^ key >>> 30) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ key >>> 27) * 0x94d049bb133111ebL;
+        return key ^ key >>> 31;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
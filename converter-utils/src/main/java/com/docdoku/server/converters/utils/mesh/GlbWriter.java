@@ -0,0 +1,342 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write a {@link Mesh} as a binary glTF 2.0 file with quantized vertex attributes.
+ * <p>
+ * Positions are stored as unsigned shorts relative to the bounding box, restored by the translation and uniform
+ * scale of the node as allowed by {@code KHR_mesh_quantization}. Normals are stored as normalized bytes and indices
+ * as unsigned shorts when the mesh has few enough vertices. Texture coordinates are kept as floats. Each group
+ * becomes a primitive.
+ */
+public class GlbWriter {
+
+    private static final int MAGIC = 0x46546C67;
+    private static final int VERSION = 2;
+    private static final int JSON_CHUNK = 0x4E4F534A;
+    private static final int BIN_CHUNK = 0x004E4942;
+
+    private static final int BYTE = 5120;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int FLOAT = 5126;
+    private static final int ARRAY_BUFFER = 34962;
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+
+    private static final int POSITION_STRIDE = 8;
+    private static final int NORMAL_STRIDE = 4;
+    private static final int TEX_COORD_STRIDE = 8;
+    private static final int QUANTIZATION_MAX = 0xffff;
+    private static final long MAX_LENGTH = 0xffffffffL;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private GlbWriter() {
+    }
+
+    /**
+     * @param materials the materials referenced by the groups, missing ones get default values
+     * @return the size of the written file
+     */
+    public static long write(Mesh mesh, Map<String, Material> materials, String name, Path glbFile)
+            throws IOException {
+        int vertexCount = mesh.getVertexCount();
+        if (mesh.getTriangleCount() == 0) {
+            throw new IOException("No triangle to write in " + glbFile);
+        }
+        float[] bounds = mesh.getBounds();
+        float extent = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            if (!Float.isFinite(bounds[axis]) || !Float.isFinite(bounds[axis + 3])) {
+                throw new IOException("Non finite vertex position in " + glbFile);
+            }
+            extent = Math.max(extent, bounds[axis + 3] - bounds[axis]);
+        }
+        // Uniform scale, normals being transformed by the inverse transpose of the node transform
+        float[] scale = new float[3];
+        Arrays.fill(scale, extent > 0 ? extent / QUANTIZATION_MAX : 1);
+        boolean normals = mesh.hasNormals();
+        boolean texCoords = mesh.hasTexCoords();
+        IntList indices = mesh.getIndices();
+        int indexSize = vertexCount <= QUANTIZATION_MAX ? 2 : 4;
+        long positionsLength = (long) vertexCount * POSITION_STRIDE;
+        long normalsLength = normals ? (long) vertexCount * NORMAL_STRIDE : 0;
+        long texCoordsLength = texCoords ? (long) vertexCount * TEX_COORD_STRIDE : 0;
+        long indicesLength = pad((long) indices.size() * indexSize);
+        long binLength = positionsLength + normalsLength + texCoordsLength + indicesLength;
+        int[] quantizedBounds = quantizedBounds(mesh.getPositions(), bounds, scale);
+
+        List<String> materialNames = new ArrayList<>();
+        for (Mesh.Group group : mesh.getGroups()) {
+            if (group.getMaterial() != null && !materialNames.contains(group.getMaterial())) {
+                materialNames.add(group.getMaterial());
+            }
+        }
+
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"DocDoku converters\"}");
+        json.append(",\"extensionsUsed\":[\"KHR_mesh_quantization\"]");
+        json.append(",\"extensionsRequired\":[\"KHR_mesh_quantization\"]");
+        json.append(",\"scene\":0,\"scenes\":[{\"nodes\":[0]}]");
+        json.append(",\"nodes\":[{\"name\":").append(Json.quote(name)).append(",\"mesh\":0");
+        json.append(",\"translation\":[").append(bounds[0]).append(',').append(bounds[1]).append(',')
+                .append(bounds[2]).append(']');
+        json.append(",\"scale\":[").append(scale[0]).append(',').append(scale[1]).append(',').append(scale[2])
+                .append("]}]");
+
+        // Views and accessors of the vertex attributes, in this order, then of the indices of each group
+        int normalsView = 1;
+        int texCoordsView = normals ? 2 : 1;
+        int indicesView = 1 + (normals ? 1 : 0) + (texCoords ? 1 : 0);
+        json.append(",\"buffers\":[{\"byteLength\":").append(binLength).append("}]");
+        json.append(",\"bufferViews\":[");
+        bufferView(json, 0, positionsLength, POSITION_STRIDE, ARRAY_BUFFER);
+        if (normals) {
+            json.append(',');
+            bufferView(json, positionsLength, normalsLength, NORMAL_STRIDE, ARRAY_BUFFER);
+        }
+        if (texCoords) {
+            json.append(',');
+            bufferView(json, positionsLength + normalsLength, texCoordsLength, TEX_COORD_STRIDE, ARRAY_BUFFER);
+        }
+        json.append(',');
+        bufferView(json, positionsLength + normalsLength + texCoordsLength, indicesLength, 0,
+                ELEMENT_ARRAY_BUFFER);
+        json.append(']');
+
+        json.append(",\"accessors\":[{\"bufferView\":0,\"componentType\":").append(UNSIGNED_SHORT)
+                .append(",\"count\":").append(vertexCount).append(",\"type\":\"VEC3\",\"min\":[")
+                .append(quantizedBounds[0]).append(',').append(quantizedBounds[1]).append(',')
+                .append(quantizedBounds[2]).append("],\"max\":[").append(quantizedBounds[3]).append(',')
+                .append(quantizedBounds[4]).append(',').append(quantizedBounds[5]).append("]}");
+        if (normals) {
+            json.append(",{\"bufferView\":").append(normalsView).append(",\"componentType\":").append(BYTE)
+                    .append(",\"normalized\":true,\"count\":").append(vertexCount).append(",\"type\":\"VEC3\"}");
+        }
+        if (texCoords) {
+            json.append(",{\"bufferView\":").append(texCoordsView).append(",\"componentType\":").append(FLOAT)
+                    .append(",\"count\":").append(vertexCount).append(",\"type\":\"VEC2\"}");
+        }
+        List<Mesh.Group> groups = mesh.getGroups();
+        for (Mesh.Group group : groups) {
+            json.append(",{\"bufferView\":").append(indicesView)
+                    .append(",\"byteOffset\":").append((long) group.getFirstIndex() * indexSize)
+                    .append(",\"componentType\":").append(indexSize == 2 ? UNSIGNED_SHORT : UNSIGNED_INT)
+                    .append(",\"count\":").append(group.getIndexCount()).append(",\"type\":\"SCALAR\"}");
+        }
+        json.append(']');
+
+        json.append(",\"meshes\":[{\"name\":").append(Json.quote(name)).append(",\"primitives\":[");
+        for (int i = 0; i < groups.size(); i++) {
+            Mesh.Group group = groups.get(i);
+            json.append(i == 0 ? "" : ",").append("{\"attributes\":{\"POSITION\":0");
+            if (normals) {
+                json.append(",\"NORMAL\":").append(normalsView);
+            }
+            if (texCoords) {
+                json.append(",\"TEXCOORD_0\":").append(texCoordsView);
+            }
+            json.append("},\"indices\":").append(indicesView + i);
+            if (group.getMaterial() != null) {
+                json.append(",\"material\":").append(materialNames.indexOf(group.getMaterial()));
+            }
+            if (group.getName() != null) {
+                json.append(",\"extras\":{\"name\":").append(Json.quote(group.getName())).append('}');
+            }
+            json.append('}');
+        }
+        json.append("]}]");
+
+        if (!materialNames.isEmpty()) {
+            json.append(",\"materials\":[");
+            for (int i = 0; i < materialNames.size(); i++) {
+                Material material = materials.get(materialNames.get(i));
+                if (material == null) {
+                    material = new Material(materialNames.get(i));
+                }
+                material(json.append(i == 0 ? "" : ","), material);
+            }
+            json.append(']');
+        }
+        json.append('}');
+
+        byte[] jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        int jsonLength = (int) pad(jsonBytes.length);
+        ByteBuffer header = ByteBuffer.allocate(12 + 8 + jsonLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+        long length = header.capacity() + binLength;
+        if (length > MAX_LENGTH) {
+            throw new IOException("Mesh too large for a binary glTF file (" + length + " bytes) in " + glbFile);
+        }
+        // Lengths are unsigned 32 bits integers
+        header.putInt(MAGIC).putInt(VERSION).putInt((int) length);
+        header.putInt(jsonLength).putInt(JSON_CHUNK).put(jsonBytes);
+        while (header.position() < 20 + jsonLength) {
+            header.put((byte) ' ');
+        }
+        header.putInt((int) binLength).putInt(BIN_CHUNK);
+        header.flip();
+
+        // The binary chunk is streamed to the file, its size only being bounded by the format
+        try (FileChannel channel = FileChannel.open(glbFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer bin = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            writePositions(mesh.getPositions(), bounds, scale, bin, channel);
+            if (normals) {
+                writeNormals(mesh.getNormals(), bin, channel);
+            }
+            if (texCoords) {
+                writeTexCoords(mesh.getTexCoords(), bin, channel);
+            }
+            for (int i = 0; i < indices.size(); i++) {
+                reserve(bin, indexSize, channel);
+                if (indexSize == 2) {
+                    bin.putShort((short) indices.get(i));
+                } else {
+                    bin.putInt(indices.get(i));
+                }
+            }
+            for (long i = (long) indices.size() * indexSize; i < indicesLength; i++) {
+                reserve(bin, 1, channel);
+                bin.put((byte) 0);
+            }
+            flush(bin, channel);
+            return channel.size();
+        }
+    }
+
+    private static int quantize(float position, float min, float scale) {
+        return Math.max(0, Math.min(QUANTIZATION_MAX, Math.round((position - min) / scale)));
+    }
+
+    private static int[] quantizedBounds(FloatList positions, float[] bounds, float[] scale) {
+        int[] quantizedBounds = {QUANTIZATION_MAX, QUANTIZATION_MAX, QUANTIZATION_MAX, 0, 0, 0};
+        for (int i = 0; i < positions.size(); i += 3) {
+            for (int axis = 0; axis < 3; axis++) {
+                int value = quantize(positions.get(i + axis), bounds[axis], scale[axis]);
+                quantizedBounds[axis] = Math.min(quantizedBounds[axis], value);
+                quantizedBounds[axis + 3] = Math.max(quantizedBounds[axis + 3], value);
+            }
+        }
+        return quantizedBounds;
+    }
+
+    private static void writePositions(FloatList positions, float[] bounds, float[] scale, ByteBuffer bin,
+                                       FileChannel channel) throws IOException {
+        for (int i = 0; i < positions.size(); i += 3) {
+            reserve(bin, POSITION_STRIDE, channel);
+            for (int axis = 0; axis < 3; axis++) {
+                bin.putShort((short) quantize(positions.get(i + axis), bounds[axis], scale[axis]));
+            }
+            // Attributes are aligned on 4 bytes
+            bin.putShort((short) 0);
+        }
+    }
+
+    private static void writeNormals(FloatList normals, ByteBuffer bin, FileChannel channel) throws IOException {
+        for (int i = 0; i < normals.size(); i += 3) {
+            float x = normals.get(i);
+            float y = normals.get(i + 1);
+            float z = normals.get(i + 2);
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            if (length > 0 && Float.isFinite(length)) {
+                x /= length;
+                y /= length;
+                z /= length;
+            } else {
+                x = 0;
+                y = 0;
+                z = 1;
+            }
+            reserve(bin, NORMAL_STRIDE, channel);
+            bin.put((byte) Math.round(x * 127)).put((byte) Math.round(y * 127)).put((byte) Math.round(z * 127))
+                    .put((byte) 0);
+        }
+    }
+
+    private static void writeTexCoords(FloatList texCoords, ByteBuffer bin, FileChannel channel)
+            throws IOException {
+        for (int i = 0; i < texCoords.size(); i += 2) {
+            reserve(bin, TEX_COORD_STRIDE, channel);
+            // OBJ texture coordinates start at the bottom of the image, glTF ones at its top
+            bin.putFloat(texCoords.get(i)).putFloat(1 - texCoords.get(i + 1));
+        }
+    }
+
+    /**
+     * Flush the buffer to the file unless it has room for the given number of bytes.
+     */
+    private static void reserve(ByteBuffer bin, int bytes, FileChannel channel) throws IOException {
+        if (bin.remaining() < bytes) {
+            flush(bin, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer bin, FileChannel channel) throws IOException {
+        bin.flip();
+        while (bin.hasRemaining()) {
+            channel.write(bin);
+        }
+        bin.clear();
+    }
+
+    private static void bufferView(StringBuilder json, long offset, long length, int stride, int target) {
+        json.append("{\"buffer\":0,\"byteOffset\":").append(offset).append(",\"byteLength\":").append(length);
+        if (stride > 0) {
+            json.append(",\"byteStride\":").append(stride);
+        }
+        json.append(",\"target\":").append(target).append('}');
+    }
+
+    private static void material(StringBuilder json, Material material) {
+        float[] diffuse = material.getDiffuse();
+        float opacity = Math.max(0, Math.min(1, material.getOpacity()));
+        json.append("{\"name\":").append(Json.quote(material.getName()))
+                .append(",\"pbrMetallicRoughness\":{\"baseColorFactor\":[");
+        for (float component : Arrays.copyOf(diffuse, 3)) {
+            json.append(Math.max(0, Math.min(1, component))).append(',');
+        }
+        json.append(opacity).append("],\"metallicFactor\":0,\"roughnessFactor\":1}");
+        if (opacity < 1) {
+            json.append(",\"alphaMode\":\"BLEND\"");
+        }
+        json.append(",\"doubleSided\":true}");
+    }
+
+    private static long pad(long length) {
+        return (length + 3) & ~3;
+    }
+
+}
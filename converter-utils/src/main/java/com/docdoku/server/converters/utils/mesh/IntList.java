@@ -0,0 +1,246 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Growable list of primitive ints, avoiding boxing when handling mesh indices.
+ * <p>
+ * Values are kept in an array until the list outgrows the heap limit of its {@link MeshBufferStorage}, then in
+ * off-heap chunks: growing an off-heap list adds chunks without copying the values.
+ */
+public class IntList {
+
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int BYTES = Integer.BYTES;
+
+    private final MeshBufferStorage storage;
+    private int[] values;
+    private IntBuffer[] chunks;
+    private ByteBuffer[] buffers;
+    private int capacity;
+    private int size;
+
+    public IntList() {
+        this(1024);
+    }
+
+    public IntList(int capacity) {
+        this(capacity, MeshBufferStorage.getDefault());
+    }
+
+    public IntList(int capacity, MeshBufferStorage storage) {
+        this.storage = storage;
+        capacity = Math.max(capacity, 16);
+        if (storage.isOffHeap((long) capacity * BYTES)) {
+            chunks = new IntBuffer[0];
+            buffers = new ByteBuffer[0];
+            addChunks(capacity);
+        } else {
+            values = new int[capacity];
+            this.capacity = capacity;
+        }
+    }
+
+    public void add(int value) {
+        if (size == capacity) {
+            grow(size + 1);
+        }
+        if (values != null) {
+            values[size++] = value;
+        } else {
+            put(size++, value);
+        }
+    }
+
+    public void add(int a, int b, int c) {
+        if (size + 3 > capacity) {
+            grow(size + 3);
+        }
+        if (values != null) {
+            values[size++] = a;
+            values[size++] = b;
+            values[size++] = c;
+        } else {
+            put(size++, a);
+            put(size++, b);
+            put(size++, c);
+        }
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        return values != null ? values[index] : chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        if (values != null) {
+            values[index] = value;
+        } else {
+            put(index, value);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Free the chunks kept out of the heap now rather than when they are garbage collected, leaving the list
+     * empty. Nothing must use the list anymore, such as a mesh sharing it.
+     */
+    public void release() {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                MeshBufferStorage.release(buffer);
+            }
+        }
+        chunks = null;
+        buffers = null;
+        values = new int[16];
+        capacity = values.length;
+        size = 0;
+    }
+
+    /**
+     * Drop the values after the first {@code newSize} ones.
+     */
+    public void truncate(int newSize) {
+        if (newSize > size) {
+            throw new IndexOutOfBoundsException(newSize + " > " + size);
+        }
+        size = newSize;
+    }
+
+    /**
+     * @return true if the values are kept out of the heap
+     */
+    public boolean isOffHeap() {
+        return values == null;
+    }
+
+    /**
+     * @return a copy of the values in a heap array, which must fit in the heap
+     */
+    public int[] toArray() {
+        if (values != null) {
+            return Arrays.copyOf(values, size);
+        }
+        int[] array = new int[size];
+        for (int chunk = 0, offset = 0; offset < size; chunk++, offset += CHUNK_SIZE) {
+            IntBuffer buffer = chunks[chunk].duplicate();
+            buffer.position(0);
+            buffer.get(array, offset, Math.min(CHUNK_SIZE, size - offset));
+        }
+        return array;
+    }
+
+    /**
+     * @return an iterator over the values, without boxing
+     */
+    public IntIterator iterator() {
+        return new IntIterator();
+    }
+
+    /**
+     * Iterator over the values of the list, not checking for concurrent modifications.
+     */
+    public class IntIterator {
+        private int next;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public int nextInt() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return get(next++);
+        }
+    }
+
+    private void put(int index, int value) {
+        chunks[index >>> CHUNK_SHIFT].put(index & CHUNK_MASK, value);
+    }
+
+    private void grow(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("Mesh too large");
+        }
+        if (values == null) {
+            addChunks(minCapacity);
+            return;
+        }
+        long newCapacity = Math.max((long) capacity * 2, minCapacity);
+        if (storage.isOffHeap(newCapacity * BYTES)) {
+            chunks = new IntBuffer[0];
+            buffers = new ByteBuffer[0];
+            addChunks(minCapacity);
+            for (int chunk = 0, offset = 0; offset < size; chunk++, offset += CHUNK_SIZE) {
+                IntBuffer buffer = chunks[chunk].duplicate();
+                buffer.position(0);
+                buffer.put(values, offset, Math.min(CHUNK_SIZE, size - offset));
+            }
+            values = null;
+            return;
+        }
+        if (newCapacity > Integer.MAX_VALUE - 8) {
+            newCapacity = Integer.MAX_VALUE - 8;
+            if (newCapacity < minCapacity) {
+                throw new OutOfMemoryError("Mesh too large");
+            }
+        }
+        values = Arrays.copyOf(values, (int) newCapacity);
+        capacity = (int) newCapacity;
+    }
+
+    private void addChunks(int minCapacity) {
+        int count = (int) (((long) minCapacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+        if (count <= chunks.length) {
+            return;
+        }
+        int first = chunks.length;
+        chunks = Arrays.copyOf(chunks, count);
+        buffers = Arrays.copyOf(buffers, count);
+        for (int chunk = first; chunk < count; chunk++) {
+            buffers[chunk] = storage.allocate(CHUNK_SIZE * BYTES);
+            chunks[chunk] = buffers[chunk].asIntBuffer();
+        }
+        capacity = (int) Math.min((long) count << CHUNK_SHIFT, Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Tokenizer over a memory-mapped text file, parsing numbers straight from the mapped bytes.
+ * Raw bytes can be read as well, for formats with a text header and a binary body.
+ * <p>
+ * Files larger than 2GB are mapped through successive windows. Numbers are parsed without building
+ * intermediate strings, which {@link Float#parseFloat} would require.
+ */
+public class MappedAsciiReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final FileChannel channel;
+    private final boolean ownChannel;
+    private final long end;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private int local;
+
+    public MappedAsciiReader(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), true, 0, -1);
+    }
+
+    /**
+     * Read a region of an open channel, which is not closed with the reader.
+     */
+    public MappedAsciiReader(FileChannel channel, long start, long end) throws IOException {
+        this(channel, false, start, end);
+    }
+
+    private MappedAsciiReader(FileChannel channel, boolean ownChannel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.ownChannel = ownChannel;
+        this.end = end < 0 ? channel.size() : end;
+        map(start);
+    }
+
+    public long getPosition() {
+        return windowStart + local;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the next byte without consuming it, -1 at the end of the file
+     */
+    public int peek() throws IOException {
+        if (local >= windowLimit) {
+            if (windowStart + local >= end) {
+                return -1;
+            }
+            map(windowStart + local);
+        }
+        return window.get(local) & 0xff;
+    }
+
+    /**
+     * @return the next byte, -1 at the end of the file
+     */
+    public int read() throws IOException {
+        int b = peek();
+        if (b >= 0) {
+            local++;
+        }
+        return b;
+    }
+
+    /**
+     * Read raw bytes, for binary content following a text header.
+     *
+     * @throws EOFException if the file ends before {@code length} bytes
+     */
+    public void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (peek() < 0) {
+                throw new EOFException("Unexpected end of file at offset " + getPosition());
+            }
+            int chunk = Math.min(length, windowLimit - local);
+            window.position(local);
+            window.get(target, offset, chunk);
+            local += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Skip spaces and line breaks.
+     *
+     * @return false at the end of the file
+     */
+    public boolean skipWhitespace() throws IOException {
+        int b;
+        while ((b = peek()) >= 0) {
+            if (!isWhitespace(b)) {
+                return true;
+            }
+            local++;
+        }
+        return false;
+    }
+
+    /**
+     * Skip spaces but not line breaks.
+     *
+     * @return the next byte, -1 at the end of the file
+     */
+    public int skipSpaces() throws IOException {
+        int b;
+        while ((b = peek()) == ' ' || b == '\t' || b == '\r') {
+            local++;
+        }
+        return b;
+    }
+
+    /**
+     * Move after the next line break.
+     */
+    public void skipLine() throws IOException {
+        int b;
+        while ((b = read()) >= 0 && b != '\n') {
+            // skip
+        }
+    }
+
+    /**
+     * Read the next whitespace separated word into the target, truncated to its length.
+     *
+     * @return the length of the word, 0 at the end of the file
+     */
+    public int readWord(byte[] target) throws IOException {
+        if (!skipWhitespace()) {
+            return 0;
+        }
+        int length = 0;
+        int b;
+        while ((b = peek()) >= 0 && !isWhitespace(b)) {
+            if (length < target.length) {
+                target[length] = (byte) b;
+            }
+            length++;
+            local++;
+        }
+        return Math.min(length, target.length);
+    }
+
+    /**
+     * @return the next whitespace separated word, null at the end of the file
+     */
+    public String readWord() throws IOException {
+        if (!skipWhitespace()) {
+            return null;
+        }
+        StringBuilder word = new StringBuilder();
+        int b;
+        while ((b = peek()) >= 0 && !isWhitespace(b)) {
+            word.append((char) b);
+            local++;
+        }
+        return word.toString();
+    }
+
+    /**
+     * @return the rest of the current line without its line break, null at the end of the file
+     */
+    public String readLine() throws IOException {
+        if (peek() < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[256];
+        int length = 0;
+        int b;
+        while ((b = read()) >= 0 && b != '\n') {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) b;
+        }
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse the next decimal integer, after optional spaces.
+     */
+    public long readLong() throws IOException {
+        skipWhitespace();
+        boolean negative = false;
+        int b = peek();
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            local++;
+        }
+        long value = 0;
+        int digits = 0;
+        while ((b = peek()) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            digits++;
+            local++;
+        }
+        if (digits == 0) {
+            throw new IOException("Integer expected at offset " + getPosition());
+        }
+        return negative ? -value : value;
+    }
+
+    public int readInt() throws IOException {
+        return (int) readLong();
+    }
+
+    /**
+     * Parse the next decimal floating point number, after optional spaces.
+     * <p>
+     * Accepts an optional sign, fraction and exponent, as well as {@code nan} and {@code inf}.
+     */
+    public float readFloat() throws IOException {
+        return (float) readDouble();
+    }
+
+    public double readDouble() throws IOException {
+        skipWhitespace();
+        boolean negative = false;
+        int b = peek();
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            local++;
+            b = peek();
+        }
+        if (b == 'n' || b == 'N' || b == 'i' || b == 'I') {
+            return readSpecial(negative);
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        int digits = 0;
+        while ((b = peek()) >= '0' && b <= '9') {
+            if (significantDigits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+            } else {
+                exponent++;
+            }
+            digits++;
+            local++;
+        }
+        if (b == '.') {
+            local++;
+            while ((b = peek()) >= '0' && b <= '9') {
+                if (significantDigits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                    exponent--;
+                }
+                digits++;
+                local++;
+            }
+        }
+        if (digits == 0) {
+            throw new IOException("Number expected at offset " + getPosition());
+        }
+        if (b == 'e' || b == 'E') {
+            local++;
+            boolean negativeExponent = false;
+            b = peek();
+            if (b == '-' || b == '+') {
+                negativeExponent = b == '-';
+                local++;
+            }
+            int explicitExponent = 0;
+            while ((b = peek()) >= '0' && b <= '9') {
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (b - '0');
+                }
+                local++;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        double value = mantissa;
+        if (mantissa != 0 && exponent != 0) {
+            if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                value *= POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value /= POWERS_OF_TEN[-exponent];
+            } else {
+                value *= Math.pow(10, exponent);
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    private double readSpecial(boolean negative) throws IOException {
+        String word = readWord().toLowerCase();
+        if (word.startsWith("nan")) {
+            return Double.NaN;
+        }
+        if (word.startsWith("inf")) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        throw new IOException("Number expected at offset " + getPosition());
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (ownChannel) {
+            channel.close();
+        }
+    }
+
+    private void map(long position) throws IOException {
+        long size = Math.min(WINDOW_SIZE, end - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(size, 0));
+        windowStart = position;
+        windowLimit = (int) Math.max(size, 0);
+        local = 0;
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f';
+    }
+
+}
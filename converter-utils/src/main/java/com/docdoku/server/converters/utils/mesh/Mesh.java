@@ -0,0 +1,160 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Indexed triangle mesh, split into groups of triangles sharing a name and a material.
+ * <p>
+ * Positions and normals are stored per vertex, three floats each, texture coordinates two floats each.
+ * Normals and texture coordinates are either given for every vertex or missing.
+ */
+public class Mesh {
+
+    /**
+     * Triangles {@code [firstIndex, firstIndex + indexCount)} of the index buffer.
+     */
+    public static class Group {
+        private final String name;
+        private final String material;
+        private final int firstIndex;
+        private final int indexCount;
+
+        public Group(String name, String material, int firstIndex, int indexCount) {
+            this.name = name;
+            this.material = material;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMaterial() {
+            return material;
+        }
+
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        public int getIndexCount() {
+            return indexCount;
+        }
+    }
+
+    private final FloatList positions;
+    private final FloatList normals;
+    private final FloatList texCoords;
+    private final IntList indices;
+    private final List<Group> groups = new ArrayList<>();
+    private final List<String> materialLibraries = new ArrayList<>();
+
+    public Mesh(FloatList positions, FloatList normals, IntList indices) {
+        this(positions, normals, new FloatList(), indices);
+    }
+
+    public Mesh(FloatList positions, FloatList normals, FloatList texCoords, IntList indices) {
+        this.positions = positions;
+        this.normals = normals;
+        this.texCoords = texCoords;
+        this.indices = indices;
+    }
+
+    public FloatList getPositions() {
+        return positions;
+    }
+
+    public FloatList getNormals() {
+        return normals;
+    }
+
+    public boolean hasNormals() {
+        return normals.size() > 0 && normals.size() == positions.size();
+    }
+
+    public FloatList getTexCoords() {
+        return texCoords;
+    }
+
+    public boolean hasTexCoords() {
+        return texCoords.size() > 0 && texCoords.size() / 2 == positions.size() / 3;
+    }
+
+    public IntList getIndices() {
+        return indices;
+    }
+
+    public int getVertexCount() {
+        return positions.size() / 3;
+    }
+
+    public int getTriangleCount() {
+        return indices.size() / 3;
+    }
+
+    public List<Group> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    public void addGroup(Group group) {
+        groups.add(group);
+    }
+
+    public List<String> getMaterialLibraries() {
+        return Collections.unmodifiableList(materialLibraries);
+    }
+
+    public void addMaterialLibrary(String materialLibrary) {
+        materialLibraries.add(materialLibrary);
+    }
+
+    /**
+     * @return the minimum then maximum coordinates of the vertices, {@code {minX, minY, minZ, maxX, maxY, maxZ}}
+     */
+    public float[] getBounds() {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < positions.size(); i++) {
+            float value = positions.get(i);
+            int axis = i % 3;
+            bounds[axis] = Math.min(bounds[axis], value);
+            bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+        }
+        return bounds;
+    }
+
+    /**
+     * Free the lists of the mesh kept out of the heap, see {@link FloatList#release()}. The mesh is empty
+     * afterwards, and must not share its lists with a mesh still in use.
+     */
+    public void release() {
+        positions.release();
+        normals.release();
+        texCoords.release();
+        indices.release();
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Merge the groups of a mesh sharing a material into batches, each drawn with a single call.
+ * <p>
+ * Batches come in the order of the first group of their material, and keep the triangles of each group
+ * contiguous and in order, so that the vertex cache ordering of the groups is preserved. The table of the
+ * objects of each batch maps a picked triangle back to the group it came from.
+ */
+public final class MeshBatcher {
+
+    /**
+     * Triangles of an object in a batch, numbered from the first triangle of the batch.
+     */
+    public static class ObjectRange {
+        private final String name;
+        private final int firstTriangle;
+        private int triangleCount;
+
+        ObjectRange(String name, int firstTriangle, int triangleCount) {
+            this.name = name;
+            this.firstTriangle = firstTriangle;
+            this.triangleCount = triangleCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFirstTriangle() {
+            return firstTriangle;
+        }
+
+        public int getTriangleCount() {
+            return triangleCount;
+        }
+    }
+
+    /**
+     * Batches of a mesh, the groups of the batched mesh being the batches in the same order.
+     */
+    public static class Batching {
+        private final Mesh mesh;
+        private final List<List<ObjectRange>> objects;
+
+        Batching(Mesh mesh, List<List<ObjectRange>> objects) {
+            this.mesh = mesh;
+            this.objects = objects;
+        }
+
+        public Mesh getMesh() {
+            return mesh;
+        }
+
+        /**
+         * @return the objects of a batch, by the index of its group in the batched mesh
+         */
+        public List<ObjectRange> getObjects(int batch) {
+            return Collections.unmodifiableList(objects.get(batch));
+        }
+
+        /**
+         * @return the batches with their material and objects, as JSON
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"batches\":[");
+            List<Mesh.Group> groups = mesh.getGroups();
+            for (int b = 0; b < groups.size(); b++) {
+                Mesh.Group group = groups.get(b);
+                json.append(b == 0 ? "" : ",").append("{\"material\":")
+                        .append(group.getMaterial() != null ? Json.quote(group.getMaterial()) : "null")
+                        .append(",\"triangles\":").append(group.getIndexCount() / 3).append(",\"objects\":[");
+                List<ObjectRange> ranges = objects.get(b);
+                for (int r = 0; r < ranges.size(); r++) {
+                    ObjectRange range = ranges.get(r);
+                    json.append(r == 0 ? "" : ",").append("{\"name\":")
+                            .append(range.name != null ? Json.quote(range.name) : "null")
+                            .append(",\"first\":").append(range.firstTriangle)
+                            .append(",\"count\":").append(range.triangleCount).append('}');
+                }
+                json.append("]}");
+            }
+            return json.append("]}\n").toString();
+        }
+    }
+
+    private MeshBatcher() {
+    }
+
+    public static Batching batch(Mesh mesh) {
+        Map<String, List<Mesh.Group>> byMaterial = new LinkedHashMap<>();
+        for (Mesh.Group group : mesh.getGroups()) {
+            byMaterial.computeIfAbsent(group.getMaterial(), material -> new ArrayList<>()).add(group);
+        }
+        IntList indices = mesh.getIndices();
+        IntList batchedIndices = new IntList(indices.size());
+        Mesh batched = new Mesh(mesh.getPositions(), mesh.getNormals(), mesh.getTexCoords(), batchedIndices);
+        List<List<ObjectRange>> objects = new ArrayList<>();
+        for (Map.Entry<String, List<Mesh.Group>> material : byMaterial.entrySet()) {
+            int batchStart = batchedIndices.size();
+            List<ObjectRange> ranges = new ArrayList<>();
+            for (Mesh.Group group : material.getValue()) {
+                int firstTriangle = (batchedIndices.size() - batchStart) / 3;
+                ObjectRange last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && Objects.equals(last.name, group.getName())) {
+                    last.triangleCount += group.getIndexCount() / 3;
+                } else {
+                    ranges.add(new ObjectRange(group.getName(), firstTriangle, group.getIndexCount() / 3));
+                }
+                for (int i = group.getFirstIndex(); i < group.getFirstIndex() + group.getIndexCount(); i++) {
+                    batchedIndices.add(indices.get(i));
+                }
+            }
+            batched.addGroup(new Mesh.Group(material.getKey(), material.getKey(), batchStart,
+                    batchedIndices.size() - batchStart));
+            objects.add(ranges);
+        }
+        for (String materialLibrary : mesh.getMaterialLibraries()) {
+            batched.addMaterialLibrary(materialLibrary);
+        }
+        return new Batching(batched, objects);
+    }
+
+}
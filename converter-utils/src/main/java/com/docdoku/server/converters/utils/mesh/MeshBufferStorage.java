@@ -0,0 +1,183 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where the content of {@link FloatList} and {@link IntList} lives.
+ * <p>
+ * Lists stay in Java arrays up to the heap limit, then move to fixed size chunks allocated outside of the heap,
+ * either as direct buffers or mapped from temporary files. Mapped chunks are paged out by the system when
+ * memory runs low, so meshes larger than the heap and the memory are processed out-of-core. Their files are
+ * deleted once mapped and their space is released when the lists are released, see {@link FloatList#release()},
+ * or else when the buffers are garbage collected.
+ */
+public final class MeshBufferStorage {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Logger LOGGER = Logger.getLogger(MeshBufferStorage.class.getName());
+
+    /**
+     * Storage keeping every list in the heap.
+     */
+    public static final MeshBufferStorage HEAP = new MeshBufferStorage(Long.MAX_VALUE, false, null);
+
+    private static final Consumer<ByteBuffer> CLEANER = cleaner();
+
+    private static MeshBufferStorage defaultStorage;
+
+    private final long heapLimit;
+    private final boolean mapped;
+    private final Path directory;
+
+    /**
+     * @param heapLimit size in bytes above which lists are moved out of the heap
+     * @param mapped true to map chunks from temporary files, false for direct buffers
+     * @param directory directory of the temporary files, the default temporary directory if null
+     */
+    public MeshBufferStorage(long heapLimit, boolean mapped, Path directory) {
+        this.heapLimit = heapLimit;
+        this.mapped = mapped;
+        this.directory = directory;
+    }
+
+    /**
+     * @return the storage configured by the {@code mesh_buffer_*} properties
+     */
+    public static synchronized MeshBufferStorage getDefault() {
+        if (defaultStorage == null) {
+            Properties conf = new Properties();
+            try (InputStream inputStream = MeshBufferStorage.class.getResourceAsStream(CONF_PROPERTIES)) {
+                conf.load(inputStream);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, null, e);
+            }
+            String limit = conf.getProperty("mesh_buffer_heap_limit", "").trim();
+            String directory = conf.getProperty("mesh_buffer_directory", "").trim();
+            try {
+                defaultStorage = new MeshBufferStorage(
+                        limit.isEmpty() ? Long.MAX_VALUE : Long.parseLong(limit) * 1024 * 1024,
+                        !"direct".equals(conf.getProperty("mesh_buffer_storage", "mapped").trim()),
+                        directory.isEmpty() ? null : Paths.get(directory));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid mesh_buffer_heap_limit " + limit + ", meshes stay in the heap", e);
+                defaultStorage = HEAP;
+            }
+        }
+        return defaultStorage;
+    }
+
+    /**
+     * @return true if a list of this size in bytes should be kept out of the heap
+     */
+    public boolean isOffHeap(long bytes) {
+        return bytes > heapLimit;
+    }
+
+    /**
+     * Allocate a chunk of an off-heap list, in native byte order.
+     *
+     * @throws UncheckedIOException if the temporary file cannot be created or mapped
+     */
+    ByteBuffer allocate(int bytes) {
+        if (!mapped) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        try {
+            Path file = directory == null
+                    ? Files.createTempFile("mesh-buffer", ".bin")
+                    : Files.createTempFile(Files.createDirectories(directory), "mesh-buffer", ".bin");
+            // The mapping outlives the channel and the deleted file
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map a mesh buffer of " + bytes + " bytes", e);
+        }
+    }
+
+    /**
+     * Free a chunk returned by {@link #allocate}, which must not be used anymore.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            CLEANER.accept(buffer);
+        }
+    }
+
+    /**
+     * @return what frees direct and mapped buffers at once, through the JDK internals as no API does it
+     */
+    private static Consumer<ByteBuffer> cleaner() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> invoke(clean, invoke(cleaner, buffer, null), null);
+            } catch (ReflectiveOperationException | RuntimeException java8Error) {
+                LOGGER.log(Level.FINE, "Mesh buffers are released when garbage collected", java8Error);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Mesh buffers are released when garbage collected", e);
+        }
+        return buffer -> {
+        };
+    }
+
+    private static Object invoke(Method method, Object target, Object argument) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            return argument == null ? method.invoke(target) : method.invoke(target, argument);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.FINE, "Cannot release mesh buffer", e);
+            return null;
+        }
+    }
+
+}
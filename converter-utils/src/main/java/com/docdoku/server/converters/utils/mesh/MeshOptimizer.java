@@ -0,0 +1,396 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Clean up and reorder indexed meshes for rendering.
+ * <p>
+ * Welding merges vertices falling in the same cell of a grid of the given tolerance, so vertices closer than
+ * the tolerance but on both sides of a cell border stay apart. Triangles are reordered for the post-transform
+ * vertex cache with Tom Forsyth's linear-speed algorithm, then vertices are renumbered in order of first use.
+ */
+public class MeshOptimizer {
+
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final float NORMAL_TOLERANCE = 1e-3f;
+    private static final float TEX_COORD_TOLERANCE = 1e-5f;
+    private static final int KEY_SIZE = 5;
+    private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[64];
+
+    static {
+        for (int position = 0; position < CACHE_SIZE; position++) {
+            if (position < 3) {
+                CACHE_SCORES[position] = LAST_TRIANGLE_SCORE;
+            } else {
+                float scaled = 1 - (float) (position - 3) / (CACHE_SIZE - 3);
+                CACHE_SCORES[position] = (float) Math.pow(scaled, CACHE_DECAY_POWER);
+            }
+        }
+        for (int valence = 1; valence < VALENCE_SCORES.length; valence++) {
+            VALENCE_SCORES[valence] = VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+        }
+    }
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Merge vertices with positions, normals and texture coordinates within the tolerances, then remove the
+     * triangles using a vertex twice or having no area.
+     */
+    public static Mesh weld(Mesh mesh, float tolerance) {
+        FloatList positions = mesh.getPositions();
+        FloatList normals = mesh.getNormals();
+        FloatList texCoords = mesh.getTexCoords();
+        boolean hasNormals = mesh.hasNormals();
+        boolean hasTexCoords = mesh.hasTexCoords();
+        int vertexCount = mesh.getVertexCount();
+        float cell = tolerance > 0 ? tolerance : Float.MIN_NORMAL;
+
+        long[] keys = new long[vertexCount * KEY_SIZE];
+        int[] table = new int[Math.max(16, Integer.highestOneBit(Math.max(vertexCount, 8) * 2 - 1) << 1)];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        int[] remap = new int[vertexCount];
+        FloatList weldedPositions = new FloatList(positions.size());
+        FloatList weldedNormals = new FloatList(hasNormals ? normals.size() : 16);
+        FloatList weldedTexCoords = new FloatList(hasTexCoords ? texCoords.size() : 16);
+        long[] key = new long[KEY_SIZE];
+        int count = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            key[0] = Math.round(positions.get(v * 3) / cell);
+            key[1] = Math.round(positions.get(v * 3 + 1) / cell);
+            key[2] = Math.round(positions.get(v * 3 + 2) / cell);
+            key[3] = hasNormals ? normalKey(normals.get(v * 3), normals.get(v * 3 + 1), normals.get(v * 3 + 2)) : 0;
+            key[4] = hasTexCoords ? texCoordKey(texCoords.get(v * 2), texCoords.get(v * 2 + 1)) : 0;
+            int slot = hash(key) & mask;
+            int found;
+            while ((found = table[slot]) >= 0 && !sameKey(keys, found, key)) {
+                slot = (slot + 1) & mask;
+            }
+            if (found < 0) {
+                found = count++;
+                table[slot] = found;
+                System.arraycopy(key, 0, keys, found * KEY_SIZE, KEY_SIZE);
+                weldedPositions.add(positions.get(v * 3), positions.get(v * 3 + 1), positions.get(v * 3 + 2));
+                if (hasNormals) {
+                    weldedNormals.add(normals.get(v * 3), normals.get(v * 3 + 1), normals.get(v * 3 + 2));
+                }
+                if (hasTexCoords) {
+                    weldedTexCoords.add(texCoords.get(v * 2), texCoords.get(v * 2 + 1));
+                }
+            }
+            remap[v] = found;
+        }
+
+        IntList indices = mesh.getIndices();
+        IntList weldedIndices = new IntList(indices.size());
+        Mesh welded = new Mesh(weldedPositions, weldedNormals, weldedTexCoords, weldedIndices);
+        for (String materialLibrary : mesh.getMaterialLibraries()) {
+            welded.addMaterialLibrary(materialLibrary);
+        }
+        for (Mesh.Group group : mesh.getGroups()) {
+            int start = weldedIndices.size();
+            int end = group.getFirstIndex() + group.getIndexCount();
+            for (int i = group.getFirstIndex(); i < end; i += 3) {
+                int a = remap[indices.get(i)];
+                int b = remap[indices.get(i + 1)];
+                int c = remap[indices.get(i + 2)];
+                if (a != b && b != c && c != a && hasArea(weldedPositions, a, b, c)) {
+                    weldedIndices.add(a, b, c);
+                }
+            }
+            if (weldedIndices.size() > start) {
+                welded.addGroup(new Mesh.Group(group.getName(), group.getMaterial(), start,
+                        weldedIndices.size() - start));
+            }
+        }
+        return welded;
+    }
+
+    /**
+     * Reorder the triangles of each group for a vertex cache, then renumber the vertices in order of first use,
+     * dropping unused ones.
+     */
+    public static Mesh optimize(Mesh mesh) {
+        IntList indices = mesh.getIndices();
+        IntList reordered = new IntList(indices.size());
+        for (int i = 0; i < indices.size(); i++) {
+            reordered.add(indices.get(i));
+        }
+        int[] local = new int[mesh.getVertexCount()];
+        Arrays.fill(local, -1);
+        for (Mesh.Group group : mesh.getGroups()) {
+            reorderTriangles(reordered, group.getFirstIndex(), group.getIndexCount() / 3, local);
+        }
+
+        int[] remap = new int[mesh.getVertexCount()];
+        Arrays.fill(remap, -1);
+        FloatList positions = mesh.getPositions();
+        FloatList normals = mesh.getNormals();
+        FloatList texCoords = mesh.getTexCoords();
+        boolean hasNormals = mesh.hasNormals();
+        boolean hasTexCoords = mesh.hasTexCoords();
+        FloatList newPositions = new FloatList(positions.size());
+        FloatList newNormals = new FloatList(hasNormals ? normals.size() : 16);
+        FloatList newTexCoords = new FloatList(hasTexCoords ? texCoords.size() : 16);
+        IntList newIndices = new IntList(reordered.size());
+        for (int i = 0; i < reordered.size(); i++) {
+            int index = reordered.get(i);
+            if (remap[index] < 0) {
+                remap[index] = newPositions.size() / 3;
+                newPositions.add(positions.get(index * 3), positions.get(index * 3 + 1), positions.get(index * 3 + 2));
+                if (hasNormals) {
+                    newNormals.add(normals.get(index * 3), normals.get(index * 3 + 1), normals.get(index * 3 + 2));
+                }
+                if (hasTexCoords) {
+                    newTexCoords.add(texCoords.get(index * 2), texCoords.get(index * 2 + 1));
+                }
+            }
+            newIndices.add(remap[index]);
+        }
+        Mesh optimized = new Mesh(newPositions, newNormals, newTexCoords, newIndices);
+        for (Mesh.Group group : mesh.getGroups()) {
+            optimized.addGroup(group);
+        }
+        for (String materialLibrary : mesh.getMaterialLibraries()) {
+            optimized.addMaterialLibrary(materialLibrary);
+        }
+        return optimized;
+    }
+
+    /**
+     * Average cache miss ratio: vertices transformed per triangle with a FIFO post-transform cache, between
+     * 0.5 for an ideal order and 3.
+     */
+    public static double acmr(IntList indices, int vertexCount, int cacheSize) {
+        if (indices.size() == 0) {
+            return 0;
+        }
+        // A vertex is cached while fewer than cacheSize misses happened since its own
+        int[] missTime = new int[vertexCount];
+        Arrays.fill(missTime, Integer.MIN_VALUE / 2);
+        int misses = 0;
+        for (int i = 0; i < indices.size(); i++) {
+            int v = indices.get(i);
+            if (misses - missTime[v] >= cacheSize) {
+                missTime[v] = misses++;
+            }
+        }
+        return (double) misses / (indices.size() / 3);
+    }
+
+    private static void reorderTriangles(IntList indices, int first, int triangleCount, int[] local) {
+        if (triangleCount < 2) {
+            return;
+        }
+        // Number the vertices of the group locally
+        int[] globals = new int[triangleCount * 3];
+        int vertexCount = 0;
+        int[] corners = new int[triangleCount * 3];
+        for (int i = 0; i < corners.length; i++) {
+            int global = indices.get(first + i);
+            if (local[global] < 0) {
+                local[global] = vertexCount;
+                globals[vertexCount++] = global;
+            }
+            corners[i] = local[global];
+        }
+        for (int i = 0; i < vertexCount; i++) {
+            local[globals[i]] = -1;
+        }
+
+        // Triangles of each vertex, as offsets in a shared array
+        int[] valence = new int[vertexCount];
+        for (int corner : corners) {
+            valence[corner]++;
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] = offsets[v] + valence[v];
+        }
+        int[] adjacency = new int[corners.length];
+        int[] filled = new int[vertexCount];
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                int v = corners[t * 3 + k];
+                adjacency[offsets[v] + filled[v]++] = t;
+            }
+        }
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = score(-1, valence[v]);
+        }
+        float[] triangleScore = new float[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScore[t] = vertexScore[corners[t * 3]] + vertexScore[corners[t * 3 + 1]]
+                    + vertexScore[corners[t * 3 + 2]];
+        }
+        boolean[] emitted = new boolean[triangleCount];
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] output = new int[corners.length];
+        int cursor = 0;
+        int best = 0;
+        for (int t = 1; t < triangleCount; t++) {
+            if (triangleScore[t] > triangleScore[best]) {
+                best = t;
+            }
+        }
+
+        for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+            if (best < 0) {
+                // Nothing left around the cache, continue with the next triangle in input order
+                while (emitted[cursor]) {
+                    cursor++;
+                }
+                best = cursor;
+            }
+            emitted[best] = true;
+            System.arraycopy(corners, best * 3, output, emittedCount * 3, 3);
+
+            // Move the vertices of the triangle to the front of the cache
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = corners[best * 3 + k];
+                newCache[newCount++] = v;
+                removeTriangle(adjacency, offsets, valence, v, best);
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            // Update the scores around the cache, and find the best triangle among them
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                cachePosition[v] = i < CACHE_SIZE ? i : -1;
+                float score = score(cachePosition[v], valence[v]);
+                float delta = score - vertexScore[v];
+                vertexScore[v] = score;
+                for (int j = offsets[v]; j < offsets[v] + valence[v]; j++) {
+                    triangleScore[adjacency[j]] += delta;
+                }
+            }
+            best = -1;
+            float bestScore = -1;
+            for (int i = 0; i < Math.min(cacheCount, CACHE_SIZE); i++) {
+                int v = cache[i];
+                for (int j = offsets[v]; j < offsets[v] + valence[v]; j++) {
+                    int t = adjacency[j];
+                    if (triangleScore[t] > bestScore) {
+                        bestScore = triangleScore[t];
+                        best = t;
+                    }
+                }
+            }
+            cacheCount = Math.min(cacheCount, CACHE_SIZE);
+        }
+
+        for (int i = 0; i < output.length; i++) {
+            indices.set(first + i, globals[output[i]]);
+        }
+    }
+
+    private static void removeTriangle(int[] adjacency, int[] offsets, int[] valence, int v, int t) {
+        int start = offsets[v];
+        int end = start + valence[v];
+        for (int j = start; j < end; j++) {
+            if (adjacency[j] == t) {
+                adjacency[j] = adjacency[end - 1];
+                valence[v]--;
+                return;
+            }
+        }
+    }
+
+    private static float score(int cachePosition, int valence) {
+        if (valence == 0) {
+            return -1;
+        }
+        float valenceBoost = valence < VALENCE_SCORES.length ? VALENCE_SCORES[valence]
+                : VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+        return cachePosition >= 0 ? CACHE_SCORES[cachePosition] + valenceBoost : valenceBoost;
+    }
+
+    private static long normalKey(float x, float y, float z) {
+        // Unit normal components fit in 21 bits each at this tolerance
+        long kx = Math.round(x / NORMAL_TOLERANCE) & 0x1fffff;
+        long ky = Math.round(y / NORMAL_TOLERANCE) & 0x1fffff;
+        long kz = Math.round(z / NORMAL_TOLERANCE) & 0x1fffff;
+        return kx << 42 | ky << 21 | kz;
+    }
+
+    private static long texCoordKey(float u, float v) {
+        // Texture coordinates repeat over a few units, 32 bits each are plenty at this tolerance
+        long ku = Math.round(u / TEX_COORD_TOLERANCE) & 0xffffffffL;
+        long kv = Math.round(v / TEX_COORD_TOLERANCE) & 0xffffffffL;
+        return ku << 32 | kv;
+    }
+
+    private static boolean sameKey(long[] keys, int vertex, long[] key) {
+        int offset = vertex * KEY_SIZE;
+        return keys[offset] == key[0] && keys[offset + 1] == key[1] && keys[offset + 2] == key[2]
+                && keys[offset + 3] == key[3] && keys[offset + 4] == key[4];
+    }
+
+    private static int hash(long[] key) {
+        long h = 0;
+        for (long k : key) {
+            h = (h + k) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 32;
+        }
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static boolean hasArea(FloatList positions, int a, int b, int c) {
+        float ux = positions.get(b * 3) - positions.get(a * 3);
+        float uy = positions.get(b * 3 + 1) - positions.get(a * 3 + 1);
+        float uz = positions.get(b * 3 + 2) - positions.get(a * 3 + 2);
+        float vx = positions.get(c * 3) - positions.get(a * 3);
+        float vy = positions.get(c * 3 + 1) - positions.get(a * 3 + 1);
+        float vz = positions.get(c * 3 + 2) - positions.get(a * 3 + 2);
+        float nx = uy * vz - uz * vy;
+        float ny = uz * vx - ux * vz;
+        float nz = ux * vy - uy * vx;
+        return nx * nx + ny * ny + nz * nz > 0;
+    }
+
+}
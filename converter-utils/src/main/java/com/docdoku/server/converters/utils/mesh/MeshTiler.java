@@ -0,0 +1,297 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Split a mesh into the tiles of an octree, for viewers streaming the visible parts of large models first.
+ * <p>
+ * Cells holding more than a maximum number of triangles are split into 8 cubes. Each triangle stays in the
+ * deepest cell containing it entirely, so large triangles land in the coarse tiles and a cell keeps the triangles
+ * crossing its center. Tiles are refined by addition: a tile and its ancestors are displayed together, and the
+ * geometric error of a tile is the size of the geometry missing while its children are not loaded.
+ */
+public class MeshTiler {
+
+    /**
+     * Node of the tile tree, identified by the octants leading to it from the root, such as {@code 3-5}.
+     */
+    public static class Tile {
+        private final String id;
+        private final int depth;
+        private final int[] triangles;
+        private final float[] bounds;
+        private final List<Tile> children;
+        private final double geometricError;
+
+        Tile(String id, int depth, int[] triangles, float[] bounds, List<Tile> children, double geometricError) {
+            this.id = id;
+            this.depth = depth;
+            this.triangles = triangles;
+            this.bounds = bounds;
+            this.children = Collections.unmodifiableList(children);
+            this.geometricError = geometricError;
+        }
+
+        /**
+         * @return the octants from the root separated by dashes, empty for the root
+         */
+        public String getId() {
+            return id;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the number of triangles of the tile itself, without its children
+         */
+        public int getTriangleCount() {
+            return triangles.length;
+        }
+
+        /**
+         * @return the minimum then maximum coordinates of the triangles of the tile and its children
+         */
+        public float[] getBounds() {
+            return bounds.clone();
+        }
+
+        public List<Tile> getChildren() {
+            return children;
+        }
+
+        /**
+         * @return the largest diagonal of the children, 0 for leaves
+         */
+        public double getGeometricError() {
+            return geometricError;
+        }
+    }
+
+    private final Mesh mesh;
+    private final int maxTriangles;
+    private final int maxDepth;
+    private final int[] triangleGroups;
+    private int[] remap;
+
+    /**
+     * @param maxTriangles triangles over which a cell is split
+     * @param maxDepth     depth of the deepest tiles, the root being at depth 0
+     */
+    public MeshTiler(Mesh mesh, int maxTriangles, int maxDepth) {
+        if (maxTriangles <= 0 || maxDepth < 0) {
+            throw new IllegalArgumentException("Invalid tiling limits " + maxTriangles + ", " + maxDepth);
+        }
+        this.mesh = mesh;
+        this.maxTriangles = maxTriangles;
+        this.maxDepth = maxDepth;
+        triangleGroups = new int[mesh.getTriangleCount()];
+        Arrays.fill(triangleGroups, -1);
+        List<Mesh.Group> groups = mesh.getGroups();
+        for (int g = 0; g < groups.size(); g++) {
+            Mesh.Group group = groups.get(g);
+            Arrays.fill(triangleGroups, group.getFirstIndex() / 3,
+                    (group.getFirstIndex() + group.getIndexCount()) / 3, g);
+        }
+    }
+
+    /**
+     * @return the root tile
+     */
+    public Tile tile() {
+        float[] bounds = mesh.getBounds();
+        float size = Math.max(bounds[3] - bounds[0], Math.max(bounds[4] - bounds[1], bounds[5] - bounds[2]));
+        float[] cell = {bounds[0], bounds[1], bounds[2], bounds[0] + size, bounds[1] + size, bounds[2] + size};
+        int[] triangles = new int[mesh.getTriangleCount()];
+        for (int t = 0; t < triangles.length; t++) {
+            triangles[t] = t;
+        }
+        return tile("", 0, cell, triangles);
+    }
+
+    /**
+     * @return the triangles of a tile, without those of its children, with the groups of the mesh
+     */
+    public Mesh extract(Tile tile) {
+        FloatList positions = mesh.getPositions();
+        FloatList normals = mesh.getNormals();
+        boolean hasNormals = mesh.hasNormals();
+        IntList indices = mesh.getIndices();
+        if (remap == null) {
+            remap = new int[mesh.getVertexCount()];
+            Arrays.fill(remap, -1);
+        }
+        FloatList outPositions = new FloatList();
+        FloatList outNormals = new FloatList();
+        IntList outIndices = new IntList(tile.triangles.length * 3);
+        Mesh tileMesh = new Mesh(outPositions, outNormals, outIndices);
+        int currentGroup = Integer.MIN_VALUE;
+        int groupStart = 0;
+        for (int t : tile.triangles) {
+            if (triangleGroups[t] != currentGroup) {
+                addGroup(tileMesh, currentGroup, groupStart, outIndices.size());
+                currentGroup = triangleGroups[t];
+                groupStart = outIndices.size();
+            }
+            for (int k = 0; k < 3; k++) {
+                int v = indices.get(t * 3 + k);
+                if (remap[v] < 0) {
+                    remap[v] = outPositions.size() / 3;
+                    outPositions.add(positions.get(v * 3), positions.get(v * 3 + 1), positions.get(v * 3 + 2));
+                    if (hasNormals) {
+                        outNormals.add(normals.get(v * 3), normals.get(v * 3 + 1), normals.get(v * 3 + 2));
+                    }
+                }
+                outIndices.add(remap[v]);
+            }
+        }
+        addGroup(tileMesh, currentGroup, groupStart, outIndices.size());
+        // Reset only the entries used by this tile
+        for (int t : tile.triangles) {
+            for (int k = 0; k < 3; k++) {
+                remap[indices.get(t * 3 + k)] = -1;
+            }
+        }
+        for (String materialLibrary : mesh.getMaterialLibraries()) {
+            tileMesh.addMaterialLibrary(materialLibrary);
+        }
+        return tileMesh;
+    }
+
+    private Tile tile(String id, int depth, float[] cell, int[] triangles) {
+        if (triangles.length <= maxTriangles || depth >= maxDepth) {
+            return new Tile(id, depth, triangles, bounds(triangles), Collections.<Tile>emptyList(), 0);
+        }
+        float[] center = new float[3];
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = (cell[axis] + cell[axis + 3]) / 2;
+        }
+        // Octant of each triangle, -1 for those crossing the center planes
+        int[] octants = new int[triangles.length];
+        int[] counts = new int[9];
+        float[] box = new float[6];
+        for (int i = 0; i < triangles.length; i++) {
+            triangleBounds(triangles[i], box);
+            int octant = 0;
+            for (int axis = 0; axis < 3 && octant >= 0; axis++) {
+                if (box[axis] >= center[axis]) {
+                    octant |= 1 << axis;
+                } else if (box[axis + 3] > center[axis]) {
+                    octant = -1;
+                }
+            }
+            octants[i] = octant;
+            counts[octant + 1]++;
+        }
+        if (counts[0] == triangles.length) {
+            return new Tile(id, depth, triangles, bounds(triangles), Collections.<Tile>emptyList(), 0);
+        }
+
+        int[][] split = new int[9][];
+        for (int octant = -1; octant < 8; octant++) {
+            split[octant + 1] = new int[counts[octant + 1]];
+        }
+        int[] filled = new int[9];
+        for (int i = 0; i < triangles.length; i++) {
+            int slot = octants[i] + 1;
+            split[slot][filled[slot]++] = triangles[i];
+        }
+        List<Tile> children = new ArrayList<>();
+        float[] bounds = bounds(split[0]);
+        double geometricError = 0;
+        for (int octant = 0; octant < 8; octant++) {
+            if (split[octant + 1].length == 0) {
+                continue;
+            }
+            float[] childCell = new float[6];
+            for (int axis = 0; axis < 3; axis++) {
+                boolean upper = (octant & 1 << axis) != 0;
+                childCell[axis] = upper ? center[axis] : cell[axis];
+                childCell[axis + 3] = upper ? cell[axis + 3] : center[axis];
+            }
+            Tile child = tile(id.isEmpty() ? String.valueOf(octant) : id + "-" + octant, depth + 1, childCell,
+                    split[octant + 1]);
+            children.add(child);
+            union(bounds, child.bounds);
+            geometricError = Math.max(geometricError, diagonal(child.bounds));
+        }
+        return new Tile(id, depth, split[0], bounds, children, geometricError);
+    }
+
+    private void addGroup(Mesh tileMesh, int group, int start, int end) {
+        if (end > start) {
+            Mesh.Group sourceGroup = group >= 0 ? mesh.getGroups().get(group) : null;
+            tileMesh.addGroup(new Mesh.Group(sourceGroup != null ? sourceGroup.getName() : null,
+                    sourceGroup != null ? sourceGroup.getMaterial() : null, start, end - start));
+        }
+    }
+
+    private void triangleBounds(int t, float[] box) {
+        FloatList positions = mesh.getPositions();
+        IntList indices = mesh.getIndices();
+        Arrays.fill(box, 0, 3, Float.POSITIVE_INFINITY);
+        Arrays.fill(box, 3, 6, Float.NEGATIVE_INFINITY);
+        for (int k = 0; k < 3; k++) {
+            int v = indices.get(t * 3 + k) * 3;
+            for (int axis = 0; axis < 3; axis++) {
+                float value = positions.get(v + axis);
+                if (value < box[axis]) {
+                    box[axis] = value;
+                }
+                if (value > box[axis + 3]) {
+                    box[axis + 3] = value;
+                }
+            }
+        }
+    }
+
+    private float[] bounds(int[] triangles) {
+        float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        float[] box = new float[6];
+        for (int t : triangles) {
+            triangleBounds(t, box);
+            union(bounds, box);
+        }
+        return bounds;
+    }
+
+    private static void union(float[] bounds, float[] box) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[axis] = Math.min(bounds[axis], box[axis]);
+            bounds[axis + 3] = Math.max(bounds[axis + 3], box[axis + 3]);
+        }
+    }
+
+    private static double diagonal(float[] bounds) {
+        double dx = bounds[3] - bounds[0];
+        double dy = bounds[4] - bounds[1];
+        double dz = bounds[5] - bounds[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read the diffuse color and opacity of the materials of an MTL file.
+ */
+public class MtlReader {
+
+    private MtlReader() {
+    }
+
+    /**
+     * @return the materials by name, in file order
+     */
+    public static Map<String, Material> read(Path mtlFile) throws IOException {
+        Map<String, Material> materials = new LinkedHashMap<>();
+        Material material = null;
+        try (BufferedReader reader = Files.newBufferedReader(mtlFile, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                try {
+                    if ("newmtl".equals(tokens[0]) && tokens.length > 1) {
+                        material = new Material(line.trim().substring(6).trim());
+                        materials.put(material.getName(), material);
+                    } else if (material == null) {
+                        continue;
+                    } else if ("Kd".equals(tokens[0]) && tokens.length > 3) {
+                        material.setDiffuse(Float.parseFloat(tokens[1]), Float.parseFloat(tokens[2]),
+                                Float.parseFloat(tokens[3]));
+                    } else if ("d".equals(tokens[0]) && tokens.length > 1) {
+                        material.setOpacity(Float.parseFloat(tokens[1]));
+                    } else if ("Tr".equals(tokens[0]) && tokens.length > 1) {
+                        material.setOpacity(1 - Float.parseFloat(tokens[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid material line \"" + line + "\" in " + mtlFile, e);
+                }
+            }
+        }
+        return materials;
+    }
+
+}
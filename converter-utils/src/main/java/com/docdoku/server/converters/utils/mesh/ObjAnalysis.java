@@ -0,0 +1,227 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts, bounding boxes and problems found by {@link ObjAnalyzer} in an OBJ file.
+ * <p>
+ * Bounding boxes are {@code {minX, minY, minZ, maxX, maxY, maxZ}}, over the vertices used by faces, and
+ * empty boxes have their minimum above their maximum.
+ */
+public class ObjAnalysis {
+
+    static final int MAX_PROBLEMS = 20;
+
+    /**
+     * Faces and bounds of the faces following a {@code g} or {@code o} line with the same name.
+     */
+    public static class Group {
+        private final String name;
+        private final float[] bounds = emptyBounds();
+        private long faceCount;
+        private long triangleCount;
+
+        Group(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of the group, empty for faces before the first group
+         */
+        public String getName() {
+            return name;
+        }
+
+        public float[] getBounds() {
+            return bounds.clone();
+        }
+
+        public long getFaceCount() {
+            return faceCount;
+        }
+
+        public long getTriangleCount() {
+            return triangleCount;
+        }
+
+        void addFace(int corners) {
+            faceCount++;
+            triangleCount += Math.max(corners - 2, 0);
+        }
+
+        void include(float x, float y, float z) {
+            ObjAnalysis.include(bounds, x, y, z);
+        }
+    }
+
+    private final long fileSize;
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final float[] bounds = emptyBounds();
+    private final List<String> problems = new ArrayList<>();
+    long vertexCount;
+    long normalCount;
+    long textureCoordinateCount;
+    long faceCount;
+    long triangleCount;
+    long nanCoordinateCount;
+    long invalidIndexCount;
+
+    ObjAnalysis(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getVertexCount() {
+        return vertexCount;
+    }
+
+    public long getNormalCount() {
+        return normalCount;
+    }
+
+    public long getTextureCoordinateCount() {
+        return textureCoordinateCount;
+    }
+
+    public long getFaceCount() {
+        return faceCount;
+    }
+
+    /**
+     * @return the number of triangles of the faces once triangulated as fans
+     */
+    public long getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return the number of vertices and normals with a NaN or infinite coordinate
+     */
+    public long getNanCoordinateCount() {
+        return nanCoordinateCount;
+    }
+
+    /**
+     * @return the number of face indices that are zero or refer to missing vertices, texture coordinates or
+     * normals
+     */
+    public long getInvalidIndexCount() {
+        return invalidIndexCount;
+    }
+
+    /**
+     * @return true if faces only refer to existing, finite vertices
+     */
+    public boolean isValid() {
+        return nanCoordinateCount == 0 && invalidIndexCount == 0;
+    }
+
+    /**
+     * @return the first problems found, with their offset in the file
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    public float[] getBounds() {
+        return bounds.clone();
+    }
+
+    public List<Group> getGroups() {
+        return Collections.unmodifiableList(new ArrayList<>(groups.values()));
+    }
+
+    /**
+     * @return the analysis as a JSON object, with the bounds of each group
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(256 + groups.size() * 96);
+        json.append("{\"vertices\":").append(vertexCount)
+                .append(",\"normals\":").append(normalCount)
+                .append(",\"textureCoordinates\":").append(textureCoordinateCount)
+                .append(",\"faces\":").append(faceCount)
+                .append(",\"triangles\":").append(triangleCount)
+                .append(",\"nanCoordinates\":").append(nanCoordinateCount)
+                .append(",\"invalidIndices\":").append(invalidIndexCount)
+                .append(",\"valid\":").append(isValid())
+                .append(",\"bounds\":");
+        Json.array(json, bounds).append(",\"groups\":[");
+        boolean first = true;
+        for (Group group : groups.values()) {
+            json.append(first ? "" : ",").append("{\"name\":").append(Json.quote(group.name))
+                    .append(",\"faces\":").append(group.faceCount)
+                    .append(",\"triangles\":").append(group.triangleCount)
+                    .append(",\"bounds\":");
+            Json.array(json, group.bounds).append('}');
+            first = false;
+        }
+        json.append("],\"problems\":[");
+        for (int i = 0; i < problems.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(Json.quote(problems.get(i)));
+        }
+        return json.append("]}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return vertexCount + " vertices, " + faceCount + " faces, " + groups.size() + " groups"
+                + (isValid() ? "" : ", " + nanCoordinateCount + " NaN coordinates, " + invalidIndexCount
+                + " invalid indices");
+    }
+
+    Group group(String name) {
+        return groups.computeIfAbsent(name, Group::new);
+    }
+
+    void include(float x, float y, float z) {
+        include(bounds, x, y, z);
+    }
+
+    void problem(String problem) {
+        if (problems.size() < MAX_PROBLEMS) {
+            problems.add(problem);
+        }
+    }
+
+    private static float[] emptyBounds() {
+        return new float[]{Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    }
+
+    private static void include(float[] bounds, float x, float y, float z) {
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.min(bounds[2], z);
+        bounds[3] = Math.max(bounds[3], x);
+        bounds[4] = Math.max(bounds[4], y);
+        bounds[5] = Math.max(bounds[5], z);
+    }
+
+}
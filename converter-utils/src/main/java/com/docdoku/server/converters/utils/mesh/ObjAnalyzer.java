@@ -0,0 +1,148 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Scan an OBJ file in a single pass, counting its elements and checking its faces without building a mesh.
+ * <p>
+ * Only vertex positions are kept, in a {@link FloatList}, to compute the bounds of the groups.
+ */
+public class ObjAnalyzer {
+
+    private final ObjAnalysis analysis;
+    private final FloatList positions = new FloatList();
+    private final byte[] keyword = new byte[8];
+    private ObjAnalysis.Group group;
+
+    private ObjAnalyzer(long fileSize) {
+        analysis = new ObjAnalysis(fileSize);
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or a number is malformed
+     */
+    public static ObjAnalysis analyze(Path objFile) throws IOException {
+        ObjAnalyzer analyzer = new ObjAnalyzer(Files.size(objFile));
+        try (MappedAsciiReader input = new MappedAsciiReader(objFile)) {
+            analyzer.scan(input);
+        }
+        return analyzer.analysis;
+    }
+
+    private void scan(MappedAsciiReader input) throws IOException {
+        int length;
+        while ((length = input.readWord(keyword)) > 0) {
+            if (length == 1 && keyword[0] == 'v') {
+                readVertex(input);
+            } else if (length == 2 && keyword[0] == 'v' && keyword[1] == 'n') {
+                analysis.normalCount++;
+                if (!isFinite(input.readFloat(), input.readFloat(), input.readFloat())) {
+                    nan(input, "Normal");
+                }
+            } else if (length == 2 && keyword[0] == 'v' && keyword[1] == 't') {
+                analysis.textureCoordinateCount++;
+            } else if (length == 1 && keyword[0] == 'f') {
+                readFace(input);
+                continue;
+            } else if (length == 1 && (keyword[0] == 'g' || keyword[0] == 'o')) {
+                String line = input.readLine();
+                group = analysis.group(line == null ? "" : line.trim());
+                continue;
+            }
+            input.skipLine();
+        }
+    }
+
+    private void readVertex(MappedAsciiReader input) throws IOException {
+        analysis.vertexCount++;
+        float x = input.readFloat();
+        float y = input.readFloat();
+        float z = input.readFloat();
+        if (!isFinite(x, y, z)) {
+            nan(input, "Vertex");
+        }
+        positions.add(x, y, z);
+    }
+
+    private void readFace(MappedAsciiReader input) throws IOException {
+        if (group == null) {
+            group = analysis.group("");
+        }
+        int vertices = positions.size() / 3;
+        int corners = 0;
+        int b;
+        while ((b = input.skipSpaces()) >= 0 && b != '\n' && b != '#') {
+            int vertex = check(input.readLong(), vertices, "vertex", input);
+            if (input.peek() == '/') {
+                input.read();
+                int next = input.peek();
+                if (next != '/' && next >= 0 && next != ' ' && next != '\t' && next != '\r' && next != '\n') {
+                    check(input.readLong(), analysis.textureCoordinateCount, "texture coordinate", input);
+                }
+                if (input.peek() == '/') {
+                    input.read();
+                    check(input.readLong(), analysis.normalCount, "normal", input);
+                }
+            }
+            if (vertex >= 0) {
+                float x = positions.get(vertex * 3);
+                float y = positions.get(vertex * 3 + 1);
+                float z = positions.get(vertex * 3 + 2);
+                if (isFinite(x, y, z)) {
+                    group.include(x, y, z);
+                    analysis.include(x, y, z);
+                }
+            }
+            corners++;
+        }
+        input.skipLine();
+        group.addFace(corners);
+        analysis.faceCount++;
+        analysis.triangleCount += Math.max(corners - 2, 0);
+    }
+
+    /**
+     * @return the zero-based index, -1 if it is out of range
+     */
+    private int check(long index, long count, String element, MappedAsciiReader input) {
+        long resolved = index < 0 ? count + index : index - 1;
+        if (index == 0 || resolved < 0 || resolved >= count) {
+            analysis.invalidIndexCount++;
+            analysis.problem("Invalid " + element + " index " + index + " at offset " + input.getPosition());
+            return -1;
+        }
+        return (int) resolved;
+    }
+
+    private void nan(MappedAsciiReader input, String element) {
+        analysis.nanCoordinateCount++;
+        analysis.problem(element + " with a non finite coordinate at offset " + input.getPosition());
+    }
+
+    private static boolean isFinite(float x, float y, float z) {
+        return Float.isFinite(x) && Float.isFinite(y) && Float.isFinite(z);
+    }
+
+}
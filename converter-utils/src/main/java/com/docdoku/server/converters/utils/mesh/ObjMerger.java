@@ -0,0 +1,128 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Concatenates OBJ files into one, each part in its own group.
+ * <p>
+ * Vertex, texture coordinate and normal indices of the faces are shifted by the elements of the previous
+ * parts. Relative (negative) indices still point to the right elements and are kept as is. Material
+ * libraries, objects and groups of the parts are dropped.
+ */
+public final class ObjMerger {
+
+    private final BufferedWriter writer;
+    private long vertices;
+    private long textureCoordinates;
+    private long normals;
+
+    private ObjMerger(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @param parts      OBJ files to merge
+     * @param groupNames name of the group of each part
+     * @param output     merged OBJ file
+     */
+    public static void merge(List<Path> parts, List<String> groupNames, Path output) throws IOException {
+        if (parts.size() != groupNames.size()) {
+            throw new IllegalArgumentException("One group name is needed per part");
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            ObjMerger merger = new ObjMerger(writer);
+            for (int i = 0; i < parts.size(); i++) {
+                merger.append(parts.get(i), groupNames.get(i));
+            }
+        }
+    }
+
+    private void append(Path part, String groupName) throws IOException {
+        writer.write("g ");
+        writer.write(groupName.replace('\n', ' '));
+        writer.write('\n');
+        long partVertices = 0;
+        long partTextureCoordinates = 0;
+        long partNormals = 0;
+        try (BufferedReader reader = Files.newBufferedReader(part, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("v ")) {
+                    partVertices++;
+                } else if (line.startsWith("vt ")) {
+                    partTextureCoordinates++;
+                } else if (line.startsWith("vn ")) {
+                    partNormals++;
+                } else if (line.startsWith("f ") || line.startsWith("l ") || line.startsWith("p ")) {
+                    line = shiftIndices(line, part);
+                } else if (line.startsWith("mtllib ") || line.startsWith("o ") || line.startsWith("g ")) {
+                    continue;
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        vertices += partVertices;
+        textureCoordinates += partTextureCoordinates;
+        normals += partNormals;
+    }
+
+    private String shiftIndices(String line, Path part) throws IOException {
+        if (vertices == 0 && textureCoordinates == 0 && normals == 0) {
+            return line;
+        }
+        StringBuilder shifted = new StringBuilder(line.length() + 16);
+        String[] tokens = line.trim().split("\\s+");
+        shifted.append(tokens[0]);
+        for (int i = 1; i < tokens.length; i++) {
+            shifted.append(' ');
+            String[] indices = tokens[i].split("/", -1);
+            for (int j = 0; j < indices.length; j++) {
+                if (j > 0) {
+                    shifted.append('/');
+                }
+                long offset = j == 0 ? vertices : j == 1 ? textureCoordinates : normals;
+                try {
+                    shifted.append(shift(indices[j], offset));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid element \"" + line + "\" in " + part, e);
+                }
+            }
+        }
+        return shifted.toString();
+    }
+
+    private static String shift(String index, long offset) {
+        if (index.isEmpty() || index.charAt(0) == '-') {
+            return index;
+        }
+        return Long.toString(Long.parseLong(index) + offset);
+    }
+
+}
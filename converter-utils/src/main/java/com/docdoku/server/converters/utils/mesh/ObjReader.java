@@ -0,0 +1,207 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Read a Wavefront OBJ file into an indexed {@link Mesh}.
+ * <p>
+ * Polygons are triangulated as fans and each distinct combination of position, texture coordinates and normal
+ * becomes one vertex. A new group starts on every {@code g}, {@code o} or {@code usemtl} line.
+ */
+public class ObjReader {
+
+    private static final int NONE = -1;
+
+    private final FloatList filePositions = new FloatList();
+    private final FloatList fileNormals = new FloatList();
+    private final FloatList fileTexCoords = new FloatList();
+    private final FloatList positions = new FloatList();
+    private final FloatList normals = new FloatList();
+    private final FloatList texCoords = new FloatList();
+    private final IntList indices = new IntList();
+    private final LongIntMap vertices = new LongIntMap(1 << 16);
+    // Distinct pairs of texture coordinates and normal, numbered to fit the vertex keys
+    private final LongIntMap attributes = new LongIntMap(1 << 10);
+    private final Mesh mesh = new Mesh(positions, normals, texCoords, indices);
+    private final byte[] keyword = new byte[8];
+    private final int[] face = new int[3];
+    private boolean normalsUsed;
+    private boolean texCoordsUsed;
+    private String groupName;
+    private String material;
+    private int groupStart;
+
+    private ObjReader() {
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or refers to missing vertices
+     */
+    public static Mesh read(Path objFile) throws IOException {
+        ObjReader reader = new ObjReader();
+        boolean read = false;
+        try (MappedAsciiReader input = new MappedAsciiReader(objFile)) {
+            reader.parse(input);
+            read = true;
+        } finally {
+            // The vertices of the file are copied to the mesh as they are referenced by faces
+            reader.filePositions.release();
+            reader.fileNormals.release();
+            reader.fileTexCoords.release();
+            if (!read) {
+                reader.mesh.release();
+            }
+        }
+        return reader.mesh;
+    }
+
+    private void parse(MappedAsciiReader input) throws IOException {
+        int length;
+        while ((length = input.readWord(keyword)) > 0) {
+            if (is(length, 'v')) {
+                filePositions.add(input.readFloat(), input.readFloat(), input.readFloat());
+            } else if (is(length, 'v', 'n')) {
+                fileNormals.add(input.readFloat(), input.readFloat(), input.readFloat());
+            } else if (is(length, 'v', 't')) {
+                float u = input.readFloat();
+                // v is optional, w is ignored
+                int b = input.skipSpaces();
+                fileTexCoords.add(u, b >= 0 && b != '\n' && b != '#' ? input.readFloat() : 0);
+            } else if (is(length, 'f')) {
+                readFace(input);
+                continue;
+            } else if (is(length, 'g') || is(length, 'o')) {
+                startGroup(rest(input), material);
+                continue;
+            } else if (is(length, 'u', 's', 'e', 'm', 't', 'l')) {
+                startGroup(groupName, rest(input));
+                continue;
+            } else if (is(length, 'm', 't', 'l', 'l', 'i', 'b')) {
+                mesh.addMaterialLibrary(rest(input));
+                continue;
+            }
+            input.skipLine();
+        }
+        startGroup(null, null);
+        if (!normalsUsed) {
+            normals.clear();
+        }
+        if (!texCoordsUsed) {
+            texCoords.clear();
+        }
+    }
+
+    private boolean is(int length, char... expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readFace(MappedAsciiReader input) throws IOException {
+        int count = 0;
+        int b;
+        while ((b = input.skipSpaces()) >= 0 && b != '\n' && b != '#') {
+            int position = resolve(input.readLong(), filePositions.size() / 3, input);
+            int normal = NONE;
+            int texCoord = NONE;
+            if (input.peek() == '/') {
+                input.read();
+                if (input.peek() != '/' && !isSeparator(input.peek())) {
+                    texCoord = resolve(input.readLong(), fileTexCoords.size() / 2, input);
+                }
+                if (input.peek() == '/') {
+                    input.read();
+                    normal = resolve(input.readLong(), fileNormals.size() / 3, input);
+                }
+            }
+            int vertex = vertex(position, texCoord, normal);
+            if (count < 2) {
+                face[count] = vertex;
+            } else {
+                face[2] = vertex;
+                indices.add(face[0], face[1], face[2]);
+                face[1] = vertex;
+            }
+            count++;
+        }
+        input.skipLine();
+    }
+
+    private static String rest(MappedAsciiReader input) throws IOException {
+        String line = input.readLine();
+        return line == null ? "" : line.trim();
+    }
+
+    private static boolean isSeparator(int b) {
+        return b < 0 || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static int resolve(long index, int count, MappedAsciiReader input) throws IOException {
+        long resolved = index < 0 ? count + index : index - 1;
+        if (index == 0 || resolved < 0 || resolved >= count) {
+            throw new IOException("Invalid vertex index " + index + " at offset " + input.getPosition());
+        }
+        return (int) resolved;
+    }
+
+    private int vertex(int position, int texCoord, int normal) {
+        int attribute = attributes.putIfAbsent((texCoord + 1L) << 32 | (normal + 1L), attributes.size());
+        long key = (long) position << 32 | attribute;
+        int vertex = vertices.putIfAbsent(key, positions.size() / 3);
+        if (vertex == positions.size() / 3) {
+            positions.add(filePositions.get(position * 3), filePositions.get(position * 3 + 1),
+                    filePositions.get(position * 3 + 2));
+            if (texCoord == NONE) {
+                texCoords.add(0, 0);
+            } else {
+                texCoordsUsed = true;
+                texCoords.add(fileTexCoords.get(texCoord * 2), fileTexCoords.get(texCoord * 2 + 1));
+            }
+            if (normal == NONE) {
+                normals.add(0, 0, 0);
+            } else {
+                normalsUsed = true;
+                normals.add(fileNormals.get(normal * 3), fileNormals.get(normal * 3 + 1),
+                        fileNormals.get(normal * 3 + 2));
+            }
+        }
+        return vertex;
+    }
+
+    private void startGroup(String name, String newMaterial) {
+        if (indices.size() > groupStart) {
+            mesh.addGroup(new Mesh.Group(groupName, material, groupStart, indices.size() - groupStart));
+        }
+        groupName = name;
+        material = newMaterial;
+        groupStart = indices.size();
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Streams Wavefront OBJ content, formatting numbers without intermediate strings.
+ * <p>
+ * Vertex indices are given zero-based and written one-based, as OBJ expects.
+ */
+public class ObjWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FRACTION_DIGITS = 6;
+    private static final float MAX_FIXED = 1e9f;
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[20];
+    private int position;
+
+    public ObjWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    public ObjWriter(Path objFile) throws IOException {
+        this(Files.newOutputStream(objFile));
+    }
+
+    /**
+     * Write a whole mesh, with its material libraries, groups, texture coordinates and normals.
+     */
+    public static void write(Mesh mesh, Path objFile) throws IOException {
+        try (ObjWriter writer = new ObjWriter(objFile)) {
+            for (String materialLibrary : mesh.getMaterialLibraries()) {
+                writer.mtllib(materialLibrary);
+            }
+            FloatList positions = mesh.getPositions();
+            for (int i = 0; i < positions.size(); i += 3) {
+                writer.vertex(positions.get(i), positions.get(i + 1), positions.get(i + 2));
+            }
+            boolean texCoords = mesh.hasTexCoords();
+            if (texCoords) {
+                FloatList vertexTexCoords = mesh.getTexCoords();
+                for (int i = 0; i < vertexTexCoords.size(); i += 2) {
+                    writer.texCoord(vertexTexCoords.get(i), vertexTexCoords.get(i + 1));
+                }
+            }
+            boolean normals = mesh.hasNormals();
+            if (normals) {
+                FloatList vertexNormals = mesh.getNormals();
+                for (int i = 0; i < vertexNormals.size(); i += 3) {
+                    writer.normal(vertexNormals.get(i), vertexNormals.get(i + 1), vertexNormals.get(i + 2));
+                }
+            }
+            // Texture coordinates and normals are written along with their vertex, they share its index
+            int[] triangle = new int[3];
+            IntList indices = mesh.getIndices();
+            for (Mesh.Group group : mesh.getGroups()) {
+                if (group.getName() != null) {
+                    writer.group(group.getName());
+                }
+                if (group.getMaterial() != null) {
+                    writer.usemtl(group.getMaterial());
+                }
+                int end = group.getFirstIndex() + group.getIndexCount();
+                for (int i = group.getFirstIndex(); i < end; i += 3) {
+                    int a = indices.get(i);
+                    int b = indices.get(i + 1);
+                    int c = indices.get(i + 2);
+                    if (texCoords) {
+                        triangle[0] = a;
+                        triangle[1] = b;
+                        triangle[2] = c;
+                        writer.face(triangle, triangle, normals ? triangle : null, 3);
+                    } else if (normals) {
+                        writer.face(a, a, b, b, c, c);
+                    } else {
+                        writer.face(a, b, c);
+                    }
+                }
+            }
+        }
+    }
+
+    public void comment(String comment) throws IOException {
+        line("# ", comment);
+    }
+
+    public void mtllib(String materialFile) throws IOException {
+        line("mtllib ", materialFile);
+    }
+
+    public void object(String name) throws IOException {
+        line("o ", name);
+    }
+
+    public void group(String name) throws IOException {
+        line("g ", name);
+    }
+
+    public void usemtl(String material) throws IOException {
+        line("usemtl ", material);
+    }
+
+    public void vertex(float x, float y, float z) throws IOException {
+        ensure(64);
+        buffer[position++] = 'v';
+        writeFloat(x);
+        writeFloat(y);
+        writeFloat(z);
+        buffer[position++] = '\n';
+    }
+
+    public void normal(float x, float y, float z) throws IOException {
+        ensure(64);
+        buffer[position++] = 'v';
+        buffer[position++] = 'n';
+        writeFloat(x);
+        writeFloat(y);
+        writeFloat(z);
+        buffer[position++] = '\n';
+    }
+
+    public void texCoord(float u, float v) throws IOException {
+        ensure(48);
+        buffer[position++] = 'v';
+        buffer[position++] = 't';
+        writeFloat(u);
+        writeFloat(v);
+        buffer[position++] = '\n';
+    }
+
+    public void face(int a, int b, int c) throws IOException {
+        ensure(40);
+        buffer[position++] = 'f';
+        writeIndex(a);
+        writeIndex(b);
+        writeIndex(c);
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write a triangle with the normal index of each vertex, as {@code f a//na b//nb c//nc}.
+     */
+    public void face(int a, int na, int b, int nb, int c, int nc) throws IOException {
+        ensure(80);
+        buffer[position++] = 'f';
+        writeIndex(a, na);
+        writeIndex(b, nb);
+        writeIndex(c, nc);
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write a polygon from the first {@code count} indices.
+     */
+    public void face(int[] indices, int count) throws IOException {
+        ensure(2);
+        buffer[position++] = 'f';
+        for (int i = 0; i < count; i++) {
+            ensure(14);
+            writeIndex(indices[i]);
+        }
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write a polygon from the first {@code count} indices, with the normal index of each vertex.
+     */
+    public void face(int[] indices, int[] normals, int count) throws IOException {
+        ensure(2);
+        buffer[position++] = 'f';
+        for (int i = 0; i < count; i++) {
+            ensure(28);
+            writeIndex(indices[i], normals[i]);
+        }
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write a polygon from the first {@code count} indices, with the texture coordinates index of each vertex
+     * and, unless {@code normals} is null, its normal index.
+     */
+    public void face(int[] indices, int[] texCoords, int[] normals, int count) throws IOException {
+        ensure(2);
+        buffer[position++] = 'f';
+        for (int i = 0; i < count; i++) {
+            ensure(42);
+            writeIndex(indices[i]);
+            buffer[position++] = '/';
+            writeLong(texCoords[i] + 1L);
+            if (normals != null) {
+                buffer[position++] = '/';
+                writeLong(normals[i] + 1L);
+            }
+        }
+        buffer[position++] = '\n';
+    }
+
+    public void flush() throws IOException {
+        outputStream.write(buffer, 0, position);
+        position = 0;
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void line(String keyword, String value) throws IOException {
+        byte[] bytes = (keyword + value + "\n").getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length);
+        if (bytes.length > buffer.length) {
+            outputStream.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (position + length > buffer.length) {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeIndex(int index) {
+        buffer[position++] = ' ';
+        writeLong(index + 1L);
+    }
+
+    private void writeIndex(int index, int normalIndex) {
+        writeIndex(index);
+        buffer[position++] = '/';
+        buffer[position++] = '/';
+        writeLong(normalIndex + 1L);
+    }
+
+    private void writeFloat(float value) {
+        buffer[position++] = ' ';
+        if (Float.isNaN(value) || Float.isInfinite(value) || Math.abs(value) >= MAX_FIXED) {
+            byte[] bytes = Float.toString(value).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return;
+        }
+        long scaled = Math.round((double) value * 1_000_000d);
+        if (scaled < 0) {
+            buffer[position++] = '-';
+            scaled = -scaled;
+        }
+        writeLong(scaled / 1_000_000L);
+        long fraction = scaled % 1_000_000L;
+        if (fraction != 0) {
+            buffer[position++] = '.';
+            int length = FRACTION_DIGITS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                length--;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                buffer[position + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            position += length;
+        }
+    }
+
+    private void writeLong(long value) {
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (length > 0) {
+            buffer[position++] = digits[--length];
+        }
+    }
+
+}
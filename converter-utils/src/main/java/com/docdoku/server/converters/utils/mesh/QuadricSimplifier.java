@@ -0,0 +1,660 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decimate a mesh by collapsing the edges of smallest quadric error, as described by Garland and Heckbert.
+ * <p>
+ * Vertices are welded by position before simplifying, so normals are recomputed on the result. Mesh borders
+ * are kept by quadrics of planes orthogonal to the boundary edges, and collapses flipping a triangle are
+ * rejected. The welded mesh and its quadrics are computed once, then {@link #simplify(int)} can be called
+ * concurrently for several targets.
+ */
+public class QuadricSimplifier {
+
+    /**
+     * A simplified mesh and the largest quadric error of its collapses.
+     */
+    public static class Simplification {
+        private final Mesh mesh;
+        private final double error;
+
+        Simplification(Mesh mesh, double error) {
+            this.mesh = mesh;
+            this.error = error;
+        }
+
+        public Mesh getMesh() {
+            return mesh;
+        }
+
+        /**
+         * @return the square root of the largest collapse error, a distance in model units
+         */
+        public double getError() {
+            return error;
+        }
+    }
+
+    private static final double BOUNDARY_WEIGHT = 1000;
+    private static final int QUADRIC_SIZE = 10;
+
+    private final Mesh source;
+    private final float[] positions;
+    private final int[] triangles;
+    private final int[] triangleGroups;
+    private final double[] quadrics;
+    private final int vertexCount;
+    private final int triangleCount;
+
+    public QuadricSimplifier(Mesh mesh) {
+        source = mesh;
+        FloatList meshPositions = mesh.getPositions();
+        IntList indices = mesh.getIndices();
+        VertexWelder welder = new VertexWelder(mesh.getVertexCount());
+        int[] welded = new int[mesh.getVertexCount()];
+        for (int i = 0; i < welded.length; i++) {
+            welded[i] = welder.add(meshPositions.get(i * 3), meshPositions.get(i * 3 + 1),
+                    meshPositions.get(i * 3 + 2));
+        }
+        positions = welder.getPositions().toArray();
+        vertexCount = welder.size();
+        triangleCount = indices.size() / 3;
+        triangles = new int[triangleCount * 3];
+        for (int i = 0; i < triangles.length; i++) {
+            triangles[i] = welded[indices.get(i)];
+        }
+        triangleGroups = new int[triangleCount];
+        Arrays.fill(triangleGroups, -1);
+        for (int group = 0; group < mesh.getGroups().size(); group++) {
+            Mesh.Group meshGroup = mesh.getGroups().get(group);
+            int first = meshGroup.getFirstIndex() / 3;
+            Arrays.fill(triangleGroups, first, first + meshGroup.getIndexCount() / 3, group);
+        }
+        quadrics = new double[vertexCount * QUADRIC_SIZE];
+        addFaceQuadrics();
+        addBoundaryQuadrics();
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * Collapse edges until at most {@code targetTriangles} triangles remain, or no collapse is possible.
+     */
+    public Simplification simplify(int targetTriangles) {
+        return new Collapser().run(targetTriangles);
+    }
+
+    private void addFaceQuadrics() {
+        double[] normal = new double[4];
+        for (int t = 0; t < triangleCount; t++) {
+            double area = plane(positions, triangles[t * 3], triangles[t * 3 + 1], triangles[t * 3 + 2], normal);
+            if (area > 0) {
+                for (int k = 0; k < 3; k++) {
+                    addPlane(quadrics, triangles[t * 3 + k], normal, area);
+                }
+            }
+        }
+    }
+
+    private void addBoundaryQuadrics() {
+        LongIntMap edges = new LongIntMap(triangleCount * 2);
+        IntList edgeUses = new IntList(triangleCount * 2);
+        IntList edgeTriangles = new IntList(triangleCount * 2);
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                long key = edgeKey(triangles[t * 3 + k], triangles[t * 3 + (k + 1) % 3]);
+                int edge = edges.putIfAbsent(key, edgeUses.size());
+                if (edge == edgeUses.size()) {
+                    edgeUses.add(1);
+                    edgeTriangles.add(t * 3 + k);
+                } else {
+                    edgeUses.set(edge, edgeUses.get(edge) + 1);
+                }
+            }
+        }
+        double[] normal = new double[4];
+        double[] border = new double[4];
+        for (int edge = 0; edge < edgeUses.size(); edge++) {
+            if (edgeUses.get(edge) != 1) {
+                continue;
+            }
+            int corner = edgeTriangles.get(edge);
+            int t = corner / 3;
+            int a = triangles[corner];
+            int b = triangles[t * 3 + (corner % 3 + 1) % 3];
+            if (plane(positions, triangles[t * 3], triangles[t * 3 + 1], triangles[t * 3 + 2], normal) <= 0) {
+                continue;
+            }
+            double ex = positions[b * 3] - positions[a * 3];
+            double ey = positions[b * 3 + 1] - positions[a * 3 + 1];
+            double ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+            double length = Math.sqrt(ex * ex + ey * ey + ez * ez);
+            if (length == 0) {
+                continue;
+            }
+            border[0] = (ey * normal[2] - ez * normal[1]) / length;
+            border[1] = (ez * normal[0] - ex * normal[2]) / length;
+            border[2] = (ex * normal[1] - ey * normal[0]) / length;
+            border[3] = -(border[0] * positions[a * 3] + border[1] * positions[a * 3 + 1]
+                    + border[2] * positions[a * 3 + 2]);
+            addPlane(quadrics, a, border, BOUNDARY_WEIGHT * length * length);
+            addPlane(quadrics, b, border, BOUNDARY_WEIGHT * length * length);
+        }
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+    }
+
+    /**
+     * Compute the unit normal and offset of the plane of a triangle.
+     *
+     * @return the area of the triangle
+     */
+    private static double plane(float[] positions, int a, int b, int c, double[] plane) {
+        double ux = positions[b * 3] - positions[a * 3];
+        double uy = positions[b * 3 + 1] - positions[a * 3 + 1];
+        double uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+        double vx = positions[c * 3] - positions[a * 3];
+        double vy = positions[c * 3 + 1] - positions[a * 3 + 1];
+        double vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0 || Double.isNaN(length)) {
+            return 0;
+        }
+        plane[0] = nx / length;
+        plane[1] = ny / length;
+        plane[2] = nz / length;
+        plane[3] = -(plane[0] * positions[a * 3] + plane[1] * positions[a * 3 + 1]
+                + plane[2] * positions[a * 3 + 2]);
+        return length / 2;
+    }
+
+    private static void addPlane(double[] quadrics, int vertex, double[] plane, double weight) {
+        int q = vertex * QUADRIC_SIZE;
+        double a = plane[0];
+        double b = plane[1];
+        double c = plane[2];
+        double d = plane[3];
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    /**
+     * State of one simplification, so that several targets can be computed at once.
+     */
+    private class Collapser {
+        private final float[] position = positions.clone();
+        private final int[] triangle = triangles.clone();
+        private final double[] quadric = quadrics.clone();
+        private final boolean[] removedTriangle = new boolean[triangleCount];
+        private final boolean[] removedVertex = new boolean[vertexCount];
+        private final int[] version = new int[vertexCount];
+        private final int[] visited = new int[vertexCount];
+        private int collapses;
+        private final IntList[] vertexTriangles = new IntList[vertexCount];
+        private final EdgeHeap heap = new EdgeHeap(triangleCount * 3);
+        private final double[] target = new double[3];
+        private final double[] before = new double[4];
+        private final double[] after = new double[4];
+
+        Simplification run(int targetTriangles) {
+            for (int v = 0; v < vertexCount; v++) {
+                vertexTriangles[v] = new IntList(8);
+            }
+            int alive = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                int a = triangle[t * 3];
+                int b = triangle[t * 3 + 1];
+                int c = triangle[t * 3 + 2];
+                if (a == b || b == c || c == a) {
+                    removedTriangle[t] = true;
+                    continue;
+                }
+                alive++;
+                vertexTriangles[a].add(t);
+                vertexTriangles[b].add(t);
+                vertexTriangles[c].add(t);
+                // Each edge is pushed from the triangle listing it in increasing order, or both
+                if (a < b) {
+                    push(a, b);
+                }
+                if (b < c) {
+                    push(b, c);
+                }
+                if (c < a) {
+                    push(c, a);
+                }
+            }
+            double maxError = 0;
+            while (alive > targetTriangles && heap.size() > 0) {
+                int u = heap.u();
+                int v = heap.v();
+                boolean valid = !removedVertex[u] && !removedVertex[v]
+                        && heap.uVersion() == version[u] && heap.vVersion() == version[v];
+                double cost = heap.cost();
+                heap.pop();
+                if (!valid) {
+                    continue;
+                }
+                optimalPosition(u, v, target);
+                if (flips(u, v, target) || flips(v, u, target)) {
+                    continue;
+                }
+                maxError = Math.max(maxError, cost);
+                alive -= collapse(u, v, target);
+            }
+            return new Simplification(build(), Math.sqrt(maxError));
+        }
+
+        private void push(int u, int v) {
+            optimalPosition(u, v, target);
+            heap.push(error(u, v, target[0], target[1], target[2]), u, v, version[u], version[v]);
+        }
+
+        private double error(int u, int v, double x, double y, double z) {
+            int p = u * QUADRIC_SIZE;
+            int q = v * QUADRIC_SIZE;
+            double[] k = quadric;
+            double error = (k[p] + k[q]) * x * x + 2 * (k[p + 1] + k[q + 1]) * x * y
+                    + 2 * (k[p + 2] + k[q + 2]) * x * z + 2 * (k[p + 3] + k[q + 3]) * x
+                    + (k[p + 4] + k[q + 4]) * y * y + 2 * (k[p + 5] + k[q + 5]) * y * z
+                    + 2 * (k[p + 6] + k[q + 6]) * y + (k[p + 7] + k[q + 7]) * z * z
+                    + 2 * (k[p + 8] + k[q + 8]) * z + k[p + 9] + k[q + 9];
+            return Math.max(0, error);
+        }
+
+        /**
+         * Find the position minimizing the summed quadrics, among the solution of the quadric and the edge
+         * ends and middle.
+         */
+        private void optimalPosition(int u, int v, double[] result) {
+            double ux = position[u * 3];
+            double uy = position[u * 3 + 1];
+            double uz = position[u * 3 + 2];
+            double vx = position[v * 3];
+            double vy = position[v * 3 + 1];
+            double vz = position[v * 3 + 2];
+            double mx = (ux + vx) / 2;
+            double my = (uy + vy) / 2;
+            double mz = (uz + vz) / 2;
+            result[0] = mx;
+            result[1] = my;
+            result[2] = mz;
+            double best = error(u, v, mx, my, mz);
+            double errorU = error(u, v, ux, uy, uz);
+            if (errorU < best) {
+                best = errorU;
+                result[0] = ux;
+                result[1] = uy;
+                result[2] = uz;
+            }
+            double errorV = error(u, v, vx, vy, vz);
+            if (errorV < best) {
+                best = errorV;
+                result[0] = vx;
+                result[1] = vy;
+                result[2] = vz;
+            }
+
+            int p = u * QUADRIC_SIZE;
+            int q = v * QUADRIC_SIZE;
+            double a = quadric[p] + quadric[q];
+            double b = quadric[p + 1] + quadric[q + 1];
+            double c = quadric[p + 2] + quadric[q + 2];
+            double d = quadric[p + 3] + quadric[q + 3];
+            double e = quadric[p + 4] + quadric[q + 4];
+            double f = quadric[p + 5] + quadric[q + 5];
+            double g = quadric[p + 6] + quadric[q + 6];
+            double h = quadric[p + 7] + quadric[q + 7];
+            double i = quadric[p + 8] + quadric[q + 8];
+            double det = a * (e * h - f * f) - b * (b * h - f * c) + c * (b * f - e * c);
+            double scale = Math.abs(a * e * h) + Math.abs(b * b * h) + Math.abs(c * c * e) + Double.MIN_NORMAL;
+            if (Math.abs(det) < 1e-9 * scale) {
+                return;
+            }
+            double x = (-d * (e * h - f * f) + b * (g * h - f * i) - c * (g * f - e * i)) / det;
+            double y = (a * (-g * h + f * i) + d * (b * h - f * c) - c * (b * i - g * c)) / det;
+            double z = (a * (-e * i + g * f) - b * (-b * i + g * c) - d * (b * f - e * c)) / det;
+            // Far solutions come from nearly flat neighborhoods, where the ends are as good
+            double dx = x - mx;
+            double dy = y - my;
+            double dz = z - mz;
+            double edge = (vx - ux) * (vx - ux) + (vy - uy) * (vy - uy) + (vz - uz) * (vz - uz);
+            if (dx * dx + dy * dy + dz * dz <= edge) {
+                double solved = error(u, v, x, y, z);
+                if (solved < best) {
+                    result[0] = x;
+                    result[1] = y;
+                    result[2] = z;
+                }
+            }
+        }
+
+        /**
+         * @return true if moving {@code moved} to the target flips one of its triangles not shared with
+         * {@code kept}
+         */
+        private boolean flips(int moved, int kept, double[] to) {
+            IntList list = vertexTriangles[moved];
+            for (int i = 0; i < list.size(); i++) {
+                int t = list.get(i);
+                if (removedTriangle[t]) {
+                    continue;
+                }
+                int a = triangle[t * 3];
+                int b = triangle[t * 3 + 1];
+                int c = triangle[t * 3 + 2];
+                if (a == kept || b == kept || c == kept) {
+                    continue;
+                }
+                if (normal(a, b, c, -1, null, before) == 0) {
+                    continue;
+                }
+                normal(a, b, c, moved, to, after);
+                if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private double normal(int a, int b, int c, int moved, double[] to, double[] result) {
+            double ax = a == moved ? to[0] : position[a * 3];
+            double ay = a == moved ? to[1] : position[a * 3 + 1];
+            double az = a == moved ? to[2] : position[a * 3 + 2];
+            double bx = b == moved ? to[0] : position[b * 3];
+            double by = b == moved ? to[1] : position[b * 3 + 1];
+            double bz = b == moved ? to[2] : position[b * 3 + 2];
+            double cx = c == moved ? to[0] : position[c * 3];
+            double cy = c == moved ? to[1] : position[c * 3 + 1];
+            double cz = c == moved ? to[2] : position[c * 3 + 2];
+            double ux = bx - ax;
+            double uy = by - ay;
+            double uz = bz - az;
+            double vx = cx - ax;
+            double vy = cy - ay;
+            double vz = cz - az;
+            result[0] = uy * vz - uz * vy;
+            result[1] = uz * vx - ux * vz;
+            result[2] = ux * vy - uy * vx;
+            return result[0] * result[0] + result[1] * result[1] + result[2] * result[2];
+        }
+
+        /**
+         * Merge {@code v} into {@code u} moved to the target.
+         *
+         * @return the number of removed triangles
+         */
+        private int collapse(int u, int v, double[] to) {
+            position[u * 3] = (float) to[0];
+            position[u * 3 + 1] = (float) to[1];
+            position[u * 3 + 2] = (float) to[2];
+            for (int k = 0; k < QUADRIC_SIZE; k++) {
+                quadric[u * QUADRIC_SIZE + k] += quadric[v * QUADRIC_SIZE + k];
+            }
+            removedVertex[v] = true;
+            version[u]++;
+
+            int removed = 0;
+            IntList uTriangles = vertexTriangles[u];
+            IntList vTriangles = vertexTriangles[v];
+            for (int i = 0; i < vTriangles.size(); i++) {
+                int t = vTriangles.get(i);
+                if (removedTriangle[t]) {
+                    continue;
+                }
+                int a = triangle[t * 3];
+                int b = triangle[t * 3 + 1];
+                int c = triangle[t * 3 + 2];
+                if (a == u || b == u || c == u) {
+                    removedTriangle[t] = true;
+                    removed++;
+                    continue;
+                }
+                for (int k = 0; k < 3; k++) {
+                    if (triangle[t * 3 + k] == v) {
+                        triangle[t * 3 + k] = u;
+                    }
+                }
+                uTriangles.add(t);
+            }
+            vertexTriangles[v] = null;
+
+            // Compact the triangles of u and queue its edges with their new costs, once per neighbor
+            int count = 0;
+            int stamp = ++collapses;
+            for (int i = 0; i < uTriangles.size(); i++) {
+                int t = uTriangles.get(i);
+                if (removedTriangle[t]) {
+                    continue;
+                }
+                uTriangles.set(count++, t);
+                for (int k = 0; k < 3; k++) {
+                    int w = triangle[t * 3 + k];
+                    if (w != u && visited[w] != stamp) {
+                        visited[w] = stamp;
+                        push(u, w);
+                    }
+                }
+            }
+            uTriangles.truncate(count);
+            return removed;
+        }
+
+        private Mesh build() {
+            int[] remap = new int[vertexCount];
+            Arrays.fill(remap, -1);
+            FloatList outPositions = new FloatList();
+            IntList outIndices = new IntList();
+            int groupStart = 0;
+            int currentGroup = Integer.MIN_VALUE;
+            List<Mesh.Group> groups = new ArrayList<>();
+            for (int t = 0; t < triangleCount; t++) {
+                if (removedTriangle[t]) {
+                    continue;
+                }
+                if (triangleGroups[t] != currentGroup) {
+                    addGroup(groups, currentGroup, groupStart, outIndices.size());
+                    currentGroup = triangleGroups[t];
+                    groupStart = outIndices.size();
+                }
+                for (int k = 0; k < 3; k++) {
+                    int v = triangle[t * 3 + k];
+                    if (remap[v] < 0) {
+                        remap[v] = outPositions.size() / 3;
+                        outPositions.add(position[v * 3], position[v * 3 + 1], position[v * 3 + 2]);
+                    }
+                    outIndices.add(remap[v]);
+                }
+            }
+            addGroup(groups, currentGroup, groupStart, outIndices.size());
+            Mesh mesh = new Mesh(outPositions, smoothNormals(outPositions, outIndices), outIndices);
+            for (Mesh.Group group : groups) {
+                mesh.addGroup(group);
+            }
+            for (String materialLibrary : source.getMaterialLibraries()) {
+                mesh.addMaterialLibrary(materialLibrary);
+            }
+            return mesh;
+        }
+
+        private void addGroup(List<Mesh.Group> groups, int group, int start, int end) {
+            if (end > start) {
+                Mesh.Group sourceGroup = group >= 0 ? source.getGroups().get(group) : null;
+                groups.add(new Mesh.Group(sourceGroup != null ? sourceGroup.getName() : null,
+                        sourceGroup != null ? sourceGroup.getMaterial() : null, start, end - start));
+            }
+        }
+    }
+
+    /**
+     * Area weighted average of the normals of the triangles around each vertex.
+     */
+    static FloatList smoothNormals(FloatList positions, IntList indices) {
+        float[] normals = new float[positions.size()];
+        for (int i = 0; i < indices.size(); i += 3) {
+            int a = indices.get(i) * 3;
+            int b = indices.get(i + 1) * 3;
+            int c = indices.get(i + 2) * 3;
+            float ux = positions.get(b) - positions.get(a);
+            float uy = positions.get(b + 1) - positions.get(a + 1);
+            float uz = positions.get(b + 2) - positions.get(a + 2);
+            float vx = positions.get(c) - positions.get(a);
+            float vy = positions.get(c + 1) - positions.get(a + 1);
+            float vz = positions.get(c + 2) - positions.get(a + 2);
+            float nx = uy * vz - uz * vy;
+            float ny = uz * vx - ux * vz;
+            float nz = ux * vy - uy * vx;
+            for (int corner : new int[]{a, b, c}) {
+                normals[corner] += nx;
+                normals[corner + 1] += ny;
+                normals[corner + 2] += nz;
+            }
+        }
+        FloatList result = new FloatList(normals.length);
+        for (int i = 0; i < normals.length; i += 3) {
+            float length = (float) Math.sqrt(normals[i] * normals[i] + normals[i + 1] * normals[i + 1]
+                    + normals[i + 2] * normals[i + 2]);
+            if (length > 0) {
+                result.add(normals[i] / length, normals[i + 1] / length, normals[i + 2] / length);
+            } else {
+                result.add(0, 0, 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Binary min-heap of edge collapses. Heap slots are longs made of the float cost, whose bits order like
+     * non-negative floats, and of the index of the entry holding the vertices. Entries are never updated: an
+     * entry is stale once the version of one of its vertices changed.
+     */
+    private static class EdgeHeap {
+        private static final int ENTRY_SIZE = 4;
+
+        private long[] heap;
+        private int[] entries;
+        private int[] freeEntries;
+        private int freeCount;
+        private int entryCount;
+        private int size;
+
+        EdgeHeap(int capacity) {
+            capacity = Math.max(capacity, 16);
+            heap = new long[capacity];
+            entries = new int[capacity * ENTRY_SIZE];
+            freeEntries = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        double cost() {
+            return Float.intBitsToFloat((int) (heap[0] >>> 32));
+        }
+
+        int u() {
+            return entries[(int) heap[0] * ENTRY_SIZE];
+        }
+
+        int v() {
+            return entries[(int) heap[0] * ENTRY_SIZE + 1];
+        }
+
+        int uVersion() {
+            return entries[(int) heap[0] * ENTRY_SIZE + 2];
+        }
+
+        int vVersion() {
+            return entries[(int) heap[0] * ENTRY_SIZE + 3];
+        }
+
+        void push(double cost, int u, int v, int uVersion, int vVersion) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+                entries = Arrays.copyOf(entries, size * 2 * ENTRY_SIZE);
+                freeEntries = Arrays.copyOf(freeEntries, size * 2);
+            }
+            int entry = freeCount > 0 ? freeEntries[--freeCount] : entryCount++;
+            entries[entry * ENTRY_SIZE] = u;
+            entries[entry * ENTRY_SIZE + 1] = v;
+            entries[entry * ENTRY_SIZE + 2] = uVersion;
+            entries[entry * ENTRY_SIZE + 3] = vVersion;
+            long key = (long) Float.floatToIntBits((float) cost) << 32 | entry;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= key) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = key;
+        }
+
+        void pop() {
+            freeEntries[freeCount++] = (int) heap[0];
+            size--;
+            if (size == 0) {
+                return;
+            }
+            long key = heap[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= key) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = key;
+        }
+    }
+
+}
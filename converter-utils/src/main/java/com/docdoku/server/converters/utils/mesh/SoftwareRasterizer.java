@@ -0,0 +1,357 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * CPU rasterizer rendering a mesh into a small image, without any graphics device.
+ * <p>
+ * The mesh is seen from the front right top with an orthographic camera framing its bounding box, lit from the
+ * camera. Triangles are Gouraud shaded from the vertex normals when the mesh has some, flat shaded otherwise,
+ * with the diffuse colors of their materials. Both faces are lit, the winding of converted meshes being
+ * unreliable.
+ * <p>
+ * The image is rendered at twice its size then downsampled. Triangles are sorted into square screen tiles
+ * rendered concurrently, each with its own part of the depth buffer. The background is transparent.
+ */
+public class SoftwareRasterizer {
+
+    private static final int SAMPLES = 2;
+    private static final int TILE_SIZE = 32;
+    private static final float MARGIN = 0.05f;
+    private static final float AMBIENT = 0.3f;
+    private static final float[] DEFAULT_COLOR = {0.7f, 0.7f, 0.72f};
+    private static final double[] EYE = {1, 0.8, 1.2};
+    private static final double[] UP = {0, 1, 0};
+
+    private final int width;
+    private final int height;
+
+    public SoftwareRasterizer(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param materials diffuse colors of the groups by material name
+     * @param executor  pool rendering the tiles
+     */
+    public BufferedImage render(Mesh mesh, Map<String, Material> materials, ExecutorService executor)
+            throws InterruptedException {
+        Frame frame = new Frame(mesh, materials);
+        frame.bin();
+        List<Future<?>> tiles = new ArrayList<>();
+        try {
+            for (int tile = 0; tile < frame.tileCount; tile++) {
+                int current = tile;
+                tiles.add(executor.submit(() -> frame.rasterize(current)));
+            }
+            for (Future<?> tile : tiles) {
+                tile.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<?> tile : tiles) {
+                tile.cancel(true);
+            }
+        }
+        return frame.downsample();
+    }
+
+    /**
+     * Screen space vertices, tile bins and buffers of one rendering.
+     */
+    private class Frame {
+        private final int renderWidth = width * SAMPLES;
+        private final int renderHeight = height * SAMPLES;
+        private final int tilesX = (renderWidth + TILE_SIZE - 1) / TILE_SIZE;
+        private final int tilesY = (renderHeight + TILE_SIZE - 1) / TILE_SIZE;
+        private final int tileCount = tilesX * tilesY;
+        private final IntList indices;
+        private final int triangleCount;
+        private final float[] screen;
+        private final float[] shades;
+        private final boolean smooth;
+        private final int[] triangleColors;
+        private final float[][] colors;
+        private final int[] color;
+        private final float[] depth;
+        private int[] tileStarts;
+        private int[] tileTriangles;
+
+        Frame(Mesh mesh, Map<String, Material> materials) {
+            indices = mesh.getIndices();
+            triangleCount = mesh.getTriangleCount();
+            color = new int[renderWidth * renderHeight];
+            depth = new float[renderWidth * renderHeight];
+            Arrays.fill(depth, Float.POSITIVE_INFINITY);
+
+            double[] forward = normalize(new double[]{-EYE[0], -EYE[1], -EYE[2]});
+            double[] right = normalize(cross(forward, UP));
+            double[] up = cross(right, forward);
+            // Light from the camera, slightly above and to the left
+            double[] light = normalize(new double[]{
+                    EYE[0] - 0.4 * right[0] + 0.4 * up[0],
+                    EYE[1] - 0.4 * right[1] + 0.4 * up[1],
+                    EYE[2] - 0.4 * right[2] + 0.4 * up[2]});
+
+            // Fit the projected corners of the bounding box in the image
+            float[] bounds = mesh.getBounds();
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int corner = 0; corner < 8; corner++) {
+                double[] p = {bounds[(corner & 1) * 3], bounds[1 + (corner >> 1 & 1) * 3],
+                        bounds[2 + (corner >> 2 & 1) * 3]};
+                double x = dot(p, right);
+                double y = dot(p, up);
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+            }
+            double extent = Math.max((maxX - minX) / renderWidth, (maxY - minY) / renderHeight);
+            double scale = extent > 0 && Double.isFinite(extent) ? (1 - 2 * MARGIN) / extent : 1;
+            double offsetX = renderWidth / 2.0 - (minX + maxX) / 2 * scale;
+            double offsetY = renderHeight / 2.0 + (minY + maxY) / 2 * scale;
+
+            FloatList positions = mesh.getPositions();
+            int vertexCount = mesh.getVertexCount();
+            screen = new float[vertexCount * 3];
+            for (int v = 0; v < vertexCount; v++) {
+                double x = positions.get(v * 3);
+                double y = positions.get(v * 3 + 1);
+                double z = positions.get(v * 3 + 2);
+                screen[v * 3] = (float) ((x * right[0] + y * right[1] + z * right[2]) * scale + offsetX);
+                screen[v * 3 + 1] = (float) (offsetY - (x * up[0] + y * up[1] + z * up[2]) * scale);
+                screen[v * 3 + 2] = (float) (x * forward[0] + y * forward[1] + z * forward[2]);
+            }
+
+            smooth = mesh.hasNormals();
+            if (smooth) {
+                FloatList normals = mesh.getNormals();
+                shades = new float[vertexCount];
+                for (int v = 0; v < vertexCount; v++) {
+                    double nx = normals.get(v * 3);
+                    double ny = normals.get(v * 3 + 1);
+                    double nz = normals.get(v * 3 + 2);
+                    double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                    shades[v] = shade(length > 0 ? (nx * light[0] + ny * light[1] + nz * light[2]) / length : 1);
+                }
+            } else {
+                shades = new float[triangleCount];
+                for (int t = 0; t < triangleCount; t++) {
+                    int a = indices.get(t * 3) * 3;
+                    int b = indices.get(t * 3 + 1) * 3;
+                    int c = indices.get(t * 3 + 2) * 3;
+                    double[] ab = {positions.get(b) - positions.get(a), positions.get(b + 1) - positions.get(a + 1),
+                            positions.get(b + 2) - positions.get(a + 2)};
+                    double[] ac = {positions.get(c) - positions.get(a), positions.get(c + 1) - positions.get(a + 1),
+                            positions.get(c + 2) - positions.get(a + 2)};
+                    double[] normal = cross(ab, ac);
+                    double length = Math.sqrt(dot(normal, normal));
+                    shades[t] = shade(length > 0 ? dot(normal, light) / length : 1);
+                }
+            }
+
+            List<Mesh.Group> groups = mesh.getGroups();
+            colors = new float[groups.size() + 1][];
+            colors[0] = DEFAULT_COLOR;
+            triangleColors = new int[triangleCount];
+            for (int g = 0; g < groups.size(); g++) {
+                Mesh.Group group = groups.get(g);
+                Material material = group.getMaterial() != null ? materials.get(group.getMaterial()) : null;
+                colors[g + 1] = material != null ? material.getDiffuse() : DEFAULT_COLOR;
+                Arrays.fill(triangleColors, group.getFirstIndex() / 3,
+                        Math.min((group.getFirstIndex() + group.getIndexCount()) / 3, triangleCount), g + 1);
+            }
+        }
+
+        /**
+         * Sort the triangles covering a sample into the tiles they overlap, counting them first.
+         */
+        void bin() {
+            int[] counts = new int[tileCount + 1];
+            int[] ranges = new int[triangleCount * 4];
+            for (int t = 0; t < triangleCount; t++) {
+                float x0 = screen[indices.get(t * 3) * 3];
+                float y0 = screen[indices.get(t * 3) * 3 + 1];
+                float x1 = screen[indices.get(t * 3 + 1) * 3];
+                float y1 = screen[indices.get(t * 3 + 1) * 3 + 1];
+                float x2 = screen[indices.get(t * 3 + 2) * 3];
+                float y2 = screen[indices.get(t * 3 + 2) * 3 + 1];
+                // Samples are at the pixel centers
+                int minX = Math.max((int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f), 0);
+                int maxX = Math.min((int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f), renderWidth - 1);
+                int minY = Math.max((int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f), 0);
+                int maxY = Math.min((int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f), renderHeight - 1);
+                if (minX > maxX || minY > maxY) {
+                    ranges[t * 4] = -1;
+                    continue;
+                }
+                ranges[t * 4] = minX / TILE_SIZE;
+                ranges[t * 4 + 1] = maxX / TILE_SIZE;
+                ranges[t * 4 + 2] = minY / TILE_SIZE;
+                ranges[t * 4 + 3] = maxY / TILE_SIZE;
+                for (int ty = ranges[t * 4 + 2]; ty <= ranges[t * 4 + 3]; ty++) {
+                    for (int tx = ranges[t * 4]; tx <= ranges[t * 4 + 1]; tx++) {
+                        counts[ty * tilesX + tx + 1]++;
+                    }
+                }
+            }
+            for (int tile = 0; tile < tileCount; tile++) {
+                counts[tile + 1] += counts[tile];
+            }
+            tileStarts = counts.clone();
+            tileTriangles = new int[counts[tileCount]];
+            for (int t = 0; t < triangleCount; t++) {
+                if (ranges[t * 4] < 0) {
+                    continue;
+                }
+                for (int ty = ranges[t * 4 + 2]; ty <= ranges[t * 4 + 3]; ty++) {
+                    for (int tx = ranges[t * 4]; tx <= ranges[t * 4 + 1]; tx++) {
+                        tileTriangles[counts[ty * tilesX + tx]++] = t;
+                    }
+                }
+            }
+        }
+
+        void rasterize(int tile) {
+            int tileMinX = tile % tilesX * TILE_SIZE;
+            int tileMinY = tile / tilesX * TILE_SIZE;
+            int tileMaxX = Math.min(tileMinX + TILE_SIZE, renderWidth) - 1;
+            int tileMaxY = Math.min(tileMinY + TILE_SIZE, renderHeight) - 1;
+            for (int i = tileStarts[tile]; i < tileStarts[tile + 1]; i++) {
+                int t = tileTriangles[i];
+                int a = indices.get(t * 3);
+                int b = indices.get(t * 3 + 1);
+                int c = indices.get(t * 3 + 2);
+                float x0 = screen[a * 3];
+                float y0 = screen[a * 3 + 1];
+                float x1 = screen[b * 3];
+                float y1 = screen[b * 3 + 1];
+                float x2 = screen[c * 3];
+                float y2 = screen[c * 3 + 1];
+                float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+                if (area == 0) {
+                    continue;
+                }
+                float inverseArea = 1 / area;
+                int minX = Math.max((int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f), tileMinX);
+                int maxX = Math.min((int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f), tileMaxX);
+                int minY = Math.max((int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f), tileMinY);
+                int maxY = Math.min((int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f), tileMaxY);
+                float z0 = screen[a * 3 + 2];
+                float z1 = screen[b * 3 + 2];
+                float z2 = screen[c * 3 + 2];
+                float s0 = smooth ? shades[a] : shades[t];
+                float s1 = smooth ? shades[b] : shades[t];
+                float s2 = smooth ? shades[c] : shades[t];
+                float[] rgb = colors[triangleColors[t]];
+                for (int y = minY; y <= maxY; y++) {
+                    float py = y + 0.5f;
+                    for (int x = minX; x <= maxX; x++) {
+                        float px = x + 0.5f;
+                        // Barycentric weights, positive inside whatever the winding
+                        float w0 = ((x1 - px) * (y2 - py) - (x2 - px) * (y1 - py)) * inverseArea;
+                        float w1 = ((x2 - px) * (y0 - py) - (x0 - px) * (y2 - py)) * inverseArea;
+                        float w2 = 1 - w0 - w1;
+                        if (w0 < 0 || w1 < 0 || w2 < 0) {
+                            continue;
+                        }
+                        float z = w0 * z0 + w1 * z1 + w2 * z2;
+                        int pixel = y * renderWidth + x;
+                        if (z < depth[pixel]) {
+                            depth[pixel] = z;
+                            float s = w0 * s0 + w1 * s1 + w2 * s2;
+                            color[pixel] = 0xff000000 | channel(rgb[0] * s) << 16 | channel(rgb[1] * s) << 8
+                                    | channel(rgb[2] * s);
+                        }
+                    }
+                }
+            }
+        }
+
+        BufferedImage downsample() {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int alpha = 0;
+                    int red = 0;
+                    int green = 0;
+                    int blue = 0;
+                    for (int sy = 0; sy < SAMPLES; sy++) {
+                        for (int sx = 0; sx < SAMPLES; sx++) {
+                            int sample = color[(y * SAMPLES + sy) * renderWidth + x * SAMPLES + sx];
+                            if (sample != 0) {
+                                alpha += 255;
+                                red += sample >> 16 & 0xff;
+                                green += sample >> 8 & 0xff;
+                                blue += sample & 0xff;
+                            }
+                        }
+                    }
+                    int covered = alpha / 255;
+                    row[x] = covered == 0 ? 0 : alpha / (SAMPLES * SAMPLES) << 24 | red / covered << 16
+                            | green / covered << 8 | blue / covered;
+                }
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+            return image;
+        }
+    }
+
+    private static float shade(double cosine) {
+        return (float) (AMBIENT + (1 - AMBIENT) * Math.abs(cosine));
+    }
+
+    private static int channel(float value) {
+        return Math.min(Math.max((int) (value * 255 + 0.5f), 0), 255);
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] normalize(double[] v) {
+        double length = Math.sqrt(dot(v, v));
+        return new double[]{v[0] / length, v[1] / length, v[2] / length};
+    }
+
+}
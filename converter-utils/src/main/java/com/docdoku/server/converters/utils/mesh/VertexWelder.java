@@ -0,0 +1,121 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Merges identical vertices, returning a single index for each distinct position.
+ * <p>
+ * Positions are stored in a primitive open-addressing hash table, so welding millions of vertices does not
+ * allocate an object per vertex.
+ */
+public class VertexWelder {
+
+    private static final int EMPTY = -1;
+
+    private final FloatList positions;
+    private int[] table;
+    private int mask;
+    private int count;
+
+    public VertexWelder() {
+        this(1024);
+    }
+
+    public VertexWelder(int expectedVertices) {
+        int capacity = Integer.highestOneBit(Math.max(expectedVertices, 16) * 2 - 1) << 1;
+        positions = new FloatList(expectedVertices * 3);
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the index of the vertex, a new one if the position was not seen yet
+     */
+    public int add(float x, float y, float z) {
+        // Negative zero welds with zero
+        x += 0.0f;
+        y += 0.0f;
+        z += 0.0f;
+        int slot = hash(x, y, z) & mask;
+        int index;
+        while ((index = table[slot]) != EMPTY) {
+            int offset = index * 3;
+            if (positions.get(offset) == x && positions.get(offset + 1) == y && positions.get(offset + 2) == z) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index = count++;
+        positions.add(x, y, z);
+        table[slot] = index;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of distinct vertices
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the distinct positions, three coordinates per vertex in index order
+     */
+    public FloatList getPositions() {
+        return positions;
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        Arrays.fill(newTable, EMPTY);
+        int newMask = newTable.length - 1;
+        for (int index = 0; index < count; index++) {
+            int offset = index * 3;
+            int slot = hash(positions.get(offset), positions.get(offset + 1), positions.get(offset + 2)) & newMask;
+            while (newTable[slot] != EMPTY) {
+                slot = (slot + 1) & newMask;
+            }
+            newTable[slot] = index;
+        }
+        table = newTable;
+        mask = newMask;
+    }
+
+    private static int hash(float x, float y, float z) {
+        int h = Float.floatToIntBits(x);
+        h = h * 31 + Float.floatToIntBits(y);
+        h = h * 31 + Float.floatToIntBits(z);
+        // Murmur3 finalizer, coordinates often share their low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.ObjAnalysis;
+import com.docdoku.server.converters.utils.mesh.ObjAnalyzer;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Record the counts, bounds and validity of the converted OBJ file, with the bounds of each group in the
+ * {@code analysis} JSON artifact.
+ */
+public class AnalyzeStage implements ConversionStage {
+
+    public static final String ARTIFACT = "analysis";
+
+    private static final Logger LOGGER = Logger.getLogger(AnalyzeStage.class.getName());
+
+    @Override
+    public String getName() {
+        return "analyze";
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path analysisFile = tmpDir.resolve(name + ".analysis.json");
+        try {
+            ObjAnalysis analysis = ObjAnalyzer.analyze(objFile);
+            Files.write(analysisFile, analysis.toJson().getBytes(StandardCharsets.UTF_8));
+            result.putArtifact(ARTIFACT, analysisFile);
+            result.putMetric("obj.vertices", analysis.getVertexCount());
+            result.putMetric("obj.faces", analysis.getFaceCount());
+            result.putMetric("obj.triangles", analysis.getTriangleCount());
+            result.putMetric("obj.groups", analysis.getGroups().size());
+            float[] bounds = analysis.getBounds();
+            if (bounds[0] <= bounds[3]) {
+                result.putMetric("obj.bounds", bounds[0] + "," + bounds[1] + "," + bounds[2] + ","
+                        + bounds[3] + "," + bounds[4] + "," + bounds[5]);
+            }
+            result.putMetric("obj.nan_coordinates", analysis.getNanCoordinateCount());
+            result.putMetric("obj.invalid_indices", analysis.getInvalidIndexCount());
+            result.putMetric("obj.valid", analysis.isValid());
+            if (!analysis.isValid()) {
+                LOGGER.warning(objFile + ": " + analysis + ", first problems " + analysis.getProblems());
+            }
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot analyze " + objFile, e);
+        }
+    }
+
+}
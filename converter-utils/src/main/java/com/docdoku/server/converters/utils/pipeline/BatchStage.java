@@ -0,0 +1,90 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.MeshBatcher;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Replace the converted OBJ file by a mesh with one group per material, see {@link MeshBatcher}, so that viewers
+ * issue a draw call per material rather than per object.
+ * <p>
+ * The {@code batches} artifact is the JSON table of the objects of each batch and their triangle ranges, used to
+ * pick objects in the batched mesh. Group counts before and after are recorded.
+ */
+public class BatchStage implements ConversionStage {
+
+    public static final String ARTIFACT = "batches";
+
+    @Override
+    public String getName() {
+        return "batch";
+    }
+
+    @Override
+    public String getVersion() {
+        return "3";
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path batchedFile = tmpDir.resolve(name + ".batched.obj");
+        Path tableFile = tmpDir.resolve(name + ".batches.json");
+        try {
+            Mesh mesh = result.getMesh();
+            MeshBatcher.Batching batching = MeshBatcher.batch(mesh);
+            boolean replaced = false;
+            try {
+                if (batching.getMesh().getGroups().size() == mesh.getGroups().size()) {
+                    result.putMetric("batch.groups", mesh.getGroups().size());
+                    return result;
+                }
+                ObjWriter.write(batching.getMesh(), batchedFile);
+                Files.write(tableFile, batching.toJson().getBytes(StandardCharsets.UTF_8));
+
+                ProcessedConversionResult batchedResult =
+                        result.withConvertedFile(batchedFile, result.getMaterials());
+                batchedResult.setMesh(batching.getMesh());
+                batchedResult.putArtifact(ARTIFACT, tableFile);
+                batchedResult.putMetric("batch.groups", mesh.getGroups().size());
+                batchedResult.putMetric("batch.batches", batching.getMesh().getGroups().size());
+                replaced = true;
+                return batchedResult;
+            } finally {
+                // The batched mesh shares the vertices of the mesh, only the indices of the unused one are released
+                (replaced ? mesh : batching.getMesh()).getIndices().release();
+            }
+        } catch (IOException e) {
+            throw new ConversionException("Cannot batch " + objFile, e);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Bvh;
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Write the bounding volume hierarchy of the triangles of the converted OBJ file, added as the {@code bvh}
+ * artifact. Triangles are numbered in the order of the OBJ faces, fans counting one triangle per extra vertex.
+ *
+ * @see Bvh
+ */
+public class BvhStage implements ConversionStage {
+
+    public static final String ARTIFACT = "bvh";
+
+    @Override
+    public String getName() {
+        return "bvh";
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path bvhFile = tmpDir.resolve(name + ".bvh");
+        try {
+            Mesh mesh = result.getMesh();
+            Bvh bvh = Bvh.build(mesh);
+            long size = bvh.write(bvhFile);
+            result.putArtifact(ARTIFACT, bvhFile);
+            result.putMetric("bvh.size", size);
+            result.putMetric("bvh.nodes", bvh.getNodeCount());
+            result.putMetric("bvh.depth", bvh.getDepth());
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot write " + bvhFile + " from " + objFile, e);
+        }
+    }
+
+}
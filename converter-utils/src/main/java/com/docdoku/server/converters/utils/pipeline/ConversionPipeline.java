@@ -0,0 +1,183 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stages run on the OBJ output of every converter, in the order of the {@code pipeline_stages} property.
+ * <p>
+ * Stages run on a pool sized to the available processors. They only add value to a conversion: a failing
+ * stage is logged and skipped, the conversion result is kept. Converters run the pipeline within their
+ * cached conversion, so processed results are cached along with the OBJ file.
+ */
+public class ConversionPipeline {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ConversionPipeline.class.getName());
+    private static final Map<String, Supplier<ConversionStage>> STAGES = new LinkedHashMap<>();
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("conversion-pipeline"));
+    private static ConversionPipeline defaultPipeline;
+
+    static {
+        try (InputStream inputStream = ConversionPipeline.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+        STAGES.put("analyze", AnalyzeStage::new);
+        STAGES.put("optimize", () -> OptimizeStage.fromProperties(CONF.getProperty("optimize_weld_tolerance")));
+        STAGES.put("batch", BatchStage::new);
+        STAGES.put("instance", () -> InstanceStage.fromProperties(CONF.getProperty("instancing_tolerance"),
+                CONF.getProperty("instancing_directory"), CONF.getProperty("instancing_max_size")));
+        STAGES.put("glb", GlbStage::new);
+        STAGES.put("bvh", BvhStage::new);
+        STAGES.put("thumbnail", () -> ThumbnailStage.fromProperties(CONF.getProperty("thumbnail_size")));
+        STAGES.put("lod", () -> LodStage.fromProperties(CONF.getProperty("lod_levels"),
+                CONF.getProperty("lod_min_triangles")));
+        STAGES.put("tiles", () -> TileStage.fromProperties(CONF.getProperty("tiles_max_triangles"),
+                CONF.getProperty("tiles_max_depth")));
+    }
+
+    private final List<ConversionStage> stages;
+
+    public ConversionPipeline(List<ConversionStage> stages) {
+        this.stages = new ArrayList<>(stages);
+    }
+
+    /**
+     * @return the pipeline configured by the {@code pipeline_stages} property
+     */
+    public static synchronized ConversionPipeline getDefault() {
+        if (defaultPipeline == null) {
+            List<ConversionStage> stages = new ArrayList<>();
+            for (String name : CONF.getProperty("pipeline_stages", "").split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                Supplier<ConversionStage> stage = STAGES.get(name);
+                if (stage == null) {
+                    LOGGER.warning("Unknown conversion pipeline stage \"" + name + "\"");
+                } else {
+                    try {
+                        stages.add(stage.get());
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Invalid configuration of conversion pipeline stage \""
+                                + name + "\"", e);
+                    }
+                }
+            }
+            defaultPipeline = new ConversionPipeline(stages);
+        }
+        return defaultPipeline;
+    }
+
+    public List<ConversionStage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * @return the tool version completed with the stages, to be used as the cache key of processed results
+     */
+    public String version(String toolVersion) {
+        StringBuilder version = new StringBuilder(toolVersion);
+        for (ConversionStage stage : stages) {
+            version.append('+').append(stage.getName()).append('-').append(stage.getVersion());
+        }
+        return version.toString();
+    }
+
+    /**
+     * Run the stages on the calling thread.
+     */
+    public ConversionResult process(ConversionResult result, Path tmpDir) {
+        if (stages.isEmpty()) {
+            return result;
+        }
+        ProcessedConversionResult processed = ProcessedConversionResult.of(result);
+        List<ConversionStage> completed = new ArrayList<>();
+        for (ConversionStage stage : stages) {
+            if (processed.getInstanceOf() != null) {
+                // Next stages derive files from the geometry, already registered with them
+                break;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                processed = stage.process(processed, tmpDir);
+                processed.putMetric(stage.getName() + ".time_ms", System.currentTimeMillis() - start);
+                completed.add(stage);
+            } catch (ConversionException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Conversion stage " + stage.getName() + " failed on "
+                        + result.getConvertedFile(), e);
+            }
+        }
+        processed.releaseMesh();
+        for (ConversionStage stage : completed) {
+            try {
+                stage.completed(processed);
+            } catch (ConversionException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Conversion stage " + stage.getName() + " failed to complete "
+                        + result.getConvertedFile(), e);
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * @return the conversion followed by the stages, run on the pipeline pool
+     */
+    public ConversionCache.AsyncConversion wrap(ConversionCache.AsyncConversion conversion) {
+        if (stages.isEmpty()) {
+            return conversion;
+        }
+        return (cadFileUri, tmpDirUri) -> ConversionFutures.thenCompose(
+                conversion.convertAsync(cadFileUri, tmpDirUri),
+                result -> ConversionFutures.supplyAsync(() -> process(result, Paths.get(tmpDirUri)), EXECUTOR));
+    }
+
+}
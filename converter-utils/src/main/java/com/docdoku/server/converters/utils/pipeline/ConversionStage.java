@@ -0,0 +1,57 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.file.Path;
+
+/**
+ * Post-conversion step run on the OBJ output of the converters, see {@link ConversionPipeline}.
+ */
+public interface ConversionStage {
+
+    /**
+     * @return the name of the stage in the {@code pipeline_stages} property
+     */
+    String getName();
+
+    /**
+     * @return the version of the stage output, changed when cached results should not be reused
+     */
+    default String getVersion() {
+        return "1";
+    }
+
+    /**
+     * Process a conversion result, writing the produced files to the temporary directory.
+     *
+     * @return the given result with new artifacts or metrics, or a result replacing it
+     */
+    ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir) throws ConversionException;
+
+    /**
+     * Called once the stages have processed a result, with its final artifacts and metrics.
+     */
+    default void completed(ProcessedConversionResult result) throws ConversionException {
+    }
+
+}
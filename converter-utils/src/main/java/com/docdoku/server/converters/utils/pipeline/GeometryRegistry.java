@@ -0,0 +1,415 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.GeometryHash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Geometries shared by the conversion results of the {@link InstanceStage}, stored in a persistent directory.
+ * <p>
+ * Each entry is a directory named by a geometry hash, holding the OBJ file, materials and artifacts of the first
+ * result having this geometry, and the matrix moving the canonical pose to it. Entries are referenced by the
+ * instances converted afterwards. The least recently used entries are evicted once the registry exceeds its
+ * size, the next result having an evicted geometry registering it again. Entries referenced by an instance are
+ * never evicted, the instances being kept with their conversion results: the registry may then stay above its
+ * size.
+ * <p>
+ * Servers and workers may share the directory: entries are staged in temporary directories moved in place, and
+ * the staging directories left by a stopped process are only removed once old enough.
+ */
+public class GeometryRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(GeometryRegistry.class.getName());
+
+    private static final String ENTRY_PROPERTIES = "geometry.properties";
+    private static final String STAGING = ".staging-";
+    private static final String REFERENCED = "referenced";
+    // Age of the staging directories removed on startup, younger ones may be filled by another process
+    private static final long STAGING_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+    private static final String RESOURCE = "resource.";
+    private static final String OBJ = "obj";
+    private static final String MATERIAL = "material";
+
+    /**
+     * Registered geometry, its resources being the files of the entry keyed by {@code obj}, {@code material0},
+     * {@code material1}... and the artifact names.
+     */
+    public static class Entry {
+        private final GeometryHash hash;
+        private final Path directory;
+        private final Map<String, String> resources;
+
+        Entry(GeometryHash hash, Path directory, Map<String, String> resources) {
+            this.hash = hash;
+            this.directory = directory;
+            this.resources = Collections.unmodifiableMap(resources);
+        }
+
+        public GeometryHash getHash() {
+            return hash;
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the file names of the resources, relative to the entry directory
+         */
+        public Map<String, String> getResources() {
+            return resources;
+        }
+    }
+
+    private final Path directory;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> referenced = new HashSet<>();
+    private long size;
+
+    /**
+     * A registry without size limit.
+     */
+    public GeometryRegistry(Path directory) {
+        this(directory, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize maximum size of the entries in bytes
+     */
+    public GeometryRegistry(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        load();
+    }
+
+    /**
+     * @param directory persistent directory of the registry, shared by the servers and workers converting files
+     * @param maxSize   maximum size of the entries in MB
+     */
+    public static GeometryRegistry fromProperties(String directory, String maxSize) {
+        if (directory == null || directory.trim().isEmpty()) {
+            throw new IllegalArgumentException("instancing_directory must be set to a persistent directory");
+        }
+        long maxBytes = maxSize == null || maxSize.trim().isEmpty() ? Long.MAX_VALUE
+                : Long.parseLong(maxSize.trim()) * 1024 * 1024;
+        return new GeometryRegistry(Paths.get(directory.trim()), maxBytes);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the geometry registered for a hash value, null if there is none
+     */
+    public Entry find(String value) throws IOException {
+        Path entry = directory.resolve(value);
+        Path entryProperties = entry.resolve(ENTRY_PROPERTIES);
+        if (!Files.isRegularFile(entryProperties)) {
+            return null;
+        }
+        synchronized (this) {
+            // Lookup moves the entry to the most recently used end, entries of other hosts are added
+            if (entries.get(value) == null) {
+                long entrySize = sizeOf(entry);
+                entries.put(value, entrySize);
+                size += entrySize;
+            }
+        }
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(entryProperties)) {
+            properties.load(inputStream);
+        }
+        String[] values = properties.getProperty("matrix", "").split(",");
+        if (values.length != 16) {
+            throw new IOException("Invalid matrix in " + entryProperties);
+        }
+        double[] matrix = new double[16];
+        try {
+            for (int i = 0; i < 16; i++) {
+                matrix[i] = Double.parseDouble(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid matrix in " + entryProperties, e);
+        }
+        Map<String, String> resources = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(RESOURCE)) {
+                resources.put(name.substring(RESOURCE.length()), properties.getProperty(name));
+            }
+        }
+        return new Entry(new GeometryHash(value, matrix), entry, resources);
+    }
+
+    /**
+     * Find the geometry registered for a hash value to be referenced by an instance, the entry being no longer
+     * evicted.
+     *
+     * @return the geometry, null if there is none
+     */
+    public Entry reference(String value) throws IOException {
+        Entry entry = find(value);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Path marker = entry.getDirectory().resolve(REFERENCED);
+            if (!Files.exists(marker)) {
+                Files.createFile(marker);
+            }
+        } catch (NoSuchFileException e) {
+            // Evicted meanwhile by another process
+            return null;
+        } catch (FileAlreadyExistsException e) {
+            // Referenced meanwhile by another conversion
+            LOGGER.log(Level.FINEST, null, e);
+        }
+        // An entry being evicted is moved away before its marker is checked
+        if (!Files.isRegularFile(entry.getDirectory().resolve(ENTRY_PROPERTIES))) {
+            return null;
+        }
+        synchronized (this) {
+            referenced.add(value);
+        }
+        return entry;
+    }
+
+    /**
+     * Register the files of a result as the geometry of a hash, unless a result already was.
+     *
+     * @return whether the result was registered
+     */
+    public boolean register(GeometryHash hash, ProcessedConversionResult result) throws IOException {
+        Path entry = directory.resolve(hash.getValue());
+        if (Files.exists(entry)) {
+            return false;
+        }
+        Files.createDirectories(directory);
+        Path staging = directory.resolve(STAGING + UUID.randomUUID());
+        try {
+            Files.createDirectory(staging);
+            Properties properties = new Properties();
+            long entrySize = copy(result.getConvertedFile(), staging, OBJ, properties);
+            List<Path> materials = result.getMaterials();
+            for (int i = 0; i < materials.size(); i++) {
+                entrySize += copy(materials.get(i), staging, MATERIAL + i, properties);
+            }
+            for (Map.Entry<String, Path> artifact : result.getArtifacts().entrySet()) {
+                entrySize += copy(artifact.getValue(), staging, artifact.getKey(), properties);
+            }
+            if (entrySize > maxSize) {
+                return false;
+            }
+            StringBuilder matrix = new StringBuilder();
+            for (double value : hash.getMatrix()) {
+                matrix.append(matrix.length() == 0 ? "" : ",").append(value);
+            }
+            properties.setProperty("matrix", matrix.toString());
+            try (OutputStream outputStream = Files.newOutputStream(staging.resolve(ENTRY_PROPERTIES))) {
+                properties.store(outputStream, null);
+            }
+            try {
+                Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (this) {
+                    if (entries.put(hash.getValue(), entrySize) == null) {
+                        size += entrySize;
+                    }
+                    evict();
+                }
+                return true;
+            } catch (FileSystemException e) {
+                if (Files.exists(entry)) {
+                    // Registered meanwhile by another conversion
+                    return false;
+                }
+                throw e;
+            }
+        } finally {
+            delete(staging);
+        }
+    }
+
+    /**
+     * @return the size of the registered entries in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (referenced.contains(eldest.getKey())) {
+                continue;
+            }
+            Path entry = directory.resolve(eldest.getKey());
+            if (Files.exists(entry.resolve(REFERENCED))) {
+                // Referenced by another process
+                referenced.add(eldest.getKey());
+                continue;
+            }
+            if (evict(entry)) {
+                iterator.remove();
+                size -= eldest.getValue();
+            } else {
+                referenced.add(eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Move the entry away then delete it, unless it was referenced before being moved.
+     *
+     * @return false if the entry was kept
+     */
+    private boolean evict(Path entry) {
+        Path evicted = directory.resolve(STAGING + UUID.randomUUID());
+        try {
+            Files.move(entry, evicted, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // Evicted by another process
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot evict " + entry, e);
+            return false;
+        }
+        if (Files.exists(evicted.resolve(REFERENCED))) {
+            try {
+                Files.move(evicted, entry, StandardCopyOption.ATOMIC_MOVE);
+                return false;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot restore the referenced geometry " + entry, e);
+            }
+        }
+        delete(evicted);
+        return true;
+    }
+
+    private synchronized void load() {
+        List<Path> found = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    if (path.getFileName().toString().startsWith(STAGING)) {
+                        if (System.currentTimeMillis() - lastModified(path) > STAGING_GRACE_PERIOD) {
+                            delete(path);
+                        }
+                    } else if (Files.isDirectory(path)) {
+                        found.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read geometry registry " + directory, e);
+            }
+        }
+        found.sort(Comparator.comparingLong(GeometryRegistry::lastModified));
+        for (Path path : found) {
+            long entrySize = sizeOf(path);
+            entries.put(path.getFileName().toString(), entrySize);
+            size += entrySize;
+            if (Files.exists(path.resolve(REFERENCED))) {
+                referenced.add(path.getFileName().toString());
+            }
+        }
+        evict();
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long sizeOf(Path entry) {
+        long entrySize = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry)) {
+            for (Path file : stream) {
+                if (!ENTRY_PROPERTIES.equals(file.getFileName().toString())) {
+                    entrySize += Files.size(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        return entrySize;
+    }
+
+    /**
+     * @return the size of the copied file, 0 if there is none
+     */
+    private static long copy(Path file, Path staging, String name, Properties properties) throws IOException {
+        if (file != null && Files.isRegularFile(file)) {
+            Files.copy(file, staging.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            properties.setProperty(RESOURCE + name, file.getFileName().toString());
+            return Files.size(file);
+        }
+        return 0;
+    }
+
+    private static void delete(Path entry) {
+        if (!Files.exists(entry)) {
+            return;
+        }
+        try {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry)) {
+                for (Path file : stream) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(entry);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + entry, e);
+        }
+    }
+
+}
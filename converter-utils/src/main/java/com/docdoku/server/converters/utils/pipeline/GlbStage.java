@@ -0,0 +1,94 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.GlbWriter;
+import com.docdoku.server.converters.utils.mesh.Material;
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.MtlReader;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write the converted OBJ file as a quantized binary glTF file, added as the {@code glb} artifact.
+ */
+public class GlbStage implements ConversionStage {
+
+    public static final String ARTIFACT = "glb";
+
+    @Override
+    public String getName() {
+        return "glb";
+    }
+
+    @Override
+    public String getVersion() {
+        return "3";
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path glbFile = tmpDir.resolve(name + ".glb");
+        try {
+            Mesh mesh = result.getMesh();
+            Map<String, Material> materials = new LinkedHashMap<>();
+            long sourceSize = Files.size(objFile);
+            for (Path mtlFile : materialFiles(result, mesh)) {
+                materials.putAll(MtlReader.read(mtlFile));
+                sourceSize += Files.size(mtlFile);
+            }
+            long glbSize = GlbWriter.write(mesh, materials, name, glbFile);
+            result.putArtifact(ARTIFACT, glbFile);
+            result.putMetric("glb.size", glbSize);
+            result.putMetric("glb.compression_ratio",
+                    String.format(Locale.ROOT, "%.2f", (double) sourceSize / glbSize));
+            result.putMetric("glb.vertices", mesh.getVertexCount());
+            result.putMetric("glb.triangles", mesh.getTriangleCount());
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot write " + glbFile + " from " + objFile, e);
+        }
+    }
+
+    /**
+     * @return the existing MTL files of the result and of the material libraries of its mesh
+     */
+    static Set<Path> materialFiles(ProcessedConversionResult result, Mesh mesh) {
+        Set<Path> mtlFiles = new LinkedHashSet<>(result.getMaterials());
+        for (String library : mesh.getMaterialLibraries()) {
+            mtlFiles.add(result.getConvertedFile().resolveSibling(library));
+        }
+        mtlFiles.removeIf(mtlFile -> !Files.isRegularFile(mtlFile));
+        return mtlFiles;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.GeometryHash;
+import com.docdoku.server.converters.utils.mesh.Json;
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Share the geometry of the converted OBJ file between the results having the same one, see {@link GeometryHash}.
+ * <p>
+ * The first result with a geometry is registered once every stage has run on it. The next ones are marked as
+ * instances and get the {@code instance} artifact: a JSON file naming the registered geometry, its resources and
+ * the column major matrix moving it onto their own mesh. The stages after this one are skipped for instances.
+ * <p>
+ * Textured meshes are never shared, the hash only covering their shape.
+ */
+public class InstanceStage implements ConversionStage {
+
+    public static final String ARTIFACT = "instance";
+
+    private static final String GEOMETRY = "instance.geometry";
+    private static final String MATRIX = "instance.matrix";
+
+    private final double tolerance;
+    private final GeometryRegistry registry;
+
+    /**
+     * @param tolerance size of the grid vertices are snapped to before hashing, in the units of the OBJ files
+     */
+    public InstanceStage(double tolerance, GeometryRegistry registry) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Invalid instancing tolerance " + tolerance);
+        }
+        this.tolerance = tolerance;
+        this.registry = registry;
+    }
+
+    public static InstanceStage fromProperties(String tolerance, String directory, String maxSize) {
+        return new InstanceStage(tolerance == null || tolerance.trim().isEmpty()
+                ? 0.001 : Double.parseDouble(tolerance.trim()), GeometryRegistry.fromProperties(directory, maxSize));
+    }
+
+    @Override
+    public String getName() {
+        return "instance";
+    }
+
+    @Override
+    public String getVersion() {
+        return "2-" + tolerance;
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path instanceFile = tmpDir.resolve(name + ".instance.json");
+        try {
+            Mesh mesh = result.getMesh();
+            if (mesh.hasTexCoords()) {
+                result.putMetric("instance.shared", false);
+                return result;
+            }
+            GeometryHash hash = GeometryHash.compute(mesh, tolerance);
+            result.putMetric(GEOMETRY, hash.getValue());
+            result.putMetric(MATRIX, join(hash.getMatrix()));
+            GeometryRegistry.Entry entry = registry.reference(hash.getValue());
+            if (entry == null) {
+                result.putMetric("instance.shared", false);
+                return result;
+            }
+
+            StringBuilder json = new StringBuilder("{\"geometry\":").append(Json.quote(hash.getValue()));
+            json.append(",\"matrix\":");
+            Json.array(json, toFloats(entry.getHash().matrixTo(hash)));
+            json.append(",\"resources\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> resource : entry.getResources().entrySet()) {
+                json.append(first ? "" : ",").append(Json.quote(resource.getKey())).append(':')
+                        .append(Json.quote(resource.getValue()));
+                first = false;
+            }
+            json.append("}}\n");
+            Files.write(instanceFile, json.toString().getBytes(StandardCharsets.UTF_8));
+            result.putArtifact(ARTIFACT, instanceFile);
+            result.putMetric("instance.shared", true);
+            result.setInstanceOf(hash.getValue());
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot share the geometry of " + objFile, e);
+        }
+    }
+
+    @Override
+    public void completed(ProcessedConversionResult result) throws ConversionException {
+        String geometry = result.getMetric(GEOMETRY);
+        if (geometry == null || result.getInstanceOf() != null) {
+            return;
+        }
+        String[] values = result.getMetric(MATRIX).split(",");
+        double[] matrix = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            matrix[i] = Double.parseDouble(values[i]);
+        }
+        try {
+            registry.register(new GeometryHash(geometry, matrix), result);
+        } catch (IOException e) {
+            throw new ConversionException("Cannot register the geometry of " + result.getConvertedFile(), e);
+        }
+    }
+
+    private static String join(double[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (double value : values) {
+            joined.append(joined.length() == 0 ? "" : ",").append(value);
+        }
+        return joined.toString();
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
+
+}
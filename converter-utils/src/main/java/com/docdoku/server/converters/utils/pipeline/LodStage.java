@@ -0,0 +1,139 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+import com.docdoku.server.converters.utils.mesh.QuadricSimplifier;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Write decimated copies of heavy meshes, so that viewers can load a coarse level first.
+ * <p>
+ * Each level is given as a percentage of the triangles and added as the {@code lod<percentage>} artifact,
+ * with its triangle count and its error as metrics. Levels are simplified one after the other from the finest to
+ * the coarsest, each from the previous one, so a single copy of the mesh is simplified at a time and coarse levels
+ * start from fewer triangles. Their errors add up to bound the distance to the original mesh.
+ */
+public class LodStage implements ConversionStage {
+
+    private final List<String> levels;
+    private final int minTriangles;
+
+    public LodStage(List<String> levels, int minTriangles) {
+        for (String level : levels) {
+            double percentage = Double.parseDouble(level);
+            if (percentage <= 0 || percentage >= 100) {
+                throw new IllegalArgumentException("Level of detail out of (0, 100): " + level);
+            }
+        }
+        this.levels = new ArrayList<>(levels);
+        this.minTriangles = minTriangles;
+    }
+
+    /**
+     * @param levels comma separated percentages of the triangles to keep
+     * @param minTriangles meshes with fewer triangles are not simplified
+     */
+    public static LodStage fromProperties(String levels, String minTriangles) {
+        List<String> parsed = new ArrayList<>();
+        for (String level : (levels == null ? "" : levels).split(",")) {
+            if (!level.trim().isEmpty()) {
+                parsed.add(level.trim());
+            }
+        }
+        return new LodStage(parsed, minTriangles == null || minTriangles.trim().isEmpty()
+                ? 0 : Integer.parseInt(minTriangles.trim()));
+    }
+
+    @Override
+    public String getName() {
+        return "lod";
+    }
+
+    @Override
+    public String getVersion() {
+        return "2-" + String.join("_", levels) + "-" + minTriangles;
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Mesh mesh;
+        try {
+            mesh = result.getMesh();
+        } catch (IOException e) {
+            throw new ConversionException("Cannot read " + objFile, e);
+        }
+        if (mesh.getTriangleCount() < minTriangles || levels.isEmpty()) {
+            return result;
+        }
+        float[] bounds = mesh.getBounds();
+        double diagonal = Math.sqrt(square(bounds[3] - bounds[0]) + square(bounds[4] - bounds[1])
+                + square(bounds[5] - bounds[2]));
+
+        List<String> finestFirst = new ArrayList<>(levels);
+        finestFirst.sort(Comparator.comparingDouble((String level) -> Double.parseDouble(level)).reversed());
+        Mesh previous = mesh;
+        double error = 0;
+        try {
+            for (String level : finestFirst) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new ConversionException("Interrupted while simplifying " + objFile);
+                }
+                String artifact = "lod" + level;
+                int target = (int) (mesh.getTriangleCount() * Double.parseDouble(level) / 100);
+                QuadricSimplifier.Simplification simplification = new QuadricSimplifier(previous).simplify(target);
+                if (previous != mesh) {
+                    previous.release();
+                }
+                previous = simplification.getMesh();
+                error += simplification.getError();
+                Path lodFile = tmpDir.resolve(name + "." + artifact + ".obj");
+                ObjWriter.write(previous, lodFile);
+                result.putArtifact(artifact, lodFile);
+                result.putMetric(artifact + ".triangles", previous.getTriangleCount());
+                result.putMetric(artifact + ".error", error);
+                result.putMetric(artifact + ".relative_error", diagonal > 0 ? error / diagonal : 0);
+            }
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot simplify " + objFile, e);
+        } finally {
+            if (previous != mesh) {
+                previous.release();
+            }
+        }
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+}
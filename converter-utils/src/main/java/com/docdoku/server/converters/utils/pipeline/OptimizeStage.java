@@ -0,0 +1,123 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.MeshOptimizer;
+import com.docdoku.server.converters.utils.mesh.ObjWriter;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Replace the converted OBJ file by a welded mesh without degenerate triangles, ordered for the vertex cache.
+ * <p>
+ * Vertex and triangle counts and the average cache miss ratio, for a 32 entries FIFO cache, are recorded
+ * before and after.
+ */
+public class OptimizeStage implements ConversionStage {
+
+    private static final int ACMR_CACHE_SIZE = 32;
+
+    private final double weldTolerance;
+
+    /**
+     * @param weldTolerance distance under which vertices are merged, relative to the bounding box diagonal
+     */
+    public OptimizeStage(double weldTolerance) {
+        this.weldTolerance = weldTolerance;
+    }
+
+    public static OptimizeStage fromProperties(String weldTolerance) {
+        return new OptimizeStage(weldTolerance == null || weldTolerance.trim().isEmpty()
+                ? 0 : Double.parseDouble(weldTolerance.trim()));
+    }
+
+    @Override
+    public String getName() {
+        return "optimize";
+    }
+
+    @Override
+    public String getVersion() {
+        return "2-" + weldTolerance;
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        Path optimizedFile = tmpDir.resolve(UUID.randomUUID() + ".obj");
+        try {
+            Mesh mesh = result.getMesh();
+            float[] bounds = mesh.getBounds();
+            double diagonal = Math.sqrt(square(bounds[3] - bounds[0]) + square(bounds[4] - bounds[1])
+                    + square(bounds[5] - bounds[2]));
+            float tolerance = Double.isFinite(diagonal) ? (float) (weldTolerance * diagonal) : 0;
+
+            Mesh welded = MeshOptimizer.weld(mesh, tolerance);
+            Mesh optimized;
+            try {
+                optimized = MeshOptimizer.optimize(welded);
+            } finally {
+                welded.release();
+            }
+            boolean replaced = false;
+            try {
+                ObjWriter.write(optimized, optimizedFile);
+
+                ProcessedConversionResult optimizedResult =
+                        result.withConvertedFile(optimizedFile, result.getMaterials());
+                optimizedResult.setMesh(optimized);
+                optimizedResult.putMetric("optimize.vertices_before", mesh.getVertexCount());
+                optimizedResult.putMetric("optimize.vertices_after", optimized.getVertexCount());
+                optimizedResult.putMetric("optimize.triangles_before", mesh.getTriangleCount());
+                optimizedResult.putMetric("optimize.triangles_after", optimized.getTriangleCount());
+                optimizedResult.putMetric("optimize.acmr_before", acmr(mesh));
+                optimizedResult.putMetric("optimize.acmr_after", acmr(optimized));
+                replaced = true;
+                return optimizedResult;
+            } finally {
+                // The replaced mesh is released, or the optimized one if the stage failed
+                if (replaced) {
+                    result.releaseMesh();
+                } else {
+                    optimized.release();
+                }
+            }
+        } catch (IOException e) {
+            throw new ConversionException("Cannot optimize " + objFile, e);
+        }
+    }
+
+    private static String acmr(Mesh mesh) {
+        return String.format(Locale.ROOT, "%.3f",
+                MeshOptimizer.acmr(mesh.getIndices(), mesh.getVertexCount(), ACMR_CACHE_SIZE));
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+}
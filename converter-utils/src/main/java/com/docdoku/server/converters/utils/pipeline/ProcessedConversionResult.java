@@ -0,0 +1,140 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.ObjReader;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ConversionResult} carrying what the post-conversion stages produced besides the OBJ file.
+ * <p>
+ * Artifacts are files written next to the converted file, such as a binary glTF or decimated meshes, keyed
+ * by a name such as {@code glb} or {@code lod.1}. Metrics are named values describing the conversion,
+ * such as {@code glb.compression_ratio}.
+ */
+public class ProcessedConversionResult extends ConversionResult {
+
+    private final Map<String, Path> artifacts = new LinkedHashMap<>();
+    private final Map<String, String> metrics = new LinkedHashMap<>();
+    private Mesh mesh;
+    private String instanceOf;
+
+    public ProcessedConversionResult(Path convertedFile, List<Path> materials) {
+        super(convertedFile, materials);
+    }
+
+    /**
+     * @return the result itself if it is already processed, a processed copy otherwise
+     */
+    public static ProcessedConversionResult of(ConversionResult result) {
+        if (result instanceof ProcessedConversionResult) {
+            return (ProcessedConversionResult) result;
+        }
+        return new ProcessedConversionResult(result.getConvertedFile(), new ArrayList<>(result.getMaterials()));
+    }
+
+    /**
+     * @return a result with another OBJ file and materials, keeping the artifacts and metrics
+     */
+    public ProcessedConversionResult withConvertedFile(Path convertedFile, List<Path> materials) {
+        ProcessedConversionResult result = new ProcessedConversionResult(convertedFile, materials);
+        result.artifacts.putAll(artifacts);
+        result.metrics.putAll(metrics);
+        result.instanceOf = instanceOf;
+        return result;
+    }
+
+    /**
+     * @return the mesh of the converted file, read once and shared by the stages
+     */
+    public synchronized Mesh getMesh() throws IOException {
+        if (mesh == null) {
+            mesh = ObjReader.read(getConvertedFile());
+        }
+        return mesh;
+    }
+
+    /**
+     * Set the mesh of the converted file, when a stage already has it in memory.
+     */
+    public synchronized void setMesh(Mesh mesh) {
+        this.mesh = mesh;
+    }
+
+    /**
+     * Free the mesh once no stage uses it anymore, see {@link Mesh#release()}.
+     */
+    synchronized void releaseMesh() {
+        if (mesh != null) {
+            mesh.release();
+            mesh = null;
+        }
+    }
+
+    /**
+     * @return the hash of the registered geometry this result is an instance of, null if it is not an instance
+     */
+    public String getInstanceOf() {
+        return instanceOf;
+    }
+
+    /**
+     * Mark the result as an instance of a registered geometry, the stages deriving files from the geometry are
+     * then skipped.
+     */
+    public void setInstanceOf(String geometry) {
+        this.instanceOf = geometry;
+    }
+
+    public Map<String, Path> getArtifacts() {
+        return Collections.unmodifiableMap(artifacts);
+    }
+
+    public Path getArtifact(String name) {
+        return artifacts.get(name);
+    }
+
+    public void putArtifact(String name, Path file) {
+        artifacts.put(name, file);
+    }
+
+    public Map<String, String> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    public String getMetric(String name) {
+        return metrics.get(name);
+    }
+
+    public void putMetric(String name, Object value) {
+        metrics.put(name, String.valueOf(value));
+    }
+
+}
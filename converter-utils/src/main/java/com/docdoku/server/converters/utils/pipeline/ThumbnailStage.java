@@ -0,0 +1,104 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import com.docdoku.server.converters.utils.mesh.Material;
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.MtlReader;
+import com.docdoku.server.converters.utils.mesh.SoftwareRasterizer;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Render a PNG thumbnail of the converted mesh on the CPU, see {@link SoftwareRasterizer}, added as the
+ * {@code thumbnail} artifact.
+ */
+public class ThumbnailStage implements ConversionStage {
+
+    public static final String ARTIFACT = "thumbnail";
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("thumbnail-renderer"));
+
+    private final int size;
+
+    /**
+     * @param size width and height of the thumbnails in pixels
+     */
+    public ThumbnailStage(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid thumbnail size " + size);
+        }
+        this.size = size;
+    }
+
+    public static ThumbnailStage fromProperties(String size) {
+        return new ThumbnailStage(size == null || size.trim().isEmpty() ? 256 : Integer.parseInt(size.trim()));
+    }
+
+    @Override
+    public String getName() {
+        return "thumbnail";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1-" + size;
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path thumbnailFile = tmpDir.resolve(name + ".thumbnail.png");
+        try {
+            Mesh mesh = result.getMesh();
+            Map<String, Material> materials = new LinkedHashMap<>();
+            for (Path mtlFile : GlbStage.materialFiles(result, mesh)) {
+                materials.putAll(MtlReader.read(mtlFile));
+            }
+            BufferedImage image = new SoftwareRasterizer(size, size).render(mesh, materials, EXECUTOR);
+            if (!ImageIO.write(image, "png", thumbnailFile.toFile())) {
+                throw new ConversionException("No PNG writer available for " + thumbnailFile);
+            }
+            result.putArtifact(ARTIFACT, thumbnailFile);
+            result.putMetric("thumbnail.size", Files.size(thumbnailFile));
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while rendering " + objFile, e);
+        } catch (IOException e) {
+            throw new ConversionException("Cannot render " + thumbnailFile + " from " + objFile, e);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.GlbWriter;
+import com.docdoku.server.converters.utils.mesh.Json;
+import com.docdoku.server.converters.utils.mesh.Material;
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.MeshTiler;
+import com.docdoku.server.converters.utils.mesh.MtlReader;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Split heavy meshes into octree tiles, see {@link MeshTiler}, for viewers streaming the tiles near the camera.
+ * <p>
+ * Each tile with triangles is written as a binary glTF file, added as the {@code tile-<id>} artifact, the root
+ * being {@code tile}. The {@code tileset} artifact indexes them in the 3D Tiles layout: boxes and contents of the
+ * tiles, refined by addition, with their geometric errors. Boxes are in the coordinates of the converted file,
+ * like the tiles.
+ */
+public class TileStage implements ConversionStage {
+
+    public static final String ARTIFACT = "tileset";
+
+    private final int maxTriangles;
+    private final int maxDepth;
+
+    /**
+     * @param maxTriangles meshes and octree cells with more triangles are split
+     * @param maxDepth     depth of the deepest tiles
+     */
+    public TileStage(int maxTriangles, int maxDepth) {
+        if (maxTriangles <= 0 || maxDepth < 0) {
+            throw new IllegalArgumentException("Invalid tiling limits " + maxTriangles + ", " + maxDepth);
+        }
+        this.maxTriangles = maxTriangles;
+        this.maxDepth = maxDepth;
+    }
+
+    public static TileStage fromProperties(String maxTriangles, String maxDepth) {
+        return new TileStage(maxTriangles == null || maxTriangles.trim().isEmpty()
+                ? 50000 : Integer.parseInt(maxTriangles.trim()),
+                maxDepth == null || maxDepth.trim().isEmpty() ? 8 : Integer.parseInt(maxDepth.trim()));
+    }
+
+    @Override
+    public String getName() {
+        return "tiles";
+    }
+
+    @Override
+    public String getVersion() {
+        return "2-" + maxTriangles + "-" + maxDepth;
+    }
+
+    @Override
+    public ProcessedConversionResult process(ProcessedConversionResult result, Path tmpDir)
+            throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String name = objFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        try {
+            Mesh mesh = result.getMesh();
+            if (mesh.getTriangleCount() <= maxTriangles) {
+                return result;
+            }
+            Map<String, Material> materials = new LinkedHashMap<>();
+            for (Path mtlFile : GlbStage.materialFiles(result, mesh)) {
+                materials.putAll(MtlReader.read(mtlFile));
+            }
+            MeshTiler tiler = new MeshTiler(mesh, maxTriangles, maxDepth);
+            MeshTiler.Tile root = tiler.tile();
+
+            StringBuilder json = new StringBuilder("{\"asset\":{\"version\":\"1.1\",\"generator\":")
+                    .append(Json.quote("DocDoku converters")).append("},\"geometricError\":")
+                    .append(diagonal(root.getBounds())).append(",\"root\":");
+            int[] stats = new int[2];
+            writeTile(tiler, root, name, materials, tmpDir, result, json, stats);
+            json.append("}\n");
+            Path tilesetFile = tmpDir.resolve(name + ".tileset.json");
+            Files.write(tilesetFile, json.toString().getBytes(StandardCharsets.UTF_8));
+            result.putArtifact(ARTIFACT, tilesetFile);
+            result.putMetric("tiles.count", stats[0]);
+            result.putMetric("tiles.depth", stats[1]);
+            return result;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot tile " + objFile, e);
+        }
+    }
+
+    /**
+     * Write the content of a tile and its children, appending their JSON description.
+     *
+     * @param stats number of tiles with content and maximum depth, updated
+     */
+    private static void writeTile(MeshTiler tiler, MeshTiler.Tile tile, String name, Map<String, Material> materials,
+                                  Path tmpDir, ProcessedConversionResult result, StringBuilder json, int[] stats)
+            throws IOException {
+        float[] bounds = tile.getBounds();
+        json.append("{\"boundingVolume\":{\"box\":");
+        float[] box = new float[12];
+        for (int axis = 0; axis < 3; axis++) {
+            box[axis] = (bounds[axis] + bounds[axis + 3]) / 2;
+            box[3 + axis * 4] = (bounds[axis + 3] - bounds[axis]) / 2;
+        }
+        Json.array(json, box);
+        json.append("},\"geometricError\":").append(tile.getGeometricError()).append(",\"refine\":\"ADD\"");
+        if (tile.getTriangleCount() > 0) {
+            String artifact = tile.getId().isEmpty() ? "tile" : "tile-" + tile.getId();
+            Path tileFile = tmpDir.resolve(name + "." + artifact + ".glb");
+            Mesh tileMesh = tiler.extract(tile);
+            try {
+                GlbWriter.write(tileMesh, materials, name, tileFile);
+            } finally {
+                tileMesh.release();
+            }
+            result.putArtifact(artifact, tileFile);
+            json.append(",\"content\":{\"uri\":").append(Json.quote(tileFile.getFileName().toString())).append('}');
+            stats[0]++;
+        }
+        stats[1] = Math.max(stats[1], tile.getDepth());
+        if (!tile.getChildren().isEmpty()) {
+            json.append(",\"children\":[");
+            for (int i = 0; i < tile.getChildren().size(); i++) {
+                json.append(i == 0 ? "" : ",");
+                writeTile(tiler, tile.getChildren().get(i), name, materials, tmpDir, result, json, stats);
+            }
+            json.append(']');
+        }
+        json.append('}');
+    }
+
+    private static double diagonal(float[] bounds) {
+        double dx = bounds[3] - bounds[0];
+        double dy = bounds[4] - bounds[1];
+        double dz = bounds[5] - bounds[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+}
@@ -0,0 +1,547 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.remote;
+
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionPriority;
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import com.docdoku.server.converters.utils.pipeline.ProcessedConversionResult;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Standalone process converting files for the servers, see {@link RemoteConversions}.
+ * <p>
+ * The worker runs the converters found on its class path with their own configuration, including their cache
+ * and post-conversion stages, and sends back the OBJ file, its materials and the artifacts of the stages.
+ * Conversions of a server are cancelled when its connection is lost. Servers must prove they know the secret
+ * shared with the worker before submitting conversions, and files exchanged by path must be in the directories
+ * shared with the servers. The worker still runs the converters on the files it is sent, it should only be
+ * reachable from the servers.
+ * <p>
+ * Started with {@code java -jar converter-worker.jar [options]}:
+ * <pre>
+ * --secret-file  file holding the secret shared with the servers, their {@code remote_secret}, required
+ * --host         address to listen on, the loopback address by default
+ * --port         port to listen on, 7800 by default
+ * --slots        conversions assigned at once to the worker, the number of processors by default
+ * --heartbeat    seconds between two heartbeats, 5 by default
+ * --work-dir     directory of the files sent by the servers, java.io.tmpdir by default
+ * --shared-dirs  comma separated directories shared with the servers, files exchanged by path must be in them,
+ *                none by default
+ * --converters   comma separated converter classes, those registered as CADConverter services by default
+ * --processes    local worker processes to start on consecutive ports, to test without converter nodes
+ * </pre>
+ */
+public class ConversionWorker implements Runnable, Closeable {
+
+    public static final int DEFAULT_PORT = 7800;
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionWorker.class.getName());
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Servers failing to answer the challenge in time are disconnected
+    private static final int AUTH_TIMEOUT = 30000;
+    private static volatile boolean workerProcess;
+
+    private final ServerSocket serverSocket;
+    private final String name;
+    private final int slots;
+    private final Path workDirectory;
+    private final List<Path> sharedDirectories = new ArrayList<>();
+    private final String secret;
+    private final Map<String, CADConverter> converters = new HashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("conversion-worker-connection"));
+    private final ExecutorService blockingConversions = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("conversion-worker-blocking"));
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("conversion-worker-heartbeat"));
+
+    /**
+     * @param address           where to listen, port 0 for any free port
+     * @param heartbeatInterval milliseconds between two heartbeats
+     * @param sharedDirectories directories where the files exchanged by path must be
+     * @param secret            secret the servers must know
+     */
+    public ConversionWorker(InetSocketAddress address, int slots, long heartbeatInterval, Path workDirectory,
+                            Collection<Path> sharedDirectories, String secret,
+                            Collection<? extends CADConverter> converters) throws IOException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The conversion worker requires a secret shared with the servers");
+        }
+        this.secret = secret;
+        for (Path sharedDirectory : sharedDirectories) {
+            this.sharedDirectories.add(sharedDirectory.toRealPath());
+        }
+        this.workDirectory = Files.createDirectories(workDirectory);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        this.name = InetAddress.getLocalHost().getHostName() + ":" + serverSocket.getLocalPort();
+        this.slots = slots;
+        for (CADConverter converter : converters) {
+            this.converters.put(converter.getClass().getName(), converter);
+        }
+        heartbeats.scheduleWithFixedDelay(() -> connections.forEach(Connection::heartbeat),
+                heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true in worker processes, which convert their files locally instead of sending them to workers
+     */
+    public static boolean isWorkerProcess() {
+        return workerProcess;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept the server connections until the worker is closed.
+     */
+    @Override
+    public void run() {
+        LOGGER.info("Conversion worker " + name + " ready with " + slots + " slots, converters "
+                + converters.keySet());
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connectionThreads.execute(connection);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Cannot accept a server connection", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        heartbeats.shutdownNow();
+        connections.forEach(Connection::close);
+        connectionThreads.shutdownNow();
+        blockingConversions.shutdownNow();
+    }
+
+    private CompletableFuture<ConversionResult> convert(CADConverter converter, Path cadFile, Path tmpDir) {
+        if (converter instanceof AsyncCADConverter) {
+            return ((AsyncCADConverter) converter).convertAsync(cadFile.toUri(), tmpDir.toUri());
+        }
+        return ConversionFutures.supplyAsync(() -> converter.convert(cadFile.toUri(), tmpDir.toUri()),
+                blockingConversions);
+    }
+
+    /**
+     * @return true if the file, once its links are resolved, is in a shared directory
+     */
+    private boolean isShared(Path file) {
+        Path realFile;
+        try {
+            realFile = file.toRealPath();
+        } catch (IOException e) {
+            return false;
+        }
+        return sharedDirectories.stream().anyMatch(realFile::startsWith);
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete " + directory, e);
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Map<Long, CompletableFuture<ConversionResult>> jobs = new ConcurrentHashMap<>();
+        private volatile DataOutputStream out;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] challenge = new byte[RemoteProtocol.CHALLENGE_SIZE];
+                RANDOM.nextBytes(challenge);
+                synchronized (out) {
+                    out.writeInt(RemoteProtocol.MAGIC);
+                    out.writeInt(RemoteProtocol.VERSION);
+                    out.writeByte(RemoteProtocol.HELLO);
+                    out.writeInt(slots);
+                    RemoteProtocol.writeString(out, name);
+                    out.write(challenge);
+                    out.flush();
+                }
+                if (!authenticate(in, challenge)) {
+                    LOGGER.warning("Server " + socket.getRemoteSocketAddress()
+                            + " rejected, it does not know the secret of the worker");
+                    return;
+                }
+                LOGGER.info("Server " + socket.getRemoteSocketAddress() + " connected");
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == RemoteProtocol.SUBMIT) {
+                        submit(in);
+                    } else if (type == RemoteProtocol.CANCEL) {
+                        CompletableFuture<ConversionResult> job = jobs.remove(in.readLong());
+                        if (job != null) {
+                            job.cancel(true);
+                        }
+                    } else {
+                        throw new IOException("Unexpected message " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                LOGGER.info("Server " + socket.getRemoteSocketAddress() + " disconnected");
+            } catch (IOException e) {
+                LOGGER.log(socket.isClosed() || e instanceof SocketException ? Level.FINE : Level.WARNING,
+                        "Connection of server " + socket.getRemoteSocketAddress() + " lost", e);
+            } finally {
+                close();
+            }
+        }
+
+        private boolean authenticate(DataInputStream in, byte[] challenge) throws IOException {
+            socket.setSoTimeout(AUTH_TIMEOUT);
+            if (in.readByte() != RemoteProtocol.AUTH) {
+                return false;
+            }
+            byte[] signature = new byte[RemoteProtocol.SIGNATURE_SIZE];
+            in.readFully(signature);
+            socket.setSoTimeout(0);
+            return MessageDigest.isEqual(RemoteProtocol.sign(secret, challenge), signature);
+        }
+
+        private void submit(DataInputStream in) throws IOException {
+            long id = in.readLong();
+            String converterName = RemoteProtocol.readString(in);
+            String workspaceId = RemoteProtocol.readString(in);
+            String priorityName = RemoteProtocol.readString(in);
+            String subject = RemoteProtocol.readString(in);
+            int iteration = in.readInt();
+            byte transfer = in.readByte();
+            // Only the file name is kept, files are never written outside of the job directory
+            String fileName = fileName(RemoteProtocol.readString(in));
+            ConversionPriority priority = priority(priorityName);
+
+            Path cadFile = null;
+            Path tmpDir = null;
+            Path jobDirectory = null;
+            boolean shared = true;
+            if (transfer == RemoteProtocol.TRANSFER_PATH) {
+                cadFile = path(RemoteProtocol.readString(in));
+                tmpDir = path(RemoteProtocol.readString(in));
+                shared = cadFile != null && tmpDir != null && isShared(cadFile) && isShared(tmpDir);
+            } else if (fileName == null) {
+                // Skip the content of the rejected file
+                RemoteProtocol.readFile(in, null, () -> {
+                });
+            } else {
+                jobDirectory = Files.createDirectories(workDirectory.resolve("job-" + UUID.randomUUID()));
+                tmpDir = jobDirectory;
+                cadFile = jobDirectory.resolve(fileName);
+                RemoteProtocol.readFile(in, cadFile, () -> {
+                });
+            }
+
+            CADConverter converter = converters.get(converterName);
+            CompletableFuture<ConversionResult> job;
+            if (priority == null || fileName == null) {
+                job = ConversionFutures.failed(new CADConverter.ConversionException("Invalid conversion of "
+                        + fileName + " with priority " + priorityName + " sent to worker " + name));
+            } else if (converter == null) {
+                job = ConversionFutures.failed(new CADConverter.ConversionException(
+                        "No converter " + converterName + " on worker " + name));
+            } else if (!shared) {
+                job = ConversionFutures.failed(new CADConverter.ConversionException(
+                        "Files of " + fileName + " are not in the directories shared with worker " + name));
+            } else {
+                ConversionContext.set(new ConversionContext(workspaceId, priority, subject, iteration));
+                try {
+                    job = convert(converter, cadFile, tmpDir);
+                } finally {
+                    ConversionContext.clear();
+                }
+            }
+            jobs.put(id, job);
+            Path cleanup = jobDirectory;
+            job.whenComplete((result, error) -> {
+                if (jobs.remove(id, job)) {
+                    reply(id, transfer, result, error);
+                }
+                if (cleanup != null) {
+                    delete(cleanup);
+                }
+            });
+        }
+
+        private ConversionPriority priority(String priorityName) {
+            try {
+                return ConversionPriority.valueOf(priorityName);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the name of the file at the given path, null if it has none or is not a valid path
+         */
+        private String fileName(String path) {
+            Path file = path(path);
+            Path fileName = file == null ? null : file.getFileName();
+            return fileName == null ? null : fileName.toString();
+        }
+
+        private Path path(String path) {
+            try {
+                return path == null ? null : Paths.get(path);
+            } catch (InvalidPathException e) {
+                return null;
+            }
+        }
+
+        private void reply(long id, byte transfer, ConversionResult result, Throwable error) {
+            try {
+                synchronized (out) {
+                    if (error != null) {
+                        out.writeByte(RemoteProtocol.FAILURE);
+                        out.writeLong(id);
+                        RemoteProtocol.writeString(out, ConversionFutures.unwrap(error).getMessage());
+                    } else {
+                        out.writeByte(RemoteProtocol.RESULT);
+                        out.writeLong(id);
+                        writeResult(transfer, result);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot send the result of job " + id, e);
+                close();
+            }
+        }
+
+        private void writeResult(byte transfer, ConversionResult result) throws IOException {
+            Map<String, Path> artifacts = new HashMap<>();
+            Map<String, String> metrics = new HashMap<>();
+            if (result instanceof ProcessedConversionResult) {
+                artifacts.putAll(((ProcessedConversionResult) result).getArtifacts());
+                metrics.putAll(((ProcessedConversionResult) result).getMetrics());
+            }
+
+            out.writeInt(1 + result.getMaterials().size() + artifacts.size());
+            writeFile(transfer, RemoteProtocol.ROLE_OBJ, null, result.getConvertedFile());
+            for (Path material : result.getMaterials()) {
+                writeFile(transfer, RemoteProtocol.ROLE_MATERIAL, null, material);
+            }
+            for (Map.Entry<String, Path> artifact : artifacts.entrySet()) {
+                writeFile(transfer, RemoteProtocol.ROLE_ARTIFACT, artifact.getKey(), artifact.getValue());
+            }
+            out.writeInt(metrics.size());
+            for (Map.Entry<String, String> metric : metrics.entrySet()) {
+                RemoteProtocol.writeString(out, metric.getKey());
+                RemoteProtocol.writeString(out, metric.getValue());
+            }
+        }
+
+        private void writeFile(byte transfer, byte role, String key, Path file) throws IOException {
+            out.writeByte(role);
+            RemoteProtocol.writeString(out, key);
+            RemoteProtocol.writeString(out, file.getFileName().toString());
+            if (transfer == RemoteProtocol.TRANSFER_PATH) {
+                RemoteProtocol.writeString(out, file.toAbsolutePath().toString());
+            } else {
+                RemoteProtocol.writeFile(out, file);
+            }
+        }
+
+        void heartbeat() {
+            if (out == null) {
+                return;
+            }
+            try {
+                synchronized (out) {
+                    out.writeByte(RemoteProtocol.HEARTBEAT);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot send a heartbeat", e);
+                close();
+            }
+        }
+
+        void close() {
+            if (connections.remove(this)) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINEST, null, e);
+                }
+                // Nobody is waiting for these conversions anymore
+                jobs.values().forEach(job -> job.cancel(true));
+                jobs.clear();
+            }
+        }
+    }
+
+    /**
+     * Start a worker, or several local worker processes, see the options above.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unexpected argument " + args[i]);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(DEFAULT_PORT)));
+        int processes = Integer.parseInt(options.getOrDefault("processes", "1"));
+        if (processes > 1) {
+            startProcesses(args, port, processes);
+            return;
+        }
+
+        workerProcess = true;
+        String secretFile = options.get("secret-file");
+        if (secretFile == null) {
+            System.err.println("Missing --secret-file, the secret shared with the servers");
+            System.exit(1);
+        }
+        String secret = new String(Files.readAllBytes(Paths.get(secretFile)), StandardCharsets.UTF_8).trim();
+        String host = options.get("host");
+        InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+        int slots = Integer.parseInt(options.getOrDefault("slots",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long heartbeatInterval = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("heartbeat", "5")));
+        Path workDirectory = Paths.get(options.getOrDefault("work-dir", System.getProperty("java.io.tmpdir")))
+                .resolve("docdoku-conversion-worker-" + port);
+        List<Path> sharedDirectories = new ArrayList<>();
+        for (String sharedDirectory : options.getOrDefault("shared-dirs", "").split(",")) {
+            if (!sharedDirectory.trim().isEmpty()) {
+                sharedDirectories.add(Paths.get(sharedDirectory.trim()));
+            }
+        }
+
+        List<CADConverter> converters = new ArrayList<>();
+        String converterNames = options.get("converters");
+        if (converterNames == null) {
+            ServiceLoader.load(CADConverter.class).forEach(converters::add);
+        } else {
+            for (String converterName : converterNames.split(",")) {
+                try {
+                    converters.add((CADConverter) Class.forName(converterName.trim()).getConstructor().newInstance());
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    System.err.println("Cannot load converter " + converterName + ": " + e);
+                    System.exit(1);
+                }
+            }
+        }
+
+        new ConversionWorker(address, slots, heartbeatInterval, workDirectory, sharedDirectories, secret, converters)
+                .run();
+    }
+
+    /**
+     * Run the worker in several processes on consecutive ports until this process is stopped.
+     */
+    private static void startProcesses(String[] args, int port, int processes)
+            throws IOException, InterruptedException {
+        List<Process> started = new CopyOnWriteArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> started.forEach(Process::destroy)));
+        for (int i = 0; i < processes; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ConversionWorker.class.getName());
+            for (int j = 0; j + 1 < args.length; j += 2) {
+                if (!"--port".equals(args[j]) && !"--processes".equals(args[j])) {
+                    command.add(args[j]);
+                    command.add(args[j + 1]);
+                }
+            }
+            command.add("--port");
+            command.add(String.valueOf(port + i));
+            started.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (Process process : started) {
+            process.waitFor();
+        }
+    }
+
+}
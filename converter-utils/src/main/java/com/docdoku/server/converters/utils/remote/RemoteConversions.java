@@ -0,0 +1,725 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.remote;
+
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.DaemonThreadFactory;
+import com.docdoku.server.converters.utils.pipeline.ProcessedConversionResult;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the conversions of a converter to {@link ConversionWorker}s running on converter nodes, so the
+ * servers do not spend their CPU and memory on conversions.
+ * <p>
+ * Each worker announces how many conversions it runs at once. New conversions are queued on the least loaded
+ * worker, and a worker having a free slot and nothing queued steals the most recently queued conversion of
+ * the most loaded one. Workers send a heartbeat every few seconds: a worker silent for
+ * {@code remote_heartbeat_timeout} seconds, or whose connection is lost, is considered dead. Its queued
+ * conversions are given to the other workers, and its running ones are started again, up to
+ * {@code remote_max_attempts} times. Conversions fail if no worker is reachable for
+ * {@code remote_heartbeat_timeout} seconds. Dead workers are connected again in the background.
+ * <p>
+ * Files are sent over the connection unless {@code remote_transfer} is {@code path}, in which case the
+ * workers read and write them on a file system shared with the servers, at the same paths.
+ * <p>
+ * Workers only accept the servers knowing their secret, {@code remote_secret}, required to send conversions.
+ */
+public class RemoteConversions {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(RemoteConversions.class.getName());
+    private static final Map<String, RemoteConversions> REMOTES = new HashMap<>();
+
+    static {
+        try (InputStream inputStream = RemoteConversions.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * How the files are exchanged with the workers.
+     */
+    public enum Transfer {
+        PATH, STREAM
+    }
+
+    private final String converter;
+    private final List<RemoteWorker> workers = new ArrayList<>();
+    private final Transfer transfer;
+    private final String secret;
+    private final long heartbeatTimeout;
+    private final int maxAttempts;
+    private final Deque<RemoteJob> orphans = new ArrayDeque<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final ScheduledExecutorService watchdog;
+    private final ExecutorService readers;
+    private long lastConnected = System.nanoTime();
+    private volatile boolean closed;
+
+    /**
+     * @param converter        converter class run by the workers
+     * @param secret           secret shared with the workers
+     * @param heartbeatTimeout milliseconds without a message after which a worker is considered dead
+     */
+    public RemoteConversions(Class<?> converter, List<InetSocketAddress> addresses, Transfer transfer,
+                             String secret, long heartbeatTimeout, int maxAttempts) {
+        if (!addresses.isEmpty() && (secret == null || secret.isEmpty())) {
+            throw new IllegalArgumentException("Conversion workers require the secret shared with them");
+        }
+        this.converter = converter.getName();
+        this.transfer = transfer;
+        this.secret = secret;
+        this.heartbeatTimeout = TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout);
+        this.maxAttempts = maxAttempts;
+        for (InetSocketAddress address : addresses) {
+            workers.add(new RemoteWorker(address));
+        }
+        if (workers.isEmpty()) {
+            watchdog = null;
+            readers = null;
+        } else {
+            watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("conversion-watchdog"));
+            readers = Executors.newCachedThreadPool(new DaemonThreadFactory("conversion-worker-reader"));
+            long period = Math.max(10, heartbeatTimeout / 4);
+            watchdog.scheduleWithFixedDelay(this::watch, 0, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the workers configured in {@code conf.properties} for the given converter, none in worker processes
+     */
+    public static RemoteConversions forConverter(Class<?> converter) {
+        synchronized (REMOTES) {
+            RemoteConversions remote = REMOTES.get(converter.getName());
+            if (remote == null) {
+                List<InetSocketAddress> addresses = new ArrayList<>();
+                if (!ConversionWorker.isWorkerProcess()) {
+                    for (String worker : CONF.getProperty("remote_workers", "").split(",")) {
+                        worker = worker.trim();
+                        if (!worker.isEmpty()) {
+                            addresses.add(address(worker));
+                        }
+                    }
+                }
+                String secret = CONF.getProperty("remote_secret", "").trim();
+                if (!addresses.isEmpty() && secret.isEmpty()) {
+                    LOGGER.severe("No remote_secret shared with the conversion workers, converting locally");
+                    addresses.clear();
+                }
+                Transfer transfer = Transfer.valueOf(
+                        CONF.getProperty("remote_transfer", "stream").trim().toUpperCase(Locale.ROOT));
+                long heartbeatTimeout = TimeUnit.SECONDS.toMillis(
+                        Long.parseLong(CONF.getProperty("remote_heartbeat_timeout", "15").trim()));
+                int maxAttempts = Integer.parseInt(CONF.getProperty("remote_max_attempts", "3").trim());
+                remote = new RemoteConversions(converter, addresses, transfer, secret, heartbeatTimeout,
+                        maxAttempts);
+                REMOTES.put(converter.getName(), remote);
+            }
+            return remote;
+        }
+    }
+
+    /**
+     * Close the workers connections of all the converters, to be called when the converters are undeployed so that
+     * their threads and sockets do not keep their class loader alive.
+     */
+    public static void closeAll() {
+        List<RemoteConversions> remotes;
+        synchronized (REMOTES) {
+            remotes = new ArrayList<>(REMOTES.values());
+            REMOTES.clear();
+        }
+        remotes.forEach(RemoteConversions::close);
+    }
+
+    private static InetSocketAddress address(String worker) {
+        int colon = worker.lastIndexOf(':');
+        return colon < 0 ? InetSocketAddress.createUnresolved(worker, ConversionWorker.DEFAULT_PORT)
+                : InetSocketAddress.createUnresolved(worker.substring(0, colon),
+                Integer.parseInt(worker.substring(colon + 1)));
+    }
+
+    /**
+     * @return true if conversions are sent to workers
+     */
+    public boolean isEnabled() {
+        return !workers.isEmpty();
+    }
+
+    /**
+     * Convert the file on a worker.
+     * <p>
+     * Cancelling the returned future drops the conversion if it is still queued, cancels it on its worker
+     * otherwise.
+     */
+    public CompletableFuture<ConversionResult> convertAsync(ConversionContext context, URI cadFileUri,
+                                                            URI tmpDirUri) {
+        RemoteJob job = new RemoteJob(ids.incrementAndGet(), context, Paths.get(cadFileUri), Paths.get(tmpDirUri));
+        synchronized (this) {
+            RemoteWorker worker = leastLoaded();
+            if (worker == null) {
+                orphans.addLast(job);
+            } else {
+                job.worker = worker;
+                worker.queue.addLast(job);
+            }
+        }
+        job.future.whenComplete((result, error) -> {
+            if (job.future.isCancelled()) {
+                cancel(job);
+            }
+        });
+        dispatch();
+        return job.future;
+    }
+
+    /**
+     * @return the number of workers currently connected
+     */
+    public synchronized int getConnectedWorkers() {
+        return (int) workers.stream().filter(worker -> worker.connection != null).count();
+    }
+
+    /**
+     * Disconnect from the workers, failing the pending conversions.
+     */
+    public void close() {
+        if (watchdog == null) {
+            return;
+        }
+        List<RemoteWorker> connected;
+        synchronized (this) {
+            // Workers being connected are dropped once connected
+            closed = true;
+            connected = new ArrayList<>(workers);
+        }
+        watchdog.shutdownNow();
+        for (RemoteWorker worker : connected) {
+            Connection connection = worker.connection;
+            if (connection != null) {
+                disconnect(worker, connection, new IOException("Closed"));
+            }
+        }
+        failOrphans("Remote conversions closed");
+        readers.shutdownNow();
+    }
+
+    private RemoteWorker leastLoaded() {
+        RemoteWorker leastLoaded = null;
+        double lowestLoad = Double.MAX_VALUE;
+        for (RemoteWorker worker : workers) {
+            if (worker.connection != null) {
+                double load = (double) (worker.queue.size() + worker.running.size()) / worker.connection.slots;
+                if (load < lowestLoad) {
+                    lowestLoad = load;
+                    leastLoaded = worker;
+                }
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * Start conversions on the workers having free slots, stealing them from the busiest workers if needed.
+     */
+    private void dispatch() {
+        // Jobs are sent to the connection they were given to, they may be reassigned once the lock is released
+        List<Runnable> submissions = new ArrayList<>();
+        synchronized (this) {
+            for (RemoteWorker worker : workers) {
+                Connection connection = worker.connection;
+                while (connection != null && worker.running.size() < connection.slots) {
+                    RemoteJob job = next(worker);
+                    if (job == null) {
+                        break;
+                    }
+                    job.worker = worker;
+                    job.connection = connection;
+                    job.attempts++;
+                    worker.running.put(job.id, job);
+                    submissions.add(() -> connection.submit(job));
+                }
+            }
+        }
+        submissions.forEach(Runnable::run);
+    }
+
+    private RemoteJob next(RemoteWorker worker) {
+        RemoteJob job = orphans.pollFirst();
+        if (job == null) {
+            job = worker.queue.pollFirst();
+        }
+        if (job == null) {
+            RemoteWorker busiest = null;
+            for (RemoteWorker other : workers) {
+                if (other != worker && !other.queue.isEmpty()
+                        && (busiest == null || other.queue.size() > busiest.queue.size())) {
+                    busiest = other;
+                }
+            }
+            if (busiest != null) {
+                job = busiest.queue.pollLast();
+                LOGGER.fine("Worker " + worker.connection.name + " steals a conversion from "
+                        + busiest.connection.name);
+            }
+        }
+        return job;
+    }
+
+    private void cancel(RemoteJob job) {
+        Connection connection = null;
+        synchronized (this) {
+            if (job.connection != null) {
+                if (job.worker.running.remove(job.id, job)) {
+                    connection = job.connection;
+                }
+            } else if (job.worker != null) {
+                job.worker.queue.remove(job);
+            } else {
+                orphans.remove(job);
+            }
+        }
+        if (connection != null) {
+            connection.cancel(job);
+            dispatch();
+        }
+    }
+
+    /**
+     * @return false if the job was cancelled or given to another worker meanwhile
+     */
+    private boolean complete(RemoteWorker worker, RemoteJob job, ConversionResult result, Throwable error) {
+        synchronized (this) {
+            if (!worker.running.remove(job.id, job)) {
+                return false;
+            }
+        }
+        if (error == null) {
+            job.future.complete(result);
+        } else {
+            job.future.completeExceptionally(error);
+        }
+        dispatch();
+        return true;
+    }
+
+    private void disconnect(RemoteWorker worker, Connection connection, IOException cause) {
+        List<RemoteJob> abandoned = new ArrayList<>();
+        synchronized (this) {
+            if (worker.connection != connection) {
+                return;
+            }
+            worker.connection = null;
+            worker.nextConnect = System.nanoTime() + heartbeatTimeout;
+            LOGGER.log(closed ? Level.FINE : Level.WARNING, "Lost conversion worker " + connection.name
+                    + ", reassigning " + (worker.running.size() + worker.queue.size()) + " conversions: "
+                    + cause.getMessage());
+            List<RemoteJob> restarted = new ArrayList<>(worker.running.values());
+            worker.running.clear();
+            Collections.reverse(restarted);
+            for (RemoteJob job : restarted) {
+                if (job.attempts >= maxAttempts) {
+                    abandoned.add(job);
+                } else {
+                    job.worker = null;
+                    job.connection = null;
+                    orphans.addFirst(job);
+                }
+            }
+            for (RemoteJob job : worker.queue) {
+                job.worker = null;
+                orphans.addLast(job);
+            }
+            worker.queue.clear();
+        }
+        connection.close();
+        for (RemoteJob job : abandoned) {
+            job.future.completeExceptionally(new ConversionException("Cannot convert " + job.cadFile.getFileName()
+                    + ", its workers died " + job.attempts + " times"));
+        }
+        dispatch();
+    }
+
+    /**
+     * Detect the dead workers, connect again to them and fail the conversions when all the workers are gone.
+     */
+    private void watch() {
+        long now = System.nanoTime();
+        for (RemoteWorker worker : workers) {
+            Connection connection;
+            boolean connect;
+            synchronized (this) {
+                connection = worker.connection;
+                connect = connection == null && !worker.connecting && now - worker.nextConnect >= 0;
+                worker.connecting |= connect;
+            }
+            if (connection != null && now - connection.lastSeen > heartbeatTimeout) {
+                disconnect(worker, connection, new IOException("No heartbeat for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - connection.lastSeen) + "ms"));
+            } else if (connect) {
+                // Unreachable workers must not delay the heartbeat checks of the others
+                try {
+                    readers.execute(() -> connect(worker));
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.FINEST, null, e);
+                }
+            }
+        }
+        boolean unreachable;
+        synchronized (this) {
+            if (workers.stream().anyMatch(worker -> worker.connection != null)) {
+                lastConnected = now;
+            }
+            unreachable = !orphans.isEmpty() && now - lastConnected > heartbeatTimeout;
+        }
+        if (unreachable) {
+            failOrphans("No conversion worker reachable");
+        }
+    }
+
+    private void failOrphans(String message) {
+        List<RemoteJob> failed;
+        synchronized (this) {
+            failed = new ArrayList<>(orphans);
+            orphans.clear();
+        }
+        for (RemoteJob job : failed) {
+            job.future.completeExceptionally(new ConversionException(message + " to convert "
+                    + job.cadFile.getFileName()));
+        }
+    }
+
+    private void connect(RemoteWorker worker) {
+        Socket socket = new Socket();
+        try {
+            InetSocketAddress address = new InetSocketAddress(worker.address.getHostString(),
+                    worker.address.getPort());
+            int timeout = (int) TimeUnit.NANOSECONDS.toMillis(heartbeatTimeout);
+            socket.connect(address, timeout);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readInt() != RemoteProtocol.MAGIC || in.readInt() != RemoteProtocol.VERSION
+                    || in.readByte() != RemoteProtocol.HELLO) {
+                throw new IOException("Not a conversion worker, or of another version");
+            }
+            int slots = in.readInt();
+            String name = RemoteProtocol.readString(in);
+            byte[] challenge = new byte[RemoteProtocol.CHALLENGE_SIZE];
+            in.readFully(challenge);
+            // Liveness is checked with the heartbeats
+            socket.setSoTimeout(0);
+            Connection connection = new Connection(worker, socket, in, name, slots);
+            connection.authenticate(challenge);
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Closed");
+                }
+                worker.connection = connection;
+                worker.connecting = false;
+                worker.unreachable = false;
+            }
+            LOGGER.info("Connected to conversion worker " + name + " with " + slots + " slots");
+            readers.execute(connection);
+            dispatch();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException closeError) {
+                LOGGER.log(Level.FINEST, null, closeError);
+            }
+            synchronized (this) {
+                worker.connecting = false;
+                worker.nextConnect = System.nanoTime() + heartbeatTimeout;
+                LOGGER.log(worker.unreachable ? Level.FINE : Level.WARNING,
+                        "Cannot connect to conversion worker " + worker.address + ": " + e.getMessage());
+                worker.unreachable = true;
+            }
+        }
+    }
+
+    private static final class RemoteWorker {
+
+        private final InetSocketAddress address;
+        private final Deque<RemoteJob> queue = new ArrayDeque<>();
+        private final Map<Long, RemoteJob> running = new LinkedHashMap<>();
+        private Connection connection;
+        private long nextConnect = System.nanoTime();
+        private boolean connecting;
+        private boolean unreachable;
+
+        RemoteWorker(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private static final class RemoteJob {
+
+        private final long id;
+        private final ConversionContext context;
+        private final Path cadFile;
+        private final Path tmpDir;
+        private final CompletableFuture<ConversionResult> future = new CompletableFuture<>();
+        // Worker the job is queued on or running on, null if it waits for any worker
+        private RemoteWorker worker;
+        // Connection the job is running on, null if it is queued
+        private Connection connection;
+        private int attempts;
+
+        RemoteJob(long id, ConversionContext context, Path cadFile, Path tmpDir) {
+            this.id = id;
+            this.context = context;
+            this.cadFile = cadFile;
+            this.tmpDir = tmpDir;
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final RemoteWorker worker;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final String name;
+        private final int slots;
+        // Uploads of a connection are sent one after the other, without holding the dispatching thread
+        private final ExecutorService sender = Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory("conversion-worker-sender"));
+        private volatile long lastSeen = System.nanoTime();
+
+        Connection(RemoteWorker worker, Socket socket, DataInputStream in, String name, int slots)
+                throws IOException {
+            this.worker = worker;
+            this.socket = socket;
+            this.in = in;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.name = name;
+            this.slots = Math.max(1, slots);
+        }
+
+        /**
+         * Answer the challenge of the worker, which closes the connection if the secret is not its own.
+         */
+        void authenticate(byte[] challenge) throws IOException {
+            synchronized (out) {
+                out.writeByte(RemoteProtocol.AUTH);
+                out.write(RemoteProtocol.sign(secret, challenge));
+                out.flush();
+            }
+        }
+
+        void submit(RemoteJob job) {
+            send(() -> {
+                synchronized (RemoteConversions.this) {
+                    // Cancelled, or given to another worker after this connection was lost
+                    if (job.future.isDone() || job.connection != this) {
+                        return;
+                    }
+                }
+                // A file failing to be read in the middle of its upload would break the connection
+                if (!Files.isReadable(job.cadFile)) {
+                    complete(worker, job, null, new ConversionException("Cannot read " + job.cadFile));
+                    return;
+                }
+                try {
+                    synchronized (out) {
+                        out.writeByte(RemoteProtocol.SUBMIT);
+                        out.writeLong(job.id);
+                        RemoteProtocol.writeString(out, converter);
+                        RemoteProtocol.writeString(out, job.context.getWorkspaceId());
+                        RemoteProtocol.writeString(out, job.context.getPriority().name());
+                        RemoteProtocol.writeString(out, job.context.getSubject());
+                        out.writeInt(job.context.getIteration());
+                        out.writeByte(transfer == Transfer.PATH ? RemoteProtocol.TRANSFER_PATH
+                                : RemoteProtocol.TRANSFER_STREAM);
+                        RemoteProtocol.writeString(out, job.cadFile.getFileName().toString());
+                        if (transfer == Transfer.PATH) {
+                            RemoteProtocol.writeString(out, job.cadFile.toAbsolutePath().toString());
+                            RemoteProtocol.writeString(out, job.tmpDir.toAbsolutePath().toString());
+                        } else {
+                            RemoteProtocol.writeFile(out, job.cadFile);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    disconnect(worker, this, e);
+                }
+            });
+        }
+
+        void cancel(RemoteJob job) {
+            send(() -> {
+                try {
+                    synchronized (out) {
+                        out.writeByte(RemoteProtocol.CANCEL);
+                        out.writeLong(job.id);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    disconnect(worker, this, e);
+                }
+            });
+        }
+
+        private void send(Runnable message) {
+            try {
+                sender.execute(message);
+            } catch (RejectedExecutionException e) {
+                // The connection is closed, its jobs were given to the other workers
+                LOGGER.log(Level.FINEST, null, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    lastSeen = System.nanoTime();
+                    if (type == RemoteProtocol.RESULT) {
+                        readResult();
+                    } else if (type == RemoteProtocol.FAILURE) {
+                        long id = in.readLong();
+                        String message = RemoteProtocol.readString(in);
+                        RemoteJob job = runningJob(id);
+                        if (job != null) {
+                            complete(worker, job, null, new ConversionException("Cannot convert "
+                                    + job.cadFile.getFileName() + " on worker " + name + ": " + message));
+                        }
+                    } else if (type != RemoteProtocol.HEARTBEAT) {
+                        throw new IOException("Unexpected message " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                disconnect(worker, this, new IOException("Connection closed", e));
+            } catch (IOException e) {
+                disconnect(worker, this, e);
+            }
+        }
+
+        private RemoteJob runningJob(long id) {
+            synchronized (RemoteConversions.this) {
+                return worker.running.get(id);
+            }
+        }
+
+        private void readResult() throws IOException {
+            RemoteJob job = runningJob(in.readLong());
+            Path convertedFile = null;
+            List<Path> materials = new ArrayList<>();
+            Map<String, Path> artifacts = new LinkedHashMap<>();
+            List<Path> received = new ArrayList<>();
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                byte role = in.readByte();
+                String key = RemoteProtocol.readString(in);
+                // Only the file name is kept, files are never written outside of the conversion directory
+                String fileName = Paths.get(RemoteProtocol.readString(in)).getFileName().toString();
+                Path file;
+                if (transfer == Transfer.PATH) {
+                    file = Paths.get(RemoteProtocol.readString(in));
+                } else {
+                    file = job == null ? null : job.tmpDir.resolve(fileName);
+                    if (RemoteProtocol.readFile(in, file, () -> lastSeen = System.nanoTime()) && file != null) {
+                        received.add(file);
+                    }
+                }
+                if (role == RemoteProtocol.ROLE_OBJ) {
+                    convertedFile = file;
+                } else if (role == RemoteProtocol.ROLE_MATERIAL) {
+                    materials.add(file);
+                } else {
+                    artifacts.put(key, file);
+                }
+            }
+            Map<String, String> metrics = new LinkedHashMap<>();
+            int metricCount = in.readInt();
+            for (int i = 0; i < metricCount; i++) {
+                metrics.put(RemoteProtocol.readString(in), RemoteProtocol.readString(in));
+            }
+            if (job == null) {
+                return;
+            }
+
+            ConversionResult result;
+            if (artifacts.isEmpty() && metrics.isEmpty()) {
+                result = new ConversionResult(convertedFile, materials);
+            } else {
+                ProcessedConversionResult processed = new ProcessedConversionResult(convertedFile, materials);
+                artifacts.forEach(processed::putArtifact);
+                metrics.forEach(processed::putMetric);
+                result = processed;
+            }
+            if (!complete(worker, job, result, null)) {
+                for (Path file : received) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        void close() {
+            sender.shutdownNow();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINEST, null, e);
+            }
+        }
+    }
+
+}
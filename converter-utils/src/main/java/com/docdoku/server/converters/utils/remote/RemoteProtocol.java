@@ -0,0 +1,168 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.remote;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+
+/**
+ * Messages exchanged between the servers and the conversion workers.
+ * <p>
+ * A server connects to each worker, the worker greets it with its number of conversion slots and a random
+ * challenge then sends a heartbeat every few seconds, so a silent worker is known to be dead even if its
+ * connection stays open. The server answers the challenge with its HMAC-SHA256 keyed by the secret shared with
+ * the workers, the worker closing the connections of the servers not knowing it. Messages start with their type
+ * byte:
+ * <pre>
+ * worker: MAGIC VERSION HELLO slots name challenge
+ * server: AUTH signature
+ * server: SUBMIT id converter workspace priority subject iteration transfer fileName (cadPath tmpDir | file)
+ * server: CANCEL id
+ * worker: HEARTBEAT
+ * worker: RESULT id fileCount (role key name (path | file))* metricCount (key value)*
+ * worker: FAILURE id message
+ * </pre>
+ * Strings are sent as their UTF-8 length, -1 for null, followed by their bytes. Files are sent by path when the
+ * servers and the workers share a file system, as their length, -1 for a missing file, followed by their
+ * content otherwise.
+ */
+final class RemoteProtocol {
+
+    static final int MAGIC = 0x44444357;
+    static final int VERSION = 2;
+
+    static final byte HELLO = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte SUBMIT = 3;
+    static final byte CANCEL = 4;
+    static final byte RESULT = 5;
+    static final byte FAILURE = 6;
+    static final byte AUTH = 7;
+
+    static final int CHALLENGE_SIZE = 32;
+    // Size of an HMAC-SHA256
+    static final int SIGNATURE_SIZE = 32;
+
+    static final byte TRANSFER_PATH = 0;
+    static final byte TRANSFER_STREAM = 1;
+
+    static final byte ROLE_OBJ = 0;
+    static final byte ROLE_MATERIAL = 1;
+    static final byte ROLE_ARTIFACT = 2;
+
+    // Longest string accepted, a corrupted length must not allocate gigabytes
+    static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private RemoteProtocol() {
+    }
+
+    /**
+     * @return the answer to the challenge of a worker
+     */
+    static byte[] sign(String secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            // Every Java platform supports HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING_LENGTH) {
+                // Only the tail of very long messages is kept, a character taking up to 4 bytes
+                bytes = value.substring(value.length() - MAX_STRING_LENGTH / 4).getBytes(StandardCharsets.UTF_8);
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("String of " + length + " bytes received, at most " + MAX_STRING_LENGTH
+                    + " expected");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeFile(DataOutputStream out, Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            out.writeLong(-1);
+            return;
+        }
+        out.writeLong(Files.size(file));
+        Files.copy(file, out);
+    }
+
+    /**
+     * Read a file written by {@link #writeFile}.
+     *
+     * @param target   where the content is written, null to skip it
+     * @param progress run after each chunk read, transfers of big files keeping the connection alive
+     * @return false if the file was missing on the other side
+     */
+    static boolean readFile(DataInputStream in, Path target, Runnable progress) throws IOException {
+        long length = in.readLong();
+        if (length < 0) {
+            return false;
+        }
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        try (OutputStream output = target == null ? null : Files.newOutputStream(target)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int count = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (count < 0) {
+                    throw new IOException("Connection closed during a file transfer");
+                }
+                if (output != null) {
+                    output.write(chunk, 0, count);
+                }
+                remaining -= count;
+                progress.run();
+            }
+        }
+        return true;
+    }
+
+}
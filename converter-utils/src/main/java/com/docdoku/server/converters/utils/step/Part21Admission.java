@@ -0,0 +1,118 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.step;
+
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionPriority;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admission control of STEP and IFC files, based on the cost estimated by {@link Part21Scanner}.
+ * <p>
+ * Files costing more than the maximum cost are rejected before the conversion starts, files costing more
+ * than the bulk cost are scheduled as {@link ConversionPriority#BULK} so they do not hold the tool while
+ * interactive conversions wait. A cost of 0 disables the corresponding check.
+ */
+public class Part21Admission {
+
+    private static final Logger LOGGER = Logger.getLogger(Part21Admission.class.getName());
+
+    private final double maxCost;
+    private final double bulkCost;
+
+    public Part21Admission(double maxCost, double bulkCost) {
+        this.maxCost = maxCost;
+        this.bulkCost = bulkCost;
+    }
+
+    public static Part21Admission fromProperties(String maxCost, String bulkCost) {
+        return new Part21Admission(parse(maxCost), parse(bulkCost));
+    }
+
+    public boolean isEnabled() {
+        return maxCost > 0 || bulkCost > 0;
+    }
+
+    /**
+     * @return the context to schedule the conversion with
+     * @throws ConversionException if the file is too heavy to be converted
+     */
+    public ConversionContext admit(Path cadFile, ConversionContext context) throws ConversionException {
+        if (!isEnabled()) {
+            return context;
+        }
+        Part21Summary summary;
+        try {
+            summary = Part21Scanner.scan(cadFile);
+        } catch (IOException e) {
+            // Let the converter report what is wrong with the file
+            LOGGER.log(Level.WARNING, "Cannot scan " + cadFile, e);
+            return context;
+        }
+        LOGGER.info(cadFile.getFileName() + ": " + summary);
+
+        if (maxCost > 0 && summary.getCost() > maxCost) {
+            throw new ConversionException("Cannot convert " + cadFile.getFileName() + ", its estimated cost "
+                    + Math.round(summary.getCost()) + " exceeds " + Math.round(maxCost));
+        }
+        if (bulkCost > 0 && summary.getCost() > bulkCost && context.getPriority() != ConversionPriority.BULK) {
+            return new ConversionContext(context.getWorkspaceId(), ConversionPriority.BULK, context.getSubject(),
+                    context.getIteration());
+        }
+        return context;
+    }
+
+    /**
+     * Admit the file, then start its conversion with the context to schedule it with.
+     *
+     * @return the conversion, failed if the file is too heavy to be converted
+     */
+    public <T> CompletableFuture<T> admitAsync(URI cadFileUri, ConversionContext context,
+                                               Function<ConversionContext, CompletableFuture<T>> conversion) {
+        ConversionContext admitted;
+        try {
+            admitted = admit(Paths.get(cadFileUri), context);
+        } catch (ConversionException e) {
+            return ConversionFutures.failed(e);
+        }
+        return conversion.apply(admitted);
+    }
+
+    private static double parse(String cost) {
+        try {
+            return cost == null || cost.trim().isEmpty() ? 0 : Double.parseDouble(cost.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid cost \"" + cost + "\"", e);
+            return 0;
+        }
+    }
+
+}
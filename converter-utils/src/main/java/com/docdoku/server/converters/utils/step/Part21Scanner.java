@@ -0,0 +1,410 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.step;
+
+import com.docdoku.server.converters.utils.mesh.MappedAsciiReader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming scanner of ISO-10303-21 (STEP physical file) text, the format of STEP and IFC files.
+ * <p>
+ * The file is memory-mapped and tokenized in a single pass, counting entity instances without building any
+ * object model, so scanning takes a fraction of the conversion time and constant memory. The resulting
+ * {@link Part21Summary} lets converters estimate how heavy a file is before handing it to FreeCAD or
+ * IfcConvert.
+ */
+public final class Part21Scanner {
+
+    private static final int MAX_NAME_LENGTH = 128;
+    private static final int CAPTURED_ATTRIBUTES = 3;
+    private static final double DEFAULT_COST = 1;
+    private static final Map<String, Double> COSTS = new HashMap<>();
+    private static final Set<String> IFC_PRODUCTS = new HashSet<>(Arrays.asList(
+            "IFCBEAM", "IFCBUILDING", "IFCBUILDINGELEMENTPROXY", "IFCBUILDINGSTOREY", "IFCCHIMNEY", "IFCCOLUMN",
+            "IFCCOVERING", "IFCCURTAINWALL", "IFCDISCRETEACCESSORY", "IFCDISTRIBUTIONELEMENT", "IFCDOOR",
+            "IFCELEMENTASSEMBLY", "IFCFLOWFITTING", "IFCFLOWSEGMENT", "IFCFLOWTERMINAL", "IFCFOOTING",
+            "IFCFURNISHINGELEMENT", "IFCMECHANICALFASTENER", "IFCMEMBER", "IFCPILE", "IFCPLATE", "IFCPROXY",
+            "IFCRAILING", "IFCRAMP", "IFCRAMPFLIGHT", "IFCROOF", "IFCSITE", "IFCSLAB", "IFCSPACE", "IFCSTAIR",
+            "IFCSTAIRFLIGHT", "IFCWALL", "IFCWALLSTANDARDCASE", "IFCWINDOW"));
+    private static final Set<String> ASSEMBLY_USAGES = new HashSet<>(Arrays.asList(
+            "NEXT_ASSEMBLY_USAGE_OCCURRENCE", "IFCRELAGGREGATES"));
+
+    static {
+        // STEP B-rep geometry, tessellated by FreeCAD
+        COSTS.put("CARTESIAN_POINT", 0.2);
+        COSTS.put("ADVANCED_FACE", 20.0);
+        COSTS.put("FACE_SURFACE", 10.0);
+        COSTS.put("B_SPLINE_SURFACE", 40.0);
+        COSTS.put("B_SPLINE_SURFACE_WITH_KNOTS", 40.0);
+        COSTS.put("RATIONAL_B_SPLINE_SURFACE", 40.0);
+        COSTS.put("CYLINDRICAL_SURFACE", 5.0);
+        COSTS.put("CONICAL_SURFACE", 5.0);
+        COSTS.put("SPHERICAL_SURFACE", 5.0);
+        COSTS.put("TOROIDAL_SURFACE", 10.0);
+        COSTS.put("SURFACE_OF_REVOLUTION", 10.0);
+        COSTS.put("SURFACE_OF_LINEAR_EXTRUSION", 10.0);
+        COSTS.put("MANIFOLD_SOLID_BREP", 50.0);
+        COSTS.put("BREP_WITH_VOIDS", 50.0);
+        // IFC geometry, boolean operations dominate IfcConvert time
+        COSTS.put("IFCCARTESIANPOINT", 0.2);
+        COSTS.put("IFCFACE", 2.0);
+        COSTS.put("IFCADVANCEDFACE", 20.0);
+        COSTS.put("IFCBSPLINESURFACEWITHKNOTS", 40.0);
+        COSTS.put("IFCEXTRUDEDAREASOLID", 20.0);
+        COSTS.put("IFCREVOLVEDAREASOLID", 30.0);
+        COSTS.put("IFCSWEPTDISKSOLID", 30.0);
+        COSTS.put("IFCTRIANGULATEDFACESET", 20.0);
+        COSTS.put("IFCPOLYGONALFACESET", 20.0);
+        COSTS.put("IFCMAPPEDITEM", 5.0);
+        COSTS.put("IFCBOOLEANRESULT", 200.0);
+        COSTS.put("IFCBOOLEANCLIPPINGRESULT", 200.0);
+        COSTS.put("IFCOPENINGELEMENT", 100.0);
+    }
+
+    private enum Role {NONE, FILE_SCHEMA, STEP_PRODUCT, IFC_PRODUCT, ASSEMBLY_USAGE}
+
+    private static final class EntityType {
+        private final byte[] bytes;
+        private final int hash;
+        private final String name;
+        private final Role role;
+        private long count;
+
+        EntityType(byte[] bytes, int hash) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.name = new String(bytes, StandardCharsets.US_ASCII);
+            if ("FILE_SCHEMA".equals(name)) {
+                role = Role.FILE_SCHEMA;
+            } else if ("PRODUCT".equals(name)) {
+                role = Role.STEP_PRODUCT;
+            } else if (IFC_PRODUCTS.contains(name)) {
+                role = Role.IFC_PRODUCT;
+            } else if (ASSEMBLY_USAGES.contains(name)) {
+                role = Role.ASSEMBLY_USAGE;
+            } else {
+                role = Role.NONE;
+            }
+        }
+    }
+
+    private final MappedAsciiReader reader;
+    private final Part21Summary summary;
+    private final byte[] name = new byte[MAX_NAME_LENGTH];
+    private final String[] attributes = new String[CAPTURED_ATTRIBUTES];
+    private final StringBuilder string = new StringBuilder();
+    private int nameLength;
+    private EntityType[] types = new EntityType[1024];
+    private int typeCount;
+
+    private Part21Scanner(MappedAsciiReader reader, long fileSize) {
+        this.reader = reader;
+        this.summary = new Part21Summary(fileSize);
+    }
+
+    /**
+     * Scan a STEP or IFC file.
+     *
+     * @throws IOException if the file cannot be read or is not valid ISO-10303-21 text
+     */
+    public static Part21Summary scan(Path file) throws IOException {
+        try (MappedAsciiReader reader = new MappedAsciiReader(file)) {
+            Part21Scanner scanner = new Part21Scanner(reader, Files.size(file));
+            scanner.scan();
+            return scanner.finish();
+        }
+    }
+
+    private void scan() throws IOException {
+        boolean data = false;
+        int b;
+        while ((b = skipInsignificant()) >= 0) {
+            if (b == '#' && data) {
+                readInstance();
+            } else if (isNameCharacter(b)) {
+                readName();
+                String keyword = new String(name, 0, nameLength, StandardCharsets.US_ASCII);
+                if ("END-ISO-10303-21".equals(keyword)) {
+                    break;
+                }
+                if (skipInsignificant() == '(') {
+                    // Header entity, not counted with the data
+                    readArguments(new EntityType(Arrays.copyOf(name, nameLength), 0));
+                }
+                expect(';');
+                if ("DATA".equals(keyword)) {
+                    data = true;
+                } else if ("ENDSEC".equals(keyword)) {
+                    data = false;
+                }
+            } else {
+                throw unexpected(b);
+            }
+        }
+    }
+
+    private Part21Summary finish() {
+        for (EntityType type : types) {
+            if (type != null) {
+                summary.addEntity(type.name, type.count);
+                summary.addCost(type.count * COSTS.getOrDefault(type.name, DEFAULT_COST));
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Read {@code #id = NAME(...);} or the complex form {@code #id = (NAME1(...) NAME2(...));}.
+     */
+    private void readInstance() throws IOException {
+        reader.read();
+        reader.readLong();
+        skipInsignificant();
+        expect('=');
+        int b = skipInsignificant();
+        if (b == '(') {
+            reader.read();
+            while ((b = skipInsignificant()) != ')') {
+                if (!isNameCharacter(b)) {
+                    throw unexpected(b);
+                }
+                readName();
+                skipInsignificant();
+                readArguments(type());
+            }
+            reader.read();
+        } else if (isNameCharacter(b)) {
+            readName();
+            skipInsignificant();
+            readArguments(type());
+        } else {
+            throw unexpected(b);
+        }
+        skipInsignificant();
+        expect(';');
+        summary.addInstance();
+    }
+
+    private void readArguments(EntityType type) throws IOException {
+        expect('(');
+        type.count++;
+        boolean capture = type.role != Role.NONE && type.role != Role.ASSEMBLY_USAGE;
+        Arrays.fill(attributes, null);
+        int depth = 1;
+        int attribute = 0;
+        while (depth > 0) {
+            int b = reader.read();
+            switch (b) {
+                case -1:
+                    throw new EOFException("Unexpected end of file in " + type.name);
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        attribute++;
+                    }
+                    break;
+                case '\'':
+                    if (capture && type.role == Role.FILE_SCHEMA) {
+                        summary.addSchema(readString(true));
+                    } else if (capture && depth == 1 && attribute < CAPTURED_ATTRIBUTES) {
+                        attributes[attribute] = readString(true);
+                    } else {
+                        readString(false);
+                    }
+                    break;
+                case '"':
+                    // Binary literal
+                    while ((b = reader.read()) != '"') {
+                        if (b < 0) {
+                            throw new EOFException("Unexpected end of file in " + type.name);
+                        }
+                    }
+                    break;
+                case '/':
+                    if (reader.peek() == '*') {
+                        skipComment();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (type.role == Role.STEP_PRODUCT) {
+            // PRODUCT(id, name, description, frame_of_reference)
+            summary.addProduct(attributes[1] == null || attributes[1].isEmpty() ? attributes[0] : attributes[1]);
+        } else if (type.role == Role.IFC_PRODUCT) {
+            // IfcRoot(GlobalId, OwnerHistory, Name, ...)
+            summary.addProduct(attributes[2]);
+        } else if (type.role == Role.ASSEMBLY_USAGE) {
+            summary.addAssemblyUsage();
+        }
+    }
+
+    /**
+     * Read a string whose opening quote was consumed, a doubled quote standing for a quote.
+     */
+    private String readString(boolean keep) throws IOException {
+        string.setLength(0);
+        int b;
+        while (true) {
+            b = reader.read();
+            if (b < 0) {
+                throw new EOFException("Unterminated string");
+            }
+            if (b == '\'') {
+                if (reader.peek() != '\'') {
+                    break;
+                }
+                reader.read();
+            }
+            if (keep) {
+                string.append((char) b);
+            }
+        }
+        return keep ? string.toString() : null;
+    }
+
+    private void readName() throws IOException {
+        nameLength = 0;
+        int b;
+        while (isNameCharacter(b = reader.peek())) {
+            if (nameLength < MAX_NAME_LENGTH) {
+                name[nameLength++] = (byte) Character.toUpperCase(b);
+            }
+            reader.read();
+        }
+    }
+
+    /**
+     * @return the entity type of the name just read
+     */
+    private EntityType type() {
+        int hash = 1;
+        for (int i = 0; i < nameLength; i++) {
+            hash = 31 * hash + name[i];
+        }
+        int mask = types.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        EntityType type;
+        while ((type = types[slot]) != null) {
+            if (type.hash == hash && type.bytes.length == nameLength && matches(type.bytes)) {
+                return type;
+            }
+            slot = (slot + 1) & mask;
+        }
+        type = new EntityType(Arrays.copyOf(name, nameLength), hash);
+        types[slot] = type;
+        if (++typeCount * 2 > types.length) {
+            rehash();
+        }
+        return type;
+    }
+
+    private boolean matches(byte[] bytes) {
+        for (int i = 0; i < nameLength; i++) {
+            if (bytes[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        EntityType[] old = types;
+        types = new EntityType[old.length * 2];
+        int mask = types.length - 1;
+        for (EntityType type : old) {
+            if (type != null) {
+                int slot = (type.hash ^ (type.hash >>> 16)) & mask;
+                while (types[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                types[slot] = type;
+            }
+        }
+    }
+
+    /**
+     * Skip whitespace and comments.
+     *
+     * @return the next significant byte, -1 at the end of the file
+     */
+    private int skipInsignificant() throws IOException {
+        while (reader.skipWhitespace()) {
+            if (reader.peek() != '/') {
+                return reader.peek();
+            }
+            reader.read();
+            if (reader.peek() != '*') {
+                throw unexpected('/');
+            }
+            skipComment();
+        }
+        return -1;
+    }
+
+    private void skipComment() throws IOException {
+        reader.read();
+        int previous = 0;
+        int b;
+        while ((b = reader.read()) >= 0) {
+            if (previous == '*' && b == '/') {
+                return;
+            }
+            previous = b;
+        }
+        throw new EOFException("Unterminated comment");
+    }
+
+    private void expect(int expected) throws IOException {
+        int b = reader.read();
+        if (b != expected) {
+            throw new IOException("Expected '" + (char) expected + "' but found "
+                    + (b < 0 ? "end of file" : "'" + (char) b + "'") + " at offset " + (reader.getPosition() - 1));
+        }
+    }
+
+    private IOException unexpected(int b) {
+        return new IOException("Unexpected " + (b < 0 ? "end of file" : "'" + (char) b + "'") + " at offset "
+                + reader.getPosition());
+    }
+
+    private static boolean isNameCharacter(int b) {
+        return b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z' || b >= '0' && b <= '9' || b == '_' || b == '-';
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.step;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What {@link Part21Scanner} found in a STEP or IFC file.
+ */
+public class Part21Summary {
+
+    static final int MAX_PRODUCT_NAMES = 10000;
+
+    private final long fileSize;
+    private final List<String> schemas = new ArrayList<>();
+    private final Map<String, Long> entityCounts = new TreeMap<>();
+    private final List<String> productNames = new ArrayList<>();
+    private long instanceCount;
+    private long productCount;
+    private long assemblyUsageCount;
+    private double cost;
+
+    Part21Summary(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return the schemas declared by the header, such as {@code IFC2X3} or {@code AUTOMOTIVE_DESIGN}
+     */
+    public List<String> getSchemas() {
+        return Collections.unmodifiableList(schemas);
+    }
+
+    public boolean isIfc() {
+        return schemas.stream().anyMatch(schema -> schema.toUpperCase().startsWith("IFC"));
+    }
+
+    public long getInstanceCount() {
+        return instanceCount;
+    }
+
+    /**
+     * @return the number of instances of each entity type, the parts of complex instances counted separately
+     */
+    public Map<String, Long> getEntityCounts() {
+        return Collections.unmodifiableMap(entityCounts);
+    }
+
+    public long getEntityCount(String entity) {
+        return entityCounts.getOrDefault(entity, 0L);
+    }
+
+    /**
+     * @return the number of STEP products, or of IFC building elements and spatial structures
+     */
+    public long getProductCount() {
+        return productCount;
+    }
+
+    /**
+     * @return the names of the first {@value #MAX_PRODUCT_NAMES} products
+     */
+    public List<String> getProductNames() {
+        return Collections.unmodifiableList(productNames);
+    }
+
+    /**
+     * @return the number of assembly links, STEP next assembly usage occurrences or IFC aggregations
+     */
+    public long getAssemblyUsageCount() {
+        return assemblyUsageCount;
+    }
+
+    /**
+     * Estimated conversion effort, in relative units of about one per plain entity instance. Surfaces,
+     * solids and boolean operations weigh more since the tessellation time is spent on them.
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    void addSchema(String schema) {
+        schemas.add(schema);
+    }
+
+    void addEntity(String entity, long count) {
+        entityCounts.put(entity, count);
+    }
+
+    void addInstance() {
+        instanceCount++;
+    }
+
+    void addProduct(String name) {
+        productCount++;
+        if (name != null && productNames.size() < MAX_PRODUCT_NAMES) {
+            productNames.add(name);
+        }
+    }
+
+    void addAssemblyUsage() {
+        assemblyUsageCount++;
+    }
+
+    void addCost(double entityCost) {
+        cost += entityCost;
+    }
+
+    @Override
+    public String toString() {
+        return (schemas.isEmpty() ? "unknown schema" : String.join(",", schemas)) + ", " + fileSize + " bytes, "
+                + instanceCount + " instances, " + productCount + " products, " + assemblyUsageCount
+                + " assembly usages, cost " + Math.round(cost);
+    }
+
+}
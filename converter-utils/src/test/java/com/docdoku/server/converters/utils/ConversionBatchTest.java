@@ -0,0 +1,96 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class ConversionBatchTest {
+
+    private static final URI TMP_DIR = URI.create("file:///tmp/");
+
+    private final List<List<ConversionBatch.Job>> groups = new ArrayList<>();
+
+    private CompletableFuture<?> convertAll(List<ConversionBatch.Job> jobs) {
+        groups.add(jobs);
+        for (ConversionBatch.Job job : jobs) {
+            job.completeWith(CompletableFuture.completedFuture(
+                    new ConversionResult(Paths.get(job.getCadFileUri().getPath() + ".obj"))));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static URI file(int i) {
+        return URI.create("file:///tmp/part" + i + ".stp");
+    }
+
+    @Test
+    public void deferredConversionsAreGrouped() throws Exception {
+        ConversionBatch batch = new ConversionBatch();
+        ConversionCache.AsyncConversion deferred = batch.defer((cadFile, tmpDir) -> {
+            throw new AssertionError("Single conversion before flush");
+        });
+        List<CompletableFuture<ConversionResult>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(deferred.convertAsync(file(i), TMP_DIR));
+        }
+        Assert.assertFalse(results.get(0).isDone());
+
+        batch.flush(2, this::convertAll);
+
+        Assert.assertEquals(3, groups.size());
+        Assert.assertEquals(1, groups.get(2).size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(Paths.get("/tmp/part" + i + ".stp.obj"), results.get(i).get().getConvertedFile());
+        }
+    }
+
+    @Test
+    public void conversionsAfterFlushRunAlone() {
+        ConversionBatch batch = new ConversionBatch();
+        CompletableFuture<ConversionResult> single = new CompletableFuture<>();
+        ConversionCache.AsyncConversion deferred = batch.defer((cadFile, tmpDir) -> single);
+        batch.flush(10, this::convertAll);
+
+        Assert.assertSame(single, deferred.convertAsync(file(0), TMP_DIR));
+        Assert.assertTrue(groups.isEmpty());
+    }
+
+    @Test
+    public void failedGroupFailsItsJobs() throws Exception {
+        ConversionBatch batch = new ConversionBatch();
+        ConversionCache.AsyncConversion deferred = batch.defer((cadFile, tmpDir) -> null);
+        CompletableFuture<ConversionResult> result = deferred.convertAsync(file(0), TMP_DIR);
+
+        batch.flush(10, jobs -> ConversionFutures.failed(new IllegalStateException("FreeCAD is missing")));
+
+        try {
+            result.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("FreeCAD is missing", e.getCause().getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void cancellingAllJobsCancelsTheGroup() {
+        ConversionBatch batch = new ConversionBatch();
+        ConversionCache.AsyncConversion deferred = batch.defer((cadFile, tmpDir) -> null);
+        CompletableFuture<ConversionResult> first = deferred.convertAsync(file(0), TMP_DIR);
+        CompletableFuture<ConversionResult> second = deferred.convertAsync(file(1), TMP_DIR);
+        CompletableFuture<Void> group = new CompletableFuture<>();
+
+        batch.flush(10, jobs -> group);
+        first.cancel(true);
+        Assert.assertFalse(group.isDone());
+        second.cancel(true);
+        Assert.assertTrue(group.isCancelled());
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.pipeline.ProcessedConversionResult;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConversionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger conversions = new AtomicInteger();
+
+    private ConversionResult fakeConversion(URI cadFileUri, URI tmpDirUri) throws ConversionException {
+        conversions.incrementAndGet();
+        try {
+            Path tmpDir = Paths.get(tmpDirUri);
+            String uuid = UUID.randomUUID().toString();
+            Path obj = Files.write(tmpDir.resolve(uuid + ".obj"),
+                    ("mtllib " + uuid + ".obj.mtl\n").getBytes(StandardCharsets.UTF_8));
+            Path mtl = Files.write(tmpDir.resolve(uuid + ".obj.mtl"), Files.readAllBytes(Paths.get(cadFileUri)));
+            return new ConversionResult(obj, new ArrayList<>(Collections.singletonList(mtl)));
+        } catch (Exception e) {
+            throw new ConversionException(e);
+        }
+    }
+
+    private URI cadFile(String content) throws Exception {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file.toUri();
+    }
+
+    @Test
+    public void testSameContentIsConvertedOnce() throws Exception {
+        ConversionCache cache = new ConversionCache(folder.newFolder().toPath(), 1024 * 1024);
+
+        ConversionResult first = cache.convert(cadFile("part"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        ConversionResult second = cache.convert(cadFile("part"), folder.newFolder().toURI(), "1", this::fakeConversion);
+
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(first.getConvertedFile().getFileName(), second.getConvertedFile().getFileName());
+        Assert.assertEquals("part",
+                new String(Files.readAllBytes(second.getMaterials().get(0)), StandardCharsets.UTF_8));
+
+        cache.convert(cadFile("part"), folder.newFolder().toURI(), "2", this::fakeConversion);
+        Assert.assertEquals(2, conversions.get());
+    }
+
+    @Test
+    public void testArtifactsAndMetricsAreRestored() throws Exception {
+        ConversionCache cache = new ConversionCache(folder.newFolder().toPath(), 1024 * 1024);
+        ConversionCache.Conversion processed = (cadFileUri, tmpDirUri) -> {
+            ConversionResult result = fakeConversion(cadFileUri, tmpDirUri);
+            ProcessedConversionResult withArtifact = ProcessedConversionResult.of(result);
+            try {
+                withArtifact.putArtifact("glb", Files.write(Paths.get(tmpDirUri).resolve("part.glb"),
+                        "glTF".getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new ConversionException(e);
+            }
+            withArtifact.putMetric("glb.size", 4);
+            return withArtifact;
+        };
+
+        cache.convert(cadFile("part"), folder.newFolder().toURI(), "1", processed);
+        Path tmpDir = folder.newFolder().toPath();
+        ConversionResult restored = cache.convert(cadFile("part"), tmpDir.toUri(), "1", processed);
+
+        Assert.assertEquals(1, conversions.get());
+        Assert.assertTrue(restored instanceof ProcessedConversionResult);
+        ProcessedConversionResult result = (ProcessedConversionResult) restored;
+        Assert.assertEquals(tmpDir.resolve("part.glb"), result.getArtifact("glb"));
+        Assert.assertEquals("glTF", new String(Files.readAllBytes(result.getArtifact("glb")), StandardCharsets.UTF_8));
+        Assert.assertEquals("4", result.getMetric("glb.size"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        // Each entry holds about 50 bytes of obj and 10 bytes of material
+        ConversionCache cache = new ConversionCache(directory, 150);
+
+        cache.convert(cadFile("aaaaaaaaaa"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        cache.convert(cadFile("bbbbbbbbbb"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        cache.convert(cadFile("aaaaaaaaaa"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        cache.convert(cadFile("cccccccccc"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        Assert.assertEquals(3, conversions.get());
+        Assert.assertTrue(cache.getSize() <= 150);
+
+        // "b" was the least recently used
+        cache.convert(cadFile("aaaaaaaaaa"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        Assert.assertEquals(3, conversions.get());
+        cache.convert(cadFile("bbbbbbbbbb"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        Assert.assertEquals(4, conversions.get());
+
+        // Entries survive a restart
+        ConversionCache reloaded = new ConversionCache(directory, 150);
+        reloaded.convert(cadFile("bbbbbbbbbb"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        Assert.assertEquals(4, conversions.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneConversion() throws Exception {
+        ConversionCache cache = new ConversionCache(folder.newFolder().toPath(), 1024 * 1024);
+        ConversionCache.Conversion slowConversion = (cadFileUri, tmpDirUri) -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                throw new ConversionException(e);
+            }
+            return fakeConversion(cadFileUri, tmpDirUri);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<ConversionResult>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            URI cadFile = cadFile("assembly");
+            URI tmpDir = folder.newFolder().toURI();
+            results.add(executor.submit((Callable<ConversionResult>) () ->
+                    cache.convert(cadFile, tmpDir, "1", slowConversion)));
+        }
+        for (Future<ConversionResult> result : results) {
+            Assert.assertTrue(Files.exists(result.get().getConvertedFile()));
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, conversions.get());
+    }
+
+    @Test
+    public void testCachesSharingADirectoryStayWithinItsSize() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        ConversionCache first = new ConversionCache(directory, 150);
+        ConversionCache second = new ConversionCache(directory, 150);
+
+        first.convert(cadFile("aaaaaaaaaa"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        second.convert(cadFile("bbbbbbbbbb"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        first.convert(cadFile("cccccccccc"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        second.convert(cadFile("dddddddddd"), folder.newFolder().toURI(), "1", this::fakeConversion);
+
+        Assert.assertTrue(second.getSize() <= 150);
+        Assert.assertTrue(new ConversionCache(directory, 1024 * 1024).getSize() <= 150);
+        // Entries stored by the other cache are restored
+        second.convert(cadFile("cccccccccc"), folder.newFolder().toURI(), "1", this::fakeConversion);
+        Assert.assertEquals(4, conversions.get());
+    }
+
+    @Test
+    public void testRecentStagingDirectoriesAreKept() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Path recent = Files.createDirectory(directory.resolve(".staging-recent"));
+        Path old = Files.createDirectory(directory.resolve(".staging-old"));
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+
+        new ConversionCache(directory, 150);
+
+        Assert.assertTrue(Files.isDirectory(recent));
+        Assert.assertFalse(Files.exists(old));
+    }
+
+}
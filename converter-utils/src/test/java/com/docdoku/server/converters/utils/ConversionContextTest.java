@@ -0,0 +1,90 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+public class ConversionContextTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDefaultContext() throws IOException {
+        Path tmpDir = folder.newFolder("tmp").toPath();
+        ConversionContext context = ConversionContext.of(tmpDir.resolve("part.stp").toUri(), tmpDir.toUri());
+
+        Assert.assertEquals(ConversionContext.DEFAULT_WORKSPACE, context.getWorkspaceId());
+        Assert.assertEquals(ConversionPriority.INTERACTIVE, context.getPriority());
+    }
+
+    @Test
+    public void testContextFromTheTemporaryDirectory() throws IOException {
+        Path tmpDir = folder.newFolder("tmp").toPath();
+        Files.write(tmpDir.resolve(ConversionContext.PROPERTIES),
+                "workspace=acme\npriority=bulk\n".getBytes(StandardCharsets.UTF_8));
+        ConversionContext context = ConversionContext.of(tmpDir.resolve("part.stp").toUri(), tmpDir.toUri());
+
+        Assert.assertEquals("acme", context.getWorkspaceId());
+        Assert.assertEquals(ConversionPriority.BULK, context.getPriority());
+        Assert.assertNull(context.getSubject());
+    }
+
+    @Test
+    public void testSubjectFromTheTemporaryDirectory() throws IOException {
+        Path tmpDir = folder.newFolder("tmp").toPath();
+        Files.write(tmpDir.resolve(ConversionContext.PROPERTIES),
+                "workspace=acme\nsubject=P-1/A\niteration=3\n".getBytes(StandardCharsets.UTF_8));
+        ConversionContext context = ConversionContext.of(tmpDir.resolve("part.stp").toUri(), tmpDir.toUri());
+
+        Assert.assertEquals("P-1/A", context.getSubject());
+        Assert.assertEquals(3, context.getIteration());
+    }
+
+    @Test
+    public void testContextFromTheVaultPath() throws IOException {
+        Path nativeCad = folder.newFolder("vault", "acme", "parts", "P-1", "A", "2", "nativecad").toPath();
+        ConversionContext context = ConversionContext.of(nativeCad.resolve("part.stp").toUri(),
+                folder.newFolder("tmp").toPath().toUri());
+
+        Assert.assertEquals("acme", context.getWorkspaceId());
+        Assert.assertEquals(ConversionPriority.INTERACTIVE, context.getPriority());
+        Assert.assertEquals("P-1/A", context.getSubject());
+        Assert.assertEquals(2, context.getIteration());
+    }
+
+    @Test
+    public void testNewerIterationInTheVaultSupersedesTheOlderOne() throws IOException {
+        Path older = folder.newFolder("vault", "acme", "parts", "P-2", "A", "1", "nativecad").toPath();
+        Path newer = folder.newFolder("vault", "acme", "parts", "P-2", "A", "2", "nativecad").toPath();
+        Path tmpDir = folder.newFolder("tmp").toPath();
+        CompletableFuture<String> first = ConversionSupersession.track(
+                ConversionContext.of(older.resolve("part.stp").toUri(), tmpDir.toUri()), new CompletableFuture<>());
+        CompletableFuture<String> second = ConversionSupersession.track(
+                ConversionContext.of(newer.resolve("part.stp").toUri(), tmpDir.toUri()), new CompletableFuture<>());
+
+        Assert.assertTrue(first.isCancelled());
+        second.complete("done");
+    }
+
+    @Test
+    public void testThreadContextComesFirst() throws IOException {
+        Path tmpDir = folder.newFolder("tmp").toPath();
+        Files.write(tmpDir.resolve(ConversionContext.PROPERTIES), "workspace=acme\n".getBytes(StandardCharsets.UTF_8));
+        ConversionContext.set(new ConversionContext("other", ConversionPriority.BULK));
+        try {
+            Assert.assertEquals("other",
+                    ConversionContext.of(tmpDir.resolve("part.stp").toUri(), tmpDir.toUri()).getWorkspaceId());
+        } finally {
+            ConversionContext.clear();
+        }
+    }
+
+}
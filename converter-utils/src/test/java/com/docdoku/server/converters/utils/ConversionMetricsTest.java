@@ -0,0 +1,82 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ConversionMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordIsPublished() throws Exception {
+        Path input = folder.newFile("part.step").toPath();
+        Path output = folder.getRoot().toPath().resolve("part.obj");
+        Files.write(input, new byte[1000]);
+        Files.write(output, new byte[5000]);
+
+        ConversionMetrics metrics = ConversionMetrics.forConverter(ConversionMetricsTest.class);
+        metrics.reset();
+        metrics.record(input, output, new ProcessResult(0, false, 120, "", "", 100, 64 << 20));
+        metrics.record(input, output, new ProcessResult(0, false, 80, "", "", 70, 32 << 20));
+        metrics.record(input, output, new ProcessResult(-1, true, 30000, "", ""));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.docdoku.server.converters:type=ConversionMetrics,name="
+                + ObjectName.quote("ConversionMetricsTest"));
+        Assert.assertEquals(3L, server.getAttribute(name, "Conversions"));
+        Assert.assertEquals(1L, server.getAttribute(name, "Failures"));
+        Assert.assertEquals(1L, server.getAttribute(name, "Timeouts"));
+        Assert.assertEquals(-1, server.getAttribute(name, "LastExitCode"));
+
+        CompositeData wallTime = (CompositeData) server.getAttribute(name, "WallTime");
+        Assert.assertEquals(3L, wallTime.get("count"));
+        Assert.assertEquals(30000L, wallTime.get("max"));
+        CompositeData cpuTime = (CompositeData) server.getAttribute(name, "CpuTime");
+        Assert.assertEquals(2L, cpuTime.get("count"));
+        CompositeData outputSize = (CompositeData) server.getAttribute(name, "OutputSize");
+        Assert.assertEquals(2L, outputSize.get("count"));
+        Assert.assertEquals(5000.0, (Double) outputSize.get("mean"), 0);
+        Assert.assertEquals(3L, ((CompositeData) server.getAttribute(name, "InputSize")).get("count"));
+
+        server.invoke(name, "reset", null, null);
+        Assert.assertEquals(0L, server.getAttribute(name, "Conversions"));
+    }
+
+    @Test
+    public void testHistogramQuantiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-1);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500.5, snapshot.getMean(), 1e-9);
+        Assert.assertEquals(1000, snapshot.getMax());
+        Assert.assertEquals(500, snapshot.getP50(), 500 * 0.25);
+        Assert.assertEquals(900, snapshot.getP90(), 900 * 0.25);
+        Assert.assertEquals(990, snapshot.getP99(), 990 * 0.25);
+        Assert.assertTrue(snapshot.getP99() <= snapshot.getMax());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            Assert.assertTrue(value <= Histogram.upperBound(bucket));
+            Assert.assertTrue(bucket == 0 || value > Histogram.upperBound(bucket - 1));
+        }
+    }
+
+}
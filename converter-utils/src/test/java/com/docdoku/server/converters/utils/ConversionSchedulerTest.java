@@ -0,0 +1,136 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class ConversionSchedulerTest {
+
+    private final List<String> started = new ArrayList<>();
+    private final List<CompletableFuture<String>> running = new ArrayList<>();
+
+    private CompletableFuture<String> submit(ConversionScheduler scheduler, String workspace,
+                                             ConversionPriority priority, String name) {
+        return scheduler.submit(new ConversionContext(workspace, priority), () -> {
+            started.add(name);
+            CompletableFuture<String> conversion = new CompletableFuture<>();
+            running.add(conversion);
+            return conversion;
+        });
+    }
+
+    private void finishOldest() {
+        running.remove(0).complete("done");
+    }
+
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 2, 600);
+        CompletableFuture<String> first = submit(scheduler, "w", ConversionPriority.INTERACTIVE, "a");
+        submit(scheduler, "w", ConversionPriority.INTERACTIVE, "b");
+        submit(scheduler, "w", ConversionPriority.INTERACTIVE, "c");
+
+        Assert.assertEquals(2, scheduler.getRunning());
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        finishOldest();
+        Assert.assertEquals("done", first.get());
+        Assert.assertEquals(3, started.size());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+        Assert.assertEquals(3, scheduler.getDispatched(ConversionPriority.INTERACTIVE));
+    }
+
+    @Test
+    public void testInteractiveBeforeBulk() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 600);
+        submit(scheduler, "import", ConversionPriority.BULK, "bulk-1");
+        submit(scheduler, "import", ConversionPriority.BULK, "bulk-2");
+        submit(scheduler, "import", ConversionPriority.BULK, "bulk-3");
+        submit(scheduler, "user", ConversionPriority.INTERACTIVE, "interactive");
+
+        finishOldest();
+        Assert.assertEquals("interactive", started.get(1));
+        Assert.assertEquals(0, scheduler.getQueueDepth(ConversionPriority.INTERACTIVE));
+        Assert.assertEquals(2, scheduler.getQueueDepth(ConversionPriority.BULK));
+    }
+
+    @Test
+    public void testStarvedBulkIsServed() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 0);
+        submit(scheduler, "user", ConversionPriority.INTERACTIVE, "interactive-1");
+        submit(scheduler, "import", ConversionPriority.BULK, "bulk");
+        submit(scheduler, "user", ConversionPriority.INTERACTIVE, "interactive-2");
+        Thread.sleep(5);
+
+        finishOldest();
+        Assert.assertEquals("bulk", started.get(1));
+    }
+
+    @Test
+    public void testWorkspacesShareTheTool() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 600);
+        for (int i = 0; i < 10; i++) {
+            submit(scheduler, "big", ConversionPriority.BULK, "big");
+        }
+        submit(scheduler, "small", ConversionPriority.BULK, "small");
+
+        finishOldest();
+        finishOldest();
+        // The small workspace does not wait for the 10 conversions of the big one
+        Assert.assertTrue(started.subList(0, 3).contains("small"));
+    }
+
+    @Test
+    public void testCancelQueuedConversion() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 600);
+        submit(scheduler, "w", ConversionPriority.INTERACTIVE, "a");
+        CompletableFuture<String> cancelled = submit(scheduler, "w", ConversionPriority.INTERACTIVE, "b");
+        submit(scheduler, "w", ConversionPriority.INTERACTIVE, "c");
+
+        cancelled.cancel(true);
+        finishOldest();
+        Assert.assertEquals("c", started.get(1));
+        Assert.assertEquals(2, started.size());
+    }
+
+    @Test
+    public void testCancelledConversionLeavesTheQueue() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 0);
+        submit(scheduler, "user", ConversionPriority.INTERACTIVE, "interactive-1");
+        CompletableFuture<String> cancelled = submit(scheduler, "import", ConversionPriority.BULK, "bulk");
+        submit(scheduler, "user", ConversionPriority.INTERACTIVE, "interactive-2");
+
+        cancelled.cancel(true);
+        Assert.assertEquals(0, scheduler.getQueueDepth(ConversionPriority.BULK));
+        Thread.sleep(5);
+
+        // The cancelled bulk conversion no longer gets served before interactive ones
+        finishOldest();
+        Assert.assertEquals("interactive-2", started.get(1));
+    }
+
+    @Test
+    public void testCancelledConversionsDoNotUseTheShare() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler("tool", 1, 600);
+        submit(scheduler, "w", ConversionPriority.BULK, "running");
+        List<CompletableFuture<String>> superseded = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            superseded.add(submit(scheduler, "often", ConversionPriority.BULK, "superseded"));
+        }
+        submit(scheduler, "other", ConversionPriority.BULK, "other-1");
+        submit(scheduler, "other", ConversionPriority.BULK, "other-2");
+        for (CompletableFuture<String> conversion : superseded) {
+            conversion.cancel(true);
+        }
+        submit(scheduler, "often", ConversionPriority.BULK, "often");
+
+        finishOldest();
+        finishOldest();
+        Assert.assertEquals("other-1", started.get(1));
+        Assert.assertEquals("often", started.get(2));
+    }
+
+}
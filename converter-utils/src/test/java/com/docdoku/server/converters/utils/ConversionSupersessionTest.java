@@ -0,0 +1,70 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+public class ConversionSupersessionTest {
+
+    private static ConversionContext context(String subject, int iteration) {
+        return new ConversionContext("w", ConversionPriority.INTERACTIVE, subject, iteration);
+    }
+
+    @Test
+    public void testNewerIterationCancelsOlderConversions() {
+        CompletableFuture<String> first = ConversionSupersession.track(context("a", 1), new CompletableFuture<>());
+        CompletableFuture<String> sibling = ConversionSupersession.track(context("a", 1), new CompletableFuture<>());
+        CompletableFuture<String> other = ConversionSupersession.track(context("b", 1), new CompletableFuture<>());
+        Assert.assertEquals(2, ConversionSupersession.tracked(context("a", 1)));
+
+        CompletableFuture<String> second = ConversionSupersession.track(context("a", 2), new CompletableFuture<>());
+
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertTrue(sibling.isCancelled());
+        Assert.assertFalse(second.isDone());
+        Assert.assertFalse(other.isDone());
+        Assert.assertEquals(1, ConversionSupersession.tracked(context("a", 2)));
+
+        second.complete("done");
+        other.complete("done");
+        Assert.assertEquals(0, ConversionSupersession.tracked(context("a", 2)));
+        Assert.assertEquals(0, ConversionSupersession.tracked(context("b", 1)));
+    }
+
+    @Test
+    public void testOlderIterationIsCancelledAtOnce() {
+        CompletableFuture<String> current = ConversionSupersession.track(context("c", 3), new CompletableFuture<>());
+        CompletableFuture<String> outdated = ConversionSupersession.track(context("c", 2), new CompletableFuture<>());
+
+        Assert.assertTrue(outdated.isCancelled());
+        Assert.assertFalse(current.isDone());
+        current.complete("done");
+
+        // Subjects are forgotten once converted
+        CompletableFuture<String> late = ConversionSupersession.track(context("c", 1), new CompletableFuture<>());
+        Assert.assertFalse(late.isDone());
+        late.complete("done");
+    }
+
+    @Test
+    public void testConversionsWithoutSubjectAreNotTracked() {
+        ConversionContext context = new ConversionContext("w", ConversionPriority.BULK);
+        CompletableFuture<String> first = ConversionSupersession.track(context, new CompletableFuture<>());
+        CompletableFuture<String> second = ConversionSupersession.track(context, new CompletableFuture<>());
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(0, ConversionSupersession.tracked(context));
+    }
+
+    @Test
+    public void testSupersessionKillsRunningProcess() throws Exception {
+        CompletableFuture<ProcessResult> process = new ProcessRunner(0).start("sleep", "30");
+        ConversionSupersession.track(context("d", 1), ConversionFutures.then(process, result -> result));
+
+        ConversionSupersession.track(context("d", 2), new CompletableFuture<>()).complete(null);
+
+        Assert.assertTrue(process.isCancelled());
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class ConversionToolTest {
+
+    private static final long PROBE_INTERVAL = 60;
+    private static final long DISABLE_PERIOD = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long now;
+    private Path executable;
+
+    @Before
+    public void setUp() throws Exception {
+        executable = folder.newFile("tool").toPath();
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    private ConversionTool tool(Path path) {
+        return new ConversionTool("tool", path, 2, PROBE_INTERVAL, DISABLE_PERIOD, () -> now);
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        ConversionTool tool = tool(executable);
+        Assert.assertTrue(tool.isAvailable());
+        Assert.assertEquals(ConversionCache.fingerprint(executable), tool.getVersion());
+
+        ConversionTool missing = tool(folder.getRoot().toPath().resolve("missing"));
+        Assert.assertFalse(missing.isAvailable());
+        Assert.assertTrue(missing.getProblem().endsWith("is not available"));
+
+        // Installing the tool is noticed at the next probe
+        Files.copy(executable, missing.getExecutable());
+        Files.setPosixFilePermissions(missing.getExecutable(), PosixFilePermissions.fromString("rwxr-xr-x"));
+        Assert.assertFalse(missing.isAvailable());
+        now += PROBE_INTERVAL;
+        Assert.assertTrue(missing.isAvailable());
+    }
+
+    @Test
+    public void testDisabledAfterConsecutiveFailures() {
+        ConversionTool tool = tool(executable);
+        tool.record(new ProcessResult(-1, true, 1000, "", ""));
+        tool.record(new ProcessResult(0, false, 1000, "", ""));
+        tool.record(new ProcessResult(139, false, 1000, "", ""));
+        Assert.assertTrue(tool.isAvailable());
+
+        // Errors reported by the tool are blamed on the files
+        tool.record(new ProcessResult(1, false, 1000, "", "bad file"));
+        tool.record(new ProcessResult(-1, true, 1000, "", ""));
+        tool.recordFailure();
+        Assert.assertFalse(tool.isAvailable());
+        Assert.assertTrue(tool.getProblem().contains("disabled"));
+
+        now += DISABLE_PERIOD;
+        Assert.assertTrue(tool.isAvailable());
+        // A failed trial disables the tool again
+        tool.recordFailure();
+        Assert.assertFalse(tool.isAvailable());
+
+        now += DISABLE_PERIOD;
+        tool.recordSuccess();
+        tool.recordFailure();
+        Assert.assertTrue(tool.isAvailable());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        ConversionTool first = tool(executable);
+        ConversionTool second = tool(executable);
+        List<String> calls = new ArrayList<>();
+        ConversionRoutes routes = new ConversionRoutes()
+                .add(first, (context, cadFile, tmpDir) -> {
+                    calls.add("first");
+                    return ConversionFutures.failed(new ConversionException("first failed"));
+                }, "3ds", "wrl")
+                .add(second, (context, cadFile, tmpDir) -> {
+                    calls.add("second");
+                    return CompletableFuture.completedFuture(new ConversionResult(folder.getRoot().toPath()));
+                }, "3ds");
+
+        Assert.assertTrue(routes.canConvert("wrl"));
+        Assert.assertFalse(routes.canConvert("stl"));
+        URI cadFile = folder.getRoot().toPath().resolve("part.3ds").toUri();
+        Assert.assertNotNull(routes.convertAsync("3ds", ConversionContext.current(), cadFile, cadFile).get());
+        Assert.assertEquals("[first, second]", calls.toString());
+
+        // Unavailable tools are skipped
+        calls.clear();
+        first.recordFailure();
+        first.recordFailure();
+        routes.convertAsync("3ds", ConversionContext.current(), cadFile, cadFile).get();
+        Assert.assertEquals("[second]", calls.toString());
+    }
+
+    @Test
+    public void testAllToolsFail() throws Exception {
+        ConversionTool first = tool(executable);
+        ConversionTool missing = tool(folder.getRoot().toPath().resolve("missing"));
+        ConversionRoutes routes = new ConversionRoutes()
+                .add(missing, (context, cadFile, tmpDir) -> {
+                    throw new AssertionError("Unavailable tool called");
+                }, "3ds")
+                .add(first, (context, cadFile, tmpDir) ->
+                        ConversionFutures.failed(new ConversionException("first failed")), "3ds");
+
+        URI cadFile = folder.getRoot().toPath().resolve("part.3ds").toUri();
+        try {
+            routes.convertAsync("3ds", ConversionContext.current(), cadFile, cadFile).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            ConversionException error = ConversionFutures.unwrap(e);
+            Assert.assertEquals("first failed", error.getMessage());
+            Assert.assertEquals(1, error.getSuppressed().length);
+            Assert.assertTrue(error.getSuppressed()[0].getMessage().endsWith("is not available"));
+        }
+    }
+
+    @Test
+    public void testInProcessToolFallsBackOnRejectedFile() throws Exception {
+        ConversionTool reader = ConversionTool.inProcess("reader", "reader-1");
+        ConversionTool external = tool(executable);
+        Assert.assertTrue(reader.isAvailable());
+        Assert.assertNull(reader.getExecutable());
+        ConversionRoutes routes = new ConversionRoutes()
+                .add(reader, (context, cadFile, tmpDir) ->
+                        ConversionFutures.failed(new ConversionException("unsupported layout")), "ply")
+                .add(external, (context, cadFile, tmpDir) ->
+                        CompletableFuture.completedFuture(new ConversionResult(folder.getRoot().toPath())), "ply");
+
+        URI cadFile = folder.getRoot().toPath().resolve("scan.ply").toUri();
+        Assert.assertNotNull(routes.convertAsync("ply", ConversionContext.current(), cadFile, cadFile).get());
+        Assert.assertTrue(routes.version("ply").startsWith("reader-1,"));
+    }
+
+}
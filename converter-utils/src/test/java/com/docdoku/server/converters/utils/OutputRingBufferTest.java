@@ -0,0 +1,38 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OutputRingBufferTest {
+
+    @Test
+    public void testKeepsEverythingBelowCapacity() throws Exception {
+        OutputRingBuffer buffer = new OutputRingBuffer(16);
+        write(buffer, "hello ");
+        write(buffer, "world");
+        Assert.assertEquals("hello world", buffer.toString());
+        Assert.assertEquals(0, buffer.getDiscardedBytes());
+    }
+
+    @Test
+    public void testKeepsTailAboveCapacity() throws Exception {
+        OutputRingBuffer buffer = new OutputRingBuffer(8);
+        write(buffer, "0123456");
+        write(buffer, "789ab");
+        Assert.assertEquals("456789ab", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals(12, buffer.getWrittenBytes());
+        Assert.assertEquals(4, buffer.getDiscardedBytes());
+
+        write(buffer, "0123456789xyz");
+        Assert.assertEquals("56789xyz", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("[17 bytes truncated]56789xyz", buffer.toString());
+    }
+
+    private void write(OutputRingBuffer buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+}
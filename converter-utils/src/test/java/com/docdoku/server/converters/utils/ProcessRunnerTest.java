@@ -0,0 +1,138 @@
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessRunnerTest {
+
+    private static final String SHELL = "/bin/sh";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Files.isExecutable(Paths.get(SHELL)));
+    }
+
+    @Test
+    public void testVerboseErrorOutputDoesNotBlock() throws Exception {
+        ProcessRunner runner = new ProcessRunner(30, 1024);
+        // Writes ~1MB on stderr before anything on stdout
+        ProcessResult result = runner.run(SHELL, "-c",
+                "i=0; while [ $i -lt 20000 ]; do echo 'some verbose warning line from the tool' >&2; "
+                        + "i=$((i+1)); done; echo done");
+
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals("done\n", result.getStdOutput());
+        Assert.assertTrue(result.getErrorOutput().startsWith("["));
+        Assert.assertTrue(result.getErrorOutput().length() < 1100);
+    }
+
+    @Test
+    public void testExitCode() throws Exception {
+        ProcessResult result = new ProcessRunner(30).run(SHELL, "-c", "echo failure >&2; exit 3");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertFalse(result.isTimedOut());
+        Assert.assertEquals(3, result.getExitCode());
+        Assert.assertEquals("failure\n", result.getErrorOutput());
+    }
+
+    @Test
+    public void testTimeoutKillsProcessTree() throws Exception {
+        long start = System.currentTimeMillis();
+        ProcessResult result = new ProcessRunner(1).run(SHELL, "-c", "sleep 60 & sleep 60; wait");
+        Assert.assertTrue(result.isTimedOut());
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertTrue(System.currentTimeMillis() - start < 30000);
+    }
+
+    @Test
+    public void testManyConcurrentProcessesWithoutWaitingThreads() throws Exception {
+        ProcessRunner runner = new ProcessRunner(30);
+        List<CompletableFuture<ProcessResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(runner.start(SHELL, "-c", "sleep 1; echo " + i));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            ProcessResult result = futures.get(i).get(30, TimeUnit.SECONDS);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals(i + "\n", result.getStdOutput());
+        }
+    }
+
+    @Test
+    public void testCancelKillsProcess() throws Exception {
+        Path marker = folder.getRoot().toPath().resolve("marker");
+        CompletableFuture<ProcessResult> future = new ProcessRunner(0).start(SHELL, "-c", "sleep 1; touch " + marker);
+        Assert.assertTrue(future.cancel(true));
+        Thread.sleep(2000);
+        Assert.assertFalse(Files.exists(marker));
+    }
+
+    @Test
+    public void testCancelDeletesOutputs() throws Exception {
+        Path output = folder.getRoot().toPath().resolve("output.obj");
+        CompletableFuture<ProcessResult> future = new ProcessRunner(0).start(
+                new ProcessBuilder(SHELL, "-c", "while true; do echo v >> " + output + "; sleep 0.05; done"),
+                Collections.singletonList(output));
+        for (int i = 0; i < 100 && !Files.exists(output); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(Files.exists(output));
+        Assert.assertTrue(future.cancel(true));
+        Thread.sleep(1000);
+        Assert.assertFalse(Files.exists(output));
+    }
+
+    @Test
+    public void testTerminationFollowsTheKill() throws Exception {
+        Path output = folder.getRoot().toPath().resolve("output.obj");
+        CompletableFuture<Void> termination = new CompletableFuture<>();
+        CompletableFuture<ProcessResult> future = new ProcessRunner(0).start(
+                new ProcessBuilder(SHELL, "-c", "while true; do echo v >> " + output + "; sleep 0.05; done"),
+                Collections.singletonList(output), termination);
+        for (int i = 0; i < 100 && !Files.exists(output); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(future.cancel(true));
+        termination.get(30, TimeUnit.SECONDS);
+        Assert.assertFalse(Files.exists(output));
+        Thread.sleep(200);
+        Assert.assertFalse(Files.exists(output));
+    }
+
+    @Test
+    public void testTerminationOnExit() throws Exception {
+        CompletableFuture<Void> termination = new CompletableFuture<>();
+        ProcessResult result = new ProcessRunner(30).start(new ProcessBuilder(SHELL, "-c", "exit 0"),
+                Collections.emptyList(), termination).get(30, TimeUnit.SECONDS);
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertTrue(termination.isDone());
+    }
+
+    @Test
+    public void testResourceUsage() throws Exception {
+        Assume.assumeTrue(Files.isDirectory(Paths.get("/proc/self")));
+        ProcessResult result = new ProcessRunner(30).run(SHELL, "-c",
+                "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done");
+
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertTrue(result.getCpuTime() > 0);
+        Assert.assertTrue(result.getPeakMemory() > 0);
+    }
+
+}
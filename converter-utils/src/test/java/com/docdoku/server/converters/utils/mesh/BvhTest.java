@@ -0,0 +1,115 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class BvhTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void everyTriangleIsInALeafContainingIt() {
+        Mesh mesh = randomTriangles(5000, new Random(1));
+        Bvh bvh = Bvh.build(mesh);
+
+        Assert.assertEquals(5000, bvh.getTriangleCount());
+        Set<Integer> seen = new HashSet<>();
+        for (int node = 0; node < bvh.getNodeCount(); node++) {
+            if (bvh.isLeaf(node)) {
+                for (int i = bvh.getFirst(node); i < bvh.getFirst(node) + bvh.getCount(node); i++) {
+                    int triangle = bvh.getTriangle(i);
+                    Assert.assertTrue(seen.add(triangle));
+                    for (int k = 0; k < 3; k++) {
+                        int v = mesh.getIndices().get(triangle * 3 + k);
+                        for (int axis = 0; axis < 3; axis++) {
+                            float coordinate = mesh.getPositions().get(v * 3 + axis);
+                            Assert.assertTrue(coordinate >= bvh.getBound(node, axis));
+                            Assert.assertTrue(coordinate <= bvh.getBound(node, axis + 3));
+                        }
+                    }
+                }
+            } else {
+                for (int child = bvh.getFirst(node); child <= bvh.getFirst(node) + 1; child++) {
+                    for (int axis = 0; axis < 3; axis++) {
+                        Assert.assertTrue(bvh.getBound(child, axis) >= bvh.getBound(node, axis));
+                        Assert.assertTrue(bvh.getBound(child, axis + 3) <= bvh.getBound(node, axis + 3));
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(5000, seen.size());
+        Assert.assertTrue(bvh.getDepth() < 40);
+    }
+
+    @Test
+    public void mappedFileAnswersQueries() throws IOException {
+        Random random = new Random(2);
+        Mesh mesh = randomTriangles(2000, random);
+        Path file = folder.getRoot().toPath().resolve("mesh.bvh");
+        Bvh.build(mesh).write(file);
+        Bvh bvh = Bvh.map(file);
+
+        for (int query = 0; query < 20; query++) {
+            float x = random.nextFloat() * 100;
+            float y = random.nextFloat() * 100;
+            float z = random.nextFloat() * 100;
+            float[] box = {x, y, z, x + 10, y + 10, z + 10};
+            Set<Integer> found = new HashSet<>();
+            bvh.query(box, found::add);
+            for (int triangle = 0; triangle < mesh.getTriangleCount(); triangle++) {
+                if (overlaps(mesh, triangle, box)) {
+                    Assert.assertTrue(found.contains(triangle));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        Path file = folder.newFile("mesh.obj").toPath();
+        Files.write(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes("UTF-8"));
+        Bvh.map(file);
+    }
+
+    private static Mesh randomTriangles(int count, Random random) {
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int t = 0; t < count; t++) {
+            float x = random.nextFloat() * 100;
+            float y = random.nextFloat() * 100;
+            float z = random.nextFloat() * 100;
+            for (int k = 0; k < 3; k++) {
+                indices.add(positions.size() / 3);
+                positions.add(x + random.nextFloat(), y + random.nextFloat(), z + random.nextFloat());
+            }
+        }
+        return new Mesh(positions, new FloatList(), indices);
+    }
+
+    private static boolean overlaps(Mesh mesh, int triangle, float[] box) {
+        for (int axis = 0; axis < 3; axis++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < 3; k++) {
+                float coordinate = mesh.getPositions().get(mesh.getIndices().get(triangle * 3 + k) * 3 + axis);
+                min = Math.min(min, coordinate);
+                max = Math.max(max, coordinate);
+            }
+            if (min > box[axis + 3] || max < box[axis]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class GeometryHashTest {
+
+    private static final double TOLERANCE = 1e-3;
+
+    @Test
+    public void movedAndMirroredCopiesShareTheHash() {
+        Mesh mesh = randomShape(new Random(1));
+        // Rotation about z, mirror along x and translation
+        double angle = 0.7;
+        double[] matrix = {
+                -Math.cos(angle), -Math.sin(angle), 0, 0,
+                -Math.sin(angle), Math.cos(angle), 0, 0,
+                0, 0, 1, 0,
+                10, -5, 3, 1};
+        Mesh copy = transform(mesh, matrix);
+
+        GeometryHash hash = GeometryHash.compute(mesh, TOLERANCE);
+        GeometryHash copyHash = GeometryHash.compute(copy, TOLERANCE);
+
+        Assert.assertEquals(hash.getValue(), copyHash.getValue());
+        Mesh moved = transform(mesh, hash.matrixTo(copyHash));
+        for (int i = 0; i < copy.getPositions().size(); i++) {
+            Assert.assertEquals(copy.getPositions().get(i), moved.getPositions().get(i), 1e-4);
+        }
+    }
+
+    @Test
+    public void reorderedTrianglesShareTheHash() {
+        Mesh mesh = randomShape(new Random(2));
+        IntList indices = mesh.getIndices();
+        IntList reversed = new IntList();
+        for (int t = mesh.getTriangleCount() - 1; t >= 0; t--) {
+            reversed.add(indices.get(t * 3 + 1), indices.get(t * 3 + 2), indices.get(t * 3));
+        }
+
+        Assert.assertEquals(GeometryHash.compute(mesh, TOLERANCE).getValue(),
+                GeometryHash.compute(new Mesh(mesh.getPositions(), new FloatList(), reversed), TOLERANCE).getValue());
+    }
+
+    @Test
+    public void otherShapesHaveAnotherHash() {
+        Mesh mesh = randomShape(new Random(3));
+        FloatList positions = new FloatList();
+        for (int i = 0; i < mesh.getPositions().size(); i++) {
+            positions.add(mesh.getPositions().get(i));
+        }
+        positions.set(0, positions.get(0) + 0.1f);
+
+        Assert.assertNotEquals(GeometryHash.compute(mesh, TOLERANCE).getValue(),
+                GeometryHash.compute(new Mesh(positions, new FloatList(), mesh.getIndices()), TOLERANCE).getValue());
+    }
+
+    private static Mesh randomShape(Random random) {
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int v = 0; v < 60; v++) {
+            positions.add(random.nextFloat() * 4, random.nextFloat() * 2, random.nextFloat());
+        }
+        for (int t = 0; t < 80; t++) {
+            indices.add(random.nextInt(60), random.nextInt(60), random.nextInt(60));
+        }
+        return new Mesh(positions, new FloatList(), indices);
+    }
+
+    private static Mesh transform(Mesh mesh, double[] matrix) {
+        FloatList positions = new FloatList();
+        for (int v = 0; v < mesh.getVertexCount(); v++) {
+            for (int row = 0; row < 3; row++) {
+                double value = matrix[12 + row];
+                for (int k = 0; k < 3; k++) {
+                    value += matrix[k * 4 + row] * mesh.getPositions().get(v * 3 + k);
+                }
+                positions.add((float) value);
+            }
+        }
+        return new Mesh(positions, new FloatList(), mesh.getIndices());
+    }
+
+}
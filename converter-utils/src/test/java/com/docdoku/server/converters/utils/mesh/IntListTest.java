@@ -0,0 +1,82 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+public class IntListTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void listMovesToMappedChunks() throws IOException {
+        MeshBufferStorage storage = new MeshBufferStorage(1024, true, folder.newFolder().toPath());
+        IntList list = new IntList(16, storage);
+        int count = (1 << 22) + 1000;
+        for (int i = 0; i < count; i += 3) {
+            list.add(i, i + 1, i + 2);
+        }
+
+        Assert.assertTrue(list.isOffHeap());
+        Assert.assertEquals(count + 2 - (count + 2) % 3, list.size());
+        Assert.assertEquals(255, list.get(255));
+        Assert.assertEquals(1 << 22, list.get(1 << 22));
+        list.set(1 << 22, -1);
+        Assert.assertEquals(-1, list.get(1 << 22));
+        int[] array = list.toArray();
+        Assert.assertEquals(list.size(), array.length);
+        Assert.assertEquals((1 << 22) + 1, array[(1 << 22) + 1]);
+    }
+
+    @Test
+    public void largeListStartsInDirectChunks() {
+        IntList list = new IntList(4096, new MeshBufferStorage(1024, false, null));
+        Assert.assertTrue(list.isOffHeap());
+        list.add(7);
+        list.add(8);
+        list.truncate(1);
+
+        IntList.IntIterator iterator = list.iterator();
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(7, iterator.nextInt());
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void releasedListIsEmptyAndReusable() throws IOException {
+        IntList list = new IntList(4096, new MeshBufferStorage(1024, true, folder.newFolder().toPath()));
+        list.add(1, 2, 3);
+        list.release();
+        list.release();
+
+        Assert.assertEquals(0, list.size());
+        Assert.assertFalse(list.isOffHeap());
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+        }
+        Assert.assertTrue(list.isOffHeap());
+        Assert.assertEquals(999, list.get(999));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void iteratorStopsAtTheEnd() {
+        IntList list = new IntList(16, MeshBufferStorage.HEAP);
+        list.add(1);
+        IntList.IntIterator iterator = list.iterator();
+        iterator.nextInt();
+        iterator.nextInt();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readingPastTheSizeFails() {
+        IntList list = new IntList(4096, new MeshBufferStorage(1024, false, null));
+        list.add(1);
+        list.get(1);
+    }
+
+}
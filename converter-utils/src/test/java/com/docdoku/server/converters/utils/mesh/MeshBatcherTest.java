@@ -0,0 +1,47 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class MeshBatcherTest {
+
+    @Test
+    public void groupsSharingAMaterialAreMerged() {
+        FloatList positions = new FloatList();
+        for (int v = 0; v < 10; v++) {
+            positions.add(v, v % 2, v % 3);
+        }
+        IntList indices = new IntList();
+        String[][] groups = {{"bolt", "steel"}, {"panel", "paint"}, {"nut", "steel"}, {"nut", "steel"},
+                {"washer", null}};
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        for (int g = 0; g < groups.length; g++) {
+            int first = indices.size();
+            for (int t = 0; t <= g; t++) {
+                indices.add(g, g + 1, t + 2);
+            }
+            mesh.addGroup(new Mesh.Group(groups[g][0], groups[g][1], first, indices.size() - first));
+        }
+
+        MeshBatcher.Batching batching = MeshBatcher.batch(mesh);
+        Mesh batched = batching.getMesh();
+
+        Assert.assertEquals(3, batched.getGroups().size());
+        Assert.assertEquals("steel", batched.getGroups().get(0).getMaterial());
+        Assert.assertEquals(1 + 3 + 4, batched.getGroups().get(0).getIndexCount() / 3);
+        Assert.assertEquals(mesh.getTriangleCount(), batched.getTriangleCount());
+        List<MeshBatcher.ObjectRange> steel = batching.getObjects(0);
+        Assert.assertEquals(2, steel.size());
+        Assert.assertEquals("nut", steel.get(1).getName());
+        Assert.assertEquals(1, steel.get(1).getFirstTriangle());
+        Assert.assertEquals(7, steel.get(1).getTriangleCount());
+        // The first triangle of the nut is the first of its original group
+        int picked = batched.getGroups().get(0).getFirstIndex() / 3 + steel.get(1).getFirstTriangle();
+        Assert.assertEquals(2, batched.getIndices().get(picked * 3));
+        Assert.assertNull(batched.getGroups().get(2).getMaterial());
+        Assert.assertTrue(batching.toJson().contains("{\"name\":\"nut\",\"first\":1,\"count\":7}"));
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class MeshOptimizerTest {
+
+    @Test
+    public void triangleSoupIsWelded() {
+        int size = 10;
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                // Every triangle has its own vertices, slightly apart
+                float jitter = (x + y) % 2 * 1e-7f;
+                addTriangle(positions, indices, x, y, x + 1 + jitter, y, x + 1, y + 1);
+                addTriangle(positions, indices, x, y, x + 1, y + 1, x, y + 1 + jitter);
+            }
+        }
+        // Degenerate triangles
+        addTriangle(positions, indices, 0, 0, 0, 0, 1, 1);
+        addTriangle(positions, indices, 0, 0, 1, 1, 2, 2);
+        Mesh soup = new Mesh(positions, new FloatList(), indices);
+        soup.addGroup(new Mesh.Group("plate", "steel", 0, indices.size()));
+
+        Mesh welded = MeshOptimizer.weld(soup, 1e-5f);
+
+        Assert.assertEquals((size + 1) * (size + 1), welded.getVertexCount());
+        Assert.assertEquals(size * size * 2, welded.getTriangleCount());
+        Assert.assertEquals(1, welded.getGroups().size());
+        Assert.assertEquals(size * size * 6, welded.getGroups().get(0).getIndexCount());
+    }
+
+    @Test
+    public void reorderingLowersCacheMisses() {
+        int size = 60;
+        FloatList positions = new FloatList();
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++) {
+                positions.add(x, y, 0);
+            }
+        }
+        List<int[]> triangles = new ArrayList<>();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * (size + 1) + x;
+                triangles.add(new int[]{corner, corner + 1, corner + size + 2});
+                triangles.add(new int[]{corner, corner + size + 2, corner + size + 1});
+            }
+        }
+        Collections.shuffle(triangles, new Random(42));
+        IntList indices = new IntList();
+        for (int[] triangle : triangles) {
+            indices.add(triangle[0], triangle[1], triangle[2]);
+        }
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        mesh.addGroup(new Mesh.Group(null, null, 0, indices.size()));
+
+        Mesh optimized = MeshOptimizer.optimize(mesh);
+
+        double before = MeshOptimizer.acmr(mesh.getIndices(), mesh.getVertexCount(), 32);
+        double after = MeshOptimizer.acmr(optimized.getIndices(), optimized.getVertexCount(), 32);
+        Assert.assertTrue(before > 2.5);
+        Assert.assertTrue("ACMR " + after, after < 0.8);
+        Assert.assertEquals(triangleSet(mesh), triangleSet(optimized));
+        // Vertices are numbered in order of first use
+        Assert.assertEquals(0, optimized.getIndices().get(0));
+    }
+
+    private static Set<String> triangleSet(Mesh mesh) {
+        Set<String> triangles = new HashSet<>();
+        IntList indices = mesh.getIndices();
+        FloatList positions = mesh.getPositions();
+        for (int i = 0; i < indices.size(); i += 3) {
+            List<String> corners = new ArrayList<>();
+            for (int k = 0; k < 3; k++) {
+                int v = indices.get(i + k) * 3;
+                corners.add(positions.get(v) + "," + positions.get(v + 1));
+            }
+            // Keep the winding, start from the smallest corner
+            int first = corners.indexOf(Collections.min(corners));
+            triangles.add(corners.get(first) + " " + corners.get((first + 1) % 3) + " " + corners.get((first + 2) % 3));
+        }
+        return triangles;
+    }
+
+    private static void addTriangle(FloatList positions, IntList indices, float ax, float ay, float bx, float by,
+                                    float cx, float cy) {
+        int first = positions.size() / 3;
+        positions.add(ax, ay, 0);
+        positions.add(bx, by, 0);
+        positions.add(cx, cy, 0);
+        indices.add(first, first + 1, first + 2);
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class MeshTilerTest {
+
+    @Test
+    public void everyTriangleIsInOneTileWithinItsBounds() {
+        Random random = new Random(1);
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int t = 0; t < 3000; t++) {
+            // Small triangles, and a few large ones crossing the cells
+            float size = t % 100 == 0 ? 50 : 1;
+            float x = random.nextFloat() * 100;
+            float y = random.nextFloat() * 100;
+            float z = random.nextFloat() * 100;
+            indices.add(positions.size() / 3, positions.size() / 3 + 1, positions.size() / 3 + 2);
+            positions.add(x, y, z);
+            positions.add(x + size, y, z);
+            positions.add(x, y + size, z + size);
+        }
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        mesh.addGroup(new Mesh.Group("first", "red", 0, 3000));
+        mesh.addGroup(new Mesh.Group("second", "blue", 3000, 6000));
+
+        MeshTiler tiler = new MeshTiler(mesh, 200, 6);
+        MeshTiler.Tile root = tiler.tile();
+
+        Assert.assertEquals(3000, check(tiler, root, 200, 6));
+        Assert.assertFalse(root.getChildren().isEmpty());
+        Assert.assertTrue(root.getGeometricError() > 0);
+    }
+
+    private static int check(MeshTiler tiler, MeshTiler.Tile tile, int maxTriangles, int maxDepth) {
+        Mesh tileMesh = tiler.extract(tile);
+        Assert.assertEquals(tile.getTriangleCount(), tileMesh.getTriangleCount());
+        if (tile.getChildren().isEmpty()) {
+            Assert.assertTrue(tile.getTriangleCount() <= maxTriangles || tile.getDepth() == maxDepth);
+            Assert.assertEquals(0, tile.getGeometricError(), 0);
+        }
+        float[] bounds = tile.getBounds();
+        for (int i = 0; i < tileMesh.getPositions().size(); i++) {
+            Assert.assertTrue(tileMesh.getPositions().get(i) >= bounds[i % 3]);
+            Assert.assertTrue(tileMesh.getPositions().get(i) <= bounds[i % 3 + 3]);
+        }
+        int groupTriangles = 0;
+        for (Mesh.Group group : tileMesh.getGroups()) {
+            groupTriangles += group.getIndexCount() / 3;
+        }
+        Assert.assertEquals(tile.getTriangleCount(), groupTriangles);
+        int count = tile.getTriangleCount();
+        for (MeshTiler.Tile child : tile.getChildren()) {
+            Assert.assertEquals(tile.getDepth() + 1, child.getDepth());
+            float[] childBounds = child.getBounds();
+            for (int axis = 0; axis < 3; axis++) {
+                Assert.assertTrue(childBounds[axis] >= bounds[axis]);
+                Assert.assertTrue(childBounds[axis + 3] <= bounds[axis + 3]);
+            }
+            count += check(tiler, child, maxTriangles, maxDepth);
+        }
+        return count;
+    }
+
+}
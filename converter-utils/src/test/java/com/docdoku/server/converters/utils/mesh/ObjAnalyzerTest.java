@@ -0,0 +1,58 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ObjAnalyzerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void boundsAreComputedPerGroup() throws IOException {
+        ObjAnalysis analysis = ObjAnalyzer.analyze(write("parts.obj", "# two parts\nv 0 0 0\nv 1 0 0\nv 1 1 0\n"
+                + "v 0 1 0\nv 5 5 5\nv 6 5 5\nv 6 6 7\nvn 0 0 1\nvt 0 0\n"
+                + "g Base\nf 1/1/1 2/1/1 3/1/1 4/1/1\ng Cover\nf -3 -2 -1\ng Base\nf 1 3 4\n"));
+
+        Assert.assertTrue(analysis.isValid());
+        Assert.assertEquals(7, analysis.getVertexCount());
+        Assert.assertEquals(1, analysis.getNormalCount());
+        Assert.assertEquals(3, analysis.getFaceCount());
+        Assert.assertEquals(4, analysis.getTriangleCount());
+        Assert.assertArrayEquals(new float[]{0, 0, 0, 6, 6, 7}, analysis.getBounds(), 0);
+        Assert.assertEquals(2, analysis.getGroups().size());
+        ObjAnalysis.Group base = analysis.getGroups().get(0);
+        Assert.assertEquals("Base", base.getName());
+        Assert.assertEquals(2, base.getFaceCount());
+        Assert.assertEquals(3, base.getTriangleCount());
+        Assert.assertArrayEquals(new float[]{0, 0, 0, 1, 1, 0}, base.getBounds(), 0);
+        Assert.assertArrayEquals(new float[]{5, 5, 5, 6, 6, 7}, analysis.getGroups().get(1).getBounds(), 0);
+        Assert.assertTrue(analysis.toJson(), analysis.toJson().contains(
+                "{\"name\":\"Cover\",\"faces\":1,\"triangles\":1,\"bounds\":[5.0,5.0,5.0,6.0,6.0,7.0]}"));
+    }
+
+    @Test
+    public void problemsAreReported() throws IOException {
+        ObjAnalysis analysis = ObjAnalyzer.analyze(write("broken.obj", "v 0 0 0\nv nan 0 0\nv 1 1 0\n"
+                + "f 1 2 3\nf 1//2 3 4\nf 0 1 2"));
+
+        Assert.assertFalse(analysis.isValid());
+        Assert.assertEquals(1, analysis.getNanCoordinateCount());
+        Assert.assertEquals(3, analysis.getInvalidIndexCount());
+        Assert.assertEquals(4, analysis.getProblems().size());
+        Assert.assertArrayEquals(new float[]{0, 0, 0, 1, 1, 0}, analysis.getBounds(), 0);
+        Assert.assertEquals("", analysis.getGroups().get(0).getName());
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class ObjMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indicesAreShifted() throws IOException {
+        Path first = write("first.obj", "mtllib first.mtl\no first\nv 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\n"
+                + "f 1//1 2//1 3//1\n");
+        Path second = write("second.obj", "g ignored\nv 0 0 1\nv 1 0 1\nv 0 1 1\nvt 0 0\nvn 0 0 -1\n"
+                + "f 1/1/1 2/1/1 3/1/1\nf -3 -2 -1\n");
+        Path merged = folder.getRoot().toPath().resolve("merged.obj");
+
+        ObjMerger.merge(Arrays.asList(first, second), Arrays.asList("Bracket", "Bolt M6"), merged);
+
+        Assert.assertEquals(Arrays.asList("g Bracket", "v 0 0 0", "v 1 0 0", "v 0 1 0", "vn 0 0 1",
+                "f 1//1 2//1 3//1", "g Bolt M6", "v 0 0 1", "v 1 0 1", "v 0 1 1", "vt 0 0", "vn 0 0 -1",
+                "f 4/1/2 5/1/2 6/1/2", "f -3 -2 -1"), Files.readAllLines(merged, StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidFaceIsRejected() throws IOException {
+        Path first = write("first.obj", "v 0 0 0\n");
+        Path second = write("second.obj", "f 1 x 3\n");
+        ObjMerger.merge(Arrays.asList(first, second), Arrays.asList("a", "b"),
+                folder.getRoot().toPath().resolve("merged.obj"));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ObjReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void polygonsAreTriangulatedAndGrouped() throws IOException {
+        Mesh mesh = ObjReader.read(write("quad.obj", "mtllib quad.mtl\nv 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vt 0 0\nvn 0 0 1\ng Top\nusemtl red\nf 1/1/1 2/1/1 3/1/1 4/1/1 # quad\n"
+                + "g Bottom\nf -4/1/1 -2/-1/1 -3/1/1\n"));
+
+        Assert.assertEquals(4, mesh.getVertexCount());
+        Assert.assertEquals(3, mesh.getTriangleCount());
+        Assert.assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 0, 2, 1}, mesh.getIndices().toArray());
+        Assert.assertTrue(mesh.hasNormals());
+        Assert.assertEquals(2, mesh.getGroups().size());
+        Assert.assertEquals("Top", mesh.getGroups().get(0).getName());
+        Assert.assertEquals("red", mesh.getGroups().get(0).getMaterial());
+        Assert.assertEquals(6, mesh.getGroups().get(0).getIndexCount());
+        Assert.assertEquals("Bottom", mesh.getGroups().get(1).getName());
+        Assert.assertEquals("red", mesh.getGroups().get(1).getMaterial());
+        Assert.assertEquals(6, mesh.getGroups().get(1).getFirstIndex());
+        Assert.assertEquals("quad.mtl", mesh.getMaterialLibraries().get(0));
+        Assert.assertArrayEquals(new float[]{0, 0, 0, 1, 1, 0}, mesh.getBounds(), 0);
+    }
+
+    @Test
+    public void verticesAreSplitByNormal() throws IOException {
+        Mesh mesh = ObjReader.read(write("edge.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 0 0 1\nvn 0 0 1\nvn 0 1 0\n"
+                + "f 1//1 2//1 3//1\nf 1//2 4//2 2//2\n"));
+
+        Assert.assertEquals(6, mesh.getVertexCount());
+        Assert.assertEquals(1, mesh.getGroups().size());
+        Assert.assertNull(mesh.getGroups().get(0).getName());
+    }
+
+    @Test
+    public void normalsAreDroppedWhenUnused() throws IOException {
+        Mesh mesh = ObjReader.read(write("plain.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3"));
+
+        Assert.assertEquals(3, mesh.getVertexCount());
+        Assert.assertFalse(mesh.hasNormals());
+    }
+
+    @Test
+    public void verticesAreSplitByTextureCoordinates() throws IOException {
+        Mesh mesh = ObjReader.read(write("seam.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\n"
+                + "vt 0 0\nvt 1 0\nvt 0 1 0\nvt 1 1\nvt 0.5\n"
+                + "f 1/1 2/2 3/3\nf 2/5 4/4 3/3\n"));
+
+        Assert.assertEquals(5, mesh.getVertexCount());
+        Assert.assertTrue(mesh.hasTexCoords());
+        Assert.assertFalse(mesh.hasNormals());
+        Assert.assertArrayEquals(new float[]{0, 0, 1, 0, 0, 1, 0.5f, 0, 1, 1}, mesh.getTexCoords().toArray(), 0);
+    }
+
+    @Test
+    public void texturedMeshIsWrittenBack() throws IOException {
+        Mesh mesh = ObjReader.read(write("textured.obj", "mtllib textured.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\n"
+                + "vt 0 0\nvt 1 0\nvt 0 1\nvn 0 0 1\nusemtl wood\nf 1/1/1 2/2/1 3/3/1\n"));
+        Path copy = folder.getRoot().toPath().resolve("copy.obj");
+        ObjWriter.write(MeshOptimizer.optimize(MeshOptimizer.weld(mesh, 0)), copy);
+
+        String written = new String(Files.readAllBytes(copy), StandardCharsets.UTF_8);
+        Assert.assertTrue(written, written.contains("vt 1 0\n"));
+        Assert.assertTrue(written, written.contains("f 1/1/1 2/2/2 3/3/3\n"));
+        Mesh reread = ObjReader.read(copy);
+        Assert.assertArrayEquals(mesh.getTexCoords().toArray(), reread.getTexCoords().toArray(), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void missingVertexIsRejected() throws IOException {
+        ObjReader.read(write("broken.obj", "v 0 0 0\nv 1 0 0\nf 1 2 3\n"));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuadricSimplifierTest {
+
+    @Test
+    public void flatGridKeepsItsOutline() {
+        Mesh grid = grid(40);
+        QuadricSimplifier simplifier = new QuadricSimplifier(grid);
+
+        QuadricSimplifier.Simplification simplification = simplifier.simplify(grid.getTriangleCount() / 10);
+
+        Mesh simplified = simplification.getMesh();
+        Assert.assertTrue(simplified.getTriangleCount() <= grid.getTriangleCount() / 10);
+        Assert.assertTrue(simplified.getTriangleCount() > 0);
+        Assert.assertEquals(0, simplification.getError(), 1e-3);
+        Assert.assertArrayEquals(grid.getBounds(), simplified.getBounds(), 1e-4f);
+        Assert.assertEquals(1, simplified.getGroups().size());
+        Assert.assertEquals("plate", simplified.getGroups().get(0).getName());
+        Assert.assertEquals("steel", simplified.getGroups().get(0).getMaterial());
+        Assert.assertTrue(simplified.hasNormals());
+        Assert.assertEquals(1, simplified.getNormals().get(2), 1e-6f);
+    }
+
+    @Test
+    public void coarserLevelsHaveLargerErrors() {
+        Mesh sphere = sphere(48);
+        QuadricSimplifier simplifier = new QuadricSimplifier(sphere);
+
+        QuadricSimplifier.Simplification half = simplifier.simplify(sphere.getTriangleCount() / 2);
+        QuadricSimplifier.Simplification tenth = simplifier.simplify(sphere.getTriangleCount() / 10);
+
+        Assert.assertTrue(half.getMesh().getTriangleCount() <= sphere.getTriangleCount() / 2);
+        Assert.assertTrue(tenth.getMesh().getTriangleCount() <= sphere.getTriangleCount() / 10);
+        Assert.assertTrue(half.getError() > 0);
+        Assert.assertTrue(tenth.getError() > half.getError());
+        Assert.assertTrue(tenth.getError() < 0.2);
+    }
+
+    private static Mesh grid(int size) {
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++) {
+                positions.add(x, y, 0);
+            }
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * (size + 1) + x;
+                indices.add(corner, corner + 1, corner + size + 2);
+                indices.add(corner, corner + size + 2, corner + size + 1);
+            }
+        }
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        mesh.addGroup(new Mesh.Group("plate", "steel", 0, indices.size()));
+        return mesh;
+    }
+
+    private static Mesh sphere(int segments) {
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        for (int ring = 0; ring <= segments; ring++) {
+            double theta = Math.PI * ring / segments;
+            for (int segment = 0; segment < segments; segment++) {
+                double phi = 2 * Math.PI * segment / segments;
+                positions.add((float) (Math.sin(theta) * Math.cos(phi)), (float) (Math.sin(theta) * Math.sin(phi)),
+                        (float) Math.cos(theta));
+            }
+        }
+        for (int ring = 0; ring < segments; ring++) {
+            for (int segment = 0; segment < segments; segment++) {
+                int a = ring * segments + segment;
+                int b = ring * segments + (segment + 1) % segments;
+                indices.add(a, a + segments, b + segments);
+                indices.add(a, b + segments, b);
+            }
+        }
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        mesh.addGroup(new Mesh.Group(null, null, 0, indices.size()));
+        return mesh;
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SoftwareRasterizerTest {
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+
+    @AfterClass
+    public static void shutdown() {
+        EXECUTOR.shutdown();
+    }
+
+    @Test
+    public void nearestTriangleIsDrawnWithItsMaterial() throws InterruptedException {
+        // Two squares seen from the front right top, the red one in front of the blue one
+        FloatList positions = new FloatList();
+        IntList indices = new IntList();
+        Mesh mesh = new Mesh(positions, new FloatList(), indices);
+        addSquare(positions, indices, -1);
+        mesh.addGroup(new Mesh.Group("back", "blue", 0, 6));
+        addSquare(positions, indices, 1);
+        mesh.addGroup(new Mesh.Group("front", "red", 6, 6));
+        Map<String, Material> materials = new HashMap<>();
+        materials.put("red", material("red", 1, 0, 0));
+        materials.put("blue", material("blue", 0, 0, 1));
+
+        BufferedImage image = new SoftwareRasterizer(64, 64).render(mesh, materials, EXECUTOR);
+
+        Assert.assertEquals(64, image.getWidth());
+        int center = image.getRGB(32, 32);
+        Assert.assertEquals(0xff, center >>> 24);
+        Assert.assertTrue((center >> 16 & 0xff) > 0x40);
+        Assert.assertEquals(0, center & 0xff);
+        Assert.assertEquals(0, image.getRGB(0, 0) >>> 24);
+    }
+
+    private static void addSquare(FloatList positions, IntList indices, float z) {
+        int first = positions.size() / 3;
+        positions.add(-1, -1, z);
+        positions.add(1, -1, z);
+        positions.add(1, 1, z);
+        positions.add(-1, 1, z);
+        indices.add(first, first + 1, first + 2);
+        indices.add(first, first + 2, first + 3);
+    }
+
+    private static Material material(String name, float red, float green, float blue) {
+        Material material = new Material(name);
+        material.setDiffuse(red, green, blue);
+        return material;
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.docdoku.server.converters.utils.pipeline;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+public class GlbStageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void glbIsWrittenWithQuantizedPositions() throws IOException, ConversionException {
+        Path tmpDir = folder.getRoot().toPath();
+        Path obj = write("part.obj", "mtllib part.mtl\nv -1 2 0\nv 3 2 0\nv 3 4 0\nvn 0 0 1\n"
+                + "usemtl glass\nf 1//1 2//1 3//1\n");
+        write("part.mtl", "newmtl glass\nKd 0.2 0.4 0.6\nd 0.5\n");
+
+        ProcessedConversionResult result = new GlbStage().process(
+                new ProcessedConversionResult(obj, Collections.emptyList()), tmpDir);
+
+        Path glb = result.getArtifact(GlbStage.ARTIFACT);
+        Assert.assertEquals(tmpDir.resolve("part.glb"), glb);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(glb)).order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(0x46546C67, buffer.getInt());
+        Assert.assertEquals(2, buffer.getInt());
+        Assert.assertEquals(Files.size(glb), buffer.getInt());
+        int jsonLength = buffer.getInt();
+        Assert.assertEquals(0, jsonLength % 4);
+        Assert.assertEquals(0x4E4F534A, buffer.getInt());
+        byte[] json = new byte[jsonLength];
+        buffer.get(json);
+        String gltf = new String(json, StandardCharsets.UTF_8);
+        Assert.assertTrue(gltf, gltf.contains("\"extensionsRequired\":[\"KHR_mesh_quantization\"]"));
+        Assert.assertTrue(gltf, gltf.contains("\"translation\":[-1.0,2.0,0.0]"));
+        Assert.assertTrue(gltf, gltf.contains("\"baseColorFactor\":[0.2,0.4,0.6,0.5]"));
+        Assert.assertTrue(gltf, gltf.contains("\"alphaMode\":\"BLEND\""));
+
+        int binLength = buffer.getInt();
+        Assert.assertEquals(0x004E4942, buffer.getInt());
+        Assert.assertEquals(buffer.remaining(), binLength);
+        // Second vertex is at the maximum of x and the minimum of y
+        buffer.position(buffer.position() + 8);
+        Assert.assertEquals(0xffff, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0, buffer.getShort());
+        // The scale is uniform, the third vertex is at half of the largest extent on y
+        float scale = 4f / 0xffff;
+        Assert.assertTrue(gltf, gltf.contains("\"scale\":[" + scale + "," + scale + "," + scale + "]"));
+        buffer.position(buffer.position() + 4);
+        Assert.assertEquals(0xffff, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0x8000, buffer.getShort() & 0xffff);
+
+        Assert.assertEquals("3", result.getMetric("glb.vertices"));
+        Assert.assertEquals("1", result.getMetric("glb.triangles"));
+        Assert.assertEquals(String.valueOf(Files.size(glb)), result.getMetric("glb.size"));
+        Assert.assertNotNull(result.getMetric("glb.compression_ratio"));
+    }
+
+    @Test
+    public void textureCoordinatesAreWritten() throws IOException, ConversionException {
+        Path obj = write("decal.obj", "v 0 0 0\nv 1 0 0\nv 0 1 0\nvt 0 0\nvt 1 0\nvt 0 1\nf 1/1 2/2 3/3\n");
+
+        Path glb = new GlbStage().process(new ProcessedConversionResult(obj, Collections.emptyList()),
+                folder.getRoot().toPath()).getArtifact(GlbStage.ARTIFACT);
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(glb)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(12);
+        byte[] json = new byte[buffer.getInt()];
+        buffer.getInt();
+        buffer.get(json);
+        String gltf = new String(json, StandardCharsets.UTF_8);
+        Assert.assertTrue(gltf, gltf.contains("\"TEXCOORD_0\":1"));
+        Assert.assertTrue(gltf, gltf.contains("\"componentType\":5126,\"count\":3,\"type\":\"VEC2\""));
+        // Positions, texture coordinates and the padded indices
+        int binLength = buffer.getInt();
+        Assert.assertEquals(3 * 8 + 3 * 8 + 8, binLength);
+        buffer.getInt();
+        Assert.assertEquals(binLength, buffer.remaining());
+        // The texture coordinates of the first vertex, upside down
+        buffer.position(buffer.position() + 3 * 8);
+        Assert.assertEquals(0, buffer.getFloat(), 0);
+        Assert.assertEquals(1, buffer.getFloat(), 0);
+    }
+
+    @Test(expected = ConversionException.class)
+    public void emptyMeshIsRejected() throws IOException, ConversionException {
+        Path obj = write("empty.obj", "v 0 0 0\n");
+        new GlbStage().process(new ProcessedConversionResult(obj, Collections.emptyList()),
+                folder.getRoot().toPath());
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
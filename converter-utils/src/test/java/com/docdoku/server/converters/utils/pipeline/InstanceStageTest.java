@@ -0,0 +1,143 @@
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.GeometryHash;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class InstanceStageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copiesReferenceTheFirstGeometry() throws IOException {
+        Path registryDir = folder.newFolder("registry").toPath();
+        ConversionPipeline pipeline = new ConversionPipeline(Arrays.asList(
+                new InstanceStage(0.001, new GeometryRegistry(registryDir)), new GlbStage()));
+        Path first = write("bracket.obj", 0);
+        Path second = write("bracket-copy.obj", 25);
+
+        ProcessedConversionResult original = (ProcessedConversionResult) pipeline.process(
+                new ProcessedConversionResult(first, Collections.emptyList()), folder.getRoot().toPath());
+        ProcessedConversionResult copy = (ProcessedConversionResult) pipeline.process(
+                new ProcessedConversionResult(second, Collections.emptyList()), folder.getRoot().toPath());
+
+        String geometry = original.getMetric("instance.geometry");
+        Assert.assertEquals("false", original.getMetric("instance.shared"));
+        Assert.assertNull(original.getInstanceOf());
+        Assert.assertNotNull(original.getArtifact("glb"));
+        Assert.assertTrue(Files.isRegularFile(registryDir.resolve(geometry).resolve("bracket.glb")));
+        Assert.assertTrue(Files.isRegularFile(registryDir.resolve(geometry).resolve("bracket.obj")));
+
+        Assert.assertEquals(geometry, copy.getInstanceOf());
+        Assert.assertNull(copy.getArtifact("glb"));
+        String instance = new String(Files.readAllBytes(copy.getArtifact(InstanceStage.ARTIFACT)),
+                StandardCharsets.UTF_8);
+        Assert.assertTrue(instance.contains("\"geometry\":\"" + geometry + "\""));
+        Assert.assertTrue(instance.contains("\"glb\":\"bracket.glb\""));
+        String[] matrix = instance.replaceFirst(".*\"matrix\":\\[([^\\]]*)\\].*\n", "$1").split(",");
+        double[] expected = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 25, 0, 0, 1};
+        Assert.assertEquals(16, matrix.length);
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(expected[i], Double.parseDouble(matrix[i]), 1e-6);
+        }
+    }
+
+    @Test
+    public void texturedCopiesAreNotShared() throws IOException {
+        InstanceStage stage = new InstanceStage(0.001, new GeometryRegistry(folder.newFolder("registry").toPath()));
+        ConversionPipeline pipeline = new ConversionPipeline(Collections.singletonList(stage));
+        Path textured = folder.getRoot().toPath().resolve("decal.obj");
+        Files.write(textured, "v 0 0 0\nv 1 0 0\nv 0 1 0\nvt 0 0\nvt 1 0\nvt 0 1\nf 1/1 2/2 3/3\n"
+                .getBytes(StandardCharsets.UTF_8));
+
+        for (int i = 0; i < 2; i++) {
+            ProcessedConversionResult result = (ProcessedConversionResult) pipeline.process(
+                    new ProcessedConversionResult(textured, Collections.emptyList()), folder.getRoot().toPath());
+            Assert.assertEquals("false", result.getMetric("instance.shared"));
+            Assert.assertNull(result.getInstanceOf());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedGeometriesAreEvicted() throws IOException {
+        Path registryDir = folder.newFolder("registry").toPath();
+        Path obj = write("bracket.obj", 0);
+        long entrySize = Files.size(obj);
+        GeometryRegistry registry = new GeometryRegistry(registryDir, entrySize * 2);
+        double[] identity = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        ProcessedConversionResult result = new ProcessedConversionResult(obj, Collections.emptyList());
+
+        Assert.assertTrue(registry.register(new GeometryHash("first", identity), result));
+        Assert.assertTrue(registry.register(new GeometryHash("second", identity), result));
+        Assert.assertNotNull(registry.find("first"));
+        Assert.assertTrue(registry.register(new GeometryHash("third", identity), result));
+
+        Assert.assertEquals(entrySize * 2, registry.getSize());
+        Assert.assertNotNull(registry.find("first"));
+        Assert.assertNull(registry.find("second"));
+        Assert.assertNotNull(registry.find("third"));
+        // Entries on disk are found again by a new registry
+        Assert.assertEquals(entrySize * 2, new GeometryRegistry(registryDir, entrySize * 2).getSize());
+    }
+
+    @Test
+    public void referencedGeometriesAreNotEvicted() throws IOException {
+        Path registryDir = folder.newFolder("registry").toPath();
+        Path obj = write("bracket.obj", 0);
+        long entrySize = Files.size(obj);
+        GeometryRegistry registry = new GeometryRegistry(registryDir, entrySize * 2);
+        double[] identity = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        ProcessedConversionResult result = new ProcessedConversionResult(obj, Collections.emptyList());
+
+        Assert.assertTrue(registry.register(new GeometryHash("first", identity), result));
+        Assert.assertNotNull(registry.reference("first"));
+        Assert.assertTrue(registry.register(new GeometryHash("second", identity), result));
+        Assert.assertTrue(registry.register(new GeometryHash("third", identity), result));
+
+        Assert.assertNotNull(registry.find("first"));
+        Assert.assertNull(registry.find("second"));
+        Assert.assertNotNull(registry.find("third"));
+        // References are kept on disk for the other processes
+        new GeometryRegistry(registryDir, 0);
+        Assert.assertNotNull(registry.find("first"));
+        Assert.assertNull(registry.find("third"));
+    }
+
+    @Test
+    public void recentStagingDirectoriesAreKept() throws IOException {
+        Path registryDir = folder.newFolder("registry").toPath();
+        Path recent = Files.createDirectory(registryDir.resolve(".staging-recent"));
+        Path old = Files.createDirectory(registryDir.resolve(".staging-old"));
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+
+        new GeometryRegistry(registryDir);
+
+        Assert.assertTrue(Files.isDirectory(recent));
+        Assert.assertFalse(Files.exists(old));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registryRequiresADirectory() {
+        InstanceStage.fromProperties("0.001", "", "4096");
+    }
+
+    private Path write(String name, int offset) throws IOException {
+        String content = "v " + offset + " 0 0\nv " + (offset + 4) + " 0 0\nv " + offset + " 2 0\n"
+                + "v " + offset + " 0 1\nv " + (offset + 1) + " 1 3\n"
+                + "f 1 3 2\nf 1 2 4\nf 1 4 3\nf 2 3 4\nf 2 5 4\n";
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
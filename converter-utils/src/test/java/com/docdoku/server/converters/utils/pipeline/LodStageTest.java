@@ -0,0 +1,66 @@
+package com.docdoku.server.converters.utils.pipeline;
+
+import com.docdoku.server.converters.utils.mesh.Mesh;
+import com.docdoku.server.converters.utils.mesh.ObjReader;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+public class LodStageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void levelsAreWrittenWithTheirErrors() throws IOException, ConversionException {
+        Path tmpDir = folder.getRoot().toPath();
+        Path obj = tmpDir.resolve("plate.obj");
+        StringBuilder content = new StringBuilder("mtllib plate.mtl\ng plate\nusemtl steel\n");
+        int size = 20;
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++) {
+                content.append("v ").append(x).append(' ').append(y).append(' ').append(x * y % 3 * 0.01).append('\n');
+            }
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * (size + 1) + x + 1;
+                content.append("f ").append(corner).append(' ').append(corner + 1).append(' ')
+                        .append(corner + size + 2).append(' ').append(corner + size + 1).append('\n');
+            }
+        }
+        Files.write(obj, content.toString().getBytes(StandardCharsets.UTF_8));
+
+        ProcessedConversionResult result = LodStage.fromProperties("50, 10", "100")
+                .process(new ProcessedConversionResult(obj, Collections.emptyList()), tmpDir);
+
+        Assert.assertEquals(tmpDir.resolve("plate.lod50.obj"), result.getArtifact("lod50"));
+        Mesh tenth = ObjReader.read(result.getArtifact("lod10"));
+        Assert.assertTrue(tenth.getTriangleCount() <= 80);
+        Assert.assertEquals(String.valueOf(tenth.getTriangleCount()), result.getMetric("lod10.triangles"));
+        Assert.assertEquals("steel", tenth.getGroups().get(0).getMaterial());
+        Assert.assertEquals("plate.mtl", tenth.getMaterialLibraries().get(0));
+        Assert.assertTrue(Double.parseDouble(result.getMetric("lod10.error"))
+                >= Double.parseDouble(result.getMetric("lod50.error")));
+    }
+
+    @Test
+    public void smallMeshesAreNotSimplified() throws IOException, ConversionException {
+        Path obj = Files.write(folder.getRoot().toPath().resolve("small.obj"),
+                "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes(StandardCharsets.UTF_8));
+
+        ProcessedConversionResult result = LodStage.fromProperties("50", "100")
+                .process(new ProcessedConversionResult(obj, Collections.emptyList()), folder.getRoot().toPath());
+
+        Assert.assertTrue(result.getArtifacts().isEmpty());
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.docdoku.server.converters.utils.pipeline;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+public class TileStageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tilesAreIndexedByTheTileset() throws IOException, ConversionException {
+        Path tmpDir = folder.getRoot().toPath();
+        StringBuilder content = new StringBuilder();
+        int size = 30;
+        for (int y = 0; y <= size; y++) {
+            for (int x = 0; x <= size; x++) {
+                content.append("v ").append(x).append(' ').append(y).append(" 0\n");
+            }
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int corner = y * (size + 1) + x + 1;
+                content.append("f ").append(corner).append(' ').append(corner + 1).append(' ')
+                        .append(corner + size + 2).append(' ').append(corner + size + 1).append('\n');
+            }
+        }
+        Path obj = Files.write(tmpDir.resolve("floor.obj"), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        ProcessedConversionResult result = new TileStage(100, 4)
+                .process(new ProcessedConversionResult(obj, Collections.emptyList()), tmpDir);
+
+        String tileset = new String(Files.readAllBytes(result.getArtifact(TileStage.ARTIFACT)),
+                StandardCharsets.UTF_8);
+        Assert.assertTrue(tileset.startsWith("{\"asset\":{\"version\":\"1.1\""));
+        int tiles = 0;
+        for (Map.Entry<String, Path> artifact : result.getArtifacts().entrySet()) {
+            if (artifact.getKey().startsWith("tile")) {
+                Assert.assertTrue(Files.isRegularFile(artifact.getValue()));
+                if (!artifact.getKey().equals(TileStage.ARTIFACT)) {
+                    Assert.assertTrue(tileset.contains("\"uri\":\"" + artifact.getValue().getFileName() + "\""));
+                    tiles++;
+                }
+            }
+        }
+        Assert.assertTrue(tiles > 8);
+        Assert.assertEquals(String.valueOf(tiles), result.getMetric("tiles.count"));
+    }
+
+    @Test
+    public void lightMeshesAreNotTiled() throws IOException, ConversionException {
+        Path obj = Files.write(folder.getRoot().toPath().resolve("small.obj"),
+                "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes(StandardCharsets.UTF_8));
+
+        ProcessedConversionResult result = new TileStage(100, 4)
+                .process(new ProcessedConversionResult(obj, Collections.emptyList()), folder.getRoot().toPath());
+
+        Assert.assertTrue(result.getArtifacts().isEmpty());
+    }
+
+}
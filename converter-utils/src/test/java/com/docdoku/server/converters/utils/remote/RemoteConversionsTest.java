@@ -0,0 +1,385 @@
+package com.docdoku.server.converters.utils.remote;
+
+import com.docdoku.server.converters.utils.AsyncCADConverter;
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionFutures;
+import com.docdoku.server.converters.utils.ConversionPriority;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RemoteConversionsTest {
+
+    private static final ConversionContext CONTEXT = new ConversionContext("w", ConversionPriority.INTERACTIVE);
+    private static final String SECRET = "secret";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ConversionWorker> workers = new ArrayList<>();
+    private final List<RemoteConversions> remotes = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * Writes the name of the worker in the OBJ file once the gate of the file on this worker, or of the file, is
+     * opened, writes it at once if the file has no gate. Worker processes wait for
+     * {@code conversion.worker.delay} milliseconds instead.
+     */
+    public static class NamedConverter implements AsyncCADConverter {
+
+        static final Map<String, CompletableFuture<Void>> GATES = new ConcurrentHashMap<>();
+
+        private final String name;
+
+        public NamedConverter() {
+            this(System.getProperty("conversion.worker.name", "process"));
+        }
+
+        NamedConverter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public CompletableFuture<ConversionResult> convertAsync(URI cadFileUri, URI tmpDirUri) {
+            Path cadFile = Paths.get(cadFileUri);
+            Path objFile = Paths.get(tmpDirUri).resolve(cadFile.getFileName() + ".obj");
+            Path mtlFile = Paths.get(tmpDirUri).resolve(cadFile.getFileName() + ".mtl");
+            String fileName = cadFile.getFileName().toString();
+            CompletableFuture<Void> gate = GATES.getOrDefault(name + "/" + fileName,
+                    GATES.getOrDefault(fileName, CompletableFuture.completedFuture(null)));
+            long delay = Long.getLong("conversion.worker.delay", 0);
+            if (delay > 0) {
+                gate = CompletableFuture.runAsync(() -> {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            return ConversionFutures.then(gate, ignored -> {
+                try {
+                    Files.write(objFile, (name + " " + new String(Files.readAllBytes(cadFile),
+                            StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+                    Files.write(mtlFile, "newmtl m".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new ConversionException(e);
+                }
+                return new ConversionResult(objFile, Collections.singletonList(mtlFile));
+            });
+        }
+
+        @Override
+        public ConversionResult convert(URI cadFileUri, URI tmpDirUri) throws ConversionException {
+            return ConversionFutures.await(convertAsync(cadFileUri, tmpDirUri));
+        }
+
+        @Override
+        public boolean canConvertToOBJ(String cadFileExtension) {
+            return true;
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        remotes.forEach(RemoteConversions::close);
+        for (ConversionWorker worker : workers) {
+            worker.close();
+        }
+        processes.forEach(Process::destroyForcibly);
+        NamedConverter.GATES.clear();
+    }
+
+    private InetSocketAddress startWorker(String name, int slots, long heartbeatInterval) throws IOException {
+        return startWorker(name, slots, heartbeatInterval, folder.getRoot().toPath());
+    }
+
+    private InetSocketAddress startWorker(String name, int slots, long heartbeatInterval, Path sharedDirectory)
+            throws IOException {
+        ConversionWorker worker = new ConversionWorker(new InetSocketAddress("localhost", 0), slots,
+                heartbeatInterval, folder.newFolder().toPath(), Collections.singletonList(sharedDirectory), SECRET,
+                Collections.singletonList(new NamedConverter(name)));
+        workers.add(worker);
+        Thread thread = new Thread(worker, "worker-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return new InetSocketAddress("localhost", worker.getPort());
+    }
+
+    private RemoteConversions connect(RemoteConversions.Transfer transfer, InetSocketAddress... addresses)
+            throws InterruptedException {
+        RemoteConversions remote = new RemoteConversions(NamedConverter.class, Arrays.asList(addresses), transfer,
+                SECRET, 500, 3);
+        remotes.add(remote);
+        for (int i = 0; i < 200 && remote.getConnectedWorkers() < addresses.length; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(addresses.length, remote.getConnectedWorkers());
+        return remote;
+    }
+
+    private URI cadFile(String name) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, name.getBytes(StandardCharsets.UTF_8));
+        return file.toUri();
+    }
+
+    private static String content(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testStreamTransfer() throws Exception {
+        RemoteConversions remote = connect(RemoteConversions.Transfer.STREAM, startWorker("a", 2, 100));
+        Path tmpDir = folder.newFolder().toPath();
+
+        ConversionResult result = remote.convertAsync(CONTEXT, cadFile("part.stp"), tmpDir.toUri())
+                .get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(tmpDir.resolve("part.stp.obj"), result.getConvertedFile());
+        Assert.assertEquals("a part.stp", content(result.getConvertedFile()));
+        Assert.assertEquals("newmtl m", content(result.getMaterials().get(0)));
+    }
+
+    @Test
+    public void testPathTransfer() throws Exception {
+        RemoteConversions remote = connect(RemoteConversions.Transfer.PATH, startWorker("a", 2, 100));
+        Path tmpDir = folder.newFolder().toPath();
+
+        ConversionResult result = remote.convertAsync(CONTEXT, cadFile("part.ifc"), tmpDir.toUri())
+                .get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(tmpDir.resolve("part.ifc.obj"), result.getConvertedFile());
+        Assert.assertEquals("a part.ifc", content(result.getConvertedFile()));
+    }
+
+    @Test
+    public void testPathTransferOutsideSharedDirectoriesIsRefused() throws Exception {
+        Path sharedDirectory = folder.newFolder("shared").toPath();
+        RemoteConversions remote = connect(RemoteConversions.Transfer.PATH,
+                startWorker("a", 2, 100, sharedDirectory));
+
+        CompletableFuture<ConversionResult> result = remote.convertAsync(CONTEXT, cadFile("part.ifc"),
+                folder.newFolder().toURI());
+
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            Assert.fail("Converted files outside of the shared directories");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("not in the directories shared"));
+        }
+    }
+
+    @Test
+    public void testServerWithoutTheSecretIsRejected() throws Exception {
+        InetSocketAddress address = startWorker("a", 1, TimeUnit.HOURS.toMillis(1));
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            socket.setSoTimeout(10000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            Assert.assertEquals(RemoteProtocol.MAGIC, in.readInt());
+            Assert.assertEquals(RemoteProtocol.VERSION, in.readInt());
+            Assert.assertEquals(RemoteProtocol.HELLO, in.readByte());
+            in.readInt();
+            RemoteProtocol.readString(in);
+            byte[] challenge = new byte[RemoteProtocol.CHALLENGE_SIZE];
+            in.readFully(challenge);
+
+            out.writeByte(RemoteProtocol.AUTH);
+            out.write(RemoteProtocol.sign("other", challenge));
+            out.flush();
+
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testInvalidSubmissionIsRejected() throws Exception {
+        InetSocketAddress address = startWorker("a", 1, TimeUnit.HOURS.toMillis(1));
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            socket.setSoTimeout(10000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            in.readInt();
+            in.readInt();
+            in.readByte();
+            in.readInt();
+            RemoteProtocol.readString(in);
+            byte[] challenge = new byte[RemoteProtocol.CHALLENGE_SIZE];
+            in.readFully(challenge);
+            out.writeByte(RemoteProtocol.AUTH);
+            out.write(RemoteProtocol.sign(SECRET, challenge));
+
+            for (String fileName : Arrays.asList("part.stp", "/")) {
+                out.writeByte(RemoteProtocol.SUBMIT);
+                out.writeLong(fileName.length());
+                RemoteProtocol.writeString(out, NamedConverter.class.getName());
+                RemoteProtocol.writeString(out, "w");
+                RemoteProtocol.writeString(out, fileName.length() > 1 ? "URGENT" : "INTERACTIVE");
+                RemoteProtocol.writeString(out, null);
+                out.writeInt(0);
+                out.writeByte(RemoteProtocol.TRANSFER_STREAM);
+                RemoteProtocol.writeString(out, fileName);
+                out.writeLong(1);
+                out.writeByte('x');
+                out.flush();
+
+                byte type;
+                do {
+                    type = in.readByte();
+                } while (type == RemoteProtocol.HEARTBEAT);
+                Assert.assertEquals(RemoteProtocol.FAILURE, type);
+                Assert.assertEquals(fileName.length(), in.readLong());
+                Assert.assertTrue(RemoteProtocol.readString(in).startsWith("Invalid conversion"));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOversizedStringIsRefused() throws Exception {
+        byte[] frame = {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        RemoteProtocol.readString(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    public void testIdleWorkerStealsQueuedConversions() throws Exception {
+        RemoteConversions remote = connect(RemoteConversions.Transfer.STREAM,
+                startWorker("a", 1, 100), startWorker("b", 1, 100));
+        Path tmpDir = folder.newFolder().toPath();
+        List<CompletableFuture<ConversionResult>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            NamedConverter.GATES.put("part" + i, new CompletableFuture<>());
+            results.add(remote.convertAsync(CONTEXT, cadFile("part" + i), tmpDir.toUri()));
+        }
+
+        // part0 and part2 are queued on a, part1 and part3 on b
+        NamedConverter.GATES.get("part1").complete(null);
+        NamedConverter.GATES.get("part3").complete(null);
+        NamedConverter.GATES.get("part2").complete(null);
+        Assert.assertEquals("b part1", content(results.get(1).get(10, TimeUnit.SECONDS).getConvertedFile()));
+        Assert.assertEquals("b part3", content(results.get(3).get(10, TimeUnit.SECONDS).getConvertedFile()));
+        Assert.assertEquals("b part2", content(results.get(2).get(10, TimeUnit.SECONDS).getConvertedFile()));
+
+        NamedConverter.GATES.get("part0").complete(null);
+        Assert.assertEquals("a part0", content(results.get(0).get(10, TimeUnit.SECONDS).getConvertedFile()));
+    }
+
+    @Test
+    public void testSilentWorkerConversionsAreReassigned() throws Exception {
+        // The first worker never sends a heartbeat nor converts
+        NamedConverter.GATES.put("silent/part.stp", new CompletableFuture<>());
+        RemoteConversions remote = connect(RemoteConversions.Transfer.STREAM,
+                startWorker("silent", 1, TimeUnit.HOURS.toMillis(1)), startWorker("alive", 1, 100));
+        Path tmpDir = folder.newFolder().toPath();
+
+        CompletableFuture<ConversionResult> result = remote.convertAsync(CONTEXT, cadFile("part.stp"),
+                tmpDir.toUri());
+
+        Assert.assertEquals("alive part.stp", content(result.get(10, TimeUnit.SECONDS).getConvertedFile()));
+    }
+
+    @Test
+    public void testConversionsFailWithoutWorkers() throws Exception {
+        InetSocketAddress address;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            address = new InetSocketAddress("localhost", socket.getLocalPort());
+        }
+        RemoteConversions remote = new RemoteConversions(NamedConverter.class, Collections.singletonList(address),
+                RemoteConversions.Transfer.STREAM, SECRET, 200, 3);
+        remotes.add(remote);
+
+        CompletableFuture<ConversionResult> result = remote.convertAsync(CONTEXT, cadFile("part.stp"),
+                folder.newFolder().toURI());
+
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            Assert.fail("Converted without worker");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().startsWith("No conversion worker reachable"));
+        }
+    }
+
+    @Test
+    public void testCancelStopsRemoteConversion() throws Exception {
+        RemoteConversions remote = connect(RemoteConversions.Transfer.STREAM, startWorker("a", 1, 100));
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        NamedConverter.GATES.put("part.stp", gate);
+
+        CompletableFuture<ConversionResult> result = remote.convertAsync(CONTEXT, cadFile("part.stp"),
+                folder.newFolder().toURI());
+        for (int i = 0; i < 200 && gate.getNumberOfDependents() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(result.cancel(true));
+
+        for (int i = 0; i < 200 && !gate.isCancelled(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(gate.isCancelled());
+    }
+
+    @Test
+    public void testKilledWorkerProcessConversionsAreReassigned() throws Exception {
+        // The first worker converts slowly enough to be killed while converting
+        InetSocketAddress first = startProcess("first", 60000);
+        InetSocketAddress second = startProcess("second", 0);
+        RemoteConversions remote = new RemoteConversions(NamedConverter.class, Arrays.asList(first, second),
+                RemoteConversions.Transfer.STREAM, SECRET, 2000, 3);
+        remotes.add(remote);
+        for (int i = 0; i < 1000 && remote.getConnectedWorkers() < 2; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(2, remote.getConnectedWorkers());
+
+        CompletableFuture<ConversionResult> result = remote.convertAsync(CONTEXT, cadFile("part.stp"),
+                folder.newFolder().toURI());
+        Thread.sleep(500);
+        Assert.assertFalse(result.isDone());
+        processes.get(0).destroyForcibly().waitFor();
+
+        Assert.assertEquals("second part.stp", content(result.get(20, TimeUnit.SECONDS).getConvertedFile()));
+    }
+
+    private InetSocketAddress startProcess(String name, long delay) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Path secretFile = Files.write(folder.newFile(name + ".secret").toPath(),
+                SECRET.getBytes(StandardCharsets.UTF_8));
+        processes.add(new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dconversion.worker.name=" + name, "-Dconversion.worker.delay=" + delay,
+                "-cp", System.getProperty("java.class.path"),
+                ConversionWorker.class.getName(), "--port", String.valueOf(port), "--heartbeat", "1",
+                "--secret-file", secretFile.toString(),
+                "--work-dir", folder.newFolder().toString(), "--converters", NamedConverter.class.getName())
+                .redirectErrorStream(true).redirectOutput(folder.newFile(name + ".log")).start());
+        return new InetSocketAddress("localhost", port);
+    }
+
+}
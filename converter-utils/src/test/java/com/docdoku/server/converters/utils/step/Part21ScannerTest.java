@@ -0,0 +1,112 @@
+package com.docdoku.server.converters.utils.step;
+
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionPriority;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class Part21ScannerTest {
+
+    private static final String STEP = "ISO-10303-21;\n"
+            + "HEADER;\n"
+            + "FILE_DESCRIPTION(('an assembly'),'2;1');\n"
+            + "FILE_NAME('bracket.stp','2017-01-01T00:00:00',('me'),(''),'','','');\n"
+            + "FILE_SCHEMA(('AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }'));\n"
+            + "ENDSEC;\n"
+            + "DATA;\n"
+            + "/* products; with (comments) */\n"
+            + "#1=PRODUCT('P1','Bracket','',(#4));\n"
+            + "#2 = PRODUCT ( 'P2' , '' , 'name is empty; id is used' , ( #4 ) ) ;\n"
+            + "#3=PRODUCT('P3','O''Neil (rev. A)','',(#4));\n"
+            + "#4=PRODUCT_CONTEXT('',#5,'mechanical');\n"
+            + "#5=APPLICATION_CONTEXT('core data');\n"
+            + "#6=NEXT_ASSEMBLY_USAGE_OCCURRENCE('1','','',#1,#2,$);\n"
+            + "#7=NEXT_ASSEMBLY_USAGE_OCCURRENCE('2','','',#1,#3,$);\n"
+            + "#8=CARTESIAN_POINT('',(0.,1.E-2,-3.5));\n"
+            + "#9=ADVANCED_FACE('',(#10),#11,.T.);\n"
+            + "#10=( GEOMETRIC_REPRESENTATION_CONTEXT(3) GLOBAL_UNIT_ASSIGNED_CONTEXT((#5)) "
+            + "REPRESENTATION_CONTEXT('','') );\n"
+            + "#11=B_SPLINE_SURFACE_WITH_KNOTS('',1,1,((#8,#8),(#8,#8)),.UNSPECIFIED.,.F.,.F.,.F.,(2),(2),"
+            + "(0.,1.),(0.,1.),.UNSPECIFIED.);\n"
+            + "ENDSEC;\n"
+            + "END-ISO-10303-21;\n";
+
+    private static final String IFC = "ISO-10303-21;\n"
+            + "HEADER;FILE_DESCRIPTION((''),'2;1');FILE_NAME('','',(''),(''),'','','');"
+            + "FILE_SCHEMA(('IFC2X3'));ENDSEC;\n"
+            + "DATA;\n"
+            + "#1=IFCBUILDINGSTOREY('0a',$,'Level 1',$,$,$,$,$,.ELEMENT.,0.);\n"
+            + "#2=IFCWALLSTANDARDCASE('0b',$,'Wall',$,$,$,$,$);\n"
+            + "#3=IFCWALLSTANDARDCASE('0c',$,$,$,$,$,$,$);\n"
+            + "#4=IFCOPENINGELEMENT('0d',$,$,$,$,$,$,$);\n"
+            + "#5=IFCRELAGGREGATES('0e',$,$,$,#1,(#2,#3));\n"
+            + "ENDSEC;\n"
+            + "END-ISO-10303-21;\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stepFile() throws IOException {
+        Part21Summary summary = Part21Scanner.scan(write("bracket.stp", STEP));
+
+        Assert.assertEquals(Arrays.asList("AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }"), summary.getSchemas());
+        Assert.assertFalse(summary.isIfc());
+        Assert.assertEquals(11, summary.getInstanceCount());
+        Assert.assertEquals(3, summary.getEntityCount("PRODUCT"));
+        Assert.assertEquals(1, summary.getEntityCount("GLOBAL_UNIT_ASSIGNED_CONTEXT"));
+        Assert.assertEquals(0, summary.getEntityCount("FILE_NAME"));
+        Assert.assertEquals(Arrays.asList("Bracket", "P2", "O'Neil (rev. A)"), summary.getProductNames());
+        Assert.assertEquals(2, summary.getAssemblyUsageCount());
+        // Plain entities cost 1, the B-spline surface and advanced face 40 and 20
+        Assert.assertEquals(7 + 3 + 0.2 + 20 + 40, summary.getCost(), 1e-9);
+    }
+
+    @Test
+    public void ifcFile() throws IOException {
+        Part21Summary summary = Part21Scanner.scan(write("building.ifc", IFC));
+
+        Assert.assertTrue(summary.isIfc());
+        Assert.assertEquals(5, summary.getInstanceCount());
+        Assert.assertEquals(3, summary.getProductCount());
+        Assert.assertEquals(Arrays.asList("Level 1", "Wall"), summary.getProductNames());
+        Assert.assertEquals(1, summary.getAssemblyUsageCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileIsRejected() throws IOException {
+        Part21Scanner.scan(write("truncated.stp", STEP.substring(0, STEP.indexOf("#9=") + 12)));
+    }
+
+    @Test
+    public void admission() throws Exception {
+        Path file = write("building.ifc", IFC);
+        ConversionContext interactive = new ConversionContext("ws", ConversionPriority.INTERACTIVE);
+
+        Assert.assertSame(interactive, new Part21Admission(0, 0).admit(file, interactive));
+        Assert.assertSame(interactive, new Part21Admission(1000, 500).admit(file, interactive));
+        ConversionContext demoted = new Part21Admission(1000, 10).admit(file, interactive);
+        Assert.assertEquals(ConversionPriority.BULK, demoted.getPriority());
+        Assert.assertEquals("ws", demoted.getWorkspaceId());
+        try {
+            new Part21Admission(10, 0).admit(file, interactive);
+            Assert.fail();
+        } catch (ConversionException e) {
+            Assert.assertTrue(e.getMessage().contains("building.ifc"));
+        }
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}